@@ -0,0 +1,914 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Small stand-alone benchmark program for the hot paths of the ATM system.
+ * Each benchmark is run by name from the command line, for example:
+ *
+ *     javac *.java
+ *     java ATMBenchmark lookup
+ *
+ * Assumption: The program is run on an otherwise idle machine. Every benchmark warms up
+ * the code it measures before timing it so the JIT compiler has already done its work.
+ * Stress runs also check their results and exit with status 1 if a check fails.
+ *
+ * The core operations (login, lookup, the withdrawal checks, dispensing, withdraw,
+ * deposit, and both transfers) are measured by the JMH benchmarks in src/jmh/java instead,
+ * at account populations from 10 to 10 million and on one thread or many:
+ *
+ *     gradle jmh -Pjmh="CoreOperationsBenchmark -rf csv -rff baseline.csv"
+ *
+ * So is the comparison of dispensing through Vault.dispense with the per-bill loops
+ * Connection.withdraw used to run (DispenseBenchmark).
+ *
+ * Input: The name of the benchmark to run (or no arguments to run all of them), and
+ * optionally a thread count or a comma separated list of sizes.
+ * Output: A table of timings printed to the console.
+ *
+ * Algorithm: Builds synthetic accounts, times a fixed number of operations with
+ * System.nanoTime, and prints the average cost of one operation.
+ */
+public class ATMBenchmark {
+
+    private static final int LOOKUPS = 2_000_000;
+
+    // Linear scans get too slow to time above this many accounts
+    private static final int MAX_SCANNED_ACCOUNTS = 100_000;
+
+    private static final OptimalDispenser OPTIMAL = new OptimalDispenser();
+
+    private static final int VAULT_BILLS = 30_000;
+
+    /**
+     * Runs the benchmark named by the first argument, or every benchmark.
+     *
+     * @param args The benchmark name.
+     */
+    public static void main(String[] args) throws IOException {
+        String name = args.length > 0 ? args[0] : "all";
+
+        if (name.equals("lookup") || name.equals("all")) {
+            lookupBenchmark();
+        }
+        if (name.equals("transfers") || name.equals("all")) {
+            transferStressTest(args.length > 1 ? Integer.parseInt(args[1]) : 8);
+        }
+        if (name.equals("dispense") || name.equals("all")) {
+            scarceDispenseBenchmark();
+        }
+        if (name.equals("money") || name.equals("all")) {
+            moneyConservationTest();
+        }
+        if (name.equals("vault") || name.equals("all")) {
+            vaultStressTest(args.length > 1 ? Integer.parseInt(args[1]) : 8);
+        }
+        if (name.equals("load") || name.equals("all")) {
+            bulkLoadBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+        }
+        if (name.equals("batch") || name.equals("all")) {
+            batchBenchmark();
+        }
+        if (name.equals("store") || name.equals("all")) {
+            storeStartupBenchmark(args.length > 1 ? parseSizes(args[1]) : new int[] { 1_000_000, 10_000_000 });
+        }
+        if (name.equals("table") || name.equals("all")) {
+            accountTableBenchmark(args.length > 1 ? parseSizes(args[1]) : new int[] { 1_000_000, 10_000_000 });
+        }
+        if (name.equals("gc") || name.equals("all")) {
+            gcPauseBenchmark(args.length > 1 ? parseSizes(args[1]) : new int[] { 1_000_000, 10_000_000 });
+        }
+    }
+
+    /*
+     * Compares finding an account by number in the AccountRegistry with the linear
+     * scan over an ArrayList<Account> that Connection used to do, for growing
+     * numbers of accounts. The registry cost should stay flat while the scan grows
+     * with the number of accounts.
+     */
+    private static void lookupBenchmark() {
+        System.out.println("Account lookup (ns per lookup)");
+        System.out.printf("%12s %12s %12s%n", "accounts", "registry", "list scan");
+
+        for (int n = 1_000; n <= 1_000_000; n *= 10) {
+            ArrayList<Account> list = createAccounts(n);
+            AccountRegistry registry = AccountRegistry.of(list);
+            int[] queries = randomAccountNumbers(list, LOOKUPS);
+
+            // warm up, then time the registry
+            checkLookups(registryLookups(registry, queries), queries);
+            long start = System.nanoTime();
+            checkLookups(registryLookups(registry, queries), queries);
+            double registryNs = (System.nanoTime() - start) / (double) queries.length;
+
+            String scan = "-";
+            if (n <= MAX_SCANNED_ACCOUNTS) {
+                // scanning is O(n), so use fewer queries to keep the run short
+                int[] fewer = new int[Math.max(100, LOOKUPS / n)];
+                System.arraycopy(queries, 0, fewer, 0, fewer.length);
+                checkLookups(listLookups(list, fewer), fewer);
+                start = System.nanoTime();
+                checkLookups(listLookups(list, fewer), fewer);
+                scan = String.format("%.1f", (System.nanoTime() - start) / (double) fewer.length);
+            }
+
+            System.out.printf("%12d %12.1f %12s%n", n, registryNs, scan);
+        }
+        System.out.println();
+    }
+
+    /*
+     * Runs random transfers from many threads at once and checks that the total
+     * money in all accounts is exactly the same afterwards. Half of the transfers
+     * go back and forth between the same two accounts (A to B and B to A) to
+     * provoke a deadlock if the locks were taken in the wrong order.
+     */
+    private static void transferStressTest(int threadCount) {
+        final int accountCount = 1_000;
+        final int transfersPerThread = 500_000;
+
+        ArrayList<Account> list = createAccounts(accountCount);
+        AccountRegistry registry = AccountRegistry.of(list);
+        TransferEngine engine = new TransferEngine(registry, TransferEngine.DEFAULT_STRIPES);
+        long before = totalCents(list);
+        LongAdder succeeded = new LongAdder();
+
+        int a = list.get(0).getAccountNumber();
+        int b = list.get(1).getAccountNumber();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < transfersPerThread; i++) {
+                    int from;
+                    int to;
+                    if (random.nextBoolean()) {
+                        boolean forward = random.nextBoolean();
+                        from = forward ? a : b;
+                        to = forward ? b : a;
+                    } else {
+                        from = list.get(random.nextInt(accountCount)).getAccountNumber();
+                        to = list.get(random.nextInt(accountCount)).getAccountNumber();
+                    }
+                    if (engine.transfer(from, to, random.nextInt(1, 20_000)).isSuccess()) {
+                        succeeded.increment();
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(60_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                System.out.println("FAILED: transfer threads did not finish (deadlock?)");
+                System.exit(1);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long after = totalCents(list);
+
+        System.out.println("Concurrent transfers (" + threadCount + " threads, " + accountCount + " accounts)");
+        System.out.printf("   %d transfers in %.2f s (%.0f per second), %d succeeded%n",
+                (long) threadCount * transfersPerThread, seconds, threadCount * transfersPerThread / seconds,
+                succeeded.sum());
+        System.out.println("   total money before $" + Money.format(before) + ", after $" + Money.format(after));
+        if (before != after) {
+            System.out.println("FAILED: money was not conserved");
+            System.exit(1);
+        }
+        System.out.println("   money conserved");
+        System.out.println();
+    }
+
+    /*
+     * Times the optimal strategy when the vault is short of a denomination and the
+     * precomputed table cannot be used, so every plan has to be searched.
+     */
+    private static void scarceDispenseBenchmark() {
+        final int operations = 200_000;
+        System.out.println("Optimal dispensing with no $5 bills and three $50 bills (ns per plan)");
+        System.out.printf("%12s %12s%n", "amount", "optimal");
+        for (int amount : new int[] { 60, 385, 1_000, 10_000 }) {
+            Bills first = OPTIMAL.plan(amount, 1_000, 3, 1_000, 0);
+            long expected = first == null ? 0 : (long) operations * first.getTwenties();
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                long sum = 0;
+                for (int i = 0; i < operations; i++) {
+                    Bills bills = OPTIMAL.plan(amount, 1_000, 3, 1_000, 0);
+                    sum += bills == null ? 0 : bills.getTwenties();
+                }
+                if (sum != expected) {
+                    System.out.println("FAILED: the plan for $" + amount + " changed between calls");
+                    System.exit(1);
+                }
+                if (round == 1) {
+                    System.out.printf("%12s %12.1f%n", "$" + amount, (System.nanoTime() - start) / (double) operations);
+                }
+            }
+        }
+        System.out.println();
+    }
+
+    /*
+     * Dispenses random amounts from one AtomicVault on many threads until it runs
+     * dry, then checks that the bills handed out plus the bills left add up to
+     * exactly what the vault started with, i.e. no denomination was overdrawn.
+     */
+    private static void vaultStressTest(int threadCount) {
+        final int startBills = 20_000;
+        final int attemptsPerThread = 200_000;
+        AtomicVault vault = new AtomicVault(startBills, startBills, startBills, startBills);
+        int before = vault.calculateBalance();
+
+        LongAdder hundreds = new LongAdder();
+        LongAdder fifties = new LongAdder();
+        LongAdder twenties = new LongAdder();
+        LongAdder fives = new LongAdder();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < attemptsPerThread; i++) {
+                    Bills bills = vault.dispense(random.nextInt(1, 100) * 5);
+                    if (bills != null) {
+                        hundreds.add(bills.getHundreds());
+                        fifties.add(bills.getFifties());
+                        twenties.add(bills.getTwenties());
+                        fives.add(bills.getFives());
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        boolean conserved = hundreds.sum() + vault.getHundredDollarBills() == startBills
+                && fifties.sum() + vault.getFiftyDollarBills() == startBills
+                && twenties.sum() + vault.getTwentyDollarBills() == startBills
+                && fives.sum() + vault.getFiveDollarBills() == startBills;
+        long dispensed = hundreds.sum() * 100 + fifties.sum() * 50 + twenties.sum() * 20 + fives.sum() * 5;
+
+        System.out.println("Concurrent dispensing (" + threadCount + " threads, AtomicVault)");
+        System.out.printf("   %d attempts in %.2f s (%.0f per second)%n", (long) threadCount * attemptsPerThread,
+                seconds, threadCount * attemptsPerThread / seconds);
+        System.out.printf("   vault started with $%d, dispensed $%d, $%d left%n", before, dispensed,
+                vault.calculateBalance());
+        if (!conserved || dispensed + vault.calculateBalance() != before) {
+            System.out.println("FAILED: bills were lost or overdrawn");
+            System.exit(1);
+        }
+        System.out.println("   every bill accounted for");
+        System.out.println();
+    }
+
+    /*
+     * Posts 10 million random cent amounts (credits, debits, and transfers) to a set
+     * of accounts and checks the final total against the exact running total of every
+     * posting that went through. Cents must not drift at all. The same postings are
+     * mirrored onto plain double dollar balances to show how far floating point
+     * wanders, and both representations are then timed on their own.
+     */
+    private static void moneyConservationTest() {
+        final int accountCount = 1_000;
+        final int postings = 10_000_000;
+
+        ArrayList<Account> list = createAccounts(accountCount);
+        double[] doubles = new double[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            doubles[i] = list.get(i).getTotalBalance();
+        }
+        long expected = totalCents(list);
+
+        Random random = new Random(7);
+        for (int i = 0; i < postings; i++) {
+            int from = random.nextInt(accountCount);
+            int to = random.nextInt(accountCount);
+            long cents = random.nextInt(1_000_000) + 1;
+            double dollars = cents / 100.0;
+
+            switch (random.nextInt(3)) {
+            case 0: // deposit
+                list.get(to).credit(cents);
+                doubles[to] += dollars;
+                expected += cents;
+                break;
+            case 1: // withdrawal
+                if (list.get(from).debit(cents)) {
+                    doubles[from] -= dollars;
+                    expected -= cents;
+                }
+                break;
+            default: // transfer
+                if (list.get(from).debit(cents)) {
+                    list.get(to).credit(cents);
+                    doubles[from] -= dollars;
+                    doubles[to] += dollars;
+                }
+                break;
+            }
+        }
+
+        long centsTotal = totalCents(list);
+        double doubleTotal = 0;
+        for (double d : doubles) {
+            doubleTotal += d;
+        }
+
+        System.out.println("Money over " + postings + " random postings (" + accountCount + " accounts)");
+        System.out.println("   expected total   $" + Money.format(expected));
+        System.out.println("   long cents total $" + Money.format(centsTotal) + ", drift $"
+                + Money.format(centsTotal - expected));
+        System.out.printf("   double total     $%.2f, drift $%.3g%n", doubleTotal, doubleTotal - expected / 100.0);
+
+        // time each representation on its own (warm up first)
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            postCents(list, postings);
+            double centsNs = (System.nanoTime() - start) / (double) postings;
+            start = System.nanoTime();
+            postDoubles(doubles, postings);
+            double doubleNs = (System.nanoTime() - start) / (double) postings;
+            if (round == 1) {
+                System.out.printf("   %.1f ns per posting with Account cents, %.1f ns with bare doubles%n",
+                        centsNs, doubleNs);
+            }
+        }
+
+        if (centsTotal != expected) {
+            System.out.println("FAILED: cent balances drifted");
+            System.exit(1);
+        }
+        System.out.println("   zero drift in cents");
+        System.out.println();
+    }
+
+    private static long postCents(ArrayList<Account> list, int postings) {
+        Random random = new Random(11);
+        long ok = 0;
+        for (int i = 0; i < postings; i++) {
+            Account from = list.get(random.nextInt(list.size()));
+            Account to = list.get(random.nextInt(list.size()));
+            long cents = random.nextInt(1_000_000) + 1;
+            if (from.debit(cents)) {
+                to.credit(cents);
+                ok++;
+            }
+        }
+        return ok;
+    }
+
+    private static double postDoubles(double[] balances, int postings) {
+        Random random = new Random(11);
+        double moved = 0;
+        for (int i = 0; i < postings; i++) {
+            int from = random.nextInt(balances.length);
+            int to = random.nextInt(balances.length);
+            double dollars = (random.nextInt(1_000_000) + 1) / 100.0;
+            if (dollars <= balances[from]) {
+                balances[from] -= dollars;
+                balances[to] += dollars;
+                moved += dollars;
+            }
+        }
+        return moved;
+    }
+
+    /*
+     * Writes a CSV file of a million accounts (with a few malformed rows mixed in) and
+     * times BulkLoader reading it on one thread and on the given number of threads.
+     * Every run must load and reject exactly the same rows.
+     */
+    private static void bulkLoadBenchmark(int threadCount) throws IOException {
+        final int rows = 1_000_000;
+        Path file = Files.createTempFile("accounts", ".csv");
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("type,accountNumber,balance\n");
+            for (int i = 1; i <= rows; i++) {
+                if (i % 100_000 == 0) {
+                    out.write("Checking,not-a-number,1.00\n");
+                }
+                out.write((i % 2 == 0 ? "Savings," : "Checking,") + i + "," + (i % 5000) + "." + (i % 90 + 10) + "\n");
+            }
+        }
+
+        System.out.println("Bulk CSV load of " + rows + " accounts");
+        System.out.printf("%8s %12s %10s %14s%n", "threads", "ms", "rejected", "rows/s");
+        for (int threads : new int[] { 1, threadCount }) {
+            BulkLoader loader = new BulkLoader(',', threads);
+            loader.loadAccounts(file, new ArrayList<Account>(rows)); // warm up
+            ArrayList<Account> accounts = new ArrayList<Account>();
+            BulkLoader.Report report = loader.loadAccounts(file, accounts);
+            if (report.getRows() != rows || report.getRejected() != rows / 100_000) {
+                System.out.println("FAILED: " + report);
+                System.exit(1);
+            }
+            System.out.printf("%8d %12.1f %10d %14.0f%n",
+                    threads, report.getNanos() / 1e6, report.getRejected(), report.getRowsPerSecond());
+        }
+        Files.delete(file);
+        System.out.println();
+    }
+
+    /*
+     * Runs the same random mix of withdrawals, deposits, and transfers through
+     * TransactionEngine one call at a time and through a BatchProcessor, with and
+     * without a journal, and checks that money is neither created nor lost: account
+     * balances minus the cash in the vault must not change, since withdrawals and
+     * deposits move both by the same amount and transfers move neither.
+     */
+    private static void batchBenchmark() throws IOException {
+        System.out.println("Batch vs one call at a time (commands per second)");
+        System.out.printf("%10s %10s %14s %14s%n", "journal", "commands", "one at a time", "batch");
+
+        for (boolean journaled : new boolean[] { false, true }) {
+            int count = journaled ? 20_000 : 1_000_000;
+            List<TransactionCommand> commands = randomCommands(count, 10_000);
+            double[] rates = new double[2];
+
+            for (int run = 0; run < 2; run++) {
+                ArrayList<Account> accounts = createAccounts(10_000);
+                AccountRegistry registry = AccountRegistry.of(accounts);
+                Vault vault = new AtomicVault(10_000, 10_000, 10_000, 10_000);
+                Path dir = journaled ? Files.createTempDirectory("journal") : null;
+                TransactionJournal journal = journaled ? new TransactionJournal(dir,
+                        TransactionJournal.DEFAULT_BATCH_SIZE, TransactionJournal.DEFAULT_MAX_LATENCY_MICROS) : null;
+                TransactionEngine engine = new TransactionEngine(UserDirectory.create(0), registry, vault, journal);
+                long before = totalCents(accounts) - vault.calculateBalance() * 100L;
+
+                long start = System.nanoTime();
+                if (run == 0) {
+                    for (TransactionCommand c : commands) {
+                        runOne(engine, c);
+                    }
+                } else {
+                    new BatchProcessor(engine).execute(commands);
+                }
+                rates[run] = count * 1e9 / (System.nanoTime() - start);
+
+                if (totalCents(accounts) - vault.calculateBalance() * 100L != before) {
+                    System.out.println("FAILED: money was created or lost");
+                    System.exit(1);
+                }
+                if (journal != null) {
+                    journal.close();
+                    for (Path p : TransactionJournal.segments(dir)) {
+                        Files.delete(p);
+                    }
+                    Files.delete(dir);
+                }
+            }
+            System.out.printf("%10s %10d %14.0f %14.0f%n", journaled ? "on" : "off", count, rates[0], rates[1]);
+        }
+        System.out.println();
+    }
+
+    private static TransactionResult runOne(TransactionEngine engine, TransactionCommand c) {
+        switch (c.getType()) {
+            case WITHDRAW:
+                return engine.withdraw(c.getAccount(), (int) (c.getAmountCents() / 100));
+            case DEPOSIT:
+                return engine.deposit(c.getAccount(), c.getBills());
+            default:
+                return engine.transfer(c.getAccount(), c.getDestination(), c.getAmountCents());
+        }
+    }
+
+    /*
+     * Random withdrawals, deposits, and transfers over accounts made by createAccounts,
+     * sorted by account the way an end-of-day file would be.
+     */
+    private static List<TransactionCommand> randomCommands(int count, int accountCount) {
+        Random random = new Random(7);
+        List<TransactionCommand> commands = new ArrayList<TransactionCommand>(count);
+        for (int i = 0; i < count; i++) {
+            int a = random.nextInt(accountCount);
+            int account = (a / 2 + 1) * 10 + 1 + a % 2;
+            int b = random.nextInt(accountCount);
+            int other = (b / 2 + 1) * 10 + 1 + b % 2;
+            switch (random.nextInt(3)) {
+                case 0:
+                    commands.add(TransactionCommand.withdraw(account, 5 * (1 + random.nextInt(20))));
+                    break;
+                case 1:
+                    commands.add(TransactionCommand.deposit(account, new Bills(0, 1, 1, 1)));
+                    break;
+                default:
+                    commands.add(TransactionCommand.transfer(account, other, random.nextInt(10_000)));
+                    break;
+            }
+        }
+        commands.sort((x, y) -> Integer.compare(x.getAccount(), y.getAccount()));
+        return commands;
+    }
+
+    /*
+     * Compares starting up with every account built as an object in an AccountRegistry,
+     * which is what ATMDriver.loadUserData does, against opening a MappedAccountStore
+     * file that already holds them. Also shows the one-off cost of importing the file,
+     * the first lookups after opening (which page the file in), and the steady cost of a
+     * lookup in each. Sizes are given as a comma separated list, for example
+     * "java ATMBenchmark store 1000000,10000000".
+     */
+    private static void storeStartupBenchmark(int[] sizes) throws IOException {
+        System.out.println("Account store startup (ms, lookups in ns)");
+        System.out.printf("%12s %10s %10s %10s %12s %10s %10s%n",
+                "accounts", "heap load", "import", "map open", "first 10k", "heap get", "mapped get");
+
+        for (int n : sizes) {
+            Path file = Files.createTempFile("accounts", ".db");
+            String heapLoad = "-";
+            String heapGet = "-";
+            double importMs;
+            int[] queries;
+
+            try {
+                long start = System.nanoTime();
+                ArrayList<Account> list = createAccounts(n);
+                AccountRegistry registry = AccountRegistry.of(list);
+                heapLoad = String.format("%.1f", (System.nanoTime() - start) / 1e6);
+                queries = randomAccountNumbers(list, LOOKUPS);
+
+                checkLookups(registryLookups(registry, queries), queries);
+                start = System.nanoTime();
+                checkLookups(registryLookups(registry, queries), queries);
+                heapGet = String.format("%.1f", (System.nanoTime() - start) / (double) queries.length);
+
+                start = System.nanoTime();
+                MappedAccountStore.importAccounts(file, list, n).close();
+                importMs = (System.nanoTime() - start) / 1e6;
+            } catch (OutOfMemoryError e) {
+                // too many Account objects for this heap; build the file without them
+                queries = null;
+                long start = System.nanoTime();
+                MappedAccountStore store = MappedAccountStore.create(file, n);
+                for (int i = 0; i < n; i++) {
+                    store.put((i / 2 + 1) * 10 + 1 + i % 2, i % 2 == 0 ? "Checking" : "Savings", 100_000);
+                }
+                store.close();
+                importMs = (System.nanoTime() - start) / 1e6;
+            }
+            if (queries == null) {
+                queries = new int[LOOKUPS];
+                Random random = new Random(42);
+                for (int i = 0; i < queries.length; i++) {
+                    int a = random.nextInt(n);
+                    queries[i] = (a / 2 + 1) * 10 + 1 + a % 2;
+                }
+            }
+
+            long start = System.nanoTime();
+            MappedAccountStore mapped = MappedAccountStore.open(file);
+            double openMs = (System.nanoTime() - start) / 1e6;
+
+            int[] first = new int[10_000];
+            System.arraycopy(queries, 0, first, 0, first.length);
+            start = System.nanoTime();
+            checkLookups(registryLookups(mapped, first), first);
+            double firstMs = (System.nanoTime() - start) / 1e6;
+
+            checkLookups(registryLookups(mapped, queries), queries);
+            start = System.nanoTime();
+            checkLookups(registryLookups(mapped, queries), queries);
+            double mappedGet = (System.nanoTime() - start) / (double) queries.length;
+
+            mapped.close();
+            Files.delete(file);
+            System.out.printf("%12d %10s %10.1f %10.3f %12.2f %10s %10.1f%n",
+                    n, heapLoad, importMs, openMs, firstMs, heapGet, mappedGet);
+        }
+        System.out.println();
+    }
+
+    /*
+     * Compares the AccountTable's parallel arrays with the ArrayList<Account> the driver
+     * loads today: the heap each takes (the list alone, and with the AccountRegistry
+     * index over it, against the table with its index), and the speed of two scans over
+     * every account, totalling the balances and counting the savings accounts below a
+     * minimum balance. Sizes are given as a comma separated list, for example
+     * "java ATMBenchmark table 1000000,10000000". Heap use is measured after a full
+     * garbage collection, so run with a fixed heap (-Xms equal to -Xmx) for steady numbers.
+     */
+    private static void accountTableBenchmark(int[] sizes) {
+        System.out.println("Account table footprint (bytes per account) and scans (ns per account)");
+        System.out.printf("%12s %8s %10s %8s %10s %10s %10s %10s%n", "accounts", "list", "+registry", "table",
+                "list sum", "table sum", "list count", "table count");
+
+        long limit = Money.dollarsToCents(1000);
+        for (int n : sizes) {
+            String list = "-";
+            String registry = "-";
+            String listSum = "-";
+            String listCount = "-";
+            try {
+                long before = usedHeap();
+                ArrayList<Account> accounts = createAccounts(n);
+                long withList = usedHeap();
+                AccountRegistry index = AccountRegistry.of(accounts);
+                long withRegistry = usedHeap();
+                list = String.format("%.1f", (withList - before) / (double) n);
+                registry = String.format("%.1f", (withRegistry - before) / (double) n);
+
+                listSum = String.format("%.2f", timeScan(() -> totalCents(accounts)) / n);
+                listCount = String.format("%.2f", timeScan(() -> countBelow(accounts, "Savings", limit)) / n);
+                Reference.reachabilityFence(index);
+            } catch (OutOfMemoryError e) {
+                // too many Account objects for this heap; the table may still fit
+            }
+
+            long before = usedHeap();
+            AccountTable table = new AccountTable(n);
+            for (int i = 0; i < n; i++) {
+                int user = i / 2 + 1;
+                table.put(user * 10 + 1 + i % 2, i % 2 == 0 ? "Checking" : "Savings", 100_000);
+            }
+            double tableBytes = (usedHeap() - before) / (double) n;
+            double tableSum = timeScan(table::sumBalanceCents) / n;
+            double tableCount = timeScan(() -> table.countBelow(AccountTable.TYPE_SAVINGS, limit)) / n;
+
+            System.out.printf("%12d %8s %10s %8.1f %10s %10.2f %10s %10.2f%n", n, list, registry, tableBytes,
+                    listSum, tableSum, listCount, tableCount);
+        }
+        System.out.println();
+    }
+
+    /*
+     * Compares garbage collection pauses with the accounts held as objects in an
+     * AccountRegistry, in an AccountTable's arrays, and off the heap in an
+     * OffHeapAccountLedger. For each, withdrawals and deposits run on random accounts for
+     * a few seconds (the garbage they make brings on young collections, whose pauses are
+     * collected from the collector's notifications), and then a full collection is timed,
+     * which has to trace whatever the store keeps on the heap. Sizes are given as a comma
+     * separated list, for example "java -Xmx4g ATMBenchmark gc 1000000,10000000"; the
+     * ledger's direct memory counts against -XX:MaxDirectMemorySize.
+     */
+    private static void gcPauseBenchmark(int[] sizes) {
+        System.out.println("GC pauses with accounts on and off the heap (pauses in ms)");
+        System.out.printf("%12s %10s %10s %10s %10s %10s %10s%n", "accounts", "store", "heap MB",
+                "young GCs", "mean young", "max young", "full GC");
+
+        List<Long> pauses = new ArrayList<Long>();
+        List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+        NotificationListener listener = (notification, handback) -> {
+            if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData());
+                if (info.getGcAction().contains("minor")) {
+                    synchronized (pauses) {
+                        pauses.add(info.getGcInfo().getDuration());
+                    }
+                }
+            }
+        };
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean instanceof NotificationEmitter) {
+                ((NotificationEmitter) bean).addNotificationListener(listener, null, null);
+                emitters.add((NotificationEmitter) bean);
+            }
+        }
+
+        for (int n : sizes) {
+            for (String kind : new String[] { "registry", "table", "ledger" }) {
+                AccountStore store;
+                try {
+                    store = gcStore(kind, n);
+                } catch (OutOfMemoryError e) {
+                    System.out.printf("%12d %10s %10s%n", n, kind, "out of memory");
+                    continue;
+                }
+                long heapMb = usedHeap() >> 20;
+                TransactionEngine engine = new TransactionEngine(UserDirectory.create(1), store,
+                        new AtomicVault(VAULT_BILLS, VAULT_BILLS, VAULT_BILLS, VAULT_BILLS));
+
+                synchronized (pauses) {
+                    pauses.clear();
+                }
+                Random random = new Random(42);
+                long end = System.nanoTime() + 3_000_000_000L;
+                while (System.nanoTime() < end) {
+                    for (int i = 0; i < 10_000; i++) {
+                        int a = random.nextInt(n);
+                        int number = (a / 2 + 1) * 10 + 1 + a % 2;
+                        if ((i & 1) == 0) {
+                            engine.deposit(number, new Bills(0, 0, 1, 0));
+                        } else {
+                            engine.withdraw(number, 20);
+                        }
+                    }
+                }
+                long count;
+                long total = 0;
+                long max = 0;
+                synchronized (pauses) {
+                    count = pauses.size();
+                    for (long p : pauses) {
+                        total += p;
+                        max = Math.max(max, p);
+                    }
+                }
+
+                long full = Long.MAX_VALUE;
+                for (int i = 0; i < 3; i++) {
+                    long start = System.nanoTime();
+                    System.gc();
+                    full = Math.min(full, System.nanoTime() - start);
+                }
+                System.out.printf("%12d %10s %10d %10d %10.2f %10d %10.1f%n", n, kind, heapMb, count,
+                        count == 0 ? 0.0 : total / (double) count, max, full / 1e6);
+            }
+        }
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                // already gone
+            }
+        }
+        System.out.println();
+    }
+
+    /*
+     * Builds n accounts, numbered as createAccounts numbers them, in the named kind of store.
+     */
+    private static AccountStore gcStore(String kind, int n) {
+        switch (kind) {
+            case "registry":
+                return AccountRegistry.of(createAccounts(n));
+            case "table": {
+                AccountTable table = new AccountTable(n);
+                for (int i = 0; i < n; i++) {
+                    table.put((i / 2 + 1) * 10 + 1 + i % 2, i % 2 == 0 ? "Checking" : "Savings", 100_000);
+                }
+                return table;
+            }
+            default: {
+                OffHeapAccountLedger ledger = new OffHeapAccountLedger(n);
+                for (int i = 0; i < n; i++) {
+                    ledger.put((i / 2 + 1) * 10 + 1 + i % 2, i % 2 == 0 ? "Checking" : "Savings", 100_000);
+                }
+                return ledger;
+            }
+        }
+    }
+
+    /*
+     * Runs a scan a few times to warm it up, then returns the best of five timed runs in
+     * nanoseconds. The scans change nothing, so every run must give the same answer.
+     */
+    private static double timeScan(LongSupplier scan) {
+        long answer = scan.getAsLong();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 7; i++) {
+            long start = System.nanoTime();
+            long again = scan.getAsLong();
+            if (i >= 2) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            if (again != answer) {
+                System.out.println("FAILED: a scan gave " + again + " after " + answer);
+                System.exit(1);
+            }
+        }
+        return best;
+    }
+
+    private static long countBelow(ArrayList<Account> accounts, String type, long limitCents) {
+        long count = 0;
+        for (Account a : accounts) {
+            if (type.equals(a.getAccountType()) && a.getBalanceCents() < limitCents) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Heap in use after a full collection.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long totalCents(ArrayList<Account> accounts) {
+        long total = 0;
+        for (Account a : accounts) {
+            total += a.getBalanceCents();
+        }
+        return total;
+    }
+
+    private static long registryLookups(AccountStore registry, int[] queries) {
+        long sum = 0;
+        for (int q : queries) {
+            sum += registry.get(q).getAccountNumber();
+        }
+        return sum;
+    }
+
+    private static long listLookups(ArrayList<Account> list, int[] queries) {
+        long sum = 0;
+        for (int q : queries) {
+            for (Account a : list) {
+                if (a.getAccountNumber() == q) {
+                    sum += a.getAccountNumber();
+                }
+            }
+        }
+        return sum;
+    }
+
+    /*
+     * Every lookup finds the account asked for, so the numbers found add up to the
+     * numbers asked for.
+     */
+    private static void checkLookups(long found, int[] queries) {
+        long asked = 0;
+        for (int q : queries) {
+            asked += q;
+        }
+        if (found != asked) {
+            System.out.println("FAILED: lookups found the wrong accounts");
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Creates checking and savings accounts in pairs, the same way ATMDriver does,
+     * but numbered densely so large populations fit in an int
+     * (user 1 owns 11 and 12, user 2 owns 21 and 22, ...).
+     */
+    static ArrayList<Account> createAccounts(int n) {
+        ArrayList<Account> accounts = new ArrayList<Account>(n);
+        for (int i = 0; i < n; i++) {
+            int user = i / 2 + 1;
+            if (i % 2 == 0) {
+                accounts.add(new Account("Checking", user * 10 + 1, 1000));
+            } else {
+                accounts.add(new Account("Savings", user * 10 + 2, 1000));
+            }
+        }
+        return accounts;
+    }
+
+    private static int[] parseSizes(String list) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+
+    static int[] randomAccountNumbers(ArrayList<Account> accounts, int count) {
+        Random random = new Random(42);
+        int[] numbers = new int[count];
+        for (int i = 0; i < count; i++) {
+            numbers[i] = accounts.get(random.nextInt(accounts.size())).getAccountNumber();
+        }
+        return numbers;
+    }
+
+} // end ATMBenchmark
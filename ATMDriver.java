@@ -1,3 +1,7 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Scanner;
 
@@ -10,13 +14,36 @@ import java.util.Scanner;
  * Responsibilities:
  * - Sets up the scanner for user input.
  * - Initializes users, accounts, and vault money.
- * - Loads predefined user and account data.
- * - Starts the program through the Screen class.
+ * - Loads predefined user and account data, or users and accounts from CSV files
+ *   given with -Datm.users=<csv> and -Datm.accounts=<csv>. With -Datm.accountTable=true
+ *   the accounts are kept in an AccountTable instead of as one object each, and with
+ *   -Datm.accountLedger=true in an OffHeapAccountLedger outside the Java heap; either is
+ *   filled straight from the account file or snapshot, one row at a time.
+ * - Replays the transaction journal, when one is configured with -Datm.journal=<dir>,
+ *   starting from its latest snapshot, and takes a new snapshot every
+ *   -Datm.snapshot.intervalSeconds.
+ * - Starts the program through the Screen class, and closes the journal and account
+ *   store once the user quits. With -Datm.port=<port> it serves remote terminals
+ *   through a SessionServer instead, and with -Datm.gatewayPort=<port> through a
+ *   NioGateway.
+ * - Records transaction metrics when -Datm.metrics.port=<port> serves them for Prometheus
+ *   at http://localhost:<port>/metrics, or -Datm.metrics.file=<file> writes them every
+ *   -Datm.metrics.fileSeconds (default 15).
+ * - Forecasts when the vault will run out of each denomination when
+ *   -Datm.forecast.intervalSeconds is set, alerting -Datm.forecast.warnMinutes (default
+ *   240) and -Datm.forecast.criticalMinutes (default 60) ahead, over a moving average of
+ *   -Datm.forecast.windowMinutes (default 15).
+ * - Models a fleet of machines with -Datm.fleet=<machines>, their vaults sharded over
+ *   -Datm.fleet.shards threads (one per processor by default); the console then runs as
+ *   machine -Datm.atmId (default 1).
+ * - Runs transactions on -Datm.partitions=<n> single-writer account partitions instead of
+ *   with locks, or through a pipeline of stages fed by a ring of -Datm.pipeline=<slots>
+ *   command slots.
  */
 public class ATMDriver{
 
     //Main method initializes and starts the ATM system. 
-    public static void main(String[] args){//begin main 
+    public static void main(String[] args) throws IOException{//begin main 
         
         Scanner scan = new Scanner(System.in);// Create a scanner to handle user input
  
@@ -25,24 +52,286 @@ public class ATMDriver{
         ArrayList<User> users = new ArrayList<User>();
         ArrayList<Account> accounts = new ArrayList<Account>();
 
-        //initialize vault money 
-        Vault v = new Vault(100, 100, 100, 100);        
+        //initialize vault money (lock-free, shared by every session)
+        Vault v = new AtomicVault(100, 100, 100, 100);        
         
+        // -Datm.accountStore=<file> keeps the accounts in a memory-mapped file. The file is
+        // created from the loaded accounts the first time, and afterwards opened as is
+        String storeFile = System.getProperty("atm.accountStore");
+        Path store = storeFile == null ? null : Paths.get(storeFile);
+        if (store != null && System.getProperty("atm.journal") != null) {
+            throw new IllegalArgumentException("atm.accountStore keeps its own balances and cannot be combined with atm.journal");
+        }
+        boolean storeExists = store != null && Files.exists(store);
+        if (System.getProperty("atm.fleet") != null && System.getProperty("atm.journal") != null) {
+            throw new IllegalArgumentException("The journal does not record which machine's vault changed, so atm.fleet cannot be combined with atm.journal");
+        }
+
+        // With a journal, restart from its latest snapshot when there is one
+        String journalDir = System.getProperty("atm.journal");
+        Snapshot snapshot = journalDir == null ? null : Snapshot.loadLatest(Paths.get(journalDir));
+
+        // -Datm.accountLedger=true keeps the accounts off the heap (see OffHeapAccountLedger)
+        // and -Datm.accountTable=true keeps them in primitive arrays (see AccountTable). Both
+        // are filled row by row as the accounts are read, so no Account list is ever built
+        boolean ledger = store == null && Boolean.getBoolean("atm.accountLedger");
+        boolean table = store == null && !ledger && Boolean.getBoolean("atm.accountTable");
+        AccountStore filled = null;
+
+        // Load users and accounts from -Datm.users=<csv> and -Datm.accounts=<csv> when given,
+        // otherwise load the predefined user and account data
+        String userFile = System.getProperty("atm.users");
+        String accountFile = System.getProperty("atm.accounts");
+        if (snapshot != null) {
+            users.addAll(snapshot.getUsers());
+            if (ledger || table) {
+                filled = newAccountSink(ledger, snapshot.getAccountCount());
+                snapshot.loadAccounts((AccountSink) filled);
+            } else {
+                accounts.addAll(snapshot.getAccounts());
+            }
+            Bills b = snapshot.getVault();
+            v = new AtomicVault(b.getHundreds(), b.getFifties(), b.getTwenties(), b.getFives());
+        } else if (userFile == null && accountFile == null) {
+            loadUserData(users, accounts);
+        } else {
+            BulkLoader loader = new BulkLoader(',',
+                    Integer.getInteger("atm.loadThreads", Runtime.getRuntime().availableProcessors()));
+            if (userFile != null) {
+                printReport("Users", loader.loadUsers(Paths.get(userFile), users));
+            }
+            if (accountFile != null && !storeExists) {
+                Path file = Paths.get(accountFile);
+                if (ledger || table) {
+                    // the ledger cannot grow, so it is sized for every line of the file
+                    filled = newAccountSink(ledger, BulkLoader.countLines(file));
+                    printReport("Accounts", loader.loadAccounts(file, (AccountSink) filled));
+                } else {
+                    printReport("Accounts", loader.loadAccounts(file, accounts));
+                }
+            }
+        }
+
+        // Index users and accounts for constant time lookups 
+        UserDirectory directory = UserDirectory.of(users);
+        AccountStore registry;
+        if (filled != null) {
+            registry = filled;
+        } else if (storeExists) {
+            registry = MappedAccountStore.open(store);
+        } else if (store != null) {
+            registry = MappedAccountStore.importAccounts(store, accounts, accounts.size());
+        } else if (ledger) {
+            registry = OffHeapAccountLedger.of(accounts);
+            accounts.clear();
+        } else if (table) {
+            registry = AccountTable.of(accounts);
+            accounts.clear();
+        } else {
+            registry = AccountRegistry.of(accounts);
+        }
+
+        // Bring accounts and vault up to date from the journal, then keep recording to it.
+        // -Datm.journal.batch and -Datm.journal.latencyMicros tune the group commit
+        TransactionJournal journal = null;
+        if (journalDir != null) {
+            Path dir = Paths.get(journalDir);
+            long replayed = TransactionJournal.replay(dir, snapshot == null ? 0 : snapshot.getSegment(), registry, v);
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " journal records.");
+            }
+            journal = new TransactionJournal(dir,
+                    Integer.getInteger("atm.journal.batch", TransactionJournal.DEFAULT_BATCH_SIZE),
+                    Long.getLong("atm.journal.latencyMicros", TransactionJournal.DEFAULT_MAX_LATENCY_MICROS));
+        }
+
+        // Create the transaction engine shared by every ATM session
+        TransactionEngine engine = new TransactionEngine(directory, registry, v, journal);
+
+        // -Datm.partitions=<n> gives every account a single writer thread (see PartitionedEngine)
+        int partitionCount = Integer.getInteger("atm.partitions", 0);
+        long snapshotInterval = Long.getLong("atm.snapshot.intervalSeconds", 0);
+        if (partitionCount > 0) {
+            if (journal != null && snapshotInterval > 0) {
+                throw new IllegalArgumentException("Snapshots need the locking mode, so atm.partitions cannot be combined with atm.snapshot.intervalSeconds");
+            }
+            engine.partition(partitionCount, PartitionedEngine.DEFAULT_QUEUE_CAPACITY);
+        }
+
+        // -Datm.pipeline=<slots> runs every transaction through a TransactionPipeline
+        int ringSize = Integer.getInteger("atm.pipeline", 0);
+        if (ringSize > 0) {
+            if (partitionCount > 0) {
+                throw new IllegalArgumentException("atm.pipeline cannot be combined with atm.partitions");
+            }
+            if (journal != null && snapshotInterval > 0) {
+                throw new IllegalArgumentException("Snapshots need the locking mode, so atm.pipeline cannot be combined with atm.snapshot.intervalSeconds");
+            }
+            engine.pipeline(ringSize);
+        }
+
+        // take a snapshot now and then so restarts only replay recent history
+        if (journal != null && snapshotInterval > 0) {
+            Snapshot.schedule(engine, journal.getDirectory(), snapshotInterval);
+        }
+
+        // choose how bills are dispensed: -Datm.dispense=optimal finds the fewest bills 
+        // even when a denomination runs low, the default hands out the largest bills first
+        if ("optimal".equals(System.getProperty("atm.dispense"))) {
+            engine.setDispenseStrategy(new OptimalDispenser());
+        }
+
+        // -Datm.metrics.port=<port> and -Datm.metrics.file=<file> export counts, latencies,
+        // and vault levels in the Prometheus text format
+        String metricsPort = System.getProperty("atm.metrics.port");
+        String metricsFile = System.getProperty("atm.metrics.file");
+        if (metricsPort != null || metricsFile != null) {
+            MetricsRegistry metrics = new MetricsRegistry();
+            engine.setMetrics(metrics);
+            if (metricsPort != null) {
+                int bound = metrics.serve(Integer.parseInt(metricsPort)).getAddress().getPort();
+                System.out.println("Metrics at http://localhost:" + bound + "/metrics");
+            }
+            if (metricsFile != null) {
+                metrics.writeEvery(Paths.get(metricsFile), Long.getLong("atm.metrics.fileSeconds", 15));
+            }
+        }
+
+        // -Datm.forecast.intervalSeconds=<seconds> projects when each denomination runs out
+        // and prints an alert whenever one is due to within the warning or critical time
+        long forecastInterval = Long.getLong("atm.forecast.intervalSeconds", 0);
+        if (forecastInterval > 0) {
+            VaultForecaster forecaster = new VaultForecaster(v,
+                    Long.getLong("atm.forecast.windowMinutes", VaultForecaster.DEFAULT_WINDOW_SECONDS / 60) * 60,
+                    Long.getLong("atm.forecast.warnMinutes", 240) * 60,
+                    Long.getLong("atm.forecast.criticalMinutes", 60) * 60);
+            forecaster.addListener(alert -> System.out.println(alert));
+            engine.setForecaster(forecaster);
+            if (engine.getMetrics() != null) {
+                forecaster.register(engine.getMetrics());
+            }
+            forecaster.start(forecastInterval);
+        }
+
+        // -Datm.port=<port> serves remote terminals instead of the console, reporting
+        // sessions and requests every -Datm.server.reportSeconds (default 10)
+        String port = System.getProperty("atm.port");
+        if (port != null) {
+            SessionServer server = new SessionServer(engine, Integer.parseInt(port));
+            long reportSeconds = Long.getLong("atm.server.reportSeconds", 10);
+            if (reportSeconds > 0) {
+                server.reportEvery(reportSeconds);
+            }
+            TransactionJournal j = journal;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    shutdown(engine, j, registry);
+                } catch (IOException e) {
+                    System.err.println("Shutdown failed: " + e);
+                }
+            }));
+            System.out.println("Serving ATM sessions on port " + server.getPort()
+                    + (server.isVirtualThreads() ? " (virtual threads)" : " (platform threads)"));
+            server.serve();
+            return;
+        }
+
+        // -Datm.gatewayPort=<port> multiplexes remote terminals over -Datm.gateway.loops
+        // event loop threads instead (one per processor by default)
+        String gatewayPort = System.getProperty("atm.gatewayPort");
+        if (gatewayPort != null) {
+            NioGateway gateway = new NioGateway(engine, Integer.parseInt(gatewayPort),
+                    Integer.getInteger("atm.gateway.loops", Runtime.getRuntime().availableProcessors()));
+            long reportSeconds = Long.getLong("atm.server.reportSeconds", 10);
+            if (reportSeconds > 0) {
+                gateway.reportEvery(reportSeconds);
+            }
+            TransactionJournal j = journal;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    gateway.close();
+                    shutdown(engine, j, registry);
+                } catch (IOException e) {
+                    System.err.println("Shutdown failed: " + e);
+                }
+            }));
+            gateway.start();
+            System.out.println("ATM gateway listening on port " + gateway.getPort());
+            try {
+                Thread.currentThread().join(); // the event loops do the work until shutdown
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        // -Datm.fleet=<machines> gives every machine its own vault, sharded over
+        // -Datm.fleet.shards threads, and runs the console as machine -Datm.atmId
+        VaultFleet fleet = null;
+        TransactionEngine machine = engine;
+        String fleetSize = System.getProperty("atm.fleet");
+        if (fleetSize != null) {
+            fleet = new VaultFleet(Integer.getInteger("atm.fleet.shards", Runtime.getRuntime().availableProcessors()),
+                    VaultFleet.DEFAULT_QUEUE_CAPACITY);
+            for (int id = 1; id <= Integer.parseInt(fleetSize); id++) {
+                fleet.addMachine(id, new Bills(100, 100, 100, 100));
+            }
+            int atmId = Integer.getInteger("atm.atmId", 1);
+            ShardedVault vault = fleet.getMachine(atmId);
+            if (vault == null) {
+                throw new IllegalArgumentException("The fleet has no ATM " + atmId);
+            }
+            machine = engine.atMachine(vault);
+            System.out.println("ATM " + atmId + " of a fleet of " + fleet.getTotals());
+        }
+
         // Create a screen object to handle user interactions
         Screen s = new Screen(scan);
 
-        // Establish a connection between the screen, users, accounts, and vault
-        Connection c = new Connection(s, users, accounts, v);
-
-        // Load predefined user and account data into the system
-        loadUserData(users, accounts);
+        // Establish a connection (one ATM session) between the screen and the engine
+        Connection c = new Connection(s, scan, machine);
         
         s.run(c); //run the program via the screen class
 
+        // the user quit: make sure every transaction is on disk before the program ends
+        if (fleet != null) {
+            System.out.println("Fleet: " + fleet.getTotals());
+            fleet.close();
+        }
+        shutdown(engine, journal, registry);
         scan.close();
    
     }
 
+    /**
+     * Closes the journal and account store so every transaction is on disk. When the
+     * engine runs partitioned or pipelined, the partitions or pipeline are closed first:
+     * their threads are daemons, so commands still queued would otherwise be lost at exit
+     * after their source accounts were debited.
+     * 
+     * @param engine   The transaction engine.
+     * @param journal  The journal, or null if there is none.
+     * @param registry The account store.
+     * @throws IOException if either cannot be closed.
+     */
+    private static void shutdown(TransactionEngine engine, TransactionJournal journal, AccountStore registry) throws IOException{
+        PartitionedEngine partitions = engine.getPartitions();
+        if (partitions != null) {
+            partitions.close();
+        }
+        TransactionPipeline pipeline = engine.getPipeline();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (registry instanceof MappedAccountStore) {
+            ((MappedAccountStore) registry).close();
+        }
+    }//end shutdown 
+
     /**
      * Loads predefined users and their corresponding accounts into the system.
      * 
@@ -86,6 +375,30 @@ public class ATMDriver{
 
     }//end loadUserData 
 
+    /*
+     * Creates the store -Datm.accountLedger or -Datm.accountTable asked for, sized for
+     * the given number of accounts, ready for them to be put into it.
+     */
+    private static AccountStore newAccountSink(boolean ledger, int expectedAccounts){
+        if (ledger) {
+            return new OffHeapAccountLedger(expectedAccounts);
+        }
+        return new AccountTable(expectedAccounts);
+    }
+
+    /**
+     * Prints how a bulk load went, with the first few rejected rows.
+     * 
+     * @param what   What was loaded, such as "Users".
+     * @param report The outcome of the load.
+     */
+    private static void printReport(String what, BulkLoader.Report report){
+        System.out.println(what + ": " + report);
+        for (int i = 0; i < Math.min(5, report.getErrors().size()); i++) {
+            System.out.println("    " + report.getErrors().get(i));
+        }
+    }//end printReport 
+
 } //end ATMDriver 
 
 
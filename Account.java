@@ -10,26 +10,41 @@
  * 
  * Input: Account type, account number, and initial balance.
  * Output: Provides account details and allows access/modification of attributes.
+ *
+ * Algorithm: The balance is kept as a whole number of cents (see Money), so postings never
+ * drift. It is only read and changed while holding the account's lock, so credits and
+ * debits from several ATM sessions at once cannot overwrite each other.
  */
 public class Account {
 
     // Instance variables representing account details
     private String accountType; // Type of account (checking or savings)
     private int accountNumber;  // Unique account identifier
-    private double totalBalance; // Current account balance
+    private long balanceCents;  // Current account balance, in cents
 
     /**
      * Constructs an Account object with a specified type, number, and balance.
      * 
      * @param accountType The type of account (checking or savings).
      * @param accountNumber The unique account number.
-     * @param totalBalance The initial balance in the account.
+     * @param totalBalance The initial balance in the account, in dollars.
      */ 
     public Account(String accountType, int accountNumber, double totalBalance){
+        this(accountType, accountNumber, Money.ofDollars(totalBalance));
+    }
+
+    /**
+     * Constructs an Account object with a specified type, number, and exact balance.
+     * 
+     * @param accountType The type of account (checking or savings).
+     * @param accountNumber The unique account number.
+     * @param balance The initial balance in the account.
+     */ 
+    public Account(String accountType, int accountNumber, Money balance){
 
         this.accountType = accountType; 
         this.accountNumber = accountNumber; 
-        this.totalBalance = totalBalance; 
+        this.balanceCents = balance.getCents(); 
 
     }
      /**
@@ -69,21 +84,74 @@ public class Account {
     }
 
     /**
-     * Retrieves the total balance of the account.
+     * Retrieves the exact balance of the account.
+     * 
+     * @return The current balance.
+     */
+    public Money getBalance() {
+        return Money.ofCents(getBalanceCents());
+    }
+
+    /**
+     * Retrieves the balance of the account in cents.
+     * 
+     * @return The current balance in cents.
+     */
+    public synchronized long getBalanceCents() {
+        return balanceCents;
+    }
+
+    /**
+     * Updates the balance of the account.
+     * 
+     * @param balanceCents The new balance in cents.
+     */
+    public synchronized void setBalanceCents(long balanceCents) {
+        this.balanceCents = balanceCents;
+    }
+
+    /**
+     * Retrieves the total balance of the account in dollars. Kept for callers
+     * that still work in doubles; use getBalance for exact amounts.
      * 
      * @return The current balance.
      */
     public double getTotalBalance() {
-        return totalBalance;
+        return getBalanceCents() / 100.0;
     }
 
     /**
-     * Updates the total balance of the account.
+     * Updates the total balance of the account, rounded to the nearest cent.
      * 
-     * @param totalBalance The new balance amount.
+     * @param totalBalance The new balance amount in dollars.
      */
     public void setTotalBalance(double totalBalance) {
-        this.totalBalance = totalBalance;
+        setBalanceCents(Money.ofDollars(totalBalance).getCents());
+    }
+
+    /**
+     * Adds money to the account in one atomic step.
+     * 
+     * @param cents The amount to add, in cents.
+     * @throws ArithmeticException if the balance would overflow.
+     */
+    public synchronized void credit(long cents) {
+        this.balanceCents = Money.addCents(balanceCents, cents);
+    }
+
+    /**
+     * Takes money out of the account in one atomic step, but only if the
+     * balance covers the whole amount.
+     * 
+     * @param cents The amount to take out, in cents.
+     * @return true if the money was taken out, false if the balance is too low.
+     */
+    public synchronized boolean debit(long cents) {
+        if (cents > balanceCents) {
+            return false;
+        }
+        this.balanceCents = Money.subtractCents(balanceCents, cents);
+        return true;
     }
 
 }
@@ -0,0 +1,192 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Index of every account in the bank keyed by its account number. Replaces the
+ * linear scans over the account list that the Connection class used to perform for every
+ * withdrawal, deposit, transfer, and balance lookup.
+ *
+ * Assumption: Account numbers are unique. The registry is filled while the system is loading
+ * and is only read afterwards, so lookups do not need any locking once it has been handed
+ * to the Connection.
+ *
+ * Input: Account objects to register, and account numbers to look up.
+ * Output: The Account that owns a given account number, or null if there is none.
+ *
+ * Algorithm: Open addressing hash table with linear probing. Keys are stored in a primitive
+ * int array next to a parallel array of accounts, so a lookup never boxes the account number
+ * into an Integer. The table size is always a power of two and is doubled whenever it becomes
+ * more than half full, which keeps probe sequences short no matter how many accounts are loaded.
+ */
+public class AccountRegistry implements AccountStore {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // Field declarations for the hash table
+    private int[] keys;         // account number stored in each slot
+    private Account[] values;   // account stored in each slot (null means the slot is empty)
+    private int size;           // number of accounts registered
+    private int mask;           // table length - 1, used instead of the % operator
+    private int resizeAt;       // size at which the table is doubled
+
+    /**
+     * Constructs an empty registry sized to hold the expected number of accounts
+     * without needing to grow.
+     *
+     * @param expectedAccounts The number of accounts that will be registered.
+     */
+    public AccountRegistry(int expectedAccounts) {
+        allocate(tableSizeFor(expectedAccounts));
+    }
+
+    /**
+     * Builds a registry holding every account in the given list.
+     *
+     * @param accounts The list of accounts to index.
+     * @return A registry containing all of the accounts.
+     */
+    public static AccountRegistry of(List<Account> accounts) {
+        AccountRegistry registry = new AccountRegistry(accounts.size());
+        for (Account a : accounts) {
+            registry.register(a);
+        }
+        return registry;
+    }
+
+    /**
+     * Adds an account to the registry. If an account with the same number is
+     * already registered it is replaced.
+     *
+     * @param account The account to add.
+     */
+    public void register(Account account) {
+        int key = account.getAccountNumber();
+        int slot = hash(key) & mask;
+
+        // probe until an empty slot or the same account number is found
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                values[slot] = account;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = account;
+        size++;
+
+        if (size >= resizeAt) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    /**
+     * Retrieves the account with the given account number.
+     *
+     * @param accountNumber The account number to look up.
+     * @return The matching account, or null if no account has that number.
+     */
+    @Override
+    public Account get(int accountNumber) {
+        int slot = hash(accountNumber) & mask;
+        Account a;
+
+        // stop at the first empty slot, the key cannot be further along the probe sequence
+        while ((a = values[slot]) != null) {
+            if (keys[slot] == accountNumber) {
+                return a;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether an account with the given number exists.
+     *
+     * @param accountNumber The account number to look up.
+     * @return true if the account exists, false otherwise.
+     */
+    @Override
+    public boolean contains(int accountNumber) {
+        return get(accountNumber) != null;
+    }
+
+    /**
+     * Retrieves the number of accounts in the registry.
+     *
+     * @return The count of registered accounts.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Runs an action for every account in the registry, in table order.
+     *
+     * @param action The action to run for each account.
+     */
+    @Override
+    public void forEach(Consumer<Account> action) {
+        for (Account a : values) {
+            if (a != null) {
+                action.accept(a);
+            }
+        }
+    }
+
+    /*
+     * Moves every account into a new table of the given length.
+     */
+    private void rehash(int newCapacity) {
+        int[] oldKeys = keys;
+        Account[] oldValues = values;
+
+        allocate(newCapacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /*
+     * Creates empty key and value arrays of the given power of two length.
+     */
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Account[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 2;
+    }
+
+    /*
+     * Smallest power of two table that keeps the expected number of
+     * accounts at or below half full.
+     */
+    private static int tableSizeFor(int expected) {
+        long needed = Math.max(MIN_CAPACITY, (long) expected * 2 + 1);
+        if (needed > (1 << 30)) {
+            throw new IllegalArgumentException("Too many accounts: " + expected);
+        }
+        return Integer.highestOneBit((int) needed - 1) << 1;
+    }
+
+    /*
+     * Spreads sequential account numbers (1001, 1002, 2001, ...) across the table.
+     */
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+} // end AccountRegistry
@@ -0,0 +1,26 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Something accounts can be put into one row at a time, as they are read from an
+ * account file or a Snapshot. Stores that keep accounts as primitives (AccountTable, and
+ * OffHeapAccountLedger off the heap) are filled this way, so loading them never builds an
+ * Account object per row and the heap does not grow with the population.
+ *
+ * Assumption: Rows are put by one thread, while nothing else uses the store. A row with
+ * the number of an account already put replaces it.
+ *
+ * Input: The account number, type, and balance of each row.
+ * Output: None; the rows end up in the store.
+ */
+public interface AccountSink {
+
+    /**
+     * Adds an account, or replaces the one with the same number.
+     *
+     * @param accountNumber The account number, greater than zero.
+     * @param accountType   The type of account (checking or savings).
+     * @param balanceCents  The balance in cents.
+     */
+    void put(int accountNumber, String accountType, long balanceCents);
+
+} // end AccountSink
@@ -0,0 +1,52 @@
+import java.util.function.Consumer;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Somewhere the bank's accounts are kept and looked up by account number. The
+ * transaction engine works against this interface so the accounts can live in memory
+ * (AccountRegistry) or in a memory-mapped file (MappedAccountStore) without the engine
+ * knowing the difference.
+ *
+ * Assumption: Account numbers are unique and positive. The set of accounts does not
+ * change while transactions are running; only balances do.
+ *
+ * Input: Account numbers to look up.
+ * Output: The Account with that number, or null if there is none.
+ *
+ * Algorithm: Implementations use open addressing hash tables, so a lookup takes
+ * constant time however many accounts there are.
+ */
+public interface AccountStore {
+
+    /**
+     * Retrieves the account with the given number.
+     *
+     * @param accountNumber The account number to look up.
+     * @return The account, or null if there is none.
+     */
+    Account get(int accountNumber);
+
+    /**
+     * Checks whether an account with the given number exists.
+     *
+     * @param accountNumber The account number to look up.
+     * @return true if the account exists.
+     */
+    boolean contains(int accountNumber);
+
+    /**
+     * Retrieves the number of accounts in the store.
+     *
+     * @return The number of accounts.
+     */
+    int size();
+
+    /**
+     * Runs an action for every account in the store, in no particular order.
+     *
+     * @param action The action to run for each account.
+     */
+    void forEach(Consumer<Account> action);
+
+} // end AccountStore
@@ -0,0 +1,342 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Keeps every account in a few large primitive arrays instead of one object per
+ * account. With tens of millions of accounts, an Account object's header, its type String,
+ * and the pointer to it cost more memory than the balance itself, and a scan over an
+ * ArrayList of them follows a pointer (and usually misses the cache) for every account.
+ * Here the numbers, balances, and type codes of all accounts sit side by side in their
+ * own arrays, 21 to 29 bytes an account including the index (against about 36 for an
+ * Account in a list, or 53 to 63 with an AccountRegistry over it), and a scan over
+ * balances reads one long array from start to end.
+ *
+ * Assumption: Account numbers are positive. Accounts are only added while the table is
+ * being built (by one thread); after that only balances change. As in MappedAccountStore,
+ * the account type is stored as a code, so only "Checking" and "Savings" keep their name;
+ * anything else reads back as "Account". At most 2^29 accounts fit.
+ *
+ * Input: Accounts to add, and account numbers to look up.
+ * Output: An Account view whose balance is read and written directly in the table, and
+ * whole-table scans (total balance, accounts below a balance) that need no objects at all.
+ *
+ * Algorithm: Struct of arrays. Row i of the table is numbers[i], balances[i], and
+ * types[i], filled in the order accounts are added. An open addressing hash table of
+ * ints, probed with the same hash as AccountRegistry and kept at most half full, maps an
+ * account number to its row (plus one, so zero means empty). The row arrays and the index
+ * double when they fill. Balances are changed with compare-and-set on the long array
+ * through a VarHandle, so credits and debits from many sessions never lose an update and
+ * no lock is needed.
+ */
+public class AccountTable implements AccountStore, AccountSink {
+
+    /** Type code of an account that is neither checking nor savings. */
+    public static final byte TYPE_OTHER = 0;
+
+    /** Type code of a checking account. */
+    public static final byte TYPE_CHECKING = 1;
+
+    /** Type code of a savings account. */
+    public static final byte TYPE_SAVINGS = 2;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_ROWS = 1 << 29;
+
+    // atomic access to the balances
+    private static final VarHandle BALANCES = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // Field declarations for the rows
+    private int[] numbers;      // account number of each row
+    private long[] balances;    // balance of each row, in cents
+    private byte[] types;       // type code of each row
+    private int size;           // number of rows in use
+
+    // Field declarations for the index
+    private int[] index;        // row + 1 stored in each slot (0 means the slot is empty)
+    private int mask;           // index length - 1
+
+    /**
+     * Constructs an empty table sized to hold the expected number of accounts without
+     * needing to grow.
+     *
+     * @param expectedAccounts The number of accounts that will be added.
+     */
+    public AccountTable(int expectedAccounts) {
+        if (expectedAccounts < 0 || expectedAccounts > MAX_ROWS) {
+            throw new IllegalArgumentException("Too many accounts: " + expectedAccounts);
+        }
+        int rows = Math.max(MIN_CAPACITY, expectedAccounts);
+        numbers = new int[rows];
+        balances = new long[rows];
+        types = new byte[rows];
+        index = new int[indexSizeFor(rows)];
+        mask = index.length - 1;
+    }
+
+    /**
+     * Builds a table holding every account in the given list. The accounts are copied;
+     * the list can be dropped afterwards.
+     *
+     * @param accounts The accounts to copy.
+     * @return A table containing all of the accounts.
+     */
+    public static AccountTable of(List<Account> accounts) {
+        AccountTable table = new AccountTable(accounts.size());
+        for (Account a : accounts) {
+            table.put(a.getAccountNumber(), a.getAccountType(), a.getBalanceCents());
+        }
+        return table;
+    }
+
+    /**
+     * Adds an account to the table, or replaces the balance and type of the one with the
+     * same number. Only meant for building the table; it is not safe to call while
+     * transactions run.
+     *
+     * @param accountNumber The account number, greater than zero.
+     * @param accountType   The type of account (checking or savings).
+     * @param balanceCents  The balance in cents.
+     */
+    @Override
+    public void put(int accountNumber, String accountType, long balanceCents) {
+        if (accountNumber <= 0) {
+            throw new IllegalArgumentException("Account numbers must be positive: " + accountNumber);
+        }
+        int row = rowOf(accountNumber);
+        if (row < 0) {
+            if (size == numbers.length) {
+                grow();
+            }
+            row = size++;
+            numbers[row] = accountNumber;
+            insert(accountNumber, row);
+        }
+        balances[row] = balanceCents;
+        types[row] = typeCode(accountType);
+    }
+
+    /**
+     * Retrieves a view of the account with the given number. The view reads and writes
+     * its balance directly in the table.
+     *
+     * @param accountNumber The account number to look up.
+     * @return The account, or null if there is none.
+     */
+    @Override
+    public Account get(int accountNumber) {
+        int row = rowOf(accountNumber);
+        if (row < 0) {
+            return null;
+        }
+        return new TableAccount(this, row, accountNumber, typeName(types[row]));
+    }
+
+    /**
+     * Checks whether an account with the given number exists.
+     *
+     * @param accountNumber The account number to look up.
+     * @return true if the account exists.
+     */
+    @Override
+    public boolean contains(int accountNumber) {
+        return rowOf(accountNumber) >= 0;
+    }
+
+    /**
+     * Retrieves the number of accounts in the table.
+     *
+     * @return The number of accounts.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Runs an action for a view of every account in the table, in the order they were
+     * added. Scans that only need balances should use the methods below, which make no
+     * views.
+     *
+     * @param action The action to run for each account.
+     */
+    @Override
+    public void forEach(Consumer<Account> action) {
+        for (int row = 0; row < size; row++) {
+            action.accept(new TableAccount(this, row, numbers[row], typeName(types[row])));
+        }
+    }
+
+    /**
+     * Adds up the balance of every account. Balances changing during the scan may or may
+     * not be counted; run it while nothing changes for an exact total.
+     *
+     * @return The total balance, in cents.
+     * @throws ArithmeticException if the total overflows.
+     */
+    public long sumBalanceCents() {
+        long[] b = balances;
+        long total = 0;
+        for (int row = 0; row < size; row++) {
+            total = Math.addExact(total, b[row]);
+        }
+        return total;
+    }
+
+    /**
+     * Counts the accounts of one type whose balance is below a limit, for example the
+     * savings accounts under their minimum balance.
+     *
+     * @param typeCode   TYPE_CHECKING, TYPE_SAVINGS, or TYPE_OTHER.
+     * @param limitCents The balance limit, in cents.
+     * @return The number of accounts of that type with a balance below the limit.
+     */
+    public int countBelow(byte typeCode, long limitCents) {
+        long[] b = balances;
+        byte[] t = types;
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            if (t[row] == typeCode && b[row] < limitCents) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Tells the type code stored for an account type name.
+     *
+     * @param accountType The type of account (checking or savings).
+     * @return TYPE_CHECKING, TYPE_SAVINGS, or TYPE_OTHER.
+     */
+    public static byte typeCode(String accountType) {
+        if ("Checking".equalsIgnoreCase(accountType)) {
+            return TYPE_CHECKING;
+        }
+        if ("Savings".equalsIgnoreCase(accountType)) {
+            return TYPE_SAVINGS;
+        }
+        return TYPE_OTHER;
+    }
+
+    /*
+     * Row holding the account, or -1 if there is none.
+     */
+    private int rowOf(int accountNumber) {
+        int slot = AccountRegistry.hash(accountNumber) & mask;
+        int entry;
+
+        // stop at the first empty slot, the key cannot be further along the probe sequence
+        while ((entry = index[slot]) != 0) {
+            if (numbers[entry - 1] == accountNumber) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(int accountNumber, int row) {
+        int slot = AccountRegistry.hash(accountNumber) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = row + 1;
+    }
+
+    /*
+     * Doubles the row arrays, and the index with them so it stays at most half full.
+     */
+    private void grow() {
+        if (numbers.length >= MAX_ROWS) {
+            throw new IllegalStateException("Account table is full");
+        }
+        int rows = Math.min(MAX_ROWS, numbers.length * 2);
+        numbers = Arrays.copyOf(numbers, rows);
+        balances = Arrays.copyOf(balances, rows);
+        types = Arrays.copyOf(types, rows);
+        index = new int[indexSizeFor(rows)];
+        mask = index.length - 1;
+        for (int row = 0; row < size; row++) {
+            insert(numbers[row], row);
+        }
+    }
+
+    /*
+     * Smallest power of two index that keeps the given number of rows at or below half full.
+     */
+    private static int indexSizeFor(int rows) {
+        return Integer.highestOneBit(rows * 2 - 1) << 1;
+    }
+
+    private static String typeName(byte code) {
+        if (code == TYPE_CHECKING) {
+            return "Checking";
+        }
+        if (code == TYPE_SAVINGS) {
+            return "Savings";
+        }
+        return "Account";
+    }
+
+    /*
+     * An Account whose balance lives in the table's balance array instead of a field.
+     * Its number and type cannot change, since they are what the table is keyed on.
+     */
+    private static final class TableAccount extends Account {
+
+        private final AccountTable table;
+        private final int row;
+
+        TableAccount(AccountTable table, int row, int accountNumber, String accountType) {
+            super(accountType, accountNumber, Money.ZERO);
+            this.table = table;
+            this.row = row;
+        }
+
+        @Override
+        public long getBalanceCents() {
+            return (long) BALANCES.getVolatile(table.balances, row);
+        }
+
+        @Override
+        public void setBalanceCents(long balanceCents) {
+            BALANCES.setVolatile(table.balances, row, balanceCents);
+        }
+
+        @Override
+        public void credit(long cents) {
+            long current;
+            do {
+                current = (long) BALANCES.getVolatile(table.balances, row);
+            } while (!BALANCES.compareAndSet(table.balances, row, current, Money.addCents(current, cents)));
+        }
+
+        @Override
+        public boolean debit(long cents) {
+            long current;
+            do {
+                current = (long) BALANCES.getVolatile(table.balances, row);
+                if (cents > current) {
+                    return false;
+                }
+            } while (!BALANCES.compareAndSet(table.balances, row, current, Money.subtractCents(current, cents)));
+            return true;
+        }
+
+        @Override
+        public void setAccountType(String accountType) {
+            throw new UnsupportedOperationException("Account type is fixed in the account table");
+        }
+
+        @Override
+        public void setAccountNumber(int accountNumber) {
+            throw new UnsupportedOperationException("Account number is fixed in the account table");
+        }
+    }
+
+} // end AccountTable
@@ -0,0 +1,227 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: A vault that many ATM sessions can withdraw from at the same time without
+ * any locks. A whole combination of bills is taken out in one atomic step, so two
+ * sessions can never both be promised the last bill of a denomination.
+ *
+ * Assumption: The vault never holds more than 65,535 bills of any one denomination
+ * (a real ATM cassette holds a few thousand). Adding bills past that limit is refused.
+ *
+ * Input: The number of $100, $50, $20, and $5 bills stored in the vault.
+ * Output: The same operations as Vault, safe to call from any number of threads.
+ *
+ * Algorithm: All four bill counts are packed into one 64 bit AtomicLong, 16 bits each.
+ * Every change reads the packed value, works out the new counts from that one consistent
+ * snapshot, and installs them with compareAndSet. If another thread changed the vault in
+ * between, the compareAndSet fails and the change is recomputed from the fresh value. A
+ * withdrawal therefore either takes every bill it planned or nothing at all.
+ */
+public class AtomicVault extends Vault {
+
+    /** Largest number of bills of one denomination the vault can hold. */
+    public static final int MAX_BILLS = 0xFFFF;
+
+    // Bit positions of each denomination inside the packed state
+    private static final int HUNDREDS_SHIFT = 48;
+    private static final int FIFTIES_SHIFT = 32;
+    private static final int TWENTIES_SHIFT = 16;
+    private static final int FIVES_SHIFT = 0;
+
+    // Packed bill counts: hundreds | fifties | twenties | fives
+    private final AtomicLong state;
+
+    /**
+     * Constructs an AtomicVault with the specified number of bills.
+     *
+     * @param hundreds The number of $100 bills.
+     * @param fifties The number of $50 bills.
+     * @param twenties The number of $20 bills.
+     * @param fives The number of $5 bills.
+     */
+    public AtomicVault(int hundreds, int fifties, int twenties, int fives) {
+        super(0, 0, 0, 0);
+        this.state = new AtomicLong(pack(hundreds, fifties, twenties, fives));
+    }
+
+    /**
+     * Calculates the total balance of cash stored in the vault.
+     *
+     * @return The total dollar amount available in the vault.
+     */
+    @Override
+    public int calculateBalance() {
+        long s = state.get();
+        return (hundreds(s) * 100) + (fifties(s) * 50) + (twenties(s) * 20) + (fives(s) * 5);
+    }
+
+    @Override
+    public int getHundredDollarBills() {
+        return hundreds(state.get());
+    }
+
+    @Override
+    public void setHundredDollarBills(int hundredDollarBills) {
+        setField(HUNDREDS_SHIFT, hundredDollarBills);
+    }
+
+    @Override
+    public int getFiftyDollarBills() {
+        return fifties(state.get());
+    }
+
+    @Override
+    public void setFiftyDollarBills(int fiftyDollarBills) {
+        setField(FIFTIES_SHIFT, fiftyDollarBills);
+    }
+
+    @Override
+    public int getTwentyDollarBills() {
+        return twenties(state.get());
+    }
+
+    @Override
+    public void setTwentyDollarBills(int twentyDollarBills) {
+        setField(TWENTIES_SHIFT, twentyDollarBills);
+    }
+
+    @Override
+    public int getFiveDollarBills() {
+        return fives(state.get());
+    }
+
+    @Override
+    public void setFiveDollarBills(int fiveDollarBills) {
+        setField(FIVES_SHIFT, fiveDollarBills);
+    }
+
+    /**
+     * Adds a bundle of bills to the vault in one atomic step.
+     *
+     * @param bills The bills to add.
+     * @throws IllegalStateException if a denomination would exceed MAX_BILLS.
+     */
+    @Override
+    public void addBills(Bills bills) {
+        while (true) {
+            long s = state.get();
+            long next = pack(hundreds(s) + bills.getHundreds(), fifties(s) + bills.getFifties(),
+                    twenties(s) + bills.getTwenties(), fives(s) + bills.getFives());
+            if (state.compareAndSet(s, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a bundle of bills from the vault in one atomic step, but only if the
+     * vault holds enough of every denomination.
+     *
+     * @param bills The bills to remove.
+     * @return true if the bills were removed, false if the vault is short.
+     */
+    @Override
+    public boolean removeBills(Bills bills) {
+        while (true) {
+            long s = state.get();
+            if (bills.getHundreds() > hundreds(s) || bills.getFifties() > fifties(s)
+                    || bills.getTwenties() > twenties(s) || bills.getFives() > fives(s)) {
+                return false;
+            }
+            long next = pack(hundreds(s) - bills.getHundreds(), fifties(s) - bills.getFifties(),
+                    twenties(s) - bills.getTwenties(), fives(s) - bills.getFives());
+            if (state.compareAndSet(s, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Asks the given strategy which bills to hand out for a withdrawal and reserves
+     * all of them with a single compareAndSet.
+     *
+     * @param amount The dollar amount to dispense.
+     * @param strategy Chooses the bills to hand out.
+     * @return The bills removed, or null if the vault does not hold the right bills.
+     */
+    @Override
+    public Bills dispense(int amount, DispenseStrategy strategy) {
+        while (true) {
+            long s = state.get();
+            Bills bills = strategy.plan(amount, hundreds(s), fifties(s), twenties(s), fives(s));
+
+            // not enough of the right bills in this snapshot of the vault
+            if (bills == null) {
+                return null;
+            }
+
+            long next = pack(hundreds(s) - bills.getHundreds(), fifties(s) - bills.getFifties(),
+                    twenties(s) - bills.getTwenties(), fives(s) - bills.getFives());
+            if (state.compareAndSet(s, next)) {
+                return bills;
+            }
+        }
+    }
+
+    /**
+     * Returns a formatted string representation of the vault contents, taken
+     * from one consistent snapshot of the counts.
+     *
+     * @return A string displaying the count of each bill denomination.
+     */
+    @Override
+    public String toString() {
+        long s = state.get();
+        return "Vault Bills:\n   Hundred Dollar Bills ($100) = " + hundreds(s) + "\n   Fifty Dollar Bills ($50) = "
+                + fifties(s) + "\n   Twenty Dollar Bills ($20) = " + twenties(s)
+                + "\n   Five Dollar Bills ($5) = " + fives(s) + "\n";
+    }
+
+    /*
+     * Replaces one denomination's count, leaving the others untouched.
+     */
+    private void setField(int shift, int count) {
+        checkCount(count);
+        while (true) {
+            long s = state.get();
+            long next = (s & ~(0xFFFFL << shift)) | ((long) count << shift);
+            if (state.compareAndSet(s, next)) {
+                return;
+            }
+        }
+    }
+
+    private static long pack(int hundreds, int fifties, int twenties, int fives) {
+        checkCount(hundreds);
+        checkCount(fifties);
+        checkCount(twenties);
+        checkCount(fives);
+        return ((long) hundreds << HUNDREDS_SHIFT) | ((long) fifties << FIFTIES_SHIFT)
+                | ((long) twenties << TWENTIES_SHIFT) | ((long) fives << FIVES_SHIFT);
+    }
+
+    private static void checkCount(int count) {
+        if (count < 0 || count > MAX_BILLS) {
+            throw new IllegalStateException("Bill count out of range (0-" + MAX_BILLS + "): " + count);
+        }
+    }
+
+    private static int hundreds(long s) {
+        return (int) (s >>> HUNDREDS_SHIFT) & 0xFFFF;
+    }
+
+    private static int fifties(long s) {
+        return (int) (s >>> FIFTIES_SHIFT) & 0xFFFF;
+    }
+
+    private static int twenties(long s) {
+        return (int) (s >>> TWENTIES_SHIFT) & 0xFFFF;
+    }
+
+    private static int fives(long s) {
+        return (int) (s >>> FIVES_SHIFT) & 0xFFFF;
+    }
+
+} // end AtomicVault
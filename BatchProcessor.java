@@ -0,0 +1,270 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Runs large numbers of transactions from a program, such as an end-of-day file
+ * of millions of withdrawals, deposits, transfers, and vault changes, without any prompts
+ * or console output. Each command gets its own TransactionResult, in the same order as the
+ * commands.
+ *
+ * Assumption: Commands are run one after another in the order given, so a later command
+ * sees the effect of an earlier one (a deposit followed by a withdrawal from the same
+ * account works). Other sessions may run at the same time. If the journal fails part way
+ * through, the exception is thrown and the results of the unfinished chunk are not reported.
+ *
+ * Input: A list, stream, or iterator of TransactionCommand objects.
+ * Output: The result of every command, as a list or handed to a callback.
+ *
+ * Algorithm: Commands are taken in chunks (4096 by default). A chunk runs under a single
+ * acquisition of the checkpoint gate instead of one per command, and the engine's apply
+ * methods leave their journal sequence numbers behind instead of waiting. The whole chunk
+ * then waits once for the last record to reach the disk, so a chunk costs one group commit
+ * instead of one per command, before its results are reported. The account most recently
+ * looked up is remembered, so runs of commands for the same account (files are usually
+ * sorted by account) skip the lookup.
+ */
+public class BatchProcessor {
+
+    /** Number of commands run under one gate acquisition and durability wait by default. */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    // Field declarations
+    private final TransactionEngine engine;
+    private final int chunkSize;
+
+    /**
+     * Constructs a batch processor with the default chunk size.
+     *
+     * @param engine The engine to run the commands on.
+     */
+    public BatchProcessor(TransactionEngine engine) {
+        this(engine, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructs a batch processor.
+     *
+     * @param engine    The engine to run the commands on.
+     * @param chunkSize The number of commands run under one gate acquisition and one
+     *                  durability wait. Larger chunks are faster but make a snapshot wait
+     *                  longer for its cut.
+     */
+    public BatchProcessor(TransactionEngine engine, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.engine = engine;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Runs every command in the list.
+     *
+     * @param commands The commands, in the order they should run.
+     * @return The result of each command, in the same order.
+     */
+    public List<TransactionResult> execute(List<TransactionCommand> commands) {
+        List<TransactionResult> results = new ArrayList<TransactionResult>(commands.size());
+        execute(commands.iterator(), (command, result) -> results.add(result));
+        return results;
+    }
+
+    /**
+     * Runs every command in the stream, handing each result to the callback once it
+     * is durable. Results are not collected, so streams of any length can be run.
+     *
+     * @param commands The commands, in the order they should run.
+     * @param results  Called with each command and its result, in order.
+     * @return The number of commands run.
+     */
+    public long execute(Stream<TransactionCommand> commands, BiConsumer<TransactionCommand, TransactionResult> results) {
+        return execute(commands.iterator(), results);
+    }
+
+    /**
+     * Runs every command from the iterator, handing each result to the callback once
+     * it is durable.
+     *
+     * @param commands The commands, in the order they should run.
+     * @param results  Called with each command and its result, in order.
+     * @return The number of commands run.
+     */
+    public long execute(Iterator<TransactionCommand> commands, BiConsumer<TransactionCommand, TransactionResult> results) {
+        TransactionCommand[] chunk = new TransactionCommand[chunkSize];
+        TransactionResult[] outcome = new TransactionResult[chunkSize];
+        long count = 0;
+
+        while (commands.hasNext()) {
+            int n = 0;
+            while (n < chunkSize && commands.hasNext()) {
+                chunk[n++] = commands.next();
+            }
+
+            runChunk(chunk, n, outcome);
+            for (int i = 0; i < n; i++) {
+                results.accept(chunk[i], outcome[i]);
+                chunk[i] = null;
+                outcome[i] = null;
+            }
+            count += n;
+        }
+        return count;
+    }
+
+    /*
+     * Runs the first n commands of the array under one acquisition of the gate, leaving
+     * each result at the same index of outcome, and returns once every record is durable.
+     * Callers that keep their own arrays, such as the NioGateway's event loops, run one
+     * chunk per round this way without building an iterator.
+     */
+    void runChunk(TransactionCommand[] chunk, int n, TransactionResult[] outcome) {
+        MetricsRegistry metrics = engine.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        while (true) {
+            PartitionedEngine partitions = engine.getPartitions();
+            if (partitions != null) {
+                runPartitioned(partitions, chunk, n, outcome);
+                break;
+            }
+            TransactionPipeline pipeline = engine.getPipeline();
+            if (pipeline != null) {
+                runPipelined(pipeline, chunk, n, outcome);
+                break;
+            }
+            if (runLocked(chunk, n, outcome)) {
+                break;
+            }
+            // the engine switched modes before the gate was taken; run the chunk that way
+        }
+        record(metrics, chunk, n, outcome, start);
+    }
+
+    /*
+     * Runs a chunk with the engine's locks, or returns false without running any of it
+     * if the engine turns out to be partitioned or pipelined once the gate is held.
+     */
+    private boolean runLocked(TransactionCommand[] chunk, int n, TransactionResult[] outcome) {
+        long[] sequence = new long[1];
+        Lock shared = engine.getTransferEngine().sharedGate();
+
+        // last account looked up; runs of commands for one account skip the lookup
+        int cachedNumber = 0;
+        Account cached = null;
+
+        long last = 0;
+        shared.lock();
+        try {
+            if (engine.getPartitions() != null || engine.getPipeline() != null) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                TransactionCommand c = chunk[i];
+                Account account = null;
+                if (c.getAccount() != 0) {
+                    if (c.getAccount() != cachedNumber || cached == null) {
+                        cachedNumber = c.getAccount();
+                        cached = engine.findAccount(cachedNumber);
+                    }
+                    account = cached;
+                }
+                sequence[0] = 0;
+                outcome[i] = engine.applyCommand(c, account, sequence);
+                last = Math.max(last, sequence[0]);
+            }
+        } finally {
+            shared.unlock();
+        }
+
+        // one wait covers every record in the chunk
+        engine.awaitDurable(last);
+        return true;
+    }
+
+    /*
+     * Runs a chunk on the engine's partitions: every command is handed to its partition
+     * before any answer is waited for, so the partitions work on the chunk in parallel,
+     * and one wait for the journal covers them all. If the partitions close partway,
+     * the rest of the chunk is run by the engine once it has switched back.
+     */
+    private void runPartitioned(PartitionedEngine partitions, TransactionCommand[] chunk, int n,
+            TransactionResult[] outcome) {
+        PartitionedEngine.Pending[] pending = new PartitionedEngine.Pending[n];
+        int submitted = 0;
+        while (submitted < n && (pending[submitted] = partitions.submit(chunk[submitted], engine)) != null) {
+            submitted++;
+        }
+        long last = 0;
+        for (int i = 0; i < submitted; i++) {
+            partitions.await(pending[i]);
+            outcome[i] = pending[i].getResult();
+            last = Math.max(last, pending[i].getSequence());
+        }
+        engine.awaitDurable(last);
+        for (int i = submitted; i < n; i++) {
+            outcome[i] = engine.run(chunk[i]);
+        }
+    }
+
+    /*
+     * Runs a chunk through the engine's pipeline, keeping up to a ring's worth of commands
+     * in flight so the stages work on them in batches. Each answer is already durable.
+     * While it holds slots, this thread never waits for another: when the next slot is not
+     * free it frees its own oldest one first, so batches on several threads cannot wait on
+     * each other. If the pipeline closes partway, the rest of the chunk is run by the
+     * engine once it has switched back.
+     */
+    private void runPipelined(TransactionPipeline pipeline, TransactionCommand[] chunk, int n,
+            TransactionResult[] outcome) {
+        int window = Math.min(n, pipeline.getRingSize());
+        long[] sequences = new long[window];
+        int submitted = 0;
+        int answered = 0;
+        while (submitted < n) {
+            long sequence;
+            if (answered == submitted) {
+                // holding no slots, it is safe to wait for one
+                sequence = pipeline.submit(chunk[submitted], engine);
+            } else {
+                sequence = submitted - answered < window
+                        ? pipeline.trySubmit(chunk[submitted], engine) : TransactionPipeline.RING_FULL;
+                if (sequence == TransactionPipeline.RING_FULL) {
+                    outcome[answered] = pipeline.await(sequences[answered % window]);
+                    answered++;
+                    continue;
+                }
+            }
+            if (sequence < 0) {
+                break;
+            }
+            sequences[submitted % window] = sequence;
+            submitted++;
+        }
+        while (answered < submitted) {
+            outcome[answered] = pipeline.await(sequences[answered % window]);
+            answered++;
+        }
+        for (int i = submitted; i < n; i++) {
+            outcome[i] = engine.run(chunk[i]);
+        }
+    }
+
+    /*
+     * Every command in the chunk waited for the whole chunk, so each is timed as that long.
+     */
+    private static void record(MetricsRegistry metrics, TransactionCommand[] chunk, int n,
+            TransactionResult[] outcome, long start) {
+        if (metrics != null) {
+            long nanos = System.nanoTime() - start;
+            for (int i = 0; i < n; i++) {
+                metrics.recordTransaction(chunk[i].getType(), outcome[i].getStatus(), nanos);
+            }
+        }
+    }
+
+} // end BatchProcessor
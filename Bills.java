@@ -0,0 +1,108 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: A bundle of bills of each denomination the ATM handles. Used for the bills a
+ * customer deposits, the bills dispensed for a withdrawal, and the bills an operator adds
+ * to or removes from the vault.
+ *
+ * Assumption: Bill counts are non-negative. The ATM only handles $100, $50, $20,
+ * and $5 bills.
+ *
+ * Input: The number of $100, $50, $20, and $5 bills.
+ * Output: The bill counts and the dollar amount they add up to.
+ *
+ * Algorithm: Immutable value holder, so a Bills object can be shared between threads
+ * without any locking.
+ */
+public final class Bills {
+
+    /** No bills at all. */
+    public static final Bills NONE = new Bills(0, 0, 0, 0);
+
+    // Field declarations for each bill denomination
+    private final int hundreds;
+    private final int fifties;
+    private final int twenties;
+    private final int fives;
+
+    /**
+     * Constructs a Bills object with the specified number of each bill.
+     *
+     * @param hundreds The number of $100 bills.
+     * @param fifties The number of $50 bills.
+     * @param twenties The number of $20 bills.
+     * @param fives The number of $5 bills.
+     */
+    public Bills(int hundreds, int fifties, int twenties, int fives) {
+        this.hundreds = hundreds;
+        this.fifties = fifties;
+        this.twenties = twenties;
+        this.fives = fives;
+    }
+
+    /**
+     * Calculates the dollar amount of all the bills together. The sum is taken in long
+     * arithmetic, so even the largest bill counts cannot wrap around to a negative total.
+     *
+     * @return The total dollar amount.
+     */
+    public long total() {
+        return (hundreds * 100L) + (fifties * 50L) + (twenties * 20L) + (fives * 5L);
+    }
+
+    /**
+     * Checks that none of the bill counts are negative.
+     *
+     * @return true if every count is zero or more.
+     */
+    public boolean isValid() {
+        return hundreds >= 0 && fifties >= 0 && twenties >= 0 && fives >= 0;
+    }
+
+    /**
+     * Retrieves the number of $100 bills.
+     *
+     * @return The count of $100 bills.
+     */
+    public int getHundreds() {
+        return hundreds;
+    }
+
+    /**
+     * Retrieves the number of $50 bills.
+     *
+     * @return The count of $50 bills.
+     */
+    public int getFifties() {
+        return fifties;
+    }
+
+    /**
+     * Retrieves the number of $20 bills.
+     *
+     * @return The count of $20 bills.
+     */
+    public int getTwenties() {
+        return twenties;
+    }
+
+    /**
+     * Retrieves the number of $5 bills.
+     *
+     * @return The count of $5 bills.
+     */
+    public int getFives() {
+        return fives;
+    }
+
+    /**
+     * Returns a formatted string listing each bill denomination.
+     *
+     * @return A string displaying the count of each bill.
+     */
+    @Override
+    public String toString() {
+        return hundreds + " x $100, " + fifties + " x $50, " + twenties + " x $20, " + fives + " x $5";
+    }
+
+} // end Bills
@@ -0,0 +1,609 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Loads users and accounts from large delimited text files, as an alternative to
+ * the hard-coded lists in ATMDriver.loadUserData. Bad rows are counted and reported but
+ * do not stop the load.
+ *
+ * Assumption: One row per line, fields separated by a single delimiter byte (a comma by
+ * default) and not quoted. The file is UTF-8. A first line that does not parse, such as a
+ * column header, is skipped without being counted as rejected. The formats are:
+ *
+ *     users:    name,checkingNumber,savingsNumber,password,role
+ *     accounts: type,accountNumber,balance       (balance in dollars, e.g. 1400.05)
+ *
+ * Input: The file to load and the list to add the rows to, or for accounts an AccountSink
+ * to put them straight into.
+ * Output: The users or accounts added to the list (or sink), and a Report with the number
+ * of rows loaded and rejected, the reasons for the first rejections, and the rows per
+ * second.
+ *
+ * Algorithm: The file is read through a FileChannel into a reused byte buffer and split
+ * into lines and fields by scanning bytes, with the field boundaries kept in two reused
+ * int arrays. Numbers and balances are parsed straight from the bytes, and the common
+ * account types and roles are matched against constants, so the only Strings created are
+ * the ones a User must hold (name and password). The first block of the file is sampled to
+ * estimate the row count, so the lists are sized once. With more than one thread the file
+ * is cut into equal byte ranges, each moved forward to the next line start, and every
+ * range is parsed by its own thread into its own list; the lists are then joined in file
+ * order. Accounts loaded into a sink are put into it as each row is parsed, on one thread
+ * and in file order, so no row is kept on the heap.
+ */
+public class BulkLoader {
+
+    /** Number of bytes read from the file at a time. */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    // only the first few rejection reasons are kept, the rest are just counted
+    private static final int MAX_ERRORS = 100;
+    private static final int MAX_FIELDS = 8;
+
+    private static final byte[] CHECKING = "Checking".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SAVINGS = "Savings".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REGULAR_USER = "regular user".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OPERATOR = "operator".getBytes(StandardCharsets.UTF_8);
+
+    // Field declarations
+    private final byte delimiter;
+    private final int threads;
+
+    /**
+     * Constructs a single-threaded loader for comma separated files.
+     */
+    public BulkLoader() {
+        this(',', 1);
+    }
+
+    /**
+     * Constructs a loader.
+     *
+     * @param delimiter The character between fields, such as ',' '|' or '\t'.
+     * @param threads   The number of threads to split each file across.
+     */
+    public BulkLoader(char delimiter, int threads) {
+        if (delimiter > 0x7F || delimiter == '\n' || delimiter == '\r') {
+            throw new IllegalArgumentException("Delimiter must be a single ASCII character: " + delimiter);
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        this.delimiter = (byte) delimiter;
+        this.threads = threads;
+    }
+
+    /**
+     * Loads accounts (type,accountNumber,balance) from a file.
+     *
+     * @param file     The file to read.
+     * @param accounts The list the accounts are added to.
+     * @return How many rows were loaded and rejected.
+     * @throws IOException if the file cannot be read.
+     */
+    public Report loadAccounts(Path file, List<Account> accounts) throws IOException {
+        return load(file, accounts, new AccountParser<Account>() {
+            @Override
+            Account make(int number, String type, long cents) {
+                return new Account(type, number, Money.ofCents(cents));
+            }
+        });
+    }
+
+    /**
+     * Loads accounts (type,accountNumber,balance) from a file straight into a sink, such
+     * as an AccountTable or OffHeapAccountLedger, without making an Account for any row.
+     * The rows are parsed on one thread, in file order.
+     *
+     * @param file The file to read.
+     * @param sink The sink the accounts are put into.
+     * @return How many rows were loaded and rejected.
+     * @throws IOException if the file cannot be read.
+     */
+    public Report loadAccounts(Path file, AccountSink sink) throws IOException {
+        return load(file, null, new AccountParser<Boolean>() {
+            @Override
+            Boolean make(int number, String type, long cents) {
+                sink.put(number, type, cents);
+                return Boolean.TRUE;
+            }
+        });
+    }
+
+    /**
+     * Counts the lines in a file. No file holds more rows than this, so it sizes a store
+     * that cannot grow, such as an OffHeapAccountLedger, before the rows are loaded.
+     *
+     * @param file The file to read.
+     * @return The number of lines, counting a last line with no line break.
+     * @throws IOException if the file cannot be read.
+     */
+    public static int countLines(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] b = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(b);
+            long lines = 0;
+            byte last = '\n';
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    if (b[i] == '\n') {
+                        lines++;
+                    }
+                }
+                if (read > 0) {
+                    last = b[read - 1];
+                }
+                buffer.clear();
+            }
+            if (last != '\n') {
+                lines++;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, lines);
+        }
+    }
+
+    /**
+     * Loads users (name,checkingNumber,savingsNumber,password,role) from a file.
+     *
+     * @param file  The file to read.
+     * @param users The list the users are added to.
+     * @return How many rows were loaded and rejected.
+     * @throws IOException if the file cannot be read.
+     */
+    public Report loadUsers(Path file, List<User> users) throws IOException {
+        return load(file, users, new RowParser<User>() {
+            @Override
+            User parse(byte[] b, int[] start, int[] end, int fields, Range range) {
+                if (fields != 5) {
+                    return range.reject("expected 5 fields");
+                }
+                if (end[0] == start[0]) {
+                    return range.reject("missing name");
+                }
+                int checking = (int) parseLong(b, start[1], end[1], false);
+                int savings = (int) parseLong(b, start[2], end[2], false);
+                if (checking <= 0 || savings <= 0) {
+                    return range.reject("bad account number");
+                }
+                return new User(text(b, start[0], end[0]), checking, savings,
+                        text(b, start[3], end[3]), role(b, start[4], end[4]));
+            }
+        });
+    }
+
+    /*
+     * Reads the file, on one thread or split across several, and adds every row the
+     * parser accepts to the list. With no list the parser has already put each row
+     * somewhere, so the file is read on one thread and the rows are only counted.
+     */
+    private <T> Report load(Path file, List<T> into, RowParser<T> parser) throws IOException {
+        long started = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int estimate = into == null ? 0 : estimateRows(channel, size);
+            int parts = into == null ? 1 : (int) Math.max(1, Math.min(threads, size / BUFFER_SIZE));
+
+            List<Range> ranges = new ArrayList<Range>(parts);
+            for (int i = 0; i < parts; i++) {
+                ranges.add(new Range(size * i / parts, size * (i + 1) / parts,
+                        into == null ? -1 : estimate / parts + 16));
+            }
+
+            if (parts == 1) {
+                parse(channel, ranges.get(0), parser);
+            } else {
+                ExecutorService pool = Executors.newFixedThreadPool(parts);
+                try {
+                    List<Future<?>> running = new ArrayList<Future<?>>(parts);
+                    for (Range r : ranges) {
+                        running.add(pool.submit(() -> {
+                            parse(channel, r, parser);
+                            return null;
+                        }));
+                    }
+                    for (Future<?> f : running) {
+                        f.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Load interrupted", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                } finally {
+                    pool.shutdown();
+                }
+            }
+
+            // join the pieces in file order
+            Report report = new Report();
+            if (into instanceof ArrayList) {
+                ((ArrayList<T>) into).ensureCapacity(into.size() + estimate);
+            }
+            for (Range r : ranges) {
+                if (into != null) {
+                    @SuppressWarnings("unchecked")
+                    List<T> rows = (List<T>) r.rows;
+                    into.addAll(rows);
+                }
+                report.add(r);
+            }
+            report.nanos = System.nanoTime() - started;
+            return report;
+        }
+    }
+
+    /*
+     * Parses every line that starts inside the range. A line that starts before the
+     * range's end but runs past it belongs to this range; the next range skips it.
+     */
+    private <T> void parse(FileChannel channel, Range range, RowParser<T> parser) throws IOException {
+        byte[] b = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        int[] start = new int[MAX_FIELDS];
+        int[] end = new int[MAX_FIELDS];
+
+        long size = channel.size();
+        long position = range.from;
+        boolean skipping = range.from > 0 && !lineStartsAt(channel, range.from);
+        boolean tooLong = false;
+        int filled = 0;
+
+        // every way out is a return: end of file, or reaching a line the next range owns
+        while (true) {
+            buffer.position(filled);
+            int read = channel.read(buffer, position + filled);
+            int limit = filled + Math.max(read, 0);
+            boolean atEof = read <= 0 || position + limit >= size;
+
+            int lineStart = 0;
+            for (int i = 0; i < limit; i++) {
+                if (b[i] != '\n') {
+                    continue;
+                }
+                if (skipping) {
+                    skipping = false; // end of the line owned by the previous range
+                } else if (tooLong) {
+                    tooLong = false;
+                    range.rejected++;
+                    range.error(position + lineStart, "line too long");
+                } else {
+                    row(b, lineStart, i, position + lineStart, start, end, parser, range);
+                }
+                lineStart = i + 1;
+                if (position + lineStart >= range.to) {
+                    return; // the next line belongs to the next range
+                }
+            }
+
+            if (atEof) {
+                if (tooLong) {
+                    range.rejected++;
+                    range.error(position, "line too long");
+                } else if (lineStart < limit && !skipping) {
+                    row(b, lineStart, limit, position + lineStart, start, end, parser, range); // no final newline
+                }
+                return;
+            }
+            if (lineStart == 0) {
+                // a single line fills the whole buffer; drop it and skip to its end
+                if (!skipping) {
+                    tooLong = true;
+                }
+                position += limit;
+                filled = 0;
+                continue;
+            }
+
+            // keep the partial line at the front of the buffer for the next read
+            System.arraycopy(b, lineStart, b, 0, limit - lineStart);
+            filled = limit - lineStart;
+            position += lineStart;
+        }
+    }
+
+    /*
+     * Splits one line into fields and hands it to the parser.
+     */
+    private <T> void row(byte[] b, int from, int to, long offset, int[] start, int[] end,
+            RowParser<T> parser, Range range) {
+        if (to > from && b[to - 1] == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return; // blank line
+        }
+
+        int fields = 0;
+        int fieldStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || b[i] == delimiter) {
+                if (fields == MAX_FIELDS) {
+                    fields++;
+                    break;
+                }
+                start[fields] = fieldStart;
+                end[fields] = i;
+                fields++;
+                fieldStart = i + 1;
+            }
+        }
+
+        T value = fields > MAX_FIELDS ? range.<T>reject("too many fields") : parser.parse(b, start, end, fields, range);
+        if (value != null) {
+            range.accept(value);
+        } else if (offset == 0 && range.loaded == 0) {
+            range.reason = null; // a header line, not a bad row
+        } else {
+            range.rejected++;
+            range.error(offset, range.reason);
+        }
+    }
+
+    private static boolean lineStartsAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer previous = ByteBuffer.allocate(1);
+        channel.read(previous, position - 1);
+        return previous.get(0) == '\n';
+    }
+
+    /*
+     * Guesses the number of rows from the number of lines in the first block.
+     */
+    private static int estimateRows(FileChannel channel, long size) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(size, BUFFER_SIZE));
+        channel.read(sample, 0);
+        int lines = 0;
+        for (int i = 0; i < sample.position(); i++) {
+            if (sample.get(i) == '\n') {
+                lines++;
+            }
+        }
+        if (sample.position() == 0) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE - 8, (long) ((double) size * Math.max(lines, 1) / sample.position()));
+    }
+
+    /*
+     * Parses a whole number. Returns -1 if the field is not a valid number that fits in
+     * an int (or a long if wide is true).
+     */
+    static long parseLong(byte[] b, int from, int to, boolean wide) {
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = b[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return wide || value <= Integer.MAX_VALUE ? value : -1;
+    }
+
+    /*
+     * Parses a non-negative dollar amount such as 23, 5.5 or 1400.05 into cents.
+     * Returns Long.MIN_VALUE if the field is not a valid amount.
+     */
+    static long parseCents(byte[] b, int from, int to) {
+        int dot = to;
+        for (int i = from; i < to; i++) {
+            if (b[i] == '.') {
+                dot = i;
+                break;
+            }
+        }
+        long dollars = parseLong(b, from, dot, true);
+        int fractionDigits = to - dot - 1;
+        if (dollars < 0 || dollars > Long.MAX_VALUE / 100 - 1
+                || (dot < to && (fractionDigits < 1 || fractionDigits > 2))) {
+            return Long.MIN_VALUE;
+        }
+
+        long cents = dollars * 100;
+        if (dot < to) {
+            long fraction = parseLong(b, dot + 1, to, true);
+            if (fraction < 0) {
+                return Long.MIN_VALUE;
+            }
+            cents += fractionDigits == 1 ? fraction * 10 : fraction;
+        }
+        return cents;
+    }
+
+    private static String accountType(byte[] b, int from, int to) {
+        if (matches(b, from, to, CHECKING)) {
+            return "Checking";
+        }
+        if (matches(b, from, to, SAVINGS)) {
+            return "Savings";
+        }
+        return text(b, from, to);
+    }
+
+    private static String role(byte[] b, int from, int to) {
+        if (matches(b, from, to, REGULAR_USER)) {
+            return "regular user";
+        }
+        if (matches(b, from, to, OPERATOR)) {
+            return "operator";
+        }
+        return text(b, from, to);
+    }
+
+    private static boolean matches(byte[] b, int from, int to, byte[] constant) {
+        if (to - from != constant.length) {
+            return false;
+        }
+        for (int i = 0; i < constant.length; i++) {
+            if (b[from + i] != constant[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String text(byte[] b, int from, int to) {
+        return new String(b, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Turns the fields of one line into a user or account, or returns
+     * range.reject(reason) if the line is malformed.
+     */
+    private abstract static class RowParser<T> {
+        abstract T parse(byte[] b, int[] start, int[] end, int fields, Range range);
+    }
+
+    /*
+     * Parses an account row and hands its fields to make, which turns them into the row
+     * value: an Account, or a marker once the account is in a sink.
+     */
+    private abstract static class AccountParser<T> extends RowParser<T> {
+        @Override
+        final T parse(byte[] b, int[] start, int[] end, int fields, Range range) {
+            if (fields != 3) {
+                return range.reject("expected 3 fields");
+            }
+            int number = (int) parseLong(b, start[1], end[1], false);
+            if (number <= 0) {
+                return range.reject("bad account number");
+            }
+            long cents = parseCents(b, start[2], end[2]);
+            if (cents == Long.MIN_VALUE) {
+                return range.reject("bad balance");
+            }
+            return make(number, accountType(b, start[0], end[0]), cents);
+        }
+
+        abstract T make(int number, String type, long cents);
+    }
+
+    /*
+     * One piece of the file and everything parsed from it. Rows are only kept when they
+     * are to be joined into a list.
+     */
+    private static final class Range {
+        final long from;
+        final long to;
+        final List<Object> rows;
+        final List<String> errors = new ArrayList<String>();
+        long loaded;
+        long rejected;
+        String reason;
+
+        Range(long from, long to, int expectedRows) {
+            this.from = from;
+            this.to = to;
+            this.rows = expectedRows < 0 ? null : new ArrayList<Object>(expectedRows);
+        }
+
+        void accept(Object row) {
+            if (rows != null) {
+                rows.add(row);
+            }
+            loaded++;
+        }
+
+        <T> T reject(String why) {
+            reason = why;
+            return null;
+        }
+
+        void error(long offset, String why) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add("Row at byte " + offset + ": " + why);
+            }
+        }
+    }
+
+    /**
+     * The outcome of loading one file.
+     */
+    public static final class Report {
+
+        private long rows;
+        private long rejected;
+        private long nanos;
+        private final List<String> errors = new ArrayList<String>();
+
+        private void add(Range r) {
+            rows += r.loaded;
+            rejected += r.rejected;
+            for (String e : r.errors) {
+                if (errors.size() < MAX_ERRORS) {
+                    errors.add(e);
+                }
+            }
+        }
+
+        /**
+         * Retrieves the number of rows loaded.
+         *
+         * @return The number of rows added to the list or sink.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * Retrieves the number of malformed rows that were skipped.
+         *
+         * @return The number of rejected rows.
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * Retrieves the reasons for the first rejected rows, in file order.
+         *
+         * @return Up to 100 messages naming the byte offset of the row and the problem.
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * Retrieves the time the load took.
+         *
+         * @return The time in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Retrieves the load speed.
+         *
+         * @return Rows loaded and rejected per second.
+         */
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : (rows + rejected) * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows loaded, %d rejected in %.1f ms (%.0f rows/s)",
+                    rows, rejected, nanos / 1e6, getRowsPerSecond());
+        }
+    }
+
+} // end BulkLoader
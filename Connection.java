@@ -1,4 +1,4 @@
-import java.util.ArrayList;
+import java.io.PrintStream;
 import java.util.InputMismatchException;
 import java.util.Scanner;
 
@@ -10,7 +10,15 @@ import java.util.Scanner;
  * deposit funds, transfer funds between their savings/checking account to other account, display 
  * account balance, transfer funds to different customer account, operator functionality (operator login, 
  * add money to vault, remove money from vault, display bills), view vault, and various other helper functions. 
- * The connection class is the bread and butter of the ATM system where the core logic happens. 
+ * 
+ * Each Connection is one ATM session: it holds the state of a single terminal (the input 
+ * scanner and the logged in user) and prompts that terminal for input. The balances, 
+ * vault, and transaction rules live in the shared TransactionEngine, so many Connection 
+ * objects can run on different threads against the same engine. 
+ * 
+ * The Connection only prompts and prints: every transaction is handed to the engine as a 
+ * TransactionCommand and its TransactionResult is shown to the user. Output goes to the 
+ * session's own PrintStream, so a session can talk to a console, a socket, or nothing at all. 
  * 
  * Assumption: Assume User data, account data, and vault data are already loaded into the system. 
  * Assume mostly valid inputs, but error checking is implemented incase otherwise. 
@@ -22,49 +30,52 @@ import java.util.Scanner;
 public class Connection { //begin Connection 
 
     //Declare fields 
-    private User user;
-    private Account account;
+    private User user; //user logged in to this session 
     private Screen screen;
-    private Vault vault;
-    private ArrayList<User> users; //holds all user information
-    private ArrayList<Account> accounts; //holds all account information 
-    private final String operatorPassword = "cannonball";
-    Scanner scan = new Scanner(System.in);
+    private final TransactionEngine engine; //shared by every session 
+    static final String OPERATOR_PASSWORD = "cannonball"; //also checked by the NioGateway 
+    private final Scanner scan; //input for this session only 
+    private final PrintStream out; //output for this session only 
 
     /**
      * Partial constructor to initialize the Connection class.
      * 
      * 
-     * @param screen:   Screen object for displaying messages.
-     * @param users:    List of users in the system.
-     * @param accounts: List of accounts associated with users.
-     * @param vault:    Vault object representing the ATM's cash storage.
+     * @param screen: Screen object for displaying messages.
+     * @param scan:   Scanner reading this session's input.
+     * @param engine: Transaction engine shared by all sessions.
      */
-    public Connection(Screen screen, ArrayList<User> users, ArrayList<Account> accounts, Vault vault) {
+    public Connection(Screen screen, Scanner scan, TransactionEngine engine) {
+        this(screen, scan, System.out, engine);
+    }
+
+    /**
+     * Constructor for a session that prints somewhere other than the console.
+     * 
+     * @param screen: Screen object for displaying messages.
+     * @param scan:   Scanner reading this session's input.
+     * @param out:    Stream this session's messages are printed to.
+     * @param engine: Transaction engine shared by all sessions.
+     */
+    public Connection(Screen screen, Scanner scan, PrintStream out, TransactionEngine engine) {
         this.screen = screen;
-        this.users = users;
-        this.accounts = accounts;
-        this.vault = vault;
+        this.scan = scan;
+        this.out = out;
+        this.engine = engine;
     }
 
     /**
      * Method to authenticate user login.
      * 
-     * Checks the given username and password against the list of users.
+     * Checks the given username and password against the user directory.
      * Returns true if credentials match, false otherwise.
      * 
      * @param name     the name of the user wanting to log in
      * @param password the password of the user wanting to log in
      */
     public boolean login(String name, String password) {
-        for (int i = 0; i < users.size(); i++) {
-            if (users.get(i).getName().equals(name) && users.get(i).getPassword().equals(password)) {
-                return true;
-            }
-
-        }
-        return false;
-
+        user = engine.authenticate(name, password);
+        return user != null;
     }
 
     /**
@@ -82,12 +93,6 @@ public class Connection { //begin Connection
         boolean validAmount = false;
         int amount = 0;
 
-        // initialize bill denomination variables
-        int hundreds = 0;
-        int fifties = 0;
-        int twenties = 0;
-        int fives = 0;
-
         // prompt the user for which account to use
         int accountNum = chooseAccount(userName);
 
@@ -98,7 +103,7 @@ public class Connection { //begin Connection
 
         // Ensure valid withdrawal amount
         while (!validAmount) {
-            System.out.println(
+            out.println(
                     "How much money would you like to withdraw (multiples of $5 only, or type 0 to exit): ");
 
             try {
@@ -107,158 +112,69 @@ public class Connection { //begin Connection
 
                 // test if divisible by five
                 if (amount % 5 != 0 || amount < 0) {
-                    System.out.println("Error: Amount must be a multiple of $5 and non-negative number.");
+                    out.println("Error: Amount must be a multiple of $5 and non-negative number.");
                     continue;
                 }
                 // exit the menu
                 else if (amount == 0) {
-                    System.out.println("Zero dollars withdrawn. Exiting withdraw menu.\n");
+                    out.println("Zero dollars withdrawn. Exiting withdraw menu.\n");
                     return;
                 }
                 
                 // check to ensure not over-withdrawing funds from ATM
-                if (amount > vault.calculateBalance()) {
-                    System.out.println("Error: ATM does not have enough cash.");
+                if (amount > engine.getVault().calculateBalance()) {
+                    out.println("Error: ATM does not have enough cash.");
                     continue;
                 }
 
-                // loop through list of accounts and check if the requested amount is greater
+                // look up the account and check if the requested amount is greater
                 // than the accounts balance
-                for (Account account : accounts) {
-                    if (account.getAccountNumber() == accountNum) {
-                        if (amount > account.getTotalBalance()) {
-                            System.out.println("Error: Insufficient funds in your account.");
-                        } else {
-                            validAmount = true;
-                        }
+                Account account = engine.findAccount(accountNum);
+                if (account != null) {
+                    if (Money.dollarsToCents(amount) > account.getBalanceCents()) {
+                        out.println("Error: Insufficient funds in your account.");
+                    } else {
+                        validAmount = true;
                     }
-                } // end for
+                }
 
             } catch (InputMismatchException e) {
-                System.out.println("Invalid input. Please enter a valid amount");
+                out.println("Invalid input. Please enter a valid amount");
                 scan.nextLine();
             }
         } // end while
 
-        // method call to verify vault has enough bills for transaction
-        boolean check = checkWithdrawal(amount);
-        if (check == true) {
-            // capture the original amount in a variable for adjusting the account balance
-            int originalAmount = amount;
-
-            // logic for withdrawing funds checking the vault
-            // if the vault has funds and amount is one hundred or more
-            while (amount >= 100 && vault.getHundredDollarBills() > 0) {
-                amount -= 100; // deduct the new amount
-                int newBillAmount = vault.getHundredDollarBills() - 1; // update vault bill count
-                vault.setHundredDollarBills(newBillAmount); // use setter to push update
-                hundreds++; // increment the number of hundred dollar bills used
-            }
-            // if the vault has funds and amount is Fifty or more
-            while (amount >= 50 && vault.getFiftyDollarBills() > 0) {
-                amount -= 50; //update amount
-                int newBillAmount = vault.getFiftyDollarBills() - 1;// update vault bill count
-                vault.setFiftyDollarBills(newBillAmount); // use setter to push update
-                fifties++;// increment the number of FiftyD dollar bills used
-            }
-            // if the vault has funds and amount is Twenty or more
-            while (amount >= 20 && vault.getTwentyDollarBills() > 0) {
-                amount -= 20;//update amount
-                int newBillAmount = vault.getTwentyDollarBills() - 1;// update vault bill count
-                vault.setTwentyDollarBills(newBillAmount);
-                twenties++;//increment variable
-            }
-            // if the vault has funds and amount is Twenty or more
-            while (amount >= 5 && vault.getFiveDollarBills() > 0) {
-                amount -= 5;//update amount
-                int newBillAmount = vault.getFiveDollarBills() - 1;// update vault bill count
-                vault.setFiveDollarBills(newBillAmount);// use setter to push update
-                fives++; //increment variable
-            }
-
-            // logic for withdrawing funds from account
-            // update totalBalance field in Account
-            for (Account a : accounts) {
-                if (a.getAccountNumber() == accountNum) {
-
-                    // adjust the user accounts balance
-                    double newBalance = (a.getTotalBalance() - originalAmount);
-                    a.setTotalBalance(newBalance);
-                }
-            }
+        // take the money out of the account and dispense the bills from the vault in one step
+        TransactionResult result = engine.execute(TransactionCommand.withdraw(accountNum, amount));
+        if (result.isSuccess()) {
+            Bills dispensed = result.getBills();
 
             // output the withdrawn bills
-            System.out.println("Withdrawal successful!");
-            System.out.println("Dispensed:");
+            out.println("Withdrawal successful!");
+            out.println("Dispensed:");
 
             //check if there exists any amount of hundreds, fifties,
             //twenties, or fives, and if so then output that amount 
             //of bills to user to show how much money they withdrew
-            if (hundreds > 0)
-                System.out.println(hundreds + " x $100 bills");
-            if (fifties > 0)
-                System.out.println(fifties + " x $50 bills");
-            if (twenties > 0)
-                System.out.println(twenties + " x $20 bills");
-            if (fives > 0)
-                System.out.println(fives + " x $5 bills");
+            if (dispensed.getHundreds() > 0)
+                out.println(dispensed.getHundreds() + " x $100 bills");
+            if (dispensed.getFifties() > 0)
+                out.println(dispensed.getFifties() + " x $50 bills");
+            if (dispensed.getTwenties() > 0)
+                out.println(dispensed.getTwenties() + " x $20 bills");
+            if (dispensed.getFives() > 0)
+                out.println(dispensed.getFives() + " x $5 bills");
 
             displayAccountBalance(accountNum);
             displayVaultBalance();
 
-        } else // else if there are not sufficient funds present in the ATM, then exit the
-               // method
+        } else { // else the ATM or the account could not cover the amount, so exit the
+                 // method
+            out.println(result.getMessage());
             return;
-
-    } // end Withdraw method
-
-    /**
-     * Helper method to verify whether the ATM vault has sufficient bill
-     * denominations
-     * to dispense the requested withdrawal amount.
-     * 
-     * Returns:
-     * - true if the requested amount can be dispensed.
-     * - false if there are insufficient denominations available.
-     * 
-     * @param amount the inputted amount the user wants to withdraw
-     */
-    private boolean checkWithdrawal(int amount) {
-        int tempAmount = amount;
-
-        // Deduct as many $100 bills as possible without exceeding the available amount
-        // or the vault's supply
-        int maxHundreds = tempAmount / 100;
-        int tempHundreds = Math.min(maxHundreds, vault.getHundredDollarBills());
-        tempAmount -= tempHundreds * 100;
-
-        // Deduct as many $50 bills as possible after handling $100 bills, considering
-        // availability
-        int tempFifties = Math.min(tempAmount / 50, vault.getFiftyDollarBills());
-        tempAmount -= tempFifties * 50;
-
-        // Deduct as many $20 bills as possible after handling higher denominations,
-        // based on availability
-        int tempTwenties = Math.min(tempAmount / 20, vault.getTwentyDollarBills());
-        tempAmount -= tempTwenties * 20;
-
-        // Deduct as many $5 bills as possible after handling larger bills, not
-        // exceeding available bills
-        int tempFives = Math.min(tempAmount / 5, vault.getFiveDollarBills());
-        tempAmount -= tempFives * 5;
-
-        // now check to see if there are enough bill denominations for the needed amount
-        if (tempAmount > 0) {
-            System.out.println(
-                    "Error: ATM cannot dispense the exact requested amount due to insufficient bill denominations.");
-            return false;
         }
 
-        // return true meaning there is sufficient bill denominations left in the vault
-        // for transaction
-        return true;
-
-    }// end checkWithdrawal
+    } // end Withdraw method
 
     /**
      * Method for user to deposit funds into either their savings/checking account.
@@ -287,13 +203,13 @@ public class Connection { //begin Connection
         // loop for depositing five dollar bills
         while (moreFives) {
             try {
-                System.out.println("How many five dollar bills are you depositing?");
+                out.println("How many five dollar bills are you depositing?");
                 fivesAmount = scan.nextInt();
                 scan.nextLine();
 
                 //check for negative 
                 if (fivesAmount < 0) {
-                    System.out.println("Error. Please input a non-negative amount of bills to deposit.");
+                    out.println("Error. Please input a non-negative amount of bills to deposit.");
                 } 
                 
                 //else input is correct
@@ -301,7 +217,7 @@ public class Connection { //begin Connection
                     moreFives = false;
                 }
             } catch (InputMismatchException e) {
-                System.out.println("Invalid input. Please enter a valid amount");
+                out.println("Invalid input. Please enter a valid amount");
                 scan.nextLine();
             }
         }
@@ -309,13 +225,13 @@ public class Connection { //begin Connection
         // loop for depositing twenty dollar bills
         while (moreTwenties) {
             try {
-                System.out.println("How many twenty dollar bills are you depositing?");
+                out.println("How many twenty dollar bills are you depositing?");
                 twentiesAmount = scan.nextInt();
                 scan.nextLine();
 
                 //check for negative 
                 if (twentiesAmount < 0) {
-                    System.out.println("Error. Please input a non-negative amount of bills to deposit.");
+                    out.println("Error. Please input a non-negative amount of bills to deposit.");
                 } 
                 
                 //else input is correct
@@ -323,7 +239,7 @@ public class Connection { //begin Connection
                     moreTwenties = false;
                 }
             } catch (InputMismatchException e) {
-                System.out.println("Invalid input. Please enter a valid amount");
+                out.println("Invalid input. Please enter a valid amount");
                 scan.nextLine();
             }
         }
@@ -331,13 +247,13 @@ public class Connection { //begin Connection
         // loop for depositing fifty dollar bills
         while (moreFifties) {
             try {
-                System.out.println("How many fifty dollar bills are you depositing?");
+                out.println("How many fifty dollar bills are you depositing?");
                 fiftiesAmount = scan.nextInt();
                 scan.nextLine();
 
                 //check for negative 
                 if (fiftiesAmount < 0) {
-                    System.out.println("Error. Please input a non-negative amount of bills to deposit.");
+                    out.println("Error. Please input a non-negative amount of bills to deposit.");
                 } 
                 
                 //else input is correct
@@ -345,7 +261,7 @@ public class Connection { //begin Connection
                     moreFifties = false;
                 }
             } catch (InputMismatchException e) {
-                System.out.println("Invalid input. Please enter a valid amount");
+                out.println("Invalid input. Please enter a valid amount");
                 scan.nextLine();
             }
         }
@@ -353,13 +269,13 @@ public class Connection { //begin Connection
         // loop for depositing hundred dollar bills
         while (moreHundreds) {
             try {
-                System.out.println("How many hundred dollar bills are you depositing?");
+                out.println("How many hundred dollar bills are you depositing?");
                 hundredsAmount = scan.nextInt();
                 scan.nextLine();
 
                 //check for negative 
                 if (hundredsAmount < 0) {
-                    System.out.println("Error. Please input a non-negative amount of bills to deposit.");
+                    out.println("Error. Please input a non-negative amount of bills to deposit.");
                 } 
                 
                 //else input is correct
@@ -367,7 +283,7 @@ public class Connection { //begin Connection
                     moreHundreds = false;
                 }
             } catch (InputMismatchException e) {
-                System.out.println("Invalid input. Please enter a valid amount");
+                out.println("Invalid input. Please enter a valid amount");
                 scan.nextLine();
             }
         }
@@ -376,21 +292,15 @@ public class Connection { //begin Connection
         int totalAmount = (fivesAmount * 5) + (twentiesAmount * 20)
                 + (fiftiesAmount * 50) + (hundredsAmount * 100);
 
-        System.out.println("Total amount depositing: $" + totalAmount);
+        out.println("Total amount depositing: $" + totalAmount);
 
-        // set user account to new totalAmount;
-        for (Account account : accounts) {
-            if (account.getAccountNumber() == accountNum) {
-                account.setTotalBalance(account.getTotalBalance() + totalAmount);
-            }
+        // add bills to vault and set user account to new totalAmount
+        TransactionResult result = engine.execute(TransactionCommand.deposit(accountNum,
+                new Bills(hundredsAmount, fiftiesAmount, twentiesAmount, fivesAmount)));
+        if (!result.isSuccess()) {
+            out.println(result.getMessage());
         }
 
-        // add bills to vault
-        vault.setFiveDollarBills(vault.getFiveDollarBills() + fivesAmount);
-        vault.setTwentyDollarBills(vault.getTwentyDollarBills() + twentiesAmount);
-        vault.setFiftyDollarBills(vault.getFiftyDollarBills() + fiftiesAmount);
-        vault.setHundredDollarBills(vault.getHundredDollarBills() + hundredsAmount);
-
         displayAccountBalance(accountNum);
         displayVaultBalance();
     }// end deposit method
@@ -417,7 +327,7 @@ public class Connection { //begin Connection
         boolean checking = false; // set checking to true if it is checking
         boolean more = true;
 
-        System.out.println("Choose the source account you would would like to transfer funds from ");
+        out.println("Choose the source account you would would like to transfer funds from ");
 
         int sourceAccount = chooseAccount(userName);
 
@@ -425,34 +335,33 @@ public class Connection { //begin Connection
         displayAccountBalance(sourceAccount);
         displayVaultBalance();
 
-        // loop through the list of users
-        for (User user : users) {
+        // look up the owner of the source account
+        User owner = engine.findOwner(sourceAccount);
 
-            // check first to see if the source account is the chosen account
-            if (sourceAccount == user.getCheckingAccountNumber()) {
-                checking = true; // set checking to true
+        // check first to see if the source account is the chosen account
+        if (owner != null && sourceAccount == owner.getCheckingAccountNumber()) {
+            checking = true; // set checking to true
 
-                destinationAccount = user.getSavingsAccountNumber(); // assign the destination account number from
-                                                                     // savings
-                System.out.println("\nTransferring to Savings Account: #" + destinationAccount);
-                displayAccountBalance(destinationAccount);
+            destinationAccount = owner.getSavingsAccountNumber(); // assign the destination account number from
+                                                                  // savings
+            out.println("\nTransferring to Savings Account: #" + destinationAccount);
+            displayAccountBalance(destinationAccount);
 
-            }
-            // else the destination account is checking
-            else if (sourceAccount == user.getSavingsAccountNumber()) {
-                checking = false;
+        }
+        // else the destination account is checking
+        else if (owner != null && sourceAccount == owner.getSavingsAccountNumber()) {
+            checking = false;
 
-                destinationAccount = user.getCheckingAccountNumber(); // assign the destination accout number from
-                                                                      // checking
-                System.out.println("\nTransferring to Checking Account: #" + destinationAccount);
-                displayAccountBalance(destinationAccount);
+            destinationAccount = owner.getCheckingAccountNumber(); // assign the destination accout number from
+                                                                   // checking
+            out.println("\nTransferring to Checking Account: #" + destinationAccount);
+            displayAccountBalance(destinationAccount);
 
-            }
-        } // end for loop
+        }
 
         //loop for transfer input 
         while (more) {
-            System.out.println("\nPlease enter amount to transfer (or enter 0 to exit transfer money option): ");
+            out.println("\nPlease enter amount to transfer (or enter 0 to exit transfer money option): ");
             
             //error checking
             try {
@@ -461,7 +370,7 @@ public class Connection { //begin Connection
 
                 // check if the amount is negative, print error
                 if (transferAmount < 0) {
-                    System.out.println("Error. Transfer amount cannot be negative or zero.");
+                    out.println("Error. Transfer amount cannot be negative or zero.");
                 }
                 // exit transfer method
                 else if (transferAmount == 0)
@@ -470,60 +379,46 @@ public class Connection { //begin Connection
                 else
                     more = false;
             } catch (InputMismatchException e) {//error checking
-                System.out.println("Invalid input. Please enter a valid amount");
+                out.println("Invalid input. Please enter a valid amount");
                 scan.nextLine();
             }
         }
 
-        // loop through list of accounts until source account found
-        for (Account account : accounts) {
-
-            // if source account is found
-            if (account.getAccountNumber() == sourceAccount) {
+        // deduct the amount from the source account and add it to the destination account
+        TransactionResult result = engine.execute(TransactionCommand.internalTransfer(sourceAccount,
+                Money.dollarsToCents(transferAmount)));
 
-                // check to see if amount being transferred exceeds the total account amount
-                if ((account.getTotalBalance() - transferAmount) >= 0) {
-
-                    // deduct the amount to be transferred from source account
-                    account.setTotalBalance(account.getTotalBalance() - transferAmount);
-
-                    // loop through accounts again and add the transfer amount to the desination
-                    // account
-                    for (Account a : accounts) {
-                        if (a.getAccountNumber() == destinationAccount) {
-                            a.setTotalBalance(a.getTotalBalance() + transferAmount);
-                        }
-                    }
-                } 
-                //error checking for negative 
-                else {
-                    System.out.println("Error: transfer will create a negative balance for account #" + sourceAccount);
-                    return;
-                }
-
-            }
-        } // end for loop
+        //error checking for negative 
+        if (result.getStatus() == TransactionResult.Status.INSUFFICIENT_FUNDS) {
+            out.println("Error: transfer will create a negative balance for account #" + sourceAccount);
+            return;
+        }
+        //error checking for any other failure 
+        else if (!result.isSuccess()) {
+            out.println(result.getMessage());
+            return;
+        }
 
         // print out results of transfer and both account balances
-        System.out.println("\nTransfer was successful! \n");
+        out.println("\nTransfer was successful! \n");
 
         // if the checking is the source account
         //display balances 
         if (checking) {
-            System.out.print("Checking Account #" + sourceAccount + " - ");
+            out.print("Checking Account #" + sourceAccount + " - ");
             displayAccountBalance(sourceAccount);
-            System.out.print("Savings Account #" + destinationAccount + " - ");
+            out.print("Savings Account #" + destinationAccount + " - ");
             displayAccountBalance(destinationAccount);
-            System.out.println("");
+            out.println("");
         }
         // else savings is the source account
         //display balances
         else {
-            System.out.print("Checking Account #" + destinationAccount + " - ");
+            out.print("Checking Account #" + destinationAccount + " - ");
             displayAccountBalance(destinationAccount);
-            System.out.print("Savings Account #" + sourceAccount + " - ");
+            out.print("Savings Account #" + sourceAccount + " - ");
             displayAccountBalance(sourceAccount);
-            System.out.println("");
+            out.println("");
         }
         displayVaultBalance();
     }// end transferBetweenAccounts
@@ -542,7 +437,7 @@ public class Connection { //begin Connection
         boolean found = false;
         int destinationAccount = 0;
 
-        System.out.println("Choose the source account you would would like to transfer funds from");
+        out.println("Choose the source account you would would like to transfer funds from");
 
         int sourceAccount = chooseAccount(userName);
 
@@ -555,24 +450,19 @@ public class Connection { //begin Connection
 
             //error checking 
             try {
-                System.out
+                out
                         .println("Please enter the account number for who you would like to receive this transfer: #");
                 destinationAccount = scan.nextInt();
                 scan.nextLine();
 
                 // check to make sure account exists in the system
-                // loop through the list of accounts
-                for (Account x : accounts) {
-                    if (x.getAccountNumber() == destinationAccount)
-                        found = true;
-
-                }
+                found = engine.findAccount(destinationAccount) != null;
 
                 //error checking 
                 if (!found)
-                    System.out.println("Error: Please input a valid account #");
+                    out.println("Error: Please input a valid account #");
             } catch (InputMismatchException e) {//error checking 
-                System.out.println("Invalid input. Please enter a valid account number. ");
+                out.println("Invalid input. Please enter a valid account number. ");
                 scan.nextLine();
             }
 
@@ -584,55 +474,43 @@ public class Connection { //begin Connection
         // account
         while (more) {
             try {
-                System.out.println("Please enter amount to transfer: ");
+                out.println("Please enter amount to transfer: ");
                 transferAmount = scan.nextInt();
                 scan.nextLine();
 
 
                 //check for negative input 
                 if(transferAmount < 0){
-                    System.out.println("Error. Transfer amount must be non negative.");
+                    out.println("Error. Transfer amount must be non negative.");
                     return; 
                 }
 
-                //initial loop for accounts to find source account 
-                for (Account account : accounts) {
-                    if (account.getAccountNumber() == sourceAccount) {
-
-                        // check to see if amount being transferred exceeds the total account amount
-                        if ((account.getTotalBalance() - transferAmount) >= 0) {
-
-                            // set the new balance of the person sending the money by subtracting the
-                            // transfer
-                            // amount checking their total balance
-                            account.setTotalBalance(account.getTotalBalance() - transferAmount);
-
-                            // loop thru accounts again, until the destination account is found
-                            for (Account a : accounts) {
-                                // if found
-                                if (a.getAccountNumber() == destinationAccount) {
-                                    // add the transfer amount to destination account
-                                    a.setTotalBalance(a.getTotalBalance() + transferAmount);
-                                    // display accout balances to user
-                                    System.out.print(
-                                            "\nTransfer was successful.\nChecking Account #" + sourceAccount + " - ");
-                                    displayAccountBalance(sourceAccount);
-                                    System.out.print("to destination Account #" + destinationAccount + "\n\n");
-                                    displayVaultBalance();
-                                    more = false; //exit loop 
-                                }
-                            } // end for
-                        } // end if
-
-                        //error checking
-                        else {
-                            System.out.println(
-                                    "Error: transfer will create a negative balance for account #" + sourceAccount);
-                        }
-                    } // end if
-                } // end for loop
+                // subtract the transfer amount from the person sending the money and
+                // add it to the destination account
+                TransactionResult result = engine.execute(TransactionCommand.transfer(sourceAccount,
+                        destinationAccount, Money.dollarsToCents(transferAmount)));
+
+                if (result.isSuccess()) {
+                    // display accout balances to user
+                    out.print(
+                            "\nTransfer was successful.\nChecking Account #" + sourceAccount + " - ");
+                    displayAccountBalance(sourceAccount);
+                    out.print("to destination Account #" + destinationAccount + "\n\n");
+                    displayVaultBalance();
+                    more = false; //exit loop 
+                }
+
+                //error checking
+                else if (result.getStatus() == TransactionResult.Status.INSUFFICIENT_FUNDS) {
+                    out.println(
+                            "Error: transfer will create a negative balance for account #" + sourceAccount);
+                }
+                else {
+                    out.println(result.getMessage());
+                    return;
+                }
             } catch (InputMismatchException e) {//error checking
-                System.out.println("Invalid input! Please enter a valid number.");
+                out.println("Invalid input! Please enter a valid number.");
                 scan.nextLine(); // Clear invalid input
             }
         }
@@ -659,24 +537,23 @@ public class Connection { //begin Connection
 
         //loop for choosing accout number 
         while (more) {
-            System.out.println("Which account would you like to perform action on (either checking or savings):");
-
-            // loop through the list of users
-            for (int i = 0; i < users.size(); i++) {
-
-                // if username is found, print out the checking and savings account numbers
-                //user arraylist index and getter for both checking and savings accout number for that user
-                if (users.get(i).getName().equals(userName)) {
-                    System.out.println("1.) Checking Account: #" + users.get(i).getCheckingAccountNumber());
-                    System.out.println("2.) Savings Account: #" + users.get(i).getSavingsAccountNumber());
-                    checkingNum = users.get(i).getCheckingAccountNumber(); //save the checking number to a variable 
-                    savingsNum = users.get(i).getSavingsAccountNumber(); //save the savings number to a variable 
-                }
+            out.println("Which account would you like to perform action on (either checking or savings):");
+
+            // look up the user by name
+            User user = engine.findUser(userName);
+
+            // if username is found, print out the checking and savings account numbers
+            //getter for both checking and savings accout number for that user
+            if (user != null) {
+                out.println("1.) Checking Account: #" + user.getCheckingAccountNumber());
+                out.println("2.) Savings Account: #" + user.getSavingsAccountNumber());
+                checkingNum = user.getCheckingAccountNumber(); //save the checking number to a variable 
+                savingsNum = user.getSavingsAccountNumber(); //save the savings number to a variable 
             }
 
             //error checking
             try {
-                System.out.println("Please type either 1 or 2:");
+                out.println("Please type either 1 or 2:");
                 choice = scan.nextInt();
                 scan.nextLine();
 
@@ -687,10 +564,10 @@ public class Connection { //begin Connection
 
                 //else invalid input 
                 else {
-                    System.out.println("Invalid input. Please type either 1 or 2 for checking or savings.");
+                    out.println("Invalid input. Please type either 1 or 2 for checking or savings.");
                 }
             } catch (InputMismatchException e) {//error checking
-                System.out.println("Invalid input. Please type either 1 or 2 for checking or savings.");
+                out.println("Invalid input. Please type either 1 or 2 for checking or savings.");
                 scan.nextLine();
             }
 
@@ -714,15 +591,14 @@ public class Connection { //begin Connection
      */
     public void displayAccountBalance(int accountNum) {
 
-        //loop thru accounts list 
-        for (Account a : accounts) {
+        //look up the account by number 
+        Account a = engine.findAccount(accountNum);
 
-            //if account is found from list 
-            if (a.getAccountNumber() == accountNum) {
+        //if account is found 
+        if (a != null) {
 
-                //output balance 
-                System.out.println("Current account balance: $" + a.getTotalBalance());
-            }
+            //output balance 
+            out.println("Current account balance: $" + a.getBalance());
         }
     }
 
@@ -733,20 +609,20 @@ public class Connection { //begin Connection
      * @return boolean indicating successful login or not
      */
     public boolean operatorLogin() {
-        System.out.println("Please enter the operator password: ");
+        out.println("Please enter the operator password: ");
         String pass = scan.nextLine();
 
         //correct password input 
-        if (pass.equals(operatorPassword)) {
-            System.out.println("Operator login successful.\n");
+        if (pass.equals(OPERATOR_PASSWORD)) {
+            out.println("Operator login successful.\n");
             return true;
         } 
         //check for empty input 
         else if (pass.isEmpty()) {
-            System.out.println("Error. Must give text input.");
+            out.println("Error. Must give text input.");
             return false;
         } else { //error checking 
-            System.out.println("Operator password incorrect.\n");
+            out.println("Operator password incorrect.\n");
             return false;
         }
 
@@ -756,8 +632,8 @@ public class Connection { //begin Connection
      * Method to display the current vault total balance
      */
     public void displayVaultBalance() {
-        int balance = vault.calculateBalance(); //use vault's calc balance method 
-        System.out.println("Vault's current balance: $" + balance);
+        int balance = engine.getVault().calculateBalance(); //use vault's calc balance method 
+        out.println("Vault's current balance: $" + balance);
     }
 
     /*
@@ -766,8 +642,8 @@ public class Connection { //begin Connection
      * 
      */
     public void displayVaultBills() {
-        String outputBills = vault.toString();//use vault's toString method 
-        System.out.println(outputBills); //output String 
+        String outputBills = engine.getVault().toString();//use vault's toString method 
+        out.println(outputBills); //output String 
     }
 
     /*
@@ -792,7 +668,7 @@ public class Connection { //begin Connection
                 choice = scan.nextInt();
                 scan.nextLine();
             } catch (InputMismatchException e) {//error checking
-                System.out.println("Error: Invalid input. Please enter a number between 1-5.");
+                out.println("Error: Invalid input. Please enter a number between 1-5.");
                 scan.nextLine(); // Clear the invalid input
                 continue; // Restart loop
             }
@@ -802,23 +678,27 @@ public class Connection { //begin Connection
 
                 //error checking
                 try {
-                    System.out.println("How many five dollar bills are you adding:");
+                    out.println("How many five dollar bills are you adding:");
                     int numBills = scan.nextInt();
                     scan.nextLine();
 
                     //check for negative amount 
                     if (numBills < 0) {
-                        System.out.println("Error. Please input non-negative amount.");
+                        out.println("Error. Please input non-negative amount.");
                     }
 
                     //else the amount is valid 
                     else {
-                        vault.setFiveDollarBills(vault.getFiveDollarBills() + numBills);
-                        System.out.println("Success. Addeed " + numBills + " five dollar bills to the vault.");
+                        TransactionResult result = engine.execute(TransactionCommand.addVaultBills(new Bills(0, 0, 0, numBills)));
+                        if (result.isSuccess()) {
+                            out.println("Success. Added " + numBills + " five dollar bills to the vault.");
+                        } else {
+                            out.println(result.getMessage());
+                        }
                     }
 
                 } catch (InputMismatchException e) {//error checking
-                    System.out.println("Error: Invalid input. Please enter a valid amount.");
+                    out.println("Error: Invalid input. Please enter a valid amount.");
                     scan.nextLine(); // Clear the invalid input
                 }
 
@@ -828,21 +708,25 @@ public class Connection { //begin Connection
             else if (choice == 2) {
                 //error checking
                 try {
-                    System.out.println("How many twenty dollar bills are you adding:");
+                    out.println("How many twenty dollar bills are you adding:");
                     int numBills = scan.nextInt();
                     scan.nextLine();
                     //check for negative amount
                     if (numBills < 0) {
-                        System.out.println("Error. Please input non-negative amount.");
+                        out.println("Error. Please input non-negative amount.");
                     }
 
                     //else the amount is valid 
                     else {
-                        vault.setTwentyDollarBills(vault.getTwentyDollarBills() + numBills);
-                        System.out.println("Success. Addeed " + numBills + " twenty dollar bills to the vault.");
+                        TransactionResult result = engine.execute(TransactionCommand.addVaultBills(new Bills(0, 0, numBills, 0)));
+                        if (result.isSuccess()) {
+                            out.println("Success. Added " + numBills + " twenty dollar bills to the vault.");
+                        } else {
+                            out.println(result.getMessage());
+                        }
                     }
                 } catch (InputMismatchException e) {
-                    System.out.println("Error: Invalid input. Please enter a valid amount.");
+                    out.println("Error: Invalid input. Please enter a valid amount.");
                     scan.nextLine(); // Clear the invalid input
                 }
             } 
@@ -851,21 +735,25 @@ public class Connection { //begin Connection
             else if (choice == 3) {
                 //error checking
                 try {
-                    System.out.println("How many fifty dollar bills are you adding:");
+                    out.println("How many fifty dollar bills are you adding:");
                     int numBills = scan.nextInt();
                     scan.nextLine();
                     //check for negative amount
                     if (numBills < 0) {
-                        System.out.println("Error. Please input non-negative amount.");
+                        out.println("Error. Please input non-negative amount.");
                     }
 
                     //else the amount is valid 
                     else {
-                        vault.setFiftyDollarBills(vault.getFiftyDollarBills() + numBills);
-                        System.out.println("Success. Addeed " + numBills + " fifty dollar bills to the vault.");
+                        TransactionResult result = engine.execute(TransactionCommand.addVaultBills(new Bills(0, numBills, 0, 0)));
+                        if (result.isSuccess()) {
+                            out.println("Success. Added " + numBills + " fifty dollar bills to the vault.");
+                        } else {
+                            out.println(result.getMessage());
+                        }
                     }
                 } catch (InputMismatchException e) {//error checking
-                    System.out.println("Error: Invalid input. Please enter a valid amount.");
+                    out.println("Error: Invalid input. Please enter a valid amount.");
                     scan.nextLine(); // Clear the invalid input
                 }
 
@@ -876,31 +764,35 @@ public class Connection { //begin Connection
 
                 //error checking
                 try {
-                    System.out.println("How many hundred dollar bills are you adding:");
+                    out.println("How many hundred dollar bills are you adding:");
                     int numBills = scan.nextInt();
                     scan.nextLine();
                     //check for negative amount
                     if (numBills < 0) {
-                        System.out.println("Error. Please input non-negative amount.");
+                        out.println("Error. Please input non-negative amount.");
                     }
 
                     //else the amount is valid 
                     else {
-                        vault.setHundredDollarBills(vault.getHundredDollarBills() + numBills);
-                        System.out.println("Success. Addeed " + numBills + " hundred dollar bills to the vault.");
+                        TransactionResult result = engine.execute(TransactionCommand.addVaultBills(new Bills(numBills, 0, 0, 0)));
+                        if (result.isSuccess()) {
+                            out.println("Success. Added " + numBills + " hundred dollar bills to the vault.");
+                        } else {
+                            out.println(result.getMessage());
+                        }
                     }
                 } catch (InputMismatchException e) {//error checking
-                    System.out.println("Error: Invalid input. Please enter a valid amount.");
+                    out.println("Error: Invalid input. Please enter a valid amount.");
                     scan.nextLine(); // Clear the invalid input
                 }
 
             } 
             //exiting bill input menu option 
             else if (choice == 5) {
-                System.out.println("Exiting input bills menu\n");
+                out.println("Exiting input bills menu\n");
                 more = false;
             } else {//error checking
-                System.out.println("Error: please type a number 1-5");
+                out.println("Error: please type a number 1-5");
             }
         } //end loop 
     }//end method 
@@ -927,7 +819,7 @@ public class Connection { //begin Connection
                 choice = scan.nextInt();
                 scan.nextLine();
             } catch (InputMismatchException e) {//error checking 
-                System.out.println("Error: Invalid input. Please enter a valid amount.");
+                out.println("Error: Invalid input. Please enter a valid amount.");
                 scan.nextLine(); // Clear the invalid input
             }
             
@@ -937,28 +829,26 @@ public class Connection { //begin Connection
 
                 //error checking 
                 try{
-                    System.out.println("How many five dollar bills are you removing:");
+                    out.println("How many five dollar bills are you removing:");
                     int numBills = scan.nextInt();
                     scan.nextLine();
     
                     //check for negative bills input 
                     if(numBills < 0) {
-                        System.out.println("Error. Cannot remove negative number of bills from vault.");
+                        out.println("Error. Cannot remove negative number of bills from vault.");
                     }
 
-                    //check that operator is no over-withdrawing vault bills
-                    else if (numBills > vault.getFiveDollarBills()) {
-                        System.out.println(
-                                "Error. Cannot remove more than " + vault.getFiftyDollarBills() + " five dollar bills\n");
-                    } 
-                    
-                    //else operator has valid input for removing vault bills
+                    //else try removing the bills, which fails if the operator is over-withdrawing vault bills
                     else {
-                        vault.setFiveDollarBills(vault.getFiveDollarBills() - numBills);
-                        System.out.println("Success. Removed " + numBills + " five dollar bills from the vault.");
+                        if (engine.execute(TransactionCommand.removeVaultBills(new Bills(0, 0, 0, numBills))).isSuccess()) {
+                            out.println("Success. Removed " + numBills + " five dollar bills from the vault.");
+                        } else {
+                            out.println("Error. Cannot remove more than " + engine.getVault().getFiveDollarBills()
+                                    + " five dollar bills\n");
+                        }
                     }
                 } catch (InputMismatchException e) {//error checking 
-                    System.out.println("Error: Invalid input. Please enter a valid amount.");
+                    out.println("Error: Invalid input. Please enter a valid amount.");
                     scan.nextLine(); // Clear the invalid input
                 }
                 
@@ -969,28 +859,26 @@ public class Connection { //begin Connection
 
                 //error checking 
                 try{
-                    System.out.println("How many twenty dollar bills are you removing:");
+                    out.println("How many twenty dollar bills are you removing:");
                     int numBills = scan.nextInt();
                     scan.nextLine();
 
                     //check for negative bills input 
                     if(numBills < 0) {
-                        System.out.println("Error. Cannot remove negative number of bills from vault.");
+                        out.println("Error. Cannot remove negative number of bills from vault.");
                     }
 
-                    //check that operator is no over-withdrawing vault bills
-                    else if (numBills > vault.getTwentyDollarBills()) {
-                        System.out.println("Error. Cannot remove more than " + vault.getTwentyDollarBills()
-                                + " twenty dollar bills\n");
-                    } 
-                    
-                    //else operator has valid input for removing vault bills
+                    //else try removing the bills, which fails if the operator is over-withdrawing vault bills
                     else {
-                        vault.setTwentyDollarBills(vault.getTwentyDollarBills() - numBills);
-                        System.out.println("Success. Removed " + numBills + " twenty dollar bills from the vault.");
+                        if (engine.execute(TransactionCommand.removeVaultBills(new Bills(0, 0, numBills, 0))).isSuccess()) {
+                            out.println("Success. Removed " + numBills + " twenty dollar bills from the vault.");
+                        } else {
+                            out.println("Error. Cannot remove more than " + engine.getVault().getTwentyDollarBills()
+                                    + " twenty dollar bills\n");
+                        }
                     }
                 } catch (InputMismatchException e) {//error checking 
-                    System.out.println("Error: Invalid input. Please enter a valid amount.");
+                    out.println("Error: Invalid input. Please enter a valid amount.");
                     scan.nextLine(); // Clear the invalid input
                 }
                 
@@ -1000,28 +888,26 @@ public class Connection { //begin Connection
 
                 //error checking 
                 try{
-                    System.out.println("How many fifty dollar bills are you removing:");
+                    out.println("How many fifty dollar bills are you removing:");
                     int numBills = scan.nextInt();
                     scan.nextLine();
 
                     //check for negative bills input 
                     if(numBills < 0) {
-                        System.out.println("Error. Cannot remove negative number of bills from vault.");
+                        out.println("Error. Cannot remove negative number of bills from vault.");
                     }
 
-                    //check that operator is no over-withdrawing vault bills
-                    else if (numBills > vault.getFiftyDollarBills()) {
-                        System.out.println(
-                                "Error. Cannot remove more than " + vault.getFiftyDollarBills() + " fifty dollar bills\n");
-                    } 
-                    
-                    //else operator has valid input for removing vault bills
+                    //else try removing the bills, which fails if the operator is over-withdrawing vault bills
                     else {
-                        vault.setFiftyDollarBills(vault.getFiftyDollarBills() - numBills);
-                        System.out.println("Success. Removed " + numBills + " fifty dollar bills from the vault.");
+                        if (engine.execute(TransactionCommand.removeVaultBills(new Bills(0, numBills, 0, 0))).isSuccess()) {
+                            out.println("Success. Removed " + numBills + " fifty dollar bills from the vault.");
+                        } else {
+                            out.println("Error. Cannot remove more than " + engine.getVault().getFiftyDollarBills()
+                                    + " fifty dollar bills\n");
+                        }
                     }
                 } catch (InputMismatchException e) {//error checking 
-                    System.out.println("Error: Invalid input. Please enter a valid amount.");
+                    out.println("Error: Invalid input. Please enter a valid amount.");
                     scan.nextLine(); // Clear the invalid input
                 }
             } 
@@ -1030,35 +916,33 @@ public class Connection { //begin Connection
 
                 //error checking 
                 try{
-                    System.out.println("How many hundred dollar bills are you removing:");
+                    out.println("How many hundred dollar bills are you removing:");
                     int numBills = scan.nextInt();
                     scan.nextLine();
 
                     //check for negative bills input 
                     if(numBills < 0) {
-                        System.out.println("Error. Cannot remove negative number of bills from vault.");
+                        out.println("Error. Cannot remove negative number of bills from vault.");
                     }
 
-                    //check that operator is no over-withdrawing vault bills
-                    else if (numBills > vault.getHundredDollarBills()) {
-                        System.out.println("Error. Cannot remove more than " + vault.getHundredDollarBills()
-                                + " hundred dollar bills\n");
-                    } 
-                    
-                    //else operator has valid input for removing vault bills
+                    //else try removing the bills, which fails if the operator is over-withdrawing vault bills
                     else {
-                        vault.setHundredDollarBills(vault.getHundredDollarBills() - numBills);
-                        System.out.println("Success. Removed " + numBills + " hundred dollar bills from the vault.");
+                        if (engine.execute(TransactionCommand.removeVaultBills(new Bills(numBills, 0, 0, 0))).isSuccess()) {
+                            out.println("Success. Removed " + numBills + " hundred dollar bills from the vault.");
+                        } else {
+                            out.println("Error. Cannot remove more than " + engine.getVault().getHundredDollarBills()
+                                    + " hundred dollar bills\n");
+                        }
                     }
                 } catch (InputMismatchException e) {//error checking 
-                    System.out.println("Error: Invalid input. Please enter a valid amount.");
+                    out.println("Error: Invalid input. Please enter a valid amount.");
                     scan.nextLine(); // Clear the invalid input
                 }
             } else if (choice == 5) { //operator exiting remove bills menu option 
-                System.out.println("Exiting remove bills menu\n");
+                out.println("Exiting remove bills menu\n");
                 more = false;
             } else { //error checking 
-                System.out.println("Error: please type a number 1-5");
+                out.println("Error: please type a number 1-5");
             }
         }
     } //end removeVaultBills method 
@@ -1069,13 +953,13 @@ public class Connection { //begin Connection
      * 
      */
     private void inputBillsMenu() {
-        System.out.println("\nBill input menu options: ");
-        System.out.println("    1.) input five dollar bills ($5)");
-        System.out.println("    2.) input twenty dollar bills ($20)");
-        System.out.println("    3.) input fifty dollar bills ($50)");
-        System.out.println("    4.) input hundred dollar bills ($100)");
-        System.out.println("    5.) Stop inputting bills.");
-        System.out.println("Please type a number 1-5: ");
+        out.println("\nBill input menu options: ");
+        out.println("    1.) input five dollar bills ($5)");
+        out.println("    2.) input twenty dollar bills ($20)");
+        out.println("    3.) input fifty dollar bills ($50)");
+        out.println("    4.) input hundred dollar bills ($100)");
+        out.println("    5.) Stop inputting bills.");
+        out.println("Please type a number 1-5: ");
     }
 
     /**
@@ -1083,13 +967,13 @@ public class Connection { //begin Connection
      * method. 
      */
     private void removeBillsMenu() {
-        System.out.println("\nBill removal menu options: ");
-        System.out.println("    1.) remove five dollar bills ($5)");
-        System.out.println("    2.) remove twenty dollar bills ($20)");
-        System.out.println("    3.) remove fifty dollar bills ($50)");
-        System.out.println("    4.) remove hundred dollar bills ($100)");
-        System.out.println("    5.) Stop removing bills.");
-        System.out.println("Please type a number 1-5: ");
+        out.println("\nBill removal menu options: ");
+        out.println("    1.) remove five dollar bills ($5)");
+        out.println("    2.) remove twenty dollar bills ($20)");
+        out.println("    3.) remove fifty dollar bills ($50)");
+        out.println("    4.) remove hundred dollar bills ($100)");
+        out.println("    5.) Stop removing bills.");
+        out.println("Please type a number 1-5: ");
     }
 
 } // end Connection class
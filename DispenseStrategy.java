@@ -0,0 +1,29 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: A way of choosing which bills the ATM hands out for a withdrawal. The vault
+ * asks its strategy for a plan and then removes exactly those bills, so the strategy
+ * can be swapped while the ATM is running without changing the vault or the engine.
+ *
+ * Assumption: Implementations are stateless or thread-safe, since many sessions plan
+ * withdrawals at the same time.
+ *
+ * Input: The amount to dispense and the number of $100, $50, $20, and $5 bills available.
+ * Output: The bills to hand out, or null if the available bills cannot make up the amount.
+ */
+public interface DispenseStrategy {
+
+    /**
+     * Plans the bills to dispense for the amount. The plan must add up to exactly the
+     * amount and must not use more bills of any denomination than are available.
+     *
+     * @param amount   The dollar amount to dispense.
+     * @param hundreds The number of $100 bills available.
+     * @param fifties  The number of $50 bills available.
+     * @param twenties The number of $20 bills available.
+     * @param fives    The number of $5 bills available.
+     * @return The bills to hand out, or null if the amount cannot be made up.
+     */
+    Bills plan(int amount, int hundreds, int fifties, int twenties, int fives);
+
+} // end DispenseStrategy
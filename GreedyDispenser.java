@@ -0,0 +1,62 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The ATM's default dispense strategy. Works out which bills to hand out for a
+ * withdrawal, largest bills first. Used by both Vault and AtomicVault, so checking whether
+ * an amount can be dispensed and actually dispensing it always agree.
+ *
+ * Assumption: The amount is a positive multiple of $5 and the bill counts are the
+ * vault's current supply of each denomination.
+ *
+ * Input: The amount to dispense and the number of $100, $50, $20, and $5 bills available.
+ * Output: The bills to hand out, or null if the available bills cannot make up the amount.
+ *
+ * Algorithm: Largest bills first, computed arithmetically. For each denomination the
+ * number of bills used is the smaller of (amount left / bill value) and the bills
+ * available, so the whole breakdown takes four divisions no matter how large the
+ * withdrawal is, instead of one loop pass per bill.
+ */
+public class GreedyDispenser implements DispenseStrategy {
+
+    /**
+     * Plans the bills to dispense for the amount.
+     *
+     * @param amount   The dollar amount to dispense.
+     * @param hundreds The number of $100 bills available.
+     * @param fifties  The number of $50 bills available.
+     * @param twenties The number of $20 bills available.
+     * @param fives    The number of $5 bills available.
+     * @return The bills to hand out, or null if the amount cannot be made up.
+     */
+    @Override
+    public Bills plan(int amount, int hundreds, int fifties, int twenties, int fives) {
+        int tempAmount = amount;
+
+        // Deduct as many $100 bills as possible without exceeding the available amount
+        // or the vault's supply
+        int useHundreds = Math.min(tempAmount / 100, hundreds);
+        tempAmount -= useHundreds * 100;
+
+        // Deduct as many $50 bills as possible after handling $100 bills, considering
+        // availability
+        int useFifties = Math.min(tempAmount / 50, fifties);
+        tempAmount -= useFifties * 50;
+
+        // Deduct as many $20 bills as possible after handling higher denominations,
+        // based on availability
+        int useTwenties = Math.min(tempAmount / 20, twenties);
+        tempAmount -= useTwenties * 20;
+
+        // Deduct as many $5 bills as possible after handling larger bills, not
+        // exceeding available bills
+        int useFives = Math.min(tempAmount / 5, fives);
+        tempAmount -= useFives * 5;
+
+        // now check to see if there are enough bill denominations for the needed amount
+        if (tempAmount != 0) {
+            return null;
+        }
+        return new Bills(useHundreds, useFifties, useTwenties, useFives);
+    }
+
+} // end GreedyDispenser
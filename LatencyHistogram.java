@@ -0,0 +1,212 @@
+import java.util.Arrays;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Records how long operations took and reports percentiles (the median, the
+ * 99th percentile, and so on) without keeping every sample. Used by the LoadGenerator
+ * and the metrics, where millions of latencies are recorded per second.
+ *
+ * Assumption: Values are non-negative longs, normally nanoseconds. Values are kept to
+ * within 1/64 (about 1.6%); anything above about 18 minutes in nanoseconds (2^40) is
+ * counted as that maximum. One histogram is written by one thread at a time;
+ * threads keep their own histograms and add them together for a report.
+ *
+ * Input: Recorded values.
+ * Output: The count, mean, maximum, and the value at any percentile.
+ *
+ * Algorithm: Log-linear buckets, as in HdrHistogram. Values below 128 each get their own
+ * bucket. Above that, every power of two is split into 64 equal buckets, so a bucket is
+ * never wider than 1/64 of its values. Recording finds the bucket from the position of
+ * the highest set bit and increments one counter, so it costs a few instructions and
+ * never allocates. A percentile walks the counters until it has passed the wanted share
+ * of the samples.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;   // 128
+    private static final int HALF = SUB_BUCKETS / 2;               // 64
+    private static final int MAX_BITS = 40;
+
+    /** The largest value kept exactly; larger values are recorded as this. */
+    public static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_BITS - SUB_BUCKET_BITS) * HALF;
+
+    // Field declarations
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+    private long min = Long.MAX_VALUE;
+
+    /**
+     * Records one value.
+     *
+     * @param value The value, for example a latency in nanoseconds.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        counts[indexFor(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+        if (value < min) {
+            min = value;
+        }
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+        min = Math.min(min, other.min);
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    /**
+     * Retrieves the number of recorded values.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Retrieves the sum of the recorded values.
+     *
+     * @return The sum.
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * Retrieves the largest recorded value.
+     *
+     * @return The maximum, or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Retrieves the smallest recorded value.
+     *
+     * @return The minimum, or 0 if nothing was recorded.
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * Retrieves the mean of the recorded values.
+     *
+     * @return The mean, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Retrieves the value that the given share of the recorded values are at or below.
+     *
+     * @param percentile The percentile, from 0 to 100 (99.9 for the 99.9th percentile).
+     * @return The value, accurate to within 1.6%, or 0 if nothing was recorded.
+     */
+    public long valueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Retrieves the count of values in each bucket, and the largest value each bucket
+     * holds, for exporting the whole distribution.
+     *
+     * @param upperBounds Filled with the largest value of each bucket; must hold
+     *                    getBucketCount() entries.
+     * @return A copy of the counts, one per bucket.
+     */
+    public long[] getCounts(long[] upperBounds) {
+        for (int i = 0; i < BUCKETS; i++) {
+            upperBounds[i] = highestValueIn(i);
+        }
+        return counts.clone();
+    }
+
+    /**
+     * Retrieves the number of buckets.
+     *
+     * @return The bucket count.
+     */
+    public static int getBucketCount() {
+        return BUCKETS;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.0f p50=%d p90=%d p99=%d p99.9=%d max=%d", count, getMean(),
+                valueAtPercentile(50), valueAtPercentile(90), valueAtPercentile(99), valueAtPercentile(99.9), max);
+    }
+
+    /*
+     * The bucket a value belongs in. Values from 2^k to 2^(k+1) - 1 (k >= 7) share 64
+     * buckets, chosen by the 6 bits below the highest set bit.
+     */
+    static int indexFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /*
+     * The largest value that falls in a bucket.
+     */
+    static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+} // end LatencyHistogram
@@ -0,0 +1,627 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Reproduces production traffic offline. Drives the transaction core with a
+ * configurable mix of withdrawals, balance checks, deposits, and transfers, where a few
+ * busy accounts get most of the traffic, at a fixed arrival rate, and reports the
+ * throughput and latency percentiles. At the end it checks that no money was created or
+ * lost. Run it from the command line with key=value options, for example:
+ *
+ *     java LoadGenerator accounts=100000 threads=8 rate=50000 seconds=10
+ *             mix=withdraw:60,balance:20,deposit:15,transfer:5 zipf=1.0 journal=/tmp/journal
+ *
+ * partitions=4 runs the engine partitioned (see PartitionedEngine) instead of with locks,
+ * and pipeline=1024 runs it through a ring of that many command slots (see
+ * TransactionPipeline).
+ *
+ * Assumption: The generator is the only thing changing balances while it runs, so the
+ * money check is exact. When withdrawals empty the vault or deposits fill it, an operator
+ * visit (counted in the report) brings every denomination back to its starting count, the
+ * way a cash-in-transit crew would, and the check accounts for the cash they brought or took.
+ *
+ * Input: The number of accounts, threads, the target rate (0 runs as fast as possible),
+ * how long to run, the operation mix, the Zipf exponent (0 for uniform traffic), and
+ * optionally a journal directory and a number of partitions or pipeline slots.
+ * Output: Operations per second, the outcome of every kind of operation, and latency
+ * percentiles for each kind.
+ *
+ * Algorithm: Open loop. Each thread has its share of the target rate and draws the gap
+ * to its next arrival from an exponential distribution (Poisson arrivals). It waits for
+ * the arrival time if it is early and goes straight on if it is late, and latency is
+ * measured from the arrival time, not from when the thread got round to it, so a stall
+ * shows up in the latency of every request that queued behind it (no coordinated
+ * omission). Accounts are drawn from a Zipf distribution by rejection-inversion sampling,
+ * which needs no table, and the ranks are scattered over the account numbers so the busy
+ * accounts do not share a lock stripe. Every thread records into its own histograms,
+ * which are added together at the end.
+ */
+public class LoadGenerator {
+
+    /**
+     * The kinds of operation in the mix.
+     */
+    public enum Operation {
+        WITHDRAW, BALANCE, DEPOSIT, TRANSFER
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final long SPIN_NANOS = 50_000;
+    private static final int VAULT_BILLS = 30_000;
+
+    // Field declarations
+    private final TransactionEngine engine;
+    private final int[] accounts;
+    private final int[] mix;
+    private final int mixTotal;
+    private final ZipfSampler zipf;
+    private final LongAdder operatorCents = new LongAdder();
+    private final LongAdder operatorVisits = new LongAdder();
+
+    /**
+     * Constructs a generator.
+     *
+     * @param engine       The engine to drive.
+     * @param accounts     The account numbers traffic is spread over.
+     * @param mix          The weight of each Operation, in declaration order.
+     * @param zipfExponent How skewed the traffic is: 0 for uniform, about 1 for the usual
+     *                     few-busy-accounts shape, higher for more skew.
+     */
+    public LoadGenerator(TransactionEngine engine, int[] accounts, int[] mix, double zipfExponent) {
+        if (mix.length != OPERATIONS.length) {
+            throw new IllegalArgumentException("Need one weight per operation: " + OPERATIONS.length);
+        }
+        int total = 0;
+        for (int w : mix) {
+            if (w < 0) {
+                throw new IllegalArgumentException("Weights cannot be negative");
+            }
+            total += w;
+        }
+        if (total == 0 || accounts.length < 2) {
+            throw new IllegalArgumentException("Need some operations and at least two accounts");
+        }
+        this.engine = engine;
+        this.accounts = accounts;
+        this.mix = mix.clone();
+        this.mixTotal = total;
+        this.zipf = zipfExponent > 0 ? new ZipfSampler(accounts.length, zipfExponent) : null;
+    }
+
+    /**
+     * Runs the mix and reports what happened.
+     *
+     * @param threads       The number of threads generating traffic.
+     * @param ratePerSecond The target operations per second over all threads, or 0 to
+     *                      run each thread as fast as it can (closed loop).
+     * @param warmupSeconds Seconds run before anything is recorded.
+     * @param seconds       Seconds recorded.
+     * @return The throughput, outcomes, and latencies.
+     */
+    public Report run(int threads, double ratePerSecond, double warmupSeconds, double seconds) {
+        long start = System.nanoTime() + 10_000_000; // give every thread time to start
+        long measureFrom = start + (long) (warmupSeconds * 1e9);
+        long end = measureFrom + (long) (seconds * 1e9);
+        double meanGap = ratePerSecond > 0 ? threads * 1e9 / ratePerSecond : 0;
+
+        Worker[] workers = new Worker[threads];
+        Thread[] running = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Worker(start, measureFrom, end, meanGap);
+            running[t] = new Thread(workers[t], "load-" + t);
+            running[t].start();
+        }
+        for (Thread t : running) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        Report report = new Report(ratePerSecond, seconds);
+        for (Worker w : workers) {
+            report.add(w);
+        }
+        report.operatorVisits = operatorVisits.sum();
+        return report;
+    }
+
+    /**
+     * Retrieves the cash operators have put in the vault (or, if negative, taken out)
+     * to keep it running.
+     *
+     * @return The net cash added, in cents.
+     */
+    public long getOperatorCents() {
+        return operatorCents.sum();
+    }
+
+    /**
+     * Runs the generator from the command line. See the class description for the options.
+     *
+     * @param args key=value options.
+     * @throws IOException if the journal cannot be opened.
+     */
+    public static void main(String[] args) throws IOException {
+        int accountCount = 100_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double rate = 50_000;
+        double seconds = 10;
+        double warmup = 2;
+        double exponent = 1.0;
+        int[] mix = { 60, 20, 15, 5 };
+        Path journalDir = null;
+        int partitionCount = 0;
+        int ringSize = 0;
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Options are key=value: " + arg);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "accounts":
+                    accountCount = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "seconds":
+                    seconds = Double.parseDouble(value);
+                    break;
+                case "warmup":
+                    warmup = Double.parseDouble(value);
+                    break;
+                case "zipf":
+                    exponent = Double.parseDouble(value);
+                    break;
+                case "mix":
+                    mix = parseMix(value);
+                    break;
+                case "journal":
+                    journalDir = Paths.get(value);
+                    break;
+                case "partitions":
+                    partitionCount = Integer.parseInt(value);
+                    break;
+                case "pipeline":
+                    ringSize = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + key);
+            }
+        }
+
+        // two accounts per user, numbered the way ATMBenchmark numbers them
+        List<Account> list = new ArrayList<Account>(accountCount);
+        int[] numbers = new int[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            numbers[i] = (i / 2 + 1) * 10 + 1 + i % 2;
+            list.add(new Account(i % 2 == 0 ? "Checking" : "Savings", numbers[i], 1000));
+        }
+        UserDirectory users = UserDirectory.create(accountCount / 2);
+        for (int u = 1; u <= accountCount / 2; u++) {
+            users.add(new User("user" + u, u * 10 + 1, u * 10 + 2, "password", "regular user"));
+        }
+        AccountRegistry registry = AccountRegistry.of(list);
+        Vault vault = new AtomicVault(VAULT_BILLS, VAULT_BILLS, VAULT_BILLS, VAULT_BILLS);
+        TransactionJournal journal = journalDir == null ? null : new TransactionJournal(journalDir,
+                TransactionJournal.DEFAULT_BATCH_SIZE, TransactionJournal.DEFAULT_MAX_LATENCY_MICROS);
+        TransactionEngine engine = new TransactionEngine(users, registry, vault, journal);
+        PartitionedEngine partitions = partitionCount > 0
+                ? engine.partition(partitionCount, PartitionedEngine.DEFAULT_QUEUE_CAPACITY) : null;
+        TransactionPipeline pipeline = ringSize > 0 ? engine.pipeline(ringSize) : null;
+
+        long before = moneyHeld(registry, vault);
+        LoadGenerator generator = new LoadGenerator(engine, numbers, mix, exponent);
+        System.out.printf("Running %d accounts, %d threads, %s, zipf %.2f, mix %s%s%n", accountCount, threads,
+                rate > 0 ? String.format("%.0f ops/s open loop", rate) : "closed loop", exponent, mixString(mix),
+                journal != null ? ", journaled" : "");
+        if (partitions != null) {
+            System.out.println("Partitioned " + partitionCount + " ways");
+        }
+        if (pipeline != null) {
+            System.out.println("Pipelined through " + pipeline.getRingSize() + " slots");
+        }
+        Report report = generator.run(threads, rate, warmup, seconds);
+        if (partitions != null) {
+            System.out.println(partitions.getCrossPartitionTransfers() + " transfers crossed partitions");
+            partitions.close();
+        }
+        if (pipeline != null) {
+            System.out.printf("%d transactions in %d journal batches%n", pipeline.getCompleted(),
+                    pipeline.getJournalBatches());
+            pipeline.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        System.out.println(report);
+
+        // withdrawals and deposits move account and vault money together, transfers
+        // move neither, so only the operators' cash can change the difference
+        long after = moneyHeld(registry, vault) + generator.getOperatorCents();
+        if (after != before) {
+            System.out.println("FAILED: money was created or lost: " + Money.format(after - before));
+            System.exit(1);
+        }
+        System.out.println("Money conserved: accounts minus vault cash is unchanged after operator visits.");
+    }
+
+    /*
+     * Account balances minus the cash in the vault, in cents.
+     */
+    private static long moneyHeld(AccountStore store, Vault vault) {
+        long[] total = new long[1];
+        store.forEach(a -> total[0] += a.getBalanceCents());
+        return total[0] - Money.dollarsToCents(vault.calculateBalance());
+    }
+
+    /*
+     * Parses "withdraw:60,balance:20,deposit:15,transfer:5"; operations left out get 0.
+     */
+    private static int[] parseMix(String text) {
+        int[] mix = new int[OPERATIONS.length];
+        for (String part : text.split(",")) {
+            String[] kv = part.split(":");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Mix entries are operation:weight: " + part);
+            }
+            mix[Operation.valueOf(kv[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        return mix;
+    }
+
+    private static String mixString(int[] mix) {
+        StringBuilder sb = new StringBuilder();
+        for (Operation op : OPERATIONS) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(op.name().toLowerCase()).append(':').append(mix[op.ordinal()]);
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Picks an account: Zipf ranks scattered over the accounts, or uniform.
+     */
+    private int pickAccount(ThreadLocalRandom random) {
+        if (zipf == null) {
+            return accounts[random.nextInt(accounts.length)];
+        }
+        long rank = zipf.sample(random) - 1;
+        // 2654435761 is prime, so this is a permutation of the indexes
+        return accounts[(int) ((rank * 2_654_435_761L) % accounts.length)];
+    }
+
+    private Operation pickOperation(ThreadLocalRandom random) {
+        int r = random.nextInt(mixTotal);
+        for (int i = 0; i < mix.length; i++) {
+            r -= mix[i];
+            if (r < 0) {
+                return OPERATIONS[i];
+            }
+        }
+        return OPERATIONS[OPERATIONS.length - 1];
+    }
+
+    /*
+     * Runs one operation and returns the status of its result (SUCCESS for a balance check).
+     */
+    private TransactionResult.Status perform(Operation op, ThreadLocalRandom random) {
+        switch (op) {
+            case WITHDRAW: {
+                TransactionResult r = engine.execute(
+                        TransactionCommand.withdraw(pickAccount(random), 20 * (1 + random.nextInt(10))));
+                if (r.getStatus() == TransactionResult.Status.VAULT_INSUFFICIENT_CASH
+                        || r.getStatus() == TransactionResult.Status.CANNOT_DISPENSE) {
+                    restockVault();
+                }
+                return r.getStatus();
+            }
+            case BALANCE: {
+                Account a = engine.findAccount(pickAccount(random));
+                return a != null && a.getBalanceCents() >= 0
+                        ? TransactionResult.Status.SUCCESS : TransactionResult.Status.UNKNOWN_ACCOUNT;
+            }
+            case DEPOSIT: {
+                Bills bills = new Bills(random.nextInt(2), random.nextInt(2), 1 + random.nextInt(3), random.nextInt(4));
+                TransactionResult r = engine.execute(TransactionCommand.deposit(pickAccount(random), bills));
+                if (r.getStatus() == TransactionResult.Status.VAULT_FULL) {
+                    restockVault();
+                }
+                return r.getStatus();
+            }
+            default:
+                return engine.execute(TransactionCommand.transfer(pickAccount(random), pickAccount(random),
+                        100 + random.nextInt(10_000))).getStatus();
+        }
+    }
+
+    /*
+     * An operator visit: every denomination back to its starting count. Concurrent visits
+     * may each move part of the way; only what actually went in or out is counted.
+     */
+    private void restockVault() {
+        Vault v = engine.getVault();
+        int[] counts = { v.getHundredDollarBills(), v.getFiftyDollarBills(), v.getTwentyDollarBills(),
+            v.getFiveDollarBills() };
+        int[] over = new int[4];
+        int[] under = new int[4];
+        for (int i = 0; i < 4; i++) {
+            over[i] = Math.max(0, counts[i] - VAULT_BILLS);
+            under[i] = Math.max(0, VAULT_BILLS - counts[i]);
+        }
+        Bills out = new Bills(over[0], over[1], over[2], over[3]);
+        Bills in = new Bills(under[0], under[1], under[2], under[3]);
+        if (out.total() > 0 && engine.removeVaultBills(out).isSuccess()) {
+            operatorCents.add(-Money.dollarsToCents(out.total()));
+        }
+        if (in.total() > 0 && engine.addVaultBills(in).isSuccess()) {
+            operatorCents.add(Money.dollarsToCents(in.total()));
+        }
+        operatorVisits.increment();
+    }
+
+    /*
+     * One traffic thread and what it recorded.
+     */
+    private final class Worker implements Runnable {
+
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final double meanGap;
+        final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+        final LatencyHistogram service = new LatencyHistogram();
+        final long[][] outcomes = new long[OPERATIONS.length][TransactionResult.Status.values().length];
+        long late;
+
+        Worker(long start, long measureFrom, long end, double meanGap) {
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.meanGap = meanGap;
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long arrival = start;
+            while (true) {
+                long now = System.nanoTime();
+                if (meanGap == 0) {
+                    arrival = Math.max(now, start);
+                }
+                if (arrival >= end) {
+                    return;
+                }
+
+                // wait for the arrival: park while it is far off, then spin
+                while (now < arrival) {
+                    if (arrival - now > SPIN_NANOS) {
+                        LockSupport.parkNanos(arrival - now - SPIN_NANOS);
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                    now = System.nanoTime();
+                }
+
+                Operation op = pickOperation(random);
+                long begin = System.nanoTime();
+                TransactionResult.Status status = perform(op, random);
+                long finish = System.nanoTime();
+
+                if (arrival >= measureFrom) {
+                    latency[op.ordinal()].record(finish - arrival);
+                    service.record(finish - begin);
+                    outcomes[op.ordinal()][status.ordinal()]++;
+                    if (meanGap > 0 && begin - arrival > 1_000_000) {
+                        late++;
+                    }
+                }
+                if (meanGap > 0) {
+                    // exponential gaps give Poisson arrivals
+                    arrival += (long) (-Math.log(1 - random.nextDouble()) * meanGap);
+                }
+            }
+        }
+    }
+
+    /**
+     * What one run did: how many operations of each kind, their outcomes, and their latencies.
+     */
+    public static final class Report {
+
+        private final double targetRate;
+        private final double seconds;
+        private final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+        private final LatencyHistogram all = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final long[][] outcomes = new long[OPERATIONS.length][TransactionResult.Status.values().length];
+        private long late;
+        private long operatorVisits;
+
+        Report(double targetRate, double seconds) {
+            this.targetRate = targetRate;
+            this.seconds = seconds;
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new LatencyHistogram();
+            }
+        }
+
+        void add(Worker w) {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i].add(w.latency[i]);
+                all.add(w.latency[i]);
+                for (int s = 0; s < outcomes[i].length; s++) {
+                    outcomes[i][s] += w.outcomes[i][s];
+                }
+            }
+            service.add(w.service);
+            late += w.late;
+        }
+
+        /**
+         * Retrieves the operations per second over the recorded time.
+         *
+         * @return The achieved throughput.
+         */
+        public double getThroughput() {
+            return all.getCount() / seconds;
+        }
+
+        /**
+         * Retrieves the latencies, from arrival to completion, of every operation.
+         *
+         * @return The combined histogram, in nanoseconds.
+         */
+        public LatencyHistogram getLatency() {
+            return all;
+        }
+
+        /**
+         * Retrieves the latencies of one kind of operation.
+         *
+         * @param op The kind of operation.
+         * @return Its histogram, in nanoseconds.
+         */
+        public LatencyHistogram getLatency(Operation op) {
+            return latency[op.ordinal()];
+        }
+
+        /**
+         * Retrieves how many operations of a kind ended with a status.
+         *
+         * @param op     The kind of operation.
+         * @param status The outcome.
+         * @return The number of such operations.
+         */
+        public long getOutcomes(Operation op, TransactionResult.Status status) {
+            return outcomes[op.ordinal()][status.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Throughput: %.0f ops/s%s, %d operations started over 1 ms late, %d operator visits%n",
+                    getThroughput(), targetRate > 0 ? String.format(" (target %.0f)", targetRate) : "", late,
+                    operatorVisits));
+            sb.append(String.format("%-10s %10s %10s %9s %9s %9s %9s %9s %9s  %s%n", "operation", "count", "ok %",
+                    "mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "refused"));
+            for (Operation op : OPERATIONS) {
+                appendRow(sb, op.name().toLowerCase(), latency[op.ordinal()], outcomes[op.ordinal()]);
+            }
+            long[] total = new long[TransactionResult.Status.values().length];
+            for (long[] row : outcomes) {
+                for (int s = 0; s < row.length; s++) {
+                    total[s] += row[s];
+                }
+            }
+            appendRow(sb, "all", all, total);
+            sb.append(String.format("Service time (excluding waiting behind earlier arrivals): p50 %.1f us, p99 %.1f us,"
+                    + " p99.9 %.1f us", service.valueAtPercentile(50) / 1e3, service.valueAtPercentile(99) / 1e3,
+                    service.valueAtPercentile(99.9) / 1e3));
+            return sb.toString();
+        }
+
+        private static void appendRow(StringBuilder sb, String name, LatencyHistogram h, long[] outcome) {
+            long ok = outcome[TransactionResult.Status.SUCCESS.ordinal()];
+            StringBuilder refused = new StringBuilder();
+            for (TransactionResult.Status s : TransactionResult.Status.values()) {
+                if (s != TransactionResult.Status.SUCCESS && outcome[s.ordinal()] > 0) {
+                    refused.append(s.name().toLowerCase()).append('=').append(outcome[s.ordinal()]).append(' ');
+                }
+            }
+            sb.append(String.format("%-10s %10d %10.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f  %s%n", name, h.getCount(),
+                    h.getCount() == 0 ? 0 : 100.0 * ok / h.getCount(), h.getMean() / 1e3,
+                    h.valueAtPercentile(50) / 1e3, h.valueAtPercentile(90) / 1e3, h.valueAtPercentile(99) / 1e3,
+                    h.valueAtPercentile(99.9) / 1e3, h.getMax() / 1e3, refused.toString().trim()));
+        }
+    }
+
+    /*
+     * Zipf distributed ranks 1..n, where rank k comes up in proportion to 1 / k^exponent.
+     * Rejection-inversion sampling (Hormann and Derflinger): draws from a continuous
+     * envelope whose integral can be inverted directly and rejects the few draws that
+     * fall outside the discrete distribution, so it needs no table for any n.
+     */
+    private static final class ZipfSampler {
+
+        private final long n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        ZipfSampler(long n, double exponent) {
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        long sample(ThreadLocalRandom random) {
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                long k = (long) (x + 0.5);
+                if (k < 1) {
+                    k = 1;
+                } else if (k > n) {
+                    k = n;
+                }
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k;
+                }
+            }
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1 - exponent) * logX) * logX;
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1 - exponent);
+            if (t < -1) {
+                t = -1;
+            }
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1 + x) / x and (exp(x) - 1) / x, accurate near 0
+        private static double helper1(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x / 2 + x * x / 3;
+        }
+
+        private static double helper2(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x / 2 + x * x / 6;
+        }
+    }
+
+} // end LoadGenerator
@@ -0,0 +1,363 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Keeps every account in one fixed-width file that is mapped straight into
+ * memory. Opening a store only maps the file and checks its header, so startup takes the
+ * same time for twenty accounts or ten million. The operating system's page cache loads
+ * the parts of the file that are actually used and writes changed balances back.
+ *
+ * Assumption: Account numbers are positive. Accounts are only added while the store is
+ * being built (by one thread); after that only balances change. The account type is
+ * stored as a code, so only "Checking" and "Savings" keep their name; anything else
+ * reads back as "Account". One file holds at most 2^26 slots, which is about 33 million
+ * accounts at the half-full load the table keeps.
+ *
+ * Input: Accounts to import, and account numbers to look up.
+ * Output: An Account view whose balance is read and written directly in the file.
+ *
+ * Algorithm: The file is a 64 byte header followed by an open addressing hash table of
+ * 16 byte slots (account number, type code, balance in cents), laid out exactly like the
+ * arrays in AccountRegistry and probed with the same hash. A lookup returns a small view
+ * object that points at the slot. Balances are changed with compare-and-set on the mapped
+ * memory through a VarHandle, so credits and debits from many sessions never lose an
+ * update and no lock is needed.
+ */
+public class MappedAccountStore implements AccountStore, Closeable {
+
+    /** Size of one account slot in bytes. */
+    public static final int SLOT_SIZE = 16;
+
+    /** Size of the file header in bytes. */
+    public static final int HEADER_SIZE = 64;
+
+    private static final long MAGIC = 0x31544343414D5441L; // "ATMACCT1"
+    private static final int VERSION = 1;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    // header fields
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int SIZE_OFFSET = 16;
+
+    // slot fields
+    private static final int NUMBER_OFFSET = 0;
+    private static final int TYPE_OFFSET = 4;
+    private static final int BALANCE_OFFSET = 8;
+
+    private static final byte TYPE_OTHER = 0;
+    private static final byte TYPE_CHECKING = 1;
+    private static final byte TYPE_SAVINGS = 2;
+
+    // atomic access to the 8-byte balances inside the mapped file
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Field declarations
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int mask;
+    private int size;
+
+    /*
+     * Maps an opened file. Use create or open instead.
+     */
+    private MappedAccountStore(FileChannel channel, int capacity) throws IOException {
+        this.channel = channel;
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        this.map.order(ByteOrder.LITTLE_ENDIAN);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Creates a new, empty store file sized for the expected number of accounts.
+     * An existing file is overwritten.
+     *
+     * @param file             The store file.
+     * @param expectedAccounts The number of accounts that will be added.
+     * @return The new store.
+     * @throws IOException if the file cannot be created.
+     */
+    public static MappedAccountStore create(Path file, int expectedAccounts) throws IOException {
+        int capacity = tableSizeFor(expectedAccounts);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        MappedAccountStore store = new MappedAccountStore(channel, capacity);
+        store.map.putLong(MAGIC_OFFSET, MAGIC);
+        store.map.putInt(VERSION_OFFSET, VERSION);
+        store.map.putInt(CAPACITY_OFFSET, capacity);
+        store.map.putInt(SIZE_OFFSET, 0);
+        return store;
+    }
+
+    /**
+     * Opens an existing store file. Only the header is read.
+     *
+     * @param file The store file.
+     * @return The store.
+     * @throws IOException if the file cannot be opened or is not an account store.
+     */
+    public static MappedAccountStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            int capacity = header.getInt(CAPACITY_OFFSET);
+            if (header.getLong(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION
+                    || Integer.bitCount(capacity) != 1 || capacity > MAX_CAPACITY
+                    || channel.size() < HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                throw new IOException("Not an account store: " + file);
+            }
+            MappedAccountStore store = new MappedAccountStore(channel, capacity);
+            store.size = store.map.getInt(SIZE_OFFSET);
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes accounts into a new store file, replacing any existing one.
+     *
+     * @param file     The store file.
+     * @param accounts The accounts to import.
+     * @param count    The number of accounts, used to size the file.
+     * @return The new store, holding every account.
+     * @throws IOException if the file cannot be written.
+     */
+    public static MappedAccountStore importAccounts(Path file, Iterable<Account> accounts, int count)
+            throws IOException {
+        MappedAccountStore store = create(file, count);
+        for (Account a : accounts) {
+            store.put(a.getAccountNumber(), a.getAccountType(), a.getBalanceCents());
+        }
+        store.force();
+        return store;
+    }
+
+    /**
+     * Adds an account to the store, or replaces the one with the same number. Only
+     * meant for building the store; it is not safe to call while transactions run.
+     *
+     * @param accountNumber The account number, greater than zero.
+     * @param accountType   The type of account (checking or savings).
+     * @param balanceCents  The balance in cents.
+     */
+    public void put(int accountNumber, String accountType, long balanceCents) {
+        if (accountNumber <= 0) {
+            throw new IllegalArgumentException("Account numbers must be positive: " + accountNumber);
+        }
+        int slot = AccountRegistry.hash(accountNumber) & mask;
+        int number;
+
+        // probe until an empty slot or the same account number is found
+        while ((number = map.getInt(offset(slot) + NUMBER_OFFSET)) != 0 && number != accountNumber) {
+            slot = (slot + 1) & mask;
+        }
+        if (number == 0) {
+            if (size + 1 > (mask + 1) / 2) {
+                throw new IllegalStateException("Account store is full");
+            }
+            size++;
+            map.putInt(SIZE_OFFSET, size);
+        }
+
+        int at = offset(slot);
+        map.putInt(at + NUMBER_OFFSET, accountNumber);
+        map.put(at + TYPE_OFFSET, typeCode(accountType));
+        map.putLong(at + BALANCE_OFFSET, balanceCents);
+    }
+
+    /**
+     * Retrieves a view of the account with the given number. The view reads and
+     * writes its balance directly in the mapped file.
+     *
+     * @param accountNumber The account number to look up.
+     * @return The account, or null if there is none.
+     */
+    @Override
+    public Account get(int accountNumber) {
+        int at = find(accountNumber);
+        if (at < 0) {
+            return null;
+        }
+        return new MappedAccount(this, at, accountNumber, typeName(map.get(at + TYPE_OFFSET)));
+    }
+
+    /**
+     * Checks whether an account with the given number exists.
+     *
+     * @param accountNumber The account number to look up.
+     * @return true if the account exists.
+     */
+    @Override
+    public boolean contains(int accountNumber) {
+        return find(accountNumber) >= 0;
+    }
+
+    /**
+     * Retrieves the number of accounts in the store.
+     *
+     * @return The number of accounts.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Runs an action for a view of every account in the store, in file order.
+     *
+     * @param action The action to run for each account.
+     */
+    @Override
+    public void forEach(Consumer<Account> action) {
+        for (int slot = 0; slot <= mask; slot++) {
+            int at = offset(slot);
+            int number = map.getInt(at + NUMBER_OFFSET);
+            if (number != 0) {
+                action.accept(new MappedAccount(this, at, number, typeName(map.get(at + TYPE_OFFSET))));
+            }
+        }
+    }
+
+    /**
+     * Writes every changed balance back to the file.
+     */
+    public void force() {
+        map.force();
+    }
+
+    /**
+     * Writes every changed balance back to the file and closes it.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /*
+     * Byte offset of the slot holding the account, or -1 if there is none.
+     */
+    private int find(int accountNumber) {
+        int slot = AccountRegistry.hash(accountNumber) & mask;
+        int number;
+
+        // stop at the first empty slot, the key cannot be further along the probe sequence
+        while ((number = map.getInt(offset(slot) + NUMBER_OFFSET)) != 0) {
+            if (number == accountNumber) {
+                return offset(slot);
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /*
+     * Smallest power of two table that keeps the given number of accounts under half full.
+     */
+    private static int tableSizeFor(int expectedAccounts) {
+        long needed = Math.max(MIN_CAPACITY, (long) expectedAccounts * 2);
+        if (needed > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Too many accounts for one store: " + expectedAccounts);
+        }
+        return Integer.highestOneBit((int) needed * 2 - 1);
+    }
+
+    private static byte typeCode(String accountType) {
+        if ("Checking".equalsIgnoreCase(accountType)) {
+            return TYPE_CHECKING;
+        }
+        if ("Savings".equalsIgnoreCase(accountType)) {
+            return TYPE_SAVINGS;
+        }
+        return TYPE_OTHER;
+    }
+
+    private static String typeName(byte code) {
+        if (code == TYPE_CHECKING) {
+            return "Checking";
+        }
+        if (code == TYPE_SAVINGS) {
+            return "Savings";
+        }
+        return "Account";
+    }
+
+    /*
+     * An Account whose balance lives in the mapped file instead of a field. Its
+     * number and type cannot change, since they are what the store is keyed on.
+     */
+    private static final class MappedAccount extends Account {
+
+        private final MappedAccountStore store;
+        private final int balanceAt;
+
+        MappedAccount(MappedAccountStore store, int slotAt, int accountNumber, String accountType) {
+            super(accountType, accountNumber, Money.ZERO);
+            this.store = store;
+            this.balanceAt = slotAt + BALANCE_OFFSET;
+        }
+
+        @Override
+        public long getBalanceCents() {
+            return (long) LONGS.getVolatile(store.map, balanceAt);
+        }
+
+        @Override
+        public void setBalanceCents(long balanceCents) {
+            LONGS.setVolatile(store.map, balanceAt, balanceCents);
+        }
+
+        @Override
+        public void credit(long cents) {
+            long current;
+            do {
+                current = (long) LONGS.getVolatile(store.map, balanceAt);
+            } while (!LONGS.compareAndSet(store.map, balanceAt, current, Money.addCents(current, cents)));
+        }
+
+        @Override
+        public boolean debit(long cents) {
+            long current;
+            do {
+                current = (long) LONGS.getVolatile(store.map, balanceAt);
+                if (cents > current) {
+                    return false;
+                }
+            } while (!LONGS.compareAndSet(store.map, balanceAt, current, Money.subtractCents(current, cents)));
+            return true;
+        }
+
+        @Override
+        public void setAccountType(String accountType) {
+            throw new UnsupportedOperationException("Account type is fixed in the account store");
+        }
+
+        @Override
+        public void setAccountNumber(int accountNumber) {
+            throw new UnsupportedOperationException("Account number is fixed in the account store");
+        }
+    }
+
+} // end MappedAccountStore
@@ -0,0 +1,498 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Counts and times what the ATM does, so its health can be watched while it runs.
+ * Holds counters, latency histograms, and gauges, and writes them in the Prometheus text
+ * format, either served over HTTP at /metrics or written to a file for a collector to pick
+ * up. The TransactionEngine records every login and transaction here, by operation and
+ * outcome, and the vault's bill counts are read as gauges.
+ *
+ * Assumption: Metrics are registered once, at start-up; recording happens on every
+ * transaction from any number of threads. Registering the same name and labels twice
+ * returns the metric already registered. Latencies are in nanoseconds and exported in
+ * seconds.
+ *
+ * Input: Counter increments, latencies, and functions that read gauge values.
+ * Output: The Prometheus text exposition of every metric.
+ *
+ * Algorithm: Recording must cost nanoseconds even when every session records at once, so
+ * nothing on the recording path locks or allocates. Counters are LongAdders, which spread
+ * contended increments over per-thread cells. A Timer keeps its histogram in stripes, each
+ * an array of counters over the LatencyHistogram buckets; a thread always records into the
+ * same stripe, chosen from its id, so threads rarely touch the same cache lines. The
+ * transaction metrics are looked up once into arrays indexed by operation and outcome, so
+ * recording is a few array reads and adds. Exporting sums the stripes and cells, which
+ * is only as exact as the moment it runs, and maps the buckets onto fixed Prometheus
+ * bucket bounds (within the buckets' 1.6% resolution).
+ */
+public class MetricsRegistry {
+
+    /** The bucket bounds exported for every timer, in seconds: 1 microsecond to 10 seconds. */
+    private static final double[] BOUNDS = { 1e-6, 2.5e-6, 5e-6, 1e-5, 2.5e-5, 5e-5, 1e-4, 2.5e-4, 5e-4,
+        1e-3, 2.5e-3, 5e-3, 1e-2, 2.5e-2, 5e-2, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    private static final String[] DENOMINATIONS = { "100", "50", "20", "5" };
+
+    // Field declarations
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+    private final Counter[][] outcomes;
+    private final Timer[] durations;
+    private final Counter[] logins = new Counter[2];
+    private final Timer loginDuration;
+
+    /**
+     * Constructs a registry with the transaction and login metrics the TransactionEngine
+     * records into.
+     */
+    public MetricsRegistry() {
+        TransactionCommand.Type[] types = TransactionCommand.Type.values();
+        TransactionResult.Status[] statuses = TransactionResult.Status.values();
+        outcomes = new Counter[types.length][statuses.length];
+        durations = new Timer[types.length];
+        for (TransactionCommand.Type type : types) {
+            String operation = "operation=\"" + type.name().toLowerCase() + "\"";
+            for (TransactionResult.Status status : statuses) {
+                outcomes[type.ordinal()][status.ordinal()] = counter("atm_transactions_total",
+                        "Transactions run, by operation and outcome.",
+                        operation + ",status=\"" + status.name().toLowerCase() + "\"");
+            }
+            durations[type.ordinal()] = timer("atm_transaction_duration_seconds",
+                    "Time from a transaction being handed to the engine until its result is durable.", operation);
+        }
+        logins[0] = counter("atm_logins_total", "Login attempts, by result.", "result=\"failure\"");
+        logins[1] = counter("atm_logins_total", "Login attempts, by result.", "result=\"success\"");
+        loginDuration = timer("atm_login_duration_seconds", "Time to check a user's credentials.", "");
+    }
+
+    /**
+     * Registers a counter, or returns the one already registered with this name and labels.
+     *
+     * @param name   The metric name, such as atm_transactions_total.
+     * @param help   What the metric counts.
+     * @param labels The labels in Prometheus form, such as operation="withdraw", or "".
+     * @return The counter.
+     */
+    public synchronized Counter counter(String name, String help, String labels) {
+        return (Counter) family(name, help, "counter").children.computeIfAbsent(labels, l -> new Counter());
+    }
+
+    /**
+     * Registers a latency histogram, or returns the one already registered with this name
+     * and labels.
+     *
+     * @param name   The metric name, ending in _seconds.
+     * @param help   What the metric times.
+     * @param labels The labels in Prometheus form, or "".
+     * @return The timer.
+     */
+    public synchronized Timer timer(String name, String help, String labels) {
+        return (Timer) family(name, help, "histogram").children.computeIfAbsent(labels, l -> new Timer());
+    }
+
+    /**
+     * Registers a gauge, a value read each time the metrics are exported. Registering the
+     * same name and labels again replaces the function.
+     *
+     * @param name   The metric name.
+     * @param help   What the metric measures.
+     * @param labels The labels in Prometheus form, or "".
+     * @param value  Reads the current value; called on the exporting thread.
+     */
+    public synchronized void gauge(String name, String help, String labels, DoubleSupplier value) {
+        family(name, help, "gauge").children.put(labels, value);
+    }
+
+    /**
+     * Registers gauges for the number of bills of each denomination in the vault and the
+     * cash they add up to.
+     *
+     * @param vault The vault to watch.
+     */
+    public void watchVault(Vault vault) {
+        String help = "Bills in the vault, by denomination.";
+        gauge("atm_vault_bills", help, "denomination=\"" + DENOMINATIONS[0] + "\"", vault::getHundredDollarBills);
+        gauge("atm_vault_bills", help, "denomination=\"" + DENOMINATIONS[1] + "\"", vault::getFiftyDollarBills);
+        gauge("atm_vault_bills", help, "denomination=\"" + DENOMINATIONS[2] + "\"", vault::getTwentyDollarBills);
+        gauge("atm_vault_bills", help, "denomination=\"" + DENOMINATIONS[3] + "\"", vault::getFiveDollarBills);
+        gauge("atm_vault_cash_dollars", "Cash in the vault, in dollars.", "", vault::calculateBalance);
+    }
+
+    /**
+     * Records one transaction. Called by the TransactionEngine.
+     *
+     * @param type   The kind of transaction.
+     * @param status Its outcome.
+     * @param nanos  How long it took, in nanoseconds.
+     */
+    public void recordTransaction(TransactionCommand.Type type, TransactionResult.Status status, long nanos) {
+        outcomes[type.ordinal()][status.ordinal()].increment();
+        durations[type.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records one login attempt. Called by the TransactionEngine.
+     *
+     * @param success Whether the credentials matched.
+     * @param nanos   How long the check took, in nanoseconds.
+     */
+    public void recordLogin(boolean success, long nanos) {
+        logins[success ? 1 : 0].increment();
+        loginDuration.record(nanos);
+    }
+
+    /**
+     * Retrieves the count of transactions of a kind with an outcome.
+     *
+     * @param type   The kind of transaction.
+     * @param status The outcome.
+     * @return The number recorded so far.
+     */
+    public long getTransactions(TransactionCommand.Type type, TransactionResult.Status status) {
+        return outcomes[type.ordinal()][status.ordinal()].get();
+    }
+
+    /**
+     * Retrieves the latencies of a kind of transaction.
+     *
+     * @param type The kind of transaction.
+     * @return Its timer.
+     */
+    public Timer getDuration(TransactionCommand.Type type) {
+        return durations[type.ordinal()];
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @param sb Where to write.
+     */
+    public synchronized void writePrometheus(StringBuilder sb) {
+        for (Family f : families.values()) {
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> child : f.children.entrySet()) {
+                String labels = child.getKey();
+                Object metric = child.getValue();
+                if (metric instanceof Counter) {
+                    sample(sb, f.name, labels, null, ((Counter) metric).get());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(sb, f.name, labels, null, ((DoubleSupplier) metric).getAsDouble());
+                } else {
+                    ((Timer) metric).write(sb, f.name, labels);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves every metric in the Prometheus text format.
+     *
+     * @return The exposition text.
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        writePrometheus(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Writes the metrics to a file, replacing it in one step so a collector never reads a
+     * half-written file (for example the Prometheus node exporter's textfile collector).
+     *
+     * @param file The file to write, ending in .prom for the node exporter.
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeTo(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes the metrics to a file every so often.
+     *
+     * @param file            The file to write.
+     * @param intervalSeconds Seconds between writes.
+     * @return The scheduler, which can be shut down to stop writing.
+     */
+    public ScheduledExecutorService writeEvery(Path file, long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atm-metrics-file");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                writeTo(file);
+            } catch (IOException e) {
+                System.err.println("Writing metrics failed: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /**
+     * Serves the metrics at http://localhost:port/metrics for Prometheus to scrape. Only
+     * the loopback interface is bound; put a proxy in front to expose it further.
+     *
+     * @param port The port, or 0 for any free port.
+     * @return The running server; stop it to stop serving.
+     * @throws IOException if the port cannot be opened.
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "atm-metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        return server;
+    }
+
+    @Override
+    public String toString() {
+        return toPrometheus();
+    }
+
+    /*
+     * The family with this name, created if new. A name keeps the type it was first
+     * registered with.
+     */
+    private Family family(String name, String help, String type) {
+        Family f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!f.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + f.type);
+        }
+        return f;
+    }
+
+    /*
+     * One sample line: name{labels,extra} value
+     */
+    private static void sample(StringBuilder sb, String name, String labels, String extra, double value) {
+        sb.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            sb.append('{').append(labels);
+            if (extra != null) {
+                sb.append(labels.isEmpty() ? "" : ",").append(extra);
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    /*
+     * Every metric sharing a name: its help, its type, and one metric per set of labels.
+     */
+    private static final class Family {
+
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> children = new LinkedHashMap<String, Object>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * A count that only goes up, safe to increment from any thread.
+     */
+    public static final class Counter {
+
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * Adds one.
+         */
+        public void increment() {
+            count.increment();
+        }
+
+        /**
+         * Adds n.
+         *
+         * @param n The amount to add, not negative.
+         */
+        public void add(long n) {
+            count.add(n);
+        }
+
+        /**
+         * Retrieves the count.
+         *
+         * @return The sum of every increment so far.
+         */
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * A latency histogram safe to record into from any thread.
+     */
+    public static final class Timer {
+
+        private static final int STRIPES = stripeCount();
+        private static final int BUCKETS = LatencyHistogram.getBucketCount();
+
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Timer() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        /**
+         * Records one latency.
+         *
+         * @param nanos The latency in nanoseconds.
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, Math.min(nanos, LatencyHistogram.MAX_VALUE));
+            // Fibonacci hashing spreads consecutive thread ids over the stripes
+            int stripe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+            stripes[stripe].incrementAndGet(LatencyHistogram.indexFor(value));
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Retrieves the number of latencies recorded.
+         *
+         * @return The count.
+         */
+        public long getCount() {
+            long total = 0;
+            for (long c : buckets()) {
+                total += c;
+            }
+            return total;
+        }
+
+        /**
+         * Retrieves the largest latency recorded.
+         *
+         * @return The maximum, in nanoseconds.
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Retrieves the latency that the given share of the recorded latencies are at or below.
+         *
+         * @param percentile The percentile, from 0 to 100.
+         * @return The latency in nanoseconds, within 1.6%, or 0 if none were recorded.
+         */
+        public long valueAtPercentile(double percentile) {
+            long[] counts = buckets();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long wanted = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return Math.min(LatencyHistogram.highestValueIn(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        /*
+         * The bucket counts summed over the stripes.
+         */
+        private long[] buckets() {
+            long[] counts = new long[BUCKETS];
+            for (AtomicLongArray s : stripes) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += s.get(i);
+                }
+            }
+            return counts;
+        }
+
+        /*
+         * The _bucket, _sum, and _count lines. Counts are cumulative, as Prometheus wants,
+         * and _count is the +Inf bucket so the lines always agree with each other.
+         */
+        void write(StringBuilder sb, String name, String labels) {
+            long[] counts = buckets();
+            long cumulative = 0;
+            int i = 0;
+            for (double bound : BOUNDS) {
+                long boundNanos = (long) (bound * 1e9);
+                while (i < BUCKETS && LatencyHistogram.highestValueIn(i) <= boundNanos) {
+                    cumulative += counts[i++];
+                }
+                sample(sb, name + "_bucket", labels, "le=\"" + bound + "\"", cumulative);
+            }
+            while (i < BUCKETS) {
+                cumulative += counts[i++];
+            }
+            sample(sb, name + "_bucket", labels, "le=\"+Inf\"", cumulative);
+            sample(sb, name + "_sum", labels, null, sum.sum() / 1e9);
+            sample(sb, name + "_count", labels, null, cumulative);
+        }
+
+        /*
+         * Twice the processors, rounded up to a power of two, at most 16.
+         */
+        private static int stripeCount() {
+            int wanted = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+            return Integer.highestOneBit(wanted - 1) << 1;
+        }
+    }
+
+} // end MetricsRegistry
@@ -0,0 +1,192 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: An exact amount of money, stored as a whole number of cents. Account balances
+ * used to be doubles, which cannot hold most cent amounts exactly (0.10 + 0.20 is not
+ * 0.30), so millions of postings slowly drift away from the true total. Whole cents never
+ * drift, and comparing two longs is cheaper than comparing two doubles.
+ *
+ * Assumption: Amounts fit in a long number of cents (about 92 quadrillion dollars).
+ * Any arithmetic that would go past that throws an ArithmeticException rather than
+ * silently wrapping around.
+ *
+ * Input: A number of cents or dollars.
+ * Output: The amount in cents, arithmetic on amounts, and a printable dollar amount.
+ *
+ * Algorithm: Immutable value holder around a long. The static helpers work directly on
+ * cent values so hot paths such as Account.credit can use them without creating Money
+ * objects; they use Math.addExact and friends for the overflow checks.
+ */
+public final class Money implements Comparable<Money> {
+
+    /** No money at all. */
+    public static final Money ZERO = new Money(0);
+
+    // Field declaration for the amount
+    private final long cents;
+
+    /*
+     * Constructs an amount. Use the static factory methods instead.
+     */
+    private Money(long cents) {
+        this.cents = cents;
+    }
+
+    /**
+     * Creates an amount from a number of cents.
+     *
+     * @param cents The amount in cents.
+     * @return The amount.
+     */
+    public static Money ofCents(long cents) {
+        return cents == 0 ? ZERO : new Money(cents);
+    }
+
+    /**
+     * Creates an amount from a whole number of dollars.
+     *
+     * @param dollars The amount in dollars.
+     * @return The amount.
+     * @throws ArithmeticException if the amount is too large.
+     */
+    public static Money ofDollars(long dollars) {
+        return ofCents(Math.multiplyExact(dollars, 100L));
+    }
+
+    /**
+     * Creates an amount from a dollar value with a fractional part, rounded to the
+     * nearest cent. Only meant for converting old double balances.
+     *
+     * @param dollars The amount in dollars.
+     * @return The amount.
+     * @throws ArithmeticException if the amount is too large or not a number.
+     */
+    public static Money ofDollars(double dollars) {
+        double cents = Math.rint(dollars * 100);
+        if (Double.isNaN(cents) || cents >= 0x1p63 || cents < -0x1p63) {
+            throw new ArithmeticException("Amount out of range: " + dollars);
+        }
+        return ofCents((long) cents);
+    }
+
+    /**
+     * Adds two cent amounts, failing rather than overflowing.
+     *
+     * @param a The first amount in cents.
+     * @param b The second amount in cents.
+     * @return The sum in cents.
+     * @throws ArithmeticException if the result overflows.
+     */
+    public static long addCents(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    /**
+     * Subtracts one cent amount from another, failing rather than overflowing.
+     *
+     * @param a The amount in cents to subtract from.
+     * @param b The amount in cents to subtract.
+     * @return The difference in cents.
+     * @throws ArithmeticException if the result overflows.
+     */
+    public static long subtractCents(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    /**
+     * Converts a whole number of dollars to cents, failing rather than overflowing.
+     *
+     * @param dollars The amount in dollars.
+     * @return The amount in cents.
+     * @throws ArithmeticException if the result overflows.
+     */
+    public static long dollarsToCents(long dollars) {
+        return Math.multiplyExact(dollars, 100L);
+    }
+
+    /**
+     * Formats a cent amount as dollars and cents, for example 1400.05.
+     *
+     * @param cents The amount in cents.
+     * @return The formatted amount, without a currency sign.
+     */
+    public static String format(long cents) {
+        StringBuilder sb = new StringBuilder(24);
+        long whole = cents / 100;
+        long fraction = Math.abs(cents % 100);
+        if (cents < 0 && whole == 0) {
+            sb.append('-');
+        }
+        sb.append(whole).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction).toString();
+    }
+
+    /**
+     * Retrieves the amount in cents.
+     *
+     * @return The number of cents.
+     */
+    public long getCents() {
+        return cents;
+    }
+
+    /**
+     * Adds another amount to this one.
+     *
+     * @param other The amount to add.
+     * @return The sum.
+     * @throws ArithmeticException if the result overflows.
+     */
+    public Money plus(Money other) {
+        return ofCents(addCents(cents, other.cents));
+    }
+
+    /**
+     * Subtracts another amount from this one.
+     *
+     * @param other The amount to subtract.
+     * @return The difference.
+     * @throws ArithmeticException if the result overflows.
+     */
+    public Money minus(Money other) {
+        return ofCents(subtractCents(cents, other.cents));
+    }
+
+    /**
+     * Checks whether the amount is below zero.
+     *
+     * @return true if the amount is negative.
+     */
+    public boolean isNegative() {
+        return cents < 0;
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(cents, other.cents);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Money && ((Money) o).cents == cents;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(cents);
+    }
+
+    /**
+     * Returns the amount formatted as dollars and cents, for example 1400.05.
+     *
+     * @return The formatted amount, without a currency sign.
+     */
+    @Override
+    public String toString() {
+        return format(cents);
+    }
+
+} // end Money
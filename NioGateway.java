@@ -0,0 +1,1232 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Serves thousands of remote terminals from a few threads, for concentrator nodes
+ * that front many branch devices. The SessionServer gives every terminal its own thread;
+ * the gateway instead multiplexes all of them over a handful of event loops. Terminals see
+ * the same prompts and menus as the console Screen and answer them the same way, one line
+ * per prompt.
+ *
+ * Assumption: Terminals answer each prompt with one line of at most 1024 bytes; longer
+ * lines are ignored. A terminal may send many answers ahead of the prompts (pipelining);
+ * they are taken one at a time in order. Withdrawals are checked by the engine rather than
+ * before the amount is taken, so a refused amount is reported and the user menu shown
+ * again instead of asking for another amount.
+ *
+ * Input: A port to listen on, the number of event loops, and the engine.
+ * Output: The Screen and Connection prompts and results for every terminal, and counts of
+ * sessions, requests, and transactions.
+ *
+ * Algorithm: Each event loop owns a Selector and the sessions assigned to it; the first
+ * loop also accepts new terminals and deals them out round robin. Every session is a small
+ * state machine over its own input and output buffers. Bytes are read into the input
+ * buffer, complete lines are found and parsed in place (numbers straight from the bytes),
+ * and replies are written into the output buffer from prompt bytes encoded once at class
+ * load and digits written one at a time, so parsing and replying allocate nothing. The only
+ * objects per transaction are the TransactionCommand handed to the core and its result.
+ * A session that completes a transaction parks it in its loop's pending array and stops
+ * reading; once every ready session of the round has been handled, the loop runs all
+ * pending commands through a BatchProcessor chunk, under one acquisition of the checkpoint
+ * gate and one wait for the journal, and then finishes each session's reply. A session
+ * whose output buffer is nearly full, because its terminal is slow to read, stops being
+ * read until the output drains.
+ */
+public class NioGateway implements Closeable {
+
+    private static final int IN_SIZE = 1024;
+    private static final int OUT_SIZE = 8192;
+    private static final int MAX_REPLY = 2048;
+    private static final int MAX_PENDING = 1024;
+    private static final int NOT_A_NUMBER = Integer.MIN_VALUE;
+
+    // session states: the prompt the session is waiting to have answered
+    private static final int LOGIN_NAME = 0;
+    private static final int LOGIN_PASSWORD = 1;
+    private static final int USER_MENU = 2;
+    private static final int CHOOSE_ACCOUNT = 3;
+    private static final int WITHDRAW_AMOUNT = 4;
+    private static final int DEPOSIT_FIVES = 5;
+    private static final int DEPOSIT_TWENTIES = 6;
+    private static final int DEPOSIT_FIFTIES = 7;
+    private static final int DEPOSIT_HUNDREDS = 8;
+    private static final int OWN_TRANSFER_AMOUNT = 9;
+    private static final int OTHER_DESTINATION = 10;
+    private static final int OTHER_TRANSFER_AMOUNT = 11;
+    private static final int OPERATOR_PASSWORD = 12;
+    private static final int OPERATOR_MENU = 13;
+    private static final int ADD_CHOICE = 14;
+    private static final int ADD_COUNT = 15;
+    private static final int REMOVE_CHOICE = 16;
+    private static final int REMOVE_COUNT = 17;
+    private static final int CLOSING = 18;
+
+    // the menu item a chosen account or the operator password is for
+    private static final int ACTION_WITHDRAW = 1;
+    private static final int ACTION_DEPOSIT = 2;
+    private static final int ACTION_OWN_TRANSFER = 3;
+    private static final int ACTION_OTHER_TRANSFER = 4;
+    private static final int ACTION_BALANCE = 5;
+    private static final int ACTION_VAULT_BALANCE = 6;
+    private static final int ACTION_OPERATOR = 7;
+
+    // prompts and messages, the same text the Screen and Connection print
+    private static final byte[] LOGIN_PROMPT = bytes(
+            "Please enter the name listed under your account (first name only, or type letter q to quit): \n");
+    private static final byte[] NAME_EMPTY = bytes("Error. Name cannot be empty. Please try again.\n");
+    private static final byte[] PASSWORD_PROMPT = bytes("Please enter your account password: \n");
+    private static final byte[] PASSWORD_EMPTY = bytes("Error. Password cannot be empty. Please try again.\n");
+    private static final byte[] LOGIN_OK = bytes("Login was successful.\n\nWelcome to the ATM system.\n\n");
+    private static final byte[] LOGIN_FAILED = bytes("Login Failed. Please try again.\n");
+    private static final byte[] USER_MENU_TEXT = bytes("\nUser menu options: \n"
+            + "    1.) withdraw money from a checking or savings account\n"
+            + "    2.) deposit money into a checking or savings account\n"
+            + "    3.) transfer money between checking/savings accounts\n"
+            + "    4.) transfer money to checking/savings account of another customer\n"
+            + "    5.) display current account balance\n"
+            + "    6.) display current vault balance\n"
+            + "    7.) Enter operator mode\n"
+            + "    8.) Log out of ATM system\n"
+            + "    9.) Exit ATM program\n"
+            + "Please type a number 1-9: \n");
+    private static final byte[] OPERATOR_MENU_TEXT = bytes("\nOperator menu options: \n"
+            + "    1.) Display the number of each type of bill\n"
+            + "    2.) Put a given number of money bills in the ATM\n"
+            + "    3.) Remove a given number of money bills from the ATM\n"
+            + "    4.) Exit operator mode\n"
+            + "Please type a number 1-4: \n");
+    private static final byte[] ADD_MENU_TEXT = bytes("\nBill input menu options: \n"
+            + "    1.) input five dollar bills ($5)\n"
+            + "    2.) input twenty dollar bills ($20)\n"
+            + "    3.) input fifty dollar bills ($50)\n"
+            + "    4.) input hundred dollar bills ($100)\n"
+            + "    5.) Stop inputting bills.\n"
+            + "Please type a number 1-5: \n");
+    private static final byte[] REMOVE_MENU_TEXT = bytes("\nBill removal menu options: \n"
+            + "    1.) remove five dollar bills ($5)\n"
+            + "    2.) remove twenty dollar bills ($20)\n"
+            + "    3.) remove fifty dollar bills ($50)\n"
+            + "    4.) remove hundred dollar bills ($100)\n"
+            + "    5.) Stop removing bills.\n"
+            + "Please type a number 1-5: \n");
+    private static final byte[] MENU_INVALID = bytes("Invalid input! Please enter a valid number.\n");
+    private static final byte[] CHOOSE_PROMPT = bytes(
+            "Which account would you like to perform action on (either checking or savings):\n1.) Checking Account: #");
+    private static final byte[] CHOOSE_SAVINGS = bytes("\n2.) Savings Account: #");
+    private static final byte[] CHOOSE_END = bytes("\nPlease type either 1 or 2:\n");
+    private static final byte[] CHOOSE_INVALID = bytes("Invalid input. Please type either 1 or 2 for checking or savings.\n");
+    private static final byte[] OWN_SOURCE_PROMPT = bytes("Choose the source account you would would like to transfer funds from \n");
+    private static final byte[] OTHER_SOURCE_PROMPT = bytes("Choose the source account you would would like to transfer funds from\n");
+    private static final byte[] BALANCE = bytes("Current account balance: $");
+    private static final byte[] VAULT_BALANCE = bytes("Vault's current balance: $");
+    private static final byte[] AMOUNT_INVALID = bytes("Invalid input. Please enter a valid amount\n");
+    private static final byte[] WITHDRAW_PROMPT = bytes(
+            "How much money would you like to withdraw (multiples of $5 only, or type 0 to exit): \n");
+    private static final byte[] WITHDRAW_NOT_FIVES = bytes("Error: Amount must be a multiple of $5 and non-negative number.\n");
+    private static final byte[] WITHDRAW_ZERO = bytes("Zero dollars withdrawn. Exiting withdraw menu.\n\n");
+    private static final byte[] WITHDRAW_OK = bytes("Withdrawal successful!\nDispensed:\n");
+    private static final byte[][] DEPOSIT_PROMPTS = {
+        bytes("How many five dollar bills are you depositing?\n"),
+        bytes("How many twenty dollar bills are you depositing?\n"),
+        bytes("How many fifty dollar bills are you depositing?\n"),
+        bytes("How many hundred dollar bills are you depositing?\n")
+    };
+    private static final byte[] DEPOSIT_NEGATIVE = bytes("Error. Please input a non-negative amount of bills to deposit.\n");
+    private static final byte[] DEPOSIT_TOTAL = bytes("Total amount depositing: $");
+    private static final byte[] TO_SAVINGS = bytes("\nTransferring to Savings Account: #");
+    private static final byte[] TO_CHECKING = bytes("\nTransferring to Checking Account: #");
+    private static final byte[] OWN_AMOUNT_PROMPT = bytes(
+            "\nPlease enter amount to transfer (or enter 0 to exit transfer money option): \n");
+    private static final byte[] OWN_AMOUNT_NEGATIVE = bytes("Error. Transfer amount cannot be negative or zero.\n");
+    private static final byte[] NEGATIVE_BALANCE = bytes("Error: transfer will create a negative balance for account #");
+    private static final byte[] OWN_TRANSFER_OK = bytes("\nTransfer was successful! \n\n");
+    private static final byte[] CHECKING_ACCOUNT = bytes("Checking Account #");
+    private static final byte[] SAVINGS_ACCOUNT = bytes("Savings Account #");
+    private static final byte[] DASH = bytes(" - ");
+    private static final byte[] DESTINATION_PROMPT = bytes(
+            "Please enter the account number for who you would like to receive this transfer: #\n");
+    private static final byte[] DESTINATION_INVALID = bytes("Invalid input. Please enter a valid account number. \n");
+    private static final byte[] DESTINATION_UNKNOWN = bytes("Error: Please input a valid account #\n");
+    private static final byte[] OTHER_AMOUNT_PROMPT = bytes("Please enter amount to transfer: \n");
+    private static final byte[] OTHER_AMOUNT_NEGATIVE = bytes("Error. Transfer amount must be non negative.\n");
+    private static final byte[] OTHER_TRANSFER_OK = bytes("\nTransfer was successful.\nChecking Account #");
+    private static final byte[] TO_DESTINATION = bytes("to destination Account #");
+    private static final byte[] OPERATOR_PROMPT = bytes("Please enter the operator password: \n");
+    private static final byte[] OPERATOR_OK = bytes("Operator login successful.\n\n");
+    private static final byte[] OPERATOR_EMPTY = bytes("Error. Must give text input.\n");
+    private static final byte[] OPERATOR_WRONG = bytes("Operator password incorrect.\n\n");
+    private static final byte[] OPERATOR_SECRET = bytes(Connection.OPERATOR_PASSWORD);
+    private static final byte[] OPERATOR_INVALID = bytes("Error: please type a number 1-4\n");
+    private static final byte[] OPERATOR_EXIT = bytes("Exiting the operator menu\n\n");
+    private static final byte[] BILLS_CHOICE_INVALID = bytes("Error: Invalid input. Please enter a number between 1-5.\n");
+    private static final byte[] BILLS_CHOICE_RANGE = bytes("Error: please type a number 1-5\n");
+    private static final byte[] BILLS_COUNT_INVALID = bytes("Error: Invalid input. Please enter a valid amount.\n");
+    private static final byte[] ADD_NEGATIVE = bytes("Error. Please input non-negative amount.\n");
+    private static final byte[] REMOVE_NEGATIVE = bytes("Error. Cannot remove negative number of bills from vault.\n");
+    private static final byte[] ADD_EXIT = bytes("Exiting input bills menu\n\n");
+    private static final byte[] REMOVE_EXIT = bytes("Exiting remove bills menu\n\n");
+    private static final byte[] HOW_MANY = bytes("How many ");
+    private static final byte[] ADDING = bytes(" dollar bills are you adding:\n");
+    private static final byte[] REMOVING = bytes(" dollar bills are you removing:\n");
+    private static final byte[] ADDED = bytes("Success. Addeed ");
+    private static final byte[] ADDED_END = bytes(" dollar bills to the vault.\n");
+    private static final byte[] REMOVED = bytes("Success. Removed ");
+    private static final byte[] REMOVED_END = bytes(" dollar bills from the vault.\n");
+    private static final byte[] REMOVE_TOO_MANY = bytes("Error. Cannot remove more than ");
+    private static final byte[] REMOVE_TOO_MANY_END = bytes(" dollar bills\n\n");
+    private static final byte[][] BILL_NAMES = { bytes("five"), bytes("twenty"), bytes("fifty"), bytes("hundred") };
+    private static final byte[][] DISPENSED = {
+        bytes(" x $100 bills\n"), bytes(" x $50 bills\n"), bytes(" x $20 bills\n"), bytes(" x $5 bills\n")
+    };
+    private static final byte[][] RESULT_MESSAGES = new byte[TransactionResult.Status.values().length][];
+    static {
+        for (TransactionResult.Status s : TransactionResult.Status.values()) {
+            RESULT_MESSAGES[s.ordinal()] = bytes(s.getMessage() + "\n");
+        }
+    }
+
+    // Field declarations
+    private final TransactionEngine engine;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private volatile boolean closed;
+    private int nextLoop;
+
+    // metrics
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder rounds = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private long lastRequests;
+    private long lastTransactions;
+    private long lastNanos = startNanos;
+
+    /**
+     * Opens the listening socket and the event loops. Call start to begin serving.
+     *
+     * @param engine The engine shared by every session.
+     * @param port   The TCP port to listen on, or 0 for any free port.
+     * @param loops  The number of event loop threads.
+     * @throws IOException if the port cannot be opened.
+     */
+    public NioGateway(TransactionEngine engine, int port, int loops) throws IOException {
+        if (loops <= 0) {
+            throw new IllegalArgumentException("Need at least one event loop: " + loops);
+        }
+        this.engine = engine;
+        this.server = ServerSocketChannel.open();
+        this.server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.server.bind(new InetSocketAddress(port), 1024);
+        this.server.configureBlocking(false);
+        this.loops = new EventLoop[loops];
+        for (int i = 0; i < loops; i++) {
+            this.loops[i] = new EventLoop();
+        }
+        this.server.register(this.loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts the event loop threads.
+     */
+    public void start() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "atm-gateway-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Prints the session, request, and transaction counts every so often.
+     *
+     * @param intervalSeconds Seconds between reports.
+     * @return The scheduler, which can be shut down to stop reporting.
+     */
+    public ScheduledExecutorService reportEvery(long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atm-gateway-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> System.out.println(report()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /**
+     * Describes the sessions and the request and transaction rates since the previous report.
+     *
+     * @return One line of metrics.
+     */
+    public synchronized String report() {
+        long now = System.nanoTime();
+        long lines = requests.sum();
+        long done = transactions.sum();
+        long batches = rounds.sum();
+        double seconds = (now - lastNanos) / 1e9;
+        double lineRate = seconds > 0 ? (lines - lastRequests) / seconds : 0;
+        double txRate = seconds > 0 ? (done - lastTransactions) / seconds : 0;
+        lastRequests = lines;
+        lastTransactions = done;
+        lastNanos = now;
+        return String.format("Gateway: %d active, %d peak, %d accepted on %d loops | requests: %d, %.0f/s"
+                + " | transactions: %d, %.0f/s, %.1f per batch | up %.0f s",
+                active.get(), peak.get(), accepted.get(), loops.length, lines, lineRate,
+                done, txRate, batches == 0 ? 0.0 : (double) done / batches, (now - startNanos) / 1e9);
+    }
+
+    /**
+     * Retrieves the port the gateway listens on.
+     *
+     * @return The local port.
+     * @throws IOException if the port cannot be read.
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Retrieves the number of terminals currently connected.
+     *
+     * @return The active sessions.
+     */
+    public int getActiveSessions() {
+        return active.get();
+    }
+
+    /**
+     * Retrieves the most terminals that were connected at the same time.
+     *
+     * @return The peak number of sessions.
+     */
+    public int getPeakSessions() {
+        return peak.get();
+    }
+
+    /**
+     * Retrieves the number of terminals accepted since the gateway started.
+     *
+     * @return The accepted connections.
+     */
+    public long getAcceptedSessions() {
+        return accepted.get();
+    }
+
+    /**
+     * Retrieves the number of lines (answers to prompts) received from all terminals.
+     *
+     * @return The requests received.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * Retrieves the number of transactions run for all terminals.
+     *
+     * @return The transactions run.
+     */
+    public long getTransactions() {
+        return transactions.sum();
+    }
+
+    /**
+     * Stops accepting terminals and disconnects every session.
+     *
+     * @throws IOException if the listening socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /*
+     * Encodes a prompt once, when the class is loaded.
+     */
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Parses a whole line as an int, ignoring surrounding spaces, without making a String.
+     * Returns NOT_A_NUMBER if the line is not a number that fits in an int.
+     */
+    static int parseInt(byte[] b, int from, int to) {
+        while (from < to && b[from] == ' ') {
+            from++;
+        }
+        while (to > from && b[to - 1] == ' ') {
+            to--;
+        }
+        boolean negative = from < to && b[from] == '-';
+        if (negative || (from < to && b[from] == '+')) {
+            from++;
+        }
+        if (from == to) {
+            return NOT_A_NUMBER;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                return NOT_A_NUMBER;
+            }
+            value = value * 10 + d;
+            if (value > Integer.MAX_VALUE) {
+                return NOT_A_NUMBER;
+            }
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /*
+     * One event loop thread: a selector, the sessions registered with it, and the
+     * commands they have completed in the current round.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<SocketChannel>();
+        private final BatchProcessor batch = new BatchProcessor(engine, MAX_PENDING);
+        private final TransactionCommand[] commands = new TransactionCommand[MAX_PENDING];
+        private final TransactionResult[] results = new TransactionResult[MAX_PENDING];
+        private final Session[] waiting = new Session[MAX_PENDING];
+        private final Session[] done = new Session[MAX_PENDING];
+        private int pending;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = incoming.poll()) != null) {
+                        register(ch);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Session s = (Session) key.attachment();
+                        if (key.isWritable()) {
+                            s.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            s.onReadable();
+                        }
+                    }
+                    runPending();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Gateway loop failed: " + e);
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Session) {
+                        ((Session) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing more to do
+                }
+            }
+        }
+
+        /*
+         * Accepts every waiting terminal and deals them out to the loops.
+         */
+        private void accept() throws IOException {
+            SocketChannel ch;
+            while ((ch = server.accept()) != null) {
+                accepted.incrementAndGet();
+                EventLoop target = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                if (target == this) {
+                    register(ch);
+                } else {
+                    target.incoming.add(ch);
+                    target.selector.wakeup();
+                }
+            }
+        }
+
+        private void register(SocketChannel ch) {
+            try {
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Session s = new Session(this, ch);
+                s.key = ch.register(selector, SelectionKey.OP_READ, s);
+                int now = active.incrementAndGet();
+                peak.accumulateAndGet(now, Math::max);
+                s.put(LOGIN_PROMPT);
+                s.flush();
+            } catch (IOException e) {
+                try {
+                    ch.close();
+                } catch (IOException ignored) {
+                    // nothing more to do
+                }
+            }
+        }
+
+        /*
+         * Parks a session's command until the end of the round.
+         */
+        void submit(Session s, TransactionCommand command) {
+            if (pending == MAX_PENDING) {
+                runPending();
+            }
+            commands[pending] = command;
+            waiting[pending] = s;
+            pending++;
+        }
+
+        /*
+         * Runs the round's commands as one chunk, then lets each session reply and go on
+         * with any answers it already has, which may submit more commands.
+         */
+        private void runPending() {
+            while (pending > 0) {
+                int n = pending;
+                pending = 0;
+                batch.runChunk(commands, n, results);
+                transactions.add(n);
+                rounds.increment();
+                for (int i = 0; i < n; i++) {
+                    done[i] = waiting[i];
+                    done[i].complete(results[i]);
+                    commands[i] = null;
+                    results[i] = null;
+                    waiting[i] = null;
+                }
+                for (int i = 0; i < n; i++) {
+                    done[i].parse();
+                    done[i].flush();
+                    done[i] = null;
+                }
+            }
+        }
+    }
+
+    /*
+     * One terminal: its buffers, where it is in the menus, and what it has entered so far.
+     * Only its event loop thread touches it.
+     */
+    private final class Session {
+
+        private final EventLoop loop;
+        private final SocketChannel ch;
+        private final ByteBuffer in = ByteBuffer.allocate(IN_SIZE);
+        private final ByteBuffer out = ByteBuffer.allocate(OUT_SIZE);
+        private final byte[] digits = new byte[20];
+        SelectionKey key;
+
+        private int state = LOGIN_NAME;
+        private int action;
+        private boolean waiting;
+        private boolean discarding;
+        private boolean open = true;
+        private String name;
+        private User user;
+        private int account;
+        private int destination;
+        private int amount;
+        private int denomination;
+        private final int[] deposit = new int[4];
+
+        Session(EventLoop loop, SocketChannel ch) {
+            this.loop = loop;
+            this.ch = ch;
+        }
+
+        void onReadable() {
+            int n;
+            try {
+                n = ch.read(in);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            parse();
+            flush();
+        }
+
+        void onWritable() {
+            flush();
+            parse();
+            flush();
+        }
+
+        /*
+         * Handles every complete line in the input buffer, until a transaction has to
+         * wait for the end of the round or the output buffer needs draining.
+         */
+        void parse() {
+            if (!open) {
+                return;
+            }
+            byte[] b = in.array();
+            int start = 0;
+            int end = in.position();
+            while (!waiting && state != CLOSING && out.remaining() >= MAX_REPLY) {
+                int nl = start;
+                while (nl < end && b[nl] != '\n') {
+                    nl++;
+                }
+                if (nl == end) {
+                    break;
+                }
+                int lineEnd = nl > start && b[nl - 1] == '\r' ? nl - 1 : nl;
+                int lineStart = start;
+                start = nl + 1;
+                requests.increment();
+                if (discarding) {
+                    // the tail of a line too long to keep
+                    discarding = false;
+                    continue;
+                }
+                handle(b, lineStart, lineEnd);
+            }
+
+            // keep the unread bytes at the front of the buffer
+            System.arraycopy(b, start, b, 0, end - start);
+            in.position(end - start);
+            if (!in.hasRemaining() && !waiting && out.remaining() >= MAX_REPLY) {
+                // a line longer than the buffer: drop what there is and skip to its end
+                in.clear();
+                discarding = true;
+            }
+        }
+
+        /*
+         * Writes out as much of the output buffer as the socket takes, then chooses what to
+         * wait for next: more input, room to write, or nothing while a transaction is pending.
+         */
+        void flush() {
+            if (!open) {
+                return;
+            }
+            if (out.position() > 0) {
+                out.flip();
+                try {
+                    ch.write(out);
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                out.compact();
+            }
+            if (state == CLOSING && out.position() == 0) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (!waiting && state != CLOSING && in.hasRemaining() && out.remaining() >= MAX_REPLY) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (out.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            active.decrementAndGet();
+            key.cancel();
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+
+        /*
+         * Handles one answer according to the prompt it answers.
+         */
+        private void handle(byte[] b, int from, int to) {
+            switch (state) {
+                case LOGIN_NAME:
+                    if (to - from == 1 && b[from] == 'q') {
+                        state = CLOSING;
+                    } else if (from == to) {
+                        put(NAME_EMPTY);
+                        put(LOGIN_PROMPT);
+                    } else {
+                        name = new String(b, from, to - from, StandardCharsets.UTF_8);
+                        put(PASSWORD_PROMPT);
+                        state = LOGIN_PASSWORD;
+                    }
+                    break;
+                case LOGIN_PASSWORD:
+                    if (from == to) {
+                        put(PASSWORD_EMPTY);
+                        put(LOGIN_PROMPT);
+                        state = LOGIN_NAME;
+                        break;
+                    }
+                    user = engine.authenticate(name, new String(b, from, to - from, StandardCharsets.UTF_8));
+                    if (user != null) {
+                        put(LOGIN_OK);
+                        userMenu();
+                    } else {
+                        put(LOGIN_FAILED);
+                        put(LOGIN_PROMPT);
+                        state = LOGIN_NAME;
+                    }
+                    break;
+                case USER_MENU:
+                    menuItem(parseInt(b, from, to));
+                    break;
+                case CHOOSE_ACCOUNT:
+                    chosen(parseInt(b, from, to));
+                    break;
+                case WITHDRAW_AMOUNT:
+                    withdrawAmount(parseInt(b, from, to));
+                    break;
+                case DEPOSIT_FIVES:
+                case DEPOSIT_TWENTIES:
+                case DEPOSIT_FIFTIES:
+                case DEPOSIT_HUNDREDS:
+                    depositCount(parseInt(b, from, to));
+                    break;
+                case OWN_TRANSFER_AMOUNT:
+                    ownTransferAmount(parseInt(b, from, to));
+                    break;
+                case OTHER_DESTINATION:
+                    otherDestination(parseInt(b, from, to));
+                    break;
+                case OTHER_TRANSFER_AMOUNT:
+                    otherTransferAmount(parseInt(b, from, to));
+                    break;
+                case OPERATOR_PASSWORD:
+                    operatorPassword(b, from, to);
+                    break;
+                case OPERATOR_MENU:
+                    operatorItem(parseInt(b, from, to));
+                    break;
+                case ADD_CHOICE:
+                case REMOVE_CHOICE:
+                    billsChoice(parseInt(b, from, to));
+                    break;
+                case ADD_COUNT:
+                case REMOVE_COUNT:
+                    billsCount(parseInt(b, from, to));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void userMenu() {
+            put(USER_MENU_TEXT);
+            state = USER_MENU;
+        }
+
+        private void menuItem(int item) {
+            if (item == NOT_A_NUMBER) {
+                put(MENU_INVALID);
+                userMenu();
+                return;
+            }
+            switch (item) {
+                case 1:
+                case 2:
+                case 5:
+                    action = item;
+                    chooseAccount();
+                    break;
+                case 3:
+                case 4:
+                    action = item;
+                    put(item == ACTION_OWN_TRANSFER ? OWN_SOURCE_PROMPT : OTHER_SOURCE_PROMPT);
+                    chooseAccount();
+                    break;
+                case 6:
+                case 7:
+                    action = item;
+                    put(OPERATOR_PROMPT);
+                    state = OPERATOR_PASSWORD;
+                    break;
+                case 8:
+                    user = null;
+                    put(LOGIN_PROMPT);
+                    state = LOGIN_NAME;
+                    break;
+                case 9:
+                    state = CLOSING;
+                    break;
+                default:
+                    put(MENU_INVALID);
+                    userMenu();
+                    break;
+            }
+        }
+
+        private void chooseAccount() {
+            put(CHOOSE_PROMPT);
+            putNumber(user.getCheckingAccountNumber());
+            put(CHOOSE_SAVINGS);
+            putNumber(user.getSavingsAccountNumber());
+            put(CHOOSE_END);
+            state = CHOOSE_ACCOUNT;
+        }
+
+        private void chosen(int choice) {
+            if (choice != 1 && choice != 2) {
+                put(CHOOSE_INVALID);
+                chooseAccount();
+                return;
+            }
+            account = choice == 1 ? user.getCheckingAccountNumber() : user.getSavingsAccountNumber();
+            putBalance(account);
+            switch (action) {
+                case ACTION_WITHDRAW:
+                    putVaultBalance();
+                    put(WITHDRAW_PROMPT);
+                    state = WITHDRAW_AMOUNT;
+                    break;
+                case ACTION_DEPOSIT:
+                    putVaultBalance();
+                    put(DEPOSIT_PROMPTS[0]);
+                    state = DEPOSIT_FIVES;
+                    break;
+                case ACTION_OWN_TRANSFER:
+                    putVaultBalance();
+                    destination = choice == 1 ? user.getSavingsAccountNumber() : user.getCheckingAccountNumber();
+                    put(choice == 1 ? TO_SAVINGS : TO_CHECKING);
+                    putNumber(destination);
+                    putByte('\n');
+                    putBalance(destination);
+                    put(OWN_AMOUNT_PROMPT);
+                    state = OWN_TRANSFER_AMOUNT;
+                    break;
+                case ACTION_OTHER_TRANSFER:
+                    putVaultBalance();
+                    put(DESTINATION_PROMPT);
+                    state = OTHER_DESTINATION;
+                    break;
+                case ACTION_BALANCE:
+                default:
+                    userMenu();
+                    break;
+            }
+        }
+
+        private void withdrawAmount(int dollars) {
+            if (dollars == NOT_A_NUMBER) {
+                put(AMOUNT_INVALID);
+                put(WITHDRAW_PROMPT);
+            } else if (dollars % 5 != 0 || dollars < 0) {
+                put(WITHDRAW_NOT_FIVES);
+                put(WITHDRAW_PROMPT);
+            } else if (dollars == 0) {
+                put(WITHDRAW_ZERO);
+                userMenu();
+            } else {
+                submit(TransactionCommand.withdraw(account, dollars));
+            }
+        }
+
+        private void depositCount(int count) {
+            int prompt = state - DEPOSIT_FIVES;
+            if (count == NOT_A_NUMBER) {
+                put(AMOUNT_INVALID);
+                put(DEPOSIT_PROMPTS[prompt]);
+            } else if (count < 0) {
+                put(DEPOSIT_NEGATIVE);
+                put(DEPOSIT_PROMPTS[prompt]);
+            } else if (state != DEPOSIT_HUNDREDS) {
+                deposit[prompt] = count;
+                state++;
+                put(DEPOSIT_PROMPTS[prompt + 1]);
+            } else {
+                deposit[prompt] = count;
+                put(DEPOSIT_TOTAL);
+                putNumber(deposit[0] * 5L + deposit[1] * 20L + deposit[2] * 50L + deposit[3] * 100L);
+                putByte('\n');
+                submit(TransactionCommand.deposit(account, new Bills(deposit[3], deposit[2], deposit[1], deposit[0])));
+            }
+        }
+
+        private void ownTransferAmount(int dollars) {
+            if (dollars == NOT_A_NUMBER) {
+                put(AMOUNT_INVALID);
+                put(OWN_AMOUNT_PROMPT);
+            } else if (dollars < 0) {
+                put(OWN_AMOUNT_NEGATIVE);
+                put(OWN_AMOUNT_PROMPT);
+            } else if (dollars == 0) {
+                userMenu();
+            } else {
+                submit(TransactionCommand.internalTransfer(account, Money.dollarsToCents(dollars)));
+            }
+        }
+
+        private void otherDestination(int number) {
+            if (number == NOT_A_NUMBER) {
+                put(DESTINATION_INVALID);
+                put(DESTINATION_PROMPT);
+            } else if (engine.findAccount(number) == null) {
+                put(DESTINATION_UNKNOWN);
+                put(DESTINATION_PROMPT);
+            } else {
+                destination = number;
+                put(OTHER_AMOUNT_PROMPT);
+                state = OTHER_TRANSFER_AMOUNT;
+            }
+        }
+
+        private void otherTransferAmount(int dollars) {
+            if (dollars == NOT_A_NUMBER) {
+                put(MENU_INVALID);
+                put(OTHER_AMOUNT_PROMPT);
+            } else if (dollars < 0) {
+                put(OTHER_AMOUNT_NEGATIVE);
+                userMenu();
+            } else {
+                submit(TransactionCommand.transfer(account, destination, Money.dollarsToCents(dollars)));
+            }
+        }
+
+        private void operatorPassword(byte[] b, int from, int to) {
+            if (from == to) {
+                put(OPERATOR_EMPTY);
+                userMenu();
+                return;
+            }
+            boolean match = to - from == OPERATOR_SECRET.length;
+            for (int i = 0; match && i < OPERATOR_SECRET.length; i++) {
+                match = b[from + i] == OPERATOR_SECRET[i];
+            }
+            if (!match) {
+                put(OPERATOR_WRONG);
+                userMenu();
+                return;
+            }
+            put(OPERATOR_OK);
+            if (action == ACTION_OPERATOR) {
+                operatorMenu();
+            } else {
+                putVaultBalance();
+                userMenu();
+            }
+        }
+
+        private void operatorMenu() {
+            put(OPERATOR_MENU_TEXT);
+            state = OPERATOR_MENU;
+        }
+
+        private void operatorItem(int item) {
+            if (item == NOT_A_NUMBER) {
+                put(MENU_INVALID);
+                operatorMenu();
+            } else if (item == 1) {
+                // operator only, so the vault's own text is used as is
+                putAscii(engine.getVault().toString());
+                putByte('\n');
+                operatorMenu();
+            } else if (item == 2) {
+                put(ADD_MENU_TEXT);
+                state = ADD_CHOICE;
+            } else if (item == 3) {
+                put(REMOVE_MENU_TEXT);
+                state = REMOVE_CHOICE;
+            } else if (item == 4) {
+                put(OPERATOR_EXIT);
+                userMenu();
+            } else {
+                put(OPERATOR_INVALID);
+                operatorMenu();
+            }
+        }
+
+        private void billsMenu() {
+            if (state == ADD_CHOICE || state == ADD_COUNT) {
+                put(ADD_MENU_TEXT);
+                state = ADD_CHOICE;
+            } else {
+                put(REMOVE_MENU_TEXT);
+                state = REMOVE_CHOICE;
+            }
+        }
+
+        private void billsChoice(int choice) {
+            boolean adding = state == ADD_CHOICE;
+            if (choice == NOT_A_NUMBER) {
+                put(adding ? BILLS_CHOICE_INVALID : BILLS_COUNT_INVALID);
+                billsMenu();
+            } else if (choice >= 1 && choice <= 4) {
+                denomination = choice - 1;
+                put(HOW_MANY);
+                put(BILL_NAMES[denomination]);
+                put(adding ? ADDING : REMOVING);
+                state = adding ? ADD_COUNT : REMOVE_COUNT;
+            } else if (choice == 5) {
+                put(adding ? ADD_EXIT : REMOVE_EXIT);
+                operatorMenu();
+            } else {
+                put(BILLS_CHOICE_RANGE);
+                billsMenu();
+            }
+        }
+
+        private void billsCount(int count) {
+            boolean adding = state == ADD_COUNT;
+            if (count == NOT_A_NUMBER) {
+                put(BILLS_COUNT_INVALID);
+                billsMenu();
+            } else if (count < 0) {
+                put(adding ? ADD_NEGATIVE : REMOVE_NEGATIVE);
+                billsMenu();
+            } else {
+                amount = count;
+                Bills bills = new Bills(denomination == 3 ? count : 0, denomination == 2 ? count : 0,
+                        denomination == 1 ? count : 0, denomination == 0 ? count : 0);
+                submit(adding ? TransactionCommand.addVaultBills(bills) : TransactionCommand.removeVaultBills(bills));
+            }
+        }
+
+        private void submit(TransactionCommand command) {
+            waiting = true;
+            loop.submit(this, command);
+        }
+
+        /*
+         * Replies to the session's transaction once its round has run.
+         */
+        void complete(TransactionResult result) {
+            waiting = false;
+            if (!open) {
+                return;
+            }
+            boolean ok = result.isSuccess();
+            switch (state) {
+                case WITHDRAW_AMOUNT:
+                    if (ok) {
+                        put(WITHDRAW_OK);
+                        Bills d = result.getBills();
+                        putCount(d.getHundreds(), DISPENSED[0]);
+                        putCount(d.getFifties(), DISPENSED[1]);
+                        putCount(d.getTwenties(), DISPENSED[2]);
+                        putCount(d.getFives(), DISPENSED[3]);
+                        putBalance(account);
+                        putVaultBalance();
+                    } else {
+                        putResult(result);
+                    }
+                    userMenu();
+                    break;
+                case DEPOSIT_HUNDREDS:
+                    if (!ok) {
+                        putResult(result);
+                    }
+                    putBalance(account);
+                    putVaultBalance();
+                    userMenu();
+                    break;
+                case OWN_TRANSFER_AMOUNT:
+                    if (result.getStatus() == TransactionResult.Status.INSUFFICIENT_FUNDS) {
+                        put(NEGATIVE_BALANCE);
+                        putNumber(account);
+                        putByte('\n');
+                    } else if (!ok) {
+                        putResult(result);
+                    } else {
+                        put(OWN_TRANSFER_OK);
+                        boolean fromChecking = account == user.getCheckingAccountNumber();
+                        int checking = fromChecking ? account : destination;
+                        int savings = fromChecking ? destination : account;
+                        put(CHECKING_ACCOUNT);
+                        putNumber(checking);
+                        put(DASH);
+                        putBalance(checking);
+                        put(SAVINGS_ACCOUNT);
+                        putNumber(savings);
+                        put(DASH);
+                        putBalance(savings);
+                        putByte('\n');
+                        putVaultBalance();
+                    }
+                    userMenu();
+                    break;
+                case OTHER_TRANSFER_AMOUNT:
+                    if (ok) {
+                        put(OTHER_TRANSFER_OK);
+                        putNumber(account);
+                        put(DASH);
+                        putBalance(account);
+                        put(TO_DESTINATION);
+                        putNumber(destination);
+                        putByte('\n');
+                        putByte('\n');
+                        putVaultBalance();
+                        userMenu();
+                    } else if (result.getStatus() == TransactionResult.Status.INSUFFICIENT_FUNDS) {
+                        put(NEGATIVE_BALANCE);
+                        putNumber(account);
+                        putByte('\n');
+                        put(OTHER_AMOUNT_PROMPT);
+                    } else {
+                        putResult(result);
+                        userMenu();
+                    }
+                    break;
+                case ADD_COUNT:
+                    if (ok) {
+                        put(ADDED);
+                        putNumber(amount);
+                        putByte(' ');
+                        put(BILL_NAMES[denomination]);
+                        put(ADDED_END);
+                    } else {
+                        putResult(result);
+                    }
+                    billsMenu();
+                    break;
+                case REMOVE_COUNT:
+                    if (ok) {
+                        put(REMOVED);
+                        putNumber(amount);
+                        putByte(' ');
+                        put(BILL_NAMES[denomination]);
+                        put(REMOVED_END);
+                    } else {
+                        Vault v = engine.getVault();
+                        put(REMOVE_TOO_MANY);
+                        putNumber(denomination == 0 ? v.getFiveDollarBills() : denomination == 1
+                                ? v.getTwentyDollarBills() : denomination == 2 ? v.getFiftyDollarBills()
+                                : v.getHundredDollarBills());
+                        putByte(' ');
+                        put(BILL_NAMES[denomination]);
+                        put(REMOVE_TOO_MANY_END);
+                    }
+                    billsMenu();
+                    break;
+                default:
+                    userMenu();
+                    break;
+            }
+        }
+
+        /*
+         * Output helpers. They write straight into the output buffer; parse keeps at
+         * least MAX_REPLY bytes free before each answer, which covers any one reply.
+         */
+
+        void put(byte[] bytes) {
+            out.put(bytes);
+        }
+
+        private void putByte(char c) {
+            out.put((byte) c);
+        }
+
+        private void putAscii(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                out.put((byte) text.charAt(i));
+            }
+        }
+
+        private void putNumber(long value) {
+            if (value < 0) {
+                out.put((byte) '-');
+                value = -value;
+            }
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            while (n > 0) {
+                out.put(digits[--n]);
+            }
+        }
+
+        private void putCents(long cents) {
+            putNumber(cents / 100);
+            putByte('.');
+            long fraction = cents % 100;
+            putByte((char) ('0' + fraction / 10));
+            putByte((char) ('0' + fraction % 10));
+        }
+
+        private void putBalance(int accountNumber) {
+            Account a = engine.findAccount(accountNumber);
+            if (a != null) {
+                put(BALANCE);
+                putCents(a.getBalanceCents());
+                putByte('\n');
+            }
+        }
+
+        private void putVaultBalance() {
+            put(VAULT_BALANCE);
+            putNumber(engine.getVault().calculateBalance());
+            putByte('\n');
+        }
+
+        private void putCount(int count, byte[] label) {
+            if (count > 0) {
+                putNumber(count);
+                put(label);
+            }
+        }
+
+        private void putResult(TransactionResult result) {
+            put(RESULT_MESSAGES[result.getStatus().ordinal()]);
+        }
+    }
+
+} // end NioGateway
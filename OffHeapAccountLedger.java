@@ -0,0 +1,320 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Keeps every account outside the Java heap, so populations of a hundred million
+ * accounts and more cost the garbage collector nothing: the heap holds a few dozen buffer
+ * objects however many accounts there are, and its size no longer has to grow with the
+ * bank. Transactions, Connections, and the journal use it like any other AccountStore.
+ *
+ * Assumption: Account numbers are positive. Accounts are only added while the ledger is
+ * being built (by one thread); after that only balances change. The ledger is sized for
+ * its accounts when it is created and does not grow. As in MappedAccountStore, the account
+ * type is stored as a code, so only "Checking" and "Savings" keep their name. The memory
+ * is direct memory, limited by -XX:MaxDirectMemorySize (by default the maximum heap size),
+ * and is given back when the ledger is no longer referenced.
+ *
+ * Input: Accounts to add, put one at a time as they are read (see AccountSink), and account
+ * numbers to look up.
+ * Output: An Account view whose balance is read and written directly in the ledger.
+ *
+ * Algorithm: An open addressing hash table of 16 byte slots (account number, type code,
+ * balance in cents), laid out like MappedAccountStore's and probed with the same hash, but
+ * kept in direct ByteBuffers instead of a file. One buffer can hold at most 2 GB, so the
+ * table is split into chunks of 2^22 slots (64 MB); a slot number's high bits pick the
+ * chunk and its low bits the slot inside it. The table is kept at most three quarters
+ * full, which with the spreading hash keeps probes short while 100 million accounts fit in
+ * 2^27 slots (2 GB). Balances are changed with compare-and-set on the buffers through a
+ * VarHandle, so credits and debits from many sessions never lose an update and no lock is
+ * needed.
+ */
+public class OffHeapAccountLedger implements AccountStore, AccountSink {
+
+    /** Size of one account slot in bytes. */
+    public static final int SLOT_SIZE = 16;
+
+    private static final int CHUNK_SHIFT = 22;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // slot fields
+    private static final int NUMBER_OFFSET = 0;
+    private static final int TYPE_OFFSET = 4;
+    private static final int BALANCE_OFFSET = 8;
+
+    // atomic access to the 8-byte balances inside the buffers
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    // Field declarations
+    private final ByteBuffer[] chunks;
+    private final int mask;
+    private final int maxSize;
+    private int size;
+
+    /**
+     * Constructs an empty ledger sized to hold the expected number of accounts. All of
+     * its memory is allocated (and zeroed) here.
+     *
+     * @param expectedAccounts The number of accounts that will be added.
+     * @throws OutOfMemoryError if there is not enough direct memory.
+     */
+    public OffHeapAccountLedger(int expectedAccounts) {
+        int capacity = tableSizeFor(expectedAccounts);
+        int chunkSlots = Math.min(capacity, CHUNK_SLOTS);
+        this.chunks = new ByteBuffer[capacity / chunkSlots];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(chunkSlots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        }
+        this.mask = capacity - 1;
+        this.maxSize = (int) (capacity * 3L / 4);
+    }
+
+    /**
+     * Builds a ledger holding every account in the given list. The accounts are copied;
+     * the list can be dropped afterwards.
+     *
+     * @param accounts The accounts to copy.
+     * @return A ledger containing all of the accounts.
+     */
+    public static OffHeapAccountLedger of(List<Account> accounts) {
+        OffHeapAccountLedger ledger = new OffHeapAccountLedger(accounts.size());
+        for (Account a : accounts) {
+            ledger.put(a.getAccountNumber(), a.getAccountType(), a.getBalanceCents());
+        }
+        return ledger;
+    }
+
+    /**
+     * Adds an account to the ledger, or replaces the one with the same number. Only
+     * meant for building the ledger; it is not safe to call while transactions run.
+     *
+     * @param accountNumber The account number, greater than zero.
+     * @param accountType   The type of account (checking or savings).
+     * @param balanceCents  The balance in cents.
+     * @throws IllegalStateException if the ledger is full.
+     */
+    @Override
+    public void put(int accountNumber, String accountType, long balanceCents) {
+        if (accountNumber <= 0) {
+            throw new IllegalArgumentException("Account numbers must be positive: " + accountNumber);
+        }
+        int slot = AccountRegistry.hash(accountNumber) & mask;
+        int number;
+
+        // probe until an empty slot or the same account number is found
+        while ((number = chunk(slot).getInt(offset(slot) + NUMBER_OFFSET)) != 0 && number != accountNumber) {
+            slot = (slot + 1) & mask;
+        }
+        if (number == 0) {
+            if (size == maxSize) {
+                throw new IllegalStateException("Account ledger is full");
+            }
+            size++;
+        }
+
+        ByteBuffer chunk = chunk(slot);
+        int at = offset(slot);
+        chunk.putInt(at + NUMBER_OFFSET, accountNumber);
+        chunk.put(at + TYPE_OFFSET, AccountTable.typeCode(accountType));
+        chunk.putLong(at + BALANCE_OFFSET, balanceCents);
+    }
+
+    /**
+     * Retrieves a view of the account with the given number. The view reads and writes
+     * its balance directly in the ledger.
+     *
+     * @param accountNumber The account number to look up.
+     * @return The account, or null if there is none.
+     */
+    @Override
+    public Account get(int accountNumber) {
+        int slot = find(accountNumber);
+        if (slot < 0) {
+            return null;
+        }
+        return view(slot, accountNumber);
+    }
+
+    /**
+     * Checks whether an account with the given number exists.
+     *
+     * @param accountNumber The account number to look up.
+     * @return true if the account exists.
+     */
+    @Override
+    public boolean contains(int accountNumber) {
+        return find(accountNumber) >= 0;
+    }
+
+    /**
+     * Retrieves the number of accounts in the ledger.
+     *
+     * @return The number of accounts.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Runs an action for a view of every account in the ledger, in slot order.
+     *
+     * @param action The action to run for each account.
+     */
+    @Override
+    public void forEach(Consumer<Account> action) {
+        for (int slot = 0; slot <= mask; slot++) {
+            int number = chunk(slot).getInt(offset(slot) + NUMBER_OFFSET);
+            if (number != 0) {
+                action.accept(view(slot, number));
+            }
+        }
+    }
+
+    /**
+     * Adds up the balance of every account. Balances changing during the scan may or may
+     * not be counted; run it while nothing changes for an exact total.
+     *
+     * @return The total balance, in cents.
+     * @throws ArithmeticException if the total overflows.
+     */
+    public long sumBalanceCents() {
+        long total = 0;
+        for (ByteBuffer chunk : chunks) {
+            for (int at = 0; at < chunk.capacity(); at += SLOT_SIZE) {
+                if (chunk.getInt(at + NUMBER_OFFSET) != 0) {
+                    total = Math.addExact(total, chunk.getLong(at + BALANCE_OFFSET));
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Retrieves the direct memory the ledger holds.
+     *
+     * @return The size of all its buffers, in bytes.
+     */
+    public long getMemoryBytes() {
+        return (mask + 1L) * SLOT_SIZE;
+    }
+
+    /*
+     * Slot holding the account, or -1 if there is none.
+     */
+    private int find(int accountNumber) {
+        int slot = AccountRegistry.hash(accountNumber) & mask;
+        int number;
+
+        // stop at the first empty slot, the key cannot be further along the probe sequence
+        while ((number = chunk(slot).getInt(offset(slot) + NUMBER_OFFSET)) != 0) {
+            if (number == accountNumber) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private Account view(int slot, int accountNumber) {
+        ByteBuffer chunk = chunk(slot);
+        int at = offset(slot);
+        return new LedgerAccount(chunk, at + BALANCE_OFFSET, accountNumber,
+                typeName(chunk.get(at + TYPE_OFFSET)));
+    }
+
+    private ByteBuffer chunk(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    /*
+     * Smallest power of two table that keeps the given number of accounts at most three
+     * quarters full.
+     */
+    private static int tableSizeFor(int expectedAccounts) {
+        long needed = Math.max(MIN_CAPACITY, ((long) expectedAccounts * 4 + 2) / 3);
+        if (needed > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Too many accounts for one ledger: " + expectedAccounts);
+        }
+        return (int) Long.highestOneBit(needed * 2 - 1);
+    }
+
+    private static String typeName(byte code) {
+        if (code == AccountTable.TYPE_CHECKING) {
+            return "Checking";
+        }
+        if (code == AccountTable.TYPE_SAVINGS) {
+            return "Savings";
+        }
+        return "Account";
+    }
+
+    /*
+     * An Account whose balance lives in the ledger's memory instead of a field. Its
+     * number and type cannot change, since they are what the ledger is keyed on.
+     */
+    private static final class LedgerAccount extends Account {
+
+        private final ByteBuffer chunk;
+        private final int balanceAt;
+
+        LedgerAccount(ByteBuffer chunk, int balanceAt, int accountNumber, String accountType) {
+            super(accountType, accountNumber, Money.ZERO);
+            this.chunk = chunk;
+            this.balanceAt = balanceAt;
+        }
+
+        @Override
+        public long getBalanceCents() {
+            return (long) LONGS.getVolatile(chunk, balanceAt);
+        }
+
+        @Override
+        public void setBalanceCents(long balanceCents) {
+            LONGS.setVolatile(chunk, balanceAt, balanceCents);
+        }
+
+        @Override
+        public void credit(long cents) {
+            long current;
+            do {
+                current = (long) LONGS.getVolatile(chunk, balanceAt);
+            } while (!LONGS.compareAndSet(chunk, balanceAt, current, Money.addCents(current, cents)));
+        }
+
+        @Override
+        public boolean debit(long cents) {
+            long current;
+            do {
+                current = (long) LONGS.getVolatile(chunk, balanceAt);
+                if (cents > current) {
+                    return false;
+                }
+            } while (!LONGS.compareAndSet(chunk, balanceAt, current, Money.subtractCents(current, cents)));
+            return true;
+        }
+
+        @Override
+        public void setAccountType(String accountType) {
+            throw new UnsupportedOperationException("Account type is fixed in the account ledger");
+        }
+
+        @Override
+        public void setAccountNumber(int accountNumber) {
+            throw new UnsupportedOperationException("Account number is fixed in the account ledger");
+        }
+    }
+
+} // end OffHeapAccountLedger
@@ -0,0 +1,208 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Dispense strategy that always finds a way to pay an amount when one exists,
+ * using as few bills as possible. The greedy strategy gives up on amounts it could have
+ * paid once a denomination runs low: with no $5 bills left it refuses $60, because it
+ * starts with a $50 bill, even though three $20 bills would do.
+ *
+ * Assumption: Amounts are multiples of $5. Plans for amounts up to the table limit
+ * (by default $10,000) are normally answered straight from the table.
+ *
+ * Input: The amount to dispense and the number of $100, $50, $20, and $5 bills available.
+ * Output: The feasible plan with the fewest bills, or null if no combination of the
+ * available bills adds up to the amount.
+ *
+ * Algorithm: When the strategy is created, a dynamic programming pass over every amount up
+ * to the limit (in $5 steps) records the plan with the fewest bills assuming an unlimited
+ * supply, packed into one long per amount. A request first looks up that plan and returns
+ * it if the vault holds enough bills, which is the usual case and costs one array read.
+ * Otherwise it searches the combinations the vault can actually pay: for a number of $50
+ * bills, as many $100 bills as fit, then as many $20 bills as are available and fit,
+ * topped up with $5 bills, which is the best plan for that many $50s. Only a handful of
+ * numbers of $50s can give the best plan overall (see search), and amounts whose
+ * remainder the vault's $20s and $5s cannot pay are refused before searching, so every
+ * request, paid or refused, takes microseconds while the vault lock is held.
+ */
+public class OptimalDispenser implements DispenseStrategy {
+
+    /** Largest amount answered from the precomputed table when none is given. */
+    public static final int DEFAULT_TABLE_LIMIT = 10_000;
+
+    // Bill values in $5 units, largest first
+    private static final int[] UNITS = { 20, 10, 4, 1 };
+
+    // Most numbers of $50 bills the search tries for one amount
+    private static final int MAX_CANDIDATES = 8;
+
+    // Fewest-bill plan per amount in $5 units, packed 16 bits per denomination
+    private final long[] table;
+
+    /**
+     * Constructs the strategy with a table covering amounts up to $10,000.
+     */
+    public OptimalDispenser() {
+        this(DEFAULT_TABLE_LIMIT);
+    }
+
+    /**
+     * Constructs the strategy with a table covering amounts up to the given limit.
+     *
+     * @param tableLimit The largest dollar amount to precompute.
+     */
+    public OptimalDispenser(int tableLimit) {
+        int size = tableLimit / 5 + 1;
+        int[] count = new int[size];
+        int[] lastBill = new int[size];
+        table = new long[size];
+
+        // fewest bills for each amount, trying larger bills first so ties favour them
+        for (int u = 1; u < size; u++) {
+            count[u] = Integer.MAX_VALUE;
+            for (int d = 0; d < UNITS.length; d++) {
+                if (UNITS[d] <= u && count[u - UNITS[d]] + 1 < count[u]) {
+                    count[u] = count[u - UNITS[d]] + 1;
+                    lastBill[u] = d;
+                }
+            }
+            // plan for u is the plan for the smaller amount plus one more bill
+            table[u] = table[u - UNITS[lastBill[u]]] + (1L << (48 - 16 * lastBill[u]));
+        }
+    }
+
+    /**
+     * Plans the fewest-bill combination the vault can pay for the amount.
+     *
+     * @param amount   The dollar amount to dispense.
+     * @param hundreds The number of $100 bills available.
+     * @param fifties  The number of $50 bills available.
+     * @param twenties The number of $20 bills available.
+     * @param fives    The number of $5 bills available.
+     * @return The bills to hand out, or null if the amount cannot be made up.
+     */
+    @Override
+    public Bills plan(int amount, int hundreds, int fifties, int twenties, int fives) {
+        if (amount < 0 || amount % 5 != 0) {
+            return null;
+        }
+
+        // usual case: the best plan with unlimited bills is one the vault can pay
+        int units = amount / 5;
+        if (units < table.length) {
+            long best = table[units];
+            int h = (int) (best >>> 48) & 0xFFFF;
+            int f = (int) (best >>> 32) & 0xFFFF;
+            int t = (int) (best >>> 16) & 0xFFFF;
+            int v = (int) best & 0xFFFF;
+            if (h <= hundreds && f <= fifties && t <= twenties && v <= fives) {
+                return new Bills(h, f, t, v);
+            }
+        }
+
+        return search(amount, hundreds, fifties, twenties, fives);
+    }
+
+    /*
+     * Searches the plans the vault can pay by the number of $50 bills. For a given number
+     * of $50s the most $100 bills that fit is always best: every $100 bill given up costs
+     * at least four more bills, and the smaller remainder never needs more $20s or $5s.
+     *
+     * Among numbers of $50s of the same parity (two $50s are worth one $100), while every
+     * $100 bill is in use each two more $50s take $100 off the $20s and $5s, saving at
+     * least three bills, and never make the rest harder to pay; once the $100s no longer
+     * run out, two more $50s simply replace one $100 bill. So for each parity only the
+     * numbers either side of the point where the $100s stop running out can be best, and
+     * the search tries those and the two ends: at most MAX_CANDIDATES plans, however large
+     * the amount or the vault. Amounts whose remainder the vault's $20s and $5s cannot pay
+     * are turned away before that.
+     */
+    private Bills search(int amount, int hundreds, int fifties, int twenties, int fives) {
+        if (!canPayRemainder(amount, fifties, twenties, fives)) {
+            return null;
+        }
+
+        int maxFifties = Math.min(fifties, amount / 50);
+        // the most $50s with which every $100 bill still fits (-1 if there is none)
+        long allHundreds = (amount - 100L * hundreds) / 50;
+        int lastFull = (int) Math.min(maxFifties, amount < 100L * hundreds ? -1 : allHundreds);
+
+        int[] candidates = new int[MAX_CANDIDATES];
+        int n = 0;
+        for (int parity = 0; parity < 2; parity++) {
+            n = addCandidate(candidates, n, parity, maxFifties);
+            n = addCandidate(candidates, n, highestWithParity(maxFifties, parity), maxFifties);
+            n = addCandidate(candidates, n, highestWithParity(lastFull, parity), maxFifties);
+            n = addCandidate(candidates, n, highestWithParity(lastFull, parity) + 2, maxFifties);
+        }
+
+        int bestCount = Integer.MAX_VALUE;
+        int bestH = 0;
+        int bestF = 0;
+        int bestT = 0;
+        int bestV = 0;
+        for (int i = 0; i < n; i++) {
+            int f = candidates[i];
+            int afterFifties = amount - f * 50;
+
+            // even paying everything else in $100 bills this cannot beat the best plan
+            if (f + (afterFifties + 99) / 100 >= bestCount) {
+                continue;
+            }
+
+            int h = Math.min(hundreds, afterFifties / 100);
+            int rest = afterFifties - h * 100;
+            int t = Math.min(twenties, rest / 20);
+            int v = (rest - t * 20) / 5;
+            if (v <= fives) {
+                int count = h + f + t + v;
+                if (count < bestCount) {
+                    bestCount = count;
+                    bestH = h;
+                    bestF = f;
+                    bestT = t;
+                    bestV = v;
+                }
+            }
+        }
+
+        if (bestCount == Integer.MAX_VALUE) {
+            return null;
+        }
+        return new Bills(bestH, bestF, bestT, bestV);
+    }
+
+    /*
+     * The largest number no greater than limit with the given parity, or below zero if
+     * there is none.
+     */
+    private static int highestWithParity(int limit, int parity) {
+        return limit < parity ? -1 : limit - ((limit - parity) & 1);
+    }
+
+    private static int addCandidate(int[] candidates, int n, int fifties, int maxFifties) {
+        if (fifties < 0 || fifties > maxFifties) {
+            return n;
+        }
+        candidates[n] = fifties;
+        return n + 1;
+    }
+
+    /*
+     * Quick test of the part of the amount only $20 and $5 bills can pay. $100 and $50
+     * bills only make multiples of $50, so amount % 20 (or, with one $50 bill, the
+     * remainder 10 higher) has to come from $5 bills, and the vault's $20s and $5s
+     * together have to cover what is left below $50.
+     */
+    private static boolean canPayRemainder(int amount, int fifties, int twenties, int fives) {
+        int r = amount % 20;
+        int needFives = r / 5;
+        if (fifties > 0 && amount >= 50) {
+            needFives = Math.min(needFives, (r + 10) % 20 / 5);
+        }
+        if (needFives > fives) {
+            return false;
+        }
+        return (long) twenties * 20 + (long) fives * 5 >= amount % 50;
+    }
+
+} // end OptimalDispenser
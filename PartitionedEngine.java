@@ -0,0 +1,502 @@
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: A way of running a TransactionEngine's transactions where every account belongs
+ * to exactly one partition, and only that partition's thread ever changes it. Withdrawals,
+ * deposits, and transfers inside a partition run start to finish on that thread with no
+ * stripe locks and nothing shared to wait for, so with a core for each partition, adding
+ * partitions is expected to add throughput instead of adding contention. That has not
+ * been measured on more than one core yet. Started with TransactionEngine.partition;
+ * from then on the engine's execute, withdraw, deposit, and transfer, and BatchProcessor
+ * chunks, are all carried out here.
+ *
+ * The handoff is not free. A caller parks until the partition thread answers, so every
+ * command costs two thread switches. On one core, LoadGenerator (100,000 accounts, 4
+ * threads, no rate limit) ran about 1,280,000 operations a second with the locks, but
+ * about 220,000 partitioned one way and 170,000 four ways: about 4 microseconds of
+ * handoff and parking per command, against under 1 for the whole command with the locks.
+ * Partitioning can only pay off where the partitions have cores of their own.
+ *
+ * Assumption: While partitions run, no transaction takes the engine's stripe locks, so
+ * snapshots (which cut through those locks) are refused until the partitions are closed.
+ * Accounts are spread over the partitions by a hash of the account number. The vault is
+ * still shared: withdrawals from different partitions meet at its compare-and-set, just as
+ * they do in the locking mode, unless each machine has its own vault (see VaultFleet).
+ *
+ * Input: TransactionCommands, from any number of threads.
+ * Output: The same TransactionResults the engine's locking mode gives.
+ *
+ * Algorithm: Single writer per partition, in the style of the LMAX architecture. Each
+ * partition has a thread, a bounded queue of new commands from callers, and a bounded
+ * queue of handoffs from other partitions. A caller looks up the accounts (lookups never
+ * change anything), puts the command on the owning partition's queue, and parks until it
+ * is answered; the journal is then waited on by the caller, never by a partition.
+ *
+ * A transfer between partitions is done in two phases. The source partition checks and
+ * debits the source account and hands the transfer to the destination partition, which
+ * journals it and credits the destination. If the destination cannot take the money (its
+ * balance would overflow) it hands the transfer back and the source refunds the debit, so
+ * the money is never lost or created. The transfer is journaled only once, when it is
+ * complete, and replaying it debits and credits together; until then the debited money is
+ * simply unavailable, which can only make other transactions be refused.
+ *
+ * Partitions always take handoffs before new commands, and never block handing off: a
+ * handoff that does not fit in the other partition's queue waits in the sender's outbox,
+ * and the sender stops taking new commands until its outbox is empty. Queues are therefore
+ * bounded end to end, yet two partitions handing off to each other can never deadlock.
+ *
+ * One atomic word holds both the closed flag and the number of commands in flight (handed
+ * to a partition but not yet answered). Submitting checks the flag and counts the command
+ * in one compare-and-set, and a partition only stops once the word says closed with
+ * nothing in flight, so a transfer still being handed between partitions at close is
+ * always completed or refunded. A command turned away at close is not an error for the
+ * engine's callers: the engine waits until the partitions have stopped and runs it with
+ * its locks.
+ */
+public class PartitionedEngine implements Closeable {
+
+    /** Commands (and handoffs) each partition's queues hold. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final int MAX_BATCH = 256;
+
+    // what a partition does with a Pending it is handed
+    private static final int RUN = 0;
+    private static final int CREDIT = 1;
+    private static final int REFUND = 2;
+
+    // the top bit of the state word means closed; the rest counts commands in flight
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    // Field declarations
+    private final TransactionEngine engine;
+    private final TransactionJournal journal;
+    private final Partition[] partitions;
+    private final LongAdder crossPartition = new LongAdder();
+    private final AtomicLong state = new AtomicLong();
+
+    /*
+     * Constructs and starts the partitions. Use TransactionEngine.partition instead.
+     */
+    PartitionedEngine(TransactionEngine engine, int partitionCount, int queueCapacity) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("Need at least one partition");
+        }
+        this.engine = engine;
+        this.journal = engine.getJournal();
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i, queueCapacity);
+        }
+        for (Partition p : partitions) {
+            p.thread.start();
+        }
+    }
+
+    /**
+     * Runs one transaction on the partition that owns its account and waits until its
+     * result is durable.
+     *
+     * @param command The transaction.
+     * @param origin  The engine the transaction was given to: this engine, or one
+     *                machine's view of it, whose vault the cash comes from and goes to.
+     * @return The outcome.
+     * @throws IllegalStateException if the partitions are closed.
+     */
+    public TransactionResult execute(TransactionCommand command, TransactionEngine origin) {
+        TransactionResult result = tryExecute(command, origin);
+        if (result == null) {
+            throw new IllegalStateException("The partitions are closed");
+        }
+        return result;
+    }
+
+    /*
+     * As execute, but returns null without running the command if the partitions are
+     * closed, so the engine can run it in the locking mode once it has switched back.
+     */
+    TransactionResult tryExecute(TransactionCommand command, TransactionEngine origin) {
+        Pending p = submit(command, origin);
+        if (p == null) {
+            return null;
+        }
+        await(p);
+        if (p.sequence != 0) {
+            journal.awaitDurable(p.sequence);
+        }
+        return p.result;
+    }
+
+    /**
+     * Tells which partition owns an account.
+     *
+     * @param accountNumber The account number.
+     * @return The partition, from 0 to getPartitionCount() - 1.
+     */
+    public int partitionFor(int accountNumber) {
+        int h = accountNumber * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), partitions.length);
+    }
+
+    /**
+     * Retrieves the number of partitions.
+     *
+     * @return The partition count.
+     */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * Retrieves the number of transactions a partition has finished.
+     *
+     * @param partition The partition number.
+     * @return The transactions it completed (a transfer between partitions counts for
+     *         the partition that completed it).
+     */
+    public long getCompleted(int partition) {
+        return partitions[partition].completed;
+    }
+
+    /**
+     * Retrieves the number of transfers that were handed from one partition to another.
+     *
+     * @return The cross-partition transfers.
+     */
+    public long getCrossPartitionTransfers() {
+        return crossPartition.sum();
+    }
+
+    /**
+     * Stops the partitions once every command already queued has been answered, including
+     * transfers still being handed between partitions, and returns the engine to its
+     * locking mode. Commands submitted after this are refused.
+     */
+    @Override
+    public void close() {
+        state.getAndUpdate(s -> s | CLOSED);
+        for (Partition p : partitions) {
+            LockSupport.unpark(p.thread);
+        }
+        boolean interrupted = false;
+        for (Partition p : partitions) {
+            while (p.thread.isAlive()) {
+                try {
+                    p.thread.join();
+                } catch (InterruptedException e) {
+                    // the partitions still hold callers' money; they have to be waited for
+                    interrupted = true;
+                }
+            }
+        }
+        engine.unpartition(this);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Hands a command to its partition without waiting. Commands that need no partition
+     * (unknown accounts, vault changes) are carried out on the calling thread. Used by
+     * execute, and by BatchProcessor to keep a whole chunk in flight at once. Returns null,
+     * without running the command, if the partitions are closed.
+     */
+    Pending submit(TransactionCommand command, TransactionEngine origin) {
+        Pending p = new Pending(command, origin);
+        switch (command.getType()) {
+            case VAULT_ADD:
+            case VAULT_REMOVE: {
+                // the vault is shared and changes atomically; no account is involved
+                long[] sequence = new long[1];
+                TransactionResult result = origin.applyCommand(command, null, sequence);
+                p.sequence = sequence[0];
+                finish(p, result);
+                return p;
+            }
+            case INTERNAL_TRANSFER: {
+                User owner = engine.findOwner(command.getAccount());
+                if (owner != null) {
+                    int other = owner.getCheckingAccountNumber() == command.getAccount()
+                            ? owner.getSavingsAccountNumber() : owner.getCheckingAccountNumber();
+                    p.destination = engine.findAccount(other);
+                }
+                break;
+            }
+            case TRANSFER:
+                p.destination = engine.findAccount(command.getDestination());
+                break;
+            default:
+                break;
+        }
+        p.source = engine.findAccount(command.getAccount());
+        if (p.source == null || (command.getType() == TransactionCommand.Type.INTERNAL_TRANSFER
+                || command.getType() == TransactionCommand.Type.TRANSFER) && p.destination == null) {
+            finish(p, TransactionResult.failed(TransactionResult.Status.UNKNOWN_ACCOUNT));
+            return p;
+        }
+        // counting the command in flight and checking for close is one step, so a
+        // partition cannot stop while this command is on its way to it
+        long s;
+        do {
+            s = state.get();
+            if ((s & CLOSED) != 0) {
+                return null;
+            }
+        } while (!state.compareAndSet(s, s + 1));
+
+        Partition owner = partitions[partitionFor(command.getAccount())];
+        boolean interrupted = false;
+        while (true) {
+            try {
+                owner.commands.put(p);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        LockSupport.unpark(owner.thread);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return p;
+    }
+
+    /*
+     * Waits until a submitted command has been answered (not until it is durable).
+     */
+    void await(Pending p) {
+        boolean interrupted = false;
+        while (!p.done) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                // the command is already queued, so it has to be waited for
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void finish(Pending p, TransactionResult result) {
+        p.result = result;
+        p.done = true;
+    }
+
+    /*
+     * One command on its way through the partitions. It is only ever in one queue or
+     * in the hands of one partition at a time, so its fields need no locking; done is
+     * the volatile write that publishes them to the caller.
+     */
+    static final class Pending {
+
+        final TransactionCommand command;
+        final TransactionEngine origin;
+        final Thread caller = Thread.currentThread();
+        Account source;
+        Account destination;
+        int phase = RUN;
+        TransactionResult result;
+        long sequence;
+        volatile boolean done;
+
+        Pending(TransactionCommand command, TransactionEngine origin) {
+            this.command = command;
+            this.origin = origin;
+        }
+
+        TransactionResult getResult() {
+            return result;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+    }
+
+    /*
+     * One partition: its thread, its queues, and its outbox of handoffs waiting for room.
+     */
+    private final class Partition implements Runnable {
+
+        private final int index;
+        final BlockingQueue<Pending> commands;
+        private final BlockingQueue<Pending> handoffs;
+        private final ArrayDeque<Pending> outbox = new ArrayDeque<Pending>();
+        private final long[] sequence = new long[1];
+        final Thread thread;
+        volatile long completed;
+
+        Partition(int index, int queueCapacity) {
+            this.index = index;
+            this.commands = new ArrayBlockingQueue<Pending>(queueCapacity);
+            this.handoffs = new ArrayBlockingQueue<Pending>(queueCapacity);
+            this.thread = new Thread(this, "atm-partition-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int n = 0;
+                Pending p;
+
+                // finish transactions already under way before starting new ones
+                while (n < MAX_BATCH && (p = handoffs.poll()) != null) {
+                    handle(p);
+                    n++;
+                }
+                flushOutbox();
+                if (outbox.isEmpty()) {
+                    while (n < 2 * MAX_BATCH && (p = commands.poll()) != null) {
+                        handle(p);
+                        n++;
+                    }
+                    flushOutbox();
+                }
+
+                if (n == 0) {
+                    if (!outbox.isEmpty()) {
+                        // waiting for room in another partition, which is busy draining
+                        Thread.yield();
+                    } else if (state.get() == CLOSED) {
+                        // closed, and nothing is in flight anywhere, so nothing can reach us
+                        return;
+                    } else {
+                        LockSupport.parkNanos(this, 1_000_000);
+                    }
+                }
+            }
+        }
+
+        private void handle(Pending p) {
+            switch (p.phase) {
+                case CREDIT:
+                    credit(p);
+                    return;
+                case REFUND:
+                    // the destination could not take the money: give it back
+                    p.source.credit(p.command.getAmountCents());
+                    reply(p, TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT));
+                    return;
+                default:
+                    break;
+            }
+            TransactionCommand c = p.command;
+            switch (c.getType()) {
+                case WITHDRAW:
+                case DEPOSIT:
+                    // no other thread changes this account, so the engine's own rules run
+                    // without its stripe lock
+                    sequence[0] = 0;
+                    TransactionResult result = p.origin.applyCommand(c, p.source, sequence, true);
+                    p.sequence = sequence[0];
+                    reply(p, result);
+                    return;
+                default:
+                    transfer(p);
+            }
+        }
+
+        /*
+         * The first phase of a transfer, on the source account's partition.
+         */
+        private void transfer(Pending p) {
+            long cents = p.command.getAmountCents();
+            if (cents < 0) {
+                reply(p, TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT));
+                return;
+            }
+            if (p.source.getBalanceCents() < cents) {
+                reply(p, TransactionResult.failed(TransactionResult.Status.INSUFFICIENT_FUNDS));
+                return;
+            }
+            if (partitionFor(p.destination.getAccountNumber()) == index) {
+                // both accounts are ours: one step, as in the locking mode
+                credit(p);
+                return;
+            }
+            p.source.debit(cents);
+            p.phase = CREDIT;
+            crossPartition.increment();
+            handOff(p, partitions[partitionFor(p.destination.getAccountNumber())]);
+        }
+
+        /*
+         * Completes a transfer on the destination account's partition: for a transfer
+         * handed over, the source has already been debited.
+         */
+        private void credit(Pending p) {
+            long cents = p.command.getAmountCents();
+            boolean handedOver = p.phase == CREDIT;
+            if (p.source.getAccountNumber() != p.destination.getAccountNumber()) {
+                try {
+                    Money.addCents(p.destination.getBalanceCents(), cents);
+                } catch (ArithmeticException e) {
+                    // the destination balance would overflow
+                    if (handedOver) {
+                        p.phase = REFUND;
+                        handOff(p, partitions[partitionFor(p.source.getAccountNumber())]);
+                    } else {
+                        reply(p, TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT));
+                    }
+                    return;
+                }
+            }
+            if (journal != null) {
+                p.sequence = journal.append(TransactionJournal.TRANSFER, p.source.getAccountNumber(),
+                        p.destination.getAccountNumber(), cents, Bills.NONE);
+            }
+            if (!handedOver) {
+                p.source.debit(cents);
+            }
+            p.destination.credit(cents);
+            reply(p, TransactionResult.success());
+        }
+
+        private void handOff(Pending p, Partition to) {
+            if (!outbox.isEmpty() || !to.handoffs.offer(p)) {
+                outbox.addLast(p);
+            } else {
+                LockSupport.unpark(to.thread);
+            }
+        }
+
+        /*
+         * Sends on what the outbox holds, in order, as far as the other partitions have room.
+         */
+        private void flushOutbox() {
+            Pending p;
+            while ((p = outbox.peekFirst()) != null) {
+                Partition to = partitions[partitionFor(p.phase == REFUND
+                        ? p.source.getAccountNumber() : p.destination.getAccountNumber())];
+                if (!to.handoffs.offer(p)) {
+                    return;
+                }
+                outbox.pollFirst();
+                LockSupport.unpark(to.thread);
+            }
+        }
+
+        private void reply(Pending p, TransactionResult result) {
+            completed++;
+            finish(p, result);
+            LockSupport.unpark(p.caller);
+            if (state.decrementAndGet() == CLOSED) {
+                // the last command in flight after close: let the idle partitions stop
+                for (Partition other : partitions) {
+                    LockSupport.unpark(other.thread);
+                }
+            }
+        }
+    }
+
+} // end PartitionedEngine
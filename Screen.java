@@ -1,4 +1,6 @@
+import java.io.PrintStream;
 import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 
 /*
@@ -27,7 +29,8 @@ import java.util.Scanner;
 
 public class Screen {
 
-    Scanner scan = new Scanner(System.in);
+    Scanner scan;
+    private final PrintStream out;
 
     /**
      * Construct Screen object
@@ -35,7 +38,19 @@ public class Screen {
      * @param scan that reads text from a character-input stream
      */
     public Screen(Scanner scan) {
+        this(scan, System.out);
+    }
+
+    /**
+     * Construct Screen object that prints somewhere other than the console,
+     * such as the socket of a remote terminal.
+     * 
+     * @param scan that reads text from a character-input stream
+     * @param out  stream the menus and messages are printed to
+     */
+    public Screen(Scanner scan, PrintStream out) {
         this.scan = scan;
+        this.out = out;
     }
 
     /* 
@@ -43,31 +58,45 @@ public class Screen {
      * and then provides an interface for selecting ATM operations.
      * If the user is an operator, additional menu options for vault management are available.
      * Input validation is included to ensure correct data types are entered.
+     * Returns when the user quits, exits, or the input runs out, so the caller can shut 
+     * down cleanly (or, for a remote terminal, just close the session).
      * input: Connection object (c) which handles authentication and transactions.
      * output: Messages confirming successful transactions, errors for invalid input.
      */
     public void run(Connection c) {
+        try {
+            session(c);
+        } catch (NoSuchElementException e) {
+            // the input was closed, which ends the session like typing q
+        }
+        out.flush();
+    } //end run method 
+
+    /*
+     * The login and menu loops of run. Returns when the user quits or exits.
+     */
+    private void session(Connection c) {
 
         boolean atmLoop = true;
 
         //Primary ATM program loop 
         while (atmLoop) {
             
-            System.out.println(
+            out.println(
                     "Please enter the name listed under your account (first name only, or type letter q to quit): ");
             String username = scan.nextLine();
             if (username.equals("q")) //logif for program exit 
-                System.exit(0);
+                return;
             //check that username is empty 
             if (username.isEmpty()) {
-                System.out.println("Error. Name cannot be empty. Please try again.");
+                out.println("Error. Name cannot be empty. Please try again.");
                 continue;
             }
-            System.out.println("Please enter your account password: ");
+            out.println("Please enter your account password: ");
             String password = scan.nextLine();
             //check that password is empty
             if (password.isEmpty()) {
-                System.out.println("Error. Password cannot be empty. Please try again.");
+                out.println("Error. Password cannot be empty. Please try again.");
                 continue;
             }
 
@@ -76,8 +105,8 @@ public class Screen {
 
             //if user has valid credentials 
             if (loginSuccussful) {
-                System.out.println("Login was successful.\n");
-                System.out.println("Welcome to the ATM system.\n");
+                out.println("Login was successful.\n");
+                out.println("Welcome to the ATM system.\n");
 
                 boolean more = true;
                 //loop for the ATM menu 
@@ -150,15 +179,15 @@ public class Screen {
                                         } 
                                         //exit menu option 
                                         else if (operatorInput == 4) {
-                                            System.out.println("Exiting the operator menu\n");
+                                            out.println("Exiting the operator menu\n");
                                             moreOperator = false;
                                         } 
                                         //error checking 
                                         else {
-                                            System.out.println("Error: please type a number 1-4");
+                                            out.println("Error: please type a number 1-4");
                                         }
                                     } catch (InputMismatchException e) { //error checking
-                                        System.out.println("Invalid input! Please enter a valid number.");
+                                        out.println("Invalid input! Please enter a valid number.");
                                         scan.nextLine(); // Clear invalid input
                                     }
 
@@ -173,26 +202,26 @@ public class Screen {
                         } 
                         //exit program 
                         else if (input == 9)
-                            System.exit(0);
+                            return;
 
                         //error checking                          
                         else {
-                            System.out.println("Invalid input! Please enter a valid number. ");
+                            out.println("Invalid input! Please enter a valid number. ");
                         }
                     } catch (InputMismatchException e) {//error checking
-                        System.out.println("Invalid input! Please enter a valid number.");
+                        out.println("Invalid input! Please enter a valid number.");
                         scan.nextLine(); // Clear invalid input
                     }
 
                 } // end while(more)
             } // end if
             else {//error checking
-                System.out.println("Login Failed. Please try again.");
+                out.println("Login Failed. Please try again.");
                 atmLoop = true;
             }
         } // end while(atmLoop)
 
-    } //end run method 
+    } //end session method 
 
      /*
      * Displays the ATM user menu with available operations. Users can select 
@@ -202,17 +231,17 @@ public class Screen {
      */
     private void outputUserMenu() {
 
-        System.out.println("\nUser menu options: ");
-        System.out.println("    1.) withdraw money from a checking or savings account");
-        System.out.println("    2.) deposit money into a checking or savings account");
-        System.out.println("    3.) transfer money between checking/savings accounts");
-        System.out.println("    4.) transfer money to checking/savings account of another customer");
-        System.out.println("    5.) display current account balance");
-        System.out.println("    6.) display current vault balance");
-        System.out.println("    7.) Enter operator mode");
-        System.out.println("    8.) Log out of ATM system");
-        System.out.println("    9.) Exit ATM program");
-        System.out.println("Please type a number 1-9: ");
+        out.println("\nUser menu options: ");
+        out.println("    1.) withdraw money from a checking or savings account");
+        out.println("    2.) deposit money into a checking or savings account");
+        out.println("    3.) transfer money between checking/savings accounts");
+        out.println("    4.) transfer money to checking/savings account of another customer");
+        out.println("    5.) display current account balance");
+        out.println("    6.) display current vault balance");
+        out.println("    7.) Enter operator mode");
+        out.println("    8.) Log out of ATM system");
+        out.println("    9.) Exit ATM program");
+        out.println("Please type a number 1-9: ");
     }
 
     /*
@@ -221,12 +250,12 @@ public class Screen {
     * output: Printed menu with numbered options for operator-specific actions.
     */
     private void outputOperatorMenu() {
-        System.out.println("\nOperator menu options: ");
-        System.out.println("    1.) Display the number of each type of bill");
-        System.out.println("    2.) Put a given number of money bills in the ATM");
-        System.out.println("    3.) Remove a given number of money bills from the ATM");
-        System.out.println("    4.) Exit operator mode");
-        System.out.println("Please type a number 1-4: ");
+        out.println("\nOperator menu options: ");
+        out.println("    1.) Display the number of each type of bill");
+        out.println("    2.) Put a given number of money bills in the ATM");
+        out.println("    3.) Remove a given number of money bills from the ATM");
+        out.println("    4.) Exit operator mode");
+        out.println("Please type a number 1-4: ");
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,335 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Serves ATM sessions to remote terminals over TCP, so one program can hold many
+ * terminals at once instead of the single console Screen. A terminal connects, and sees
+ * exactly what the console shows: the login prompt, the user menu, and the operator menu.
+ * Every session runs against the one shared TransactionEngine.
+ *
+ * Assumption: The protocol is plain text lines, one answer per prompt, the same as typing
+ * at the console (telnet or nc work as terminals). "q" at the login prompt, menu item 9,
+ * or closing the connection ends the session. Virtual threads are used when the Java
+ * runtime has them (Java 21 and later); otherwise each session gets a platform thread with
+ * a small stack, which still holds thousands of idle terminals.
+ *
+ * Input: A port to listen on and the engine to run transactions on.
+ * Output: One Screen and Connection per terminal, and counts of sessions and requests.
+ *
+ * Algorithm: Thread per session. One acceptor thread accepts sockets and hands each to the
+ * executor, which runs Screen.run with a Scanner on the socket's input and a PrintStream on
+ * its output. The output is buffered and only flushed when the session is about to wait
+ * for the terminal's next line, so a whole menu goes out in one write instead of one per
+ * line. A blocked session costs a parked thread and its buffers, nothing more. Counters
+ * are updated without locks so they never slow sessions down.
+ */
+public class SessionServer implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    // Field declarations
+    private final TransactionEngine engine;
+    private final ServerSocket server;
+    private final ExecutorService sessions;
+    private final boolean virtualThreads;
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    // metrics
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private long lastRequests;
+    private long lastNanos = startNanos;
+
+    /**
+     * Opens the listening socket. Call serve or start to begin accepting terminals.
+     *
+     * @param engine The engine shared by every session.
+     * @param port   The TCP port to listen on, or 0 for any free port.
+     * @throws IOException if the port cannot be opened.
+     */
+    public SessionServer(TransactionEngine engine, int port) throws IOException {
+        this.engine = engine;
+        this.server = new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(new InetSocketAddress(port), 1024);
+
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.sessions = virtual != null ? virtual : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(null, r, "atm-session", PLATFORM_STACK_SIZE);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Accepts terminals on the calling thread until the server is closed.
+     */
+    public void serve() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Accept failed: " + e);
+                }
+                continue;
+            }
+            accepted.incrementAndGet();
+            try {
+                sessions.execute(() -> session(socket));
+            } catch (RuntimeException e) {
+                // the executor was shut down by close
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Accepts terminals on a background thread.
+     *
+     * @return The acceptor thread.
+     */
+    public Thread start() {
+        Thread acceptor = new Thread(this::serve, "atm-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return acceptor;
+    }
+
+    /**
+     * Prints the session and request counts every so often.
+     *
+     * @param intervalSeconds Seconds between reports.
+     * @return The scheduler, which can be shut down to stop reporting.
+     */
+    public ScheduledExecutorService reportEvery(long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atm-server-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> System.out.println(report()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /**
+     * Describes the sessions and the request rate since the previous report.
+     *
+     * @return One line of metrics.
+     */
+    public synchronized String report() {
+        long now = System.nanoTime();
+        long total = requests.sum();
+        double seconds = (now - lastNanos) / 1e9;
+        double rate = seconds > 0 ? (total - lastRequests) / seconds : 0;
+        lastRequests = total;
+        lastNanos = now;
+        return String.format("Sessions: %d active, %d peak, %d accepted (%s threads) | requests: %d, %.0f/s"
+                + " | sent: %d KB | up %.0f s",
+                active.get(), peak.get(), accepted.get(), virtualThreads ? "virtual" : "platform",
+                total, rate, bytesOut.sum() / 1024, (now - startNanos) / 1e9);
+    }
+
+    /**
+     * Retrieves the port the server listens on.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Tells whether sessions run on virtual threads.
+     *
+     * @return true on a Java runtime with virtual threads.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Retrieves the number of sessions currently connected.
+     *
+     * @return The active sessions.
+     */
+    public int getActiveSessions() {
+        return active.get();
+    }
+
+    /**
+     * Retrieves the most sessions that were connected at the same time.
+     *
+     * @return The peak number of sessions.
+     */
+    public int getPeakSessions() {
+        return peak.get();
+    }
+
+    /**
+     * Retrieves the number of terminals accepted since the server started.
+     *
+     * @return The accepted connections.
+     */
+    public long getAcceptedSessions() {
+        return accepted.get();
+    }
+
+    /**
+     * Retrieves the number of lines (answers to prompts) received from all terminals.
+     *
+     * @return The requests received.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * Stops accepting terminals and disconnects every session.
+     *
+     * @throws IOException if the listening socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        sessions.shutdown();
+        for (Socket s : open) {
+            closeQuietly(s);
+        }
+    }
+
+    /*
+     * Runs one terminal's session until it quits or disconnects.
+     */
+    private void session(Socket socket) {
+        open.add(socket);
+        int now = active.incrementAndGet();
+        peak.accumulateAndGet(now, Math::max);
+        try {
+            socket.setTcpNoDelay(true);
+            PrintStream out = new PrintStream(new BufferedOutputStream(
+                    new CountingOutput(socket.getOutputStream()), BUFFER_SIZE), false, StandardCharsets.UTF_8);
+            Scanner scan = new Scanner(new FlushingInput(socket.getInputStream(), out), StandardCharsets.UTF_8);
+
+            Screen screen = new Screen(scan, out);
+            Connection connection = new Connection(screen, scan, out, engine);
+            screen.run(connection);
+            out.flush();
+        } catch (SocketException e) {
+            // the terminal went away
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                System.err.println("Session failed: " + e);
+            }
+        } finally {
+            active.decrementAndGet();
+            open.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor on runtimes that have it, found by
+     * reflection so the program still compiles and runs on Java 17.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+    /*
+     * The socket's input. Before blocking for more bytes it flushes the session's output,
+     * so the terminal sees the prompt it is expected to answer. Counts the lines read.
+     */
+    private final class FlushingInput extends FilterInputStream {
+
+        private final PrintStream out;
+
+        FlushingInput(InputStream in, PrintStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (in.available() == 0) {
+                out.flush();
+            }
+            int n = in.read(b, off, len);
+            for (int i = off; i < off + n; i++) {
+                if (b[i] == '\n') {
+                    requests.increment();
+                }
+            }
+            return n;
+        }
+    }
+
+    /*
+     * The socket's output, counting the bytes sent. Sits under the session's buffer, so
+     * it sees one write per flush.
+     */
+    private final class CountingOutput extends FilterOutputStream {
+
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesOut.add(len);
+        }
+    }
+
+} // end SessionServer
@@ -0,0 +1,194 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The vault of one ATM in a VaultFleet. It behaves like any other Vault, so a
+ * TransactionEngine and Connection can use it unchanged, but every change is carried out
+ * by the thread of the fleet shard that owns the machine, never by the caller.
+ *
+ * Assumption: Created by VaultFleet.addMachine. As with AtomicVault, a denomination holds
+ * at most 65,535 bills. Changes block until the shard has made them; reads never block.
+ *
+ * Input: The same calls as Vault, from any number of threads.
+ * Output: The same results as Vault. Reads see the counts as of the shard's latest change.
+ *
+ * Algorithm: The four bill counts are packed 16 bits each into one long, written only by
+ * the owning shard's thread and published with a volatile write, so readers always see a
+ * consistent set of counts without locking. Changes are sent to the shard as requests and
+ * the caller waits for the answer; the shard works through them one at a time, so a
+ * dispense plans and removes its bills without any possibility of interference.
+ */
+public class ShardedVault extends Vault {
+
+    static final int HUNDREDS_SHIFT = 48;
+    static final int FIFTIES_SHIFT = 32;
+    static final int TWENTIES_SHIFT = 16;
+    static final int FIVES_SHIFT = 0;
+
+    // Field declarations
+    private final int atmId;
+    private final VaultFleet.Shard shard;
+
+    // packed bill counts: hundreds | fifties | twenties | fives; written only by the shard
+    volatile long state;
+
+    /*
+     * Constructs the vault of one machine. Use VaultFleet.addMachine instead.
+     */
+    ShardedVault(int atmId, VaultFleet.Shard shard, long state) {
+        super(0, 0, 0, 0);
+        this.atmId = atmId;
+        this.shard = shard;
+        this.state = state;
+    }
+
+    /**
+     * Retrieves the id of the machine this vault belongs to.
+     *
+     * @return The ATM id.
+     */
+    public int getAtmId() {
+        return atmId;
+    }
+
+    /**
+     * Retrieves the fleet shard whose thread owns this vault.
+     *
+     * @return The shard number.
+     */
+    public int getShard() {
+        return shard.getIndex();
+    }
+
+    /**
+     * Calculates the total balance of cash stored in the vault.
+     *
+     * @return The total dollar amount available in the vault.
+     */
+    @Override
+    public int calculateBalance() {
+        long s = state;
+        return hundreds(s) * 100 + fifties(s) * 50 + twenties(s) * 20 + fives(s) * 5;
+    }
+
+    @Override
+    public int getHundredDollarBills() {
+        return hundreds(state);
+    }
+
+    @Override
+    public void setHundredDollarBills(int hundredDollarBills) {
+        shard.call(VaultFleet.SET, this, hundredDollarBills, HUNDREDS_SHIFT, null, null);
+    }
+
+    @Override
+    public int getFiftyDollarBills() {
+        return fifties(state);
+    }
+
+    @Override
+    public void setFiftyDollarBills(int fiftyDollarBills) {
+        shard.call(VaultFleet.SET, this, fiftyDollarBills, FIFTIES_SHIFT, null, null);
+    }
+
+    @Override
+    public int getTwentyDollarBills() {
+        return twenties(state);
+    }
+
+    @Override
+    public void setTwentyDollarBills(int twentyDollarBills) {
+        shard.call(VaultFleet.SET, this, twentyDollarBills, TWENTIES_SHIFT, null, null);
+    }
+
+    @Override
+    public int getFiveDollarBills() {
+        return fives(state);
+    }
+
+    @Override
+    public void setFiveDollarBills(int fiveDollarBills) {
+        shard.call(VaultFleet.SET, this, fiveDollarBills, FIVES_SHIFT, null, null);
+    }
+
+    /**
+     * Adds a bundle of bills to the vault.
+     *
+     * @param bills The bills to add.
+     * @throws IllegalStateException if a denomination would exceed 65,535 bills.
+     */
+    @Override
+    public void addBills(Bills bills) {
+        shard.call(VaultFleet.ADD, this, 0, 0, bills, null);
+    }
+
+    /**
+     * Removes a bundle of bills from the vault, but only if the vault holds enough of
+     * every denomination.
+     *
+     * @param bills The bills to remove.
+     * @return true if the bills were removed, false if the vault is short.
+     */
+    @Override
+    public boolean removeBills(Bills bills) {
+        return shard.call(VaultFleet.REMOVE, this, 0, 0, bills, null) != null;
+    }
+
+    /**
+     * Asks the given strategy which bills to hand out for a withdrawal and removes them,
+     * on the shard's thread.
+     *
+     * @param amount   The dollar amount to dispense.
+     * @param strategy Chooses the bills to hand out.
+     * @return The bills removed, or null if the vault does not hold the right bills.
+     */
+    @Override
+    public Bills dispense(int amount, DispenseStrategy strategy) {
+        return shard.call(VaultFleet.DISPENSE, this, amount, 0, null, strategy);
+    }
+
+    /**
+     * Returns a formatted string representation of the vault contents, taken from one
+     * consistent snapshot of the counts.
+     *
+     * @return A string displaying the count of each bill denomination.
+     */
+    @Override
+    public String toString() {
+        long s = state;
+        return "Vault Bills (ATM " + atmId + "):\n   Hundred Dollar Bills ($100) = " + hundreds(s)
+                + "\n   Fifty Dollar Bills ($50) = " + fifties(s) + "\n   Twenty Dollar Bills ($20) = " + twenties(s)
+                + "\n   Five Dollar Bills ($5) = " + fives(s) + "\n";
+    }
+
+    static long pack(int hundreds, int fifties, int twenties, int fives) {
+        checkCount(hundreds);
+        checkCount(fifties);
+        checkCount(twenties);
+        checkCount(fives);
+        return ((long) hundreds << HUNDREDS_SHIFT) | ((long) fifties << FIFTIES_SHIFT)
+                | ((long) twenties << TWENTIES_SHIFT) | ((long) fives << FIVES_SHIFT);
+    }
+
+    static void checkCount(int count) {
+        if (count < 0 || count > AtomicVault.MAX_BILLS) {
+            throw new IllegalStateException("Bill count out of range (0-" + AtomicVault.MAX_BILLS + "): " + count);
+        }
+    }
+
+    static int hundreds(long s) {
+        return (int) (s >>> HUNDREDS_SHIFT) & 0xFFFF;
+    }
+
+    static int fifties(long s) {
+        return (int) (s >>> FIFTIES_SHIFT) & 0xFFFF;
+    }
+
+    static int twenties(long s) {
+        return (int) (s >>> TWENTIES_SHIFT) & 0xFFFF;
+    }
+
+    static int fives(long s) {
+        return (int) (s >>> FIVES_SHIFT) & 0xFFFF;
+    }
+
+} // end ShardedVault
@@ -0,0 +1,516 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: A compact binary image of every user, every account balance, and the vault's
+ * bill counts at one moment. With only the TransactionJournal, a restart replays the whole
+ * history, and that gets slower every day. A restart now loads the latest snapshot and
+ * replays only the journal segments written after it. Older segments are deleted once a
+ * snapshot covers them.
+ *
+ * Assumption: Snapshots are written to the journal directory, one at a time. Users do not
+ * change while the system runs; balances and the vault do, and transactions keep running
+ * while a snapshot is written.
+ *
+ * Input: The running TransactionEngine, or the directory to load from.
+ * Output: snapshot-NNNNNN.snap files, where NNNNNN is the first journal segment not covered
+ * by the snapshot, and the users, accounts, and vault counts read back from them.
+ *
+ * Algorithm: A short cut followed by copy-on-write. The snapshot closes the
+ * TransferEngine's checkpoint gate just long enough to start a new journal segment and read
+ * the vault; every transaction either finished before that moment or starts after it.
+ * After reopening the gate, the first change to each account saves the balance it had at
+ * the cut, and the snapshot reads those saved balances (or the current balance for
+ * accounts nobody touched) as it goes through the accounts. The file is written to a
+ * temporary name, checked with a CRC32, forced to disk, and then renamed into place, so
+ * a crash while writing leaves the previous snapshot in use.
+ *
+ * Loading checks the CRC32 of the whole file but keeps only the users and the vault. The
+ * accounts are read from the file again when they are asked for, either as a list or
+ * straight into an AccountSink, so a store kept off the heap is filled without an Account
+ * object per row.
+ */
+public final class Snapshot {
+
+    private static final long MAGIC = 0x31504E534D5441L; // "ATMSNP1"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte TYPE_OTHER = 0;
+    private static final byte TYPE_CHECKING = 1;
+    private static final byte TYPE_SAVINGS = 2;
+
+    // Field declarations for the loaded state
+    private final long segment;
+    private final Bills vault;
+    private final List<User> users;
+    private final Path file;
+    private final long accountsAt;  // file offset of the first account
+    private final int accountCount;
+
+    /*
+     * Holds a loaded snapshot. Use loadLatest.
+     */
+    private Snapshot(long segment, Bills vault, List<User> users, Path file, long accountsAt, int accountCount) {
+        this.segment = segment;
+        this.vault = vault;
+        this.users = users;
+        this.file = file;
+        this.accountsAt = accountsAt;
+        this.accountCount = accountCount;
+    }
+
+    /**
+     * Retrieves the first journal segment the snapshot does not cover. Replay
+     * starts from this segment.
+     *
+     * @return The segment number.
+     */
+    public long getSegment() {
+        return segment;
+    }
+
+    /**
+     * Retrieves the vault's bill counts at the time of the snapshot.
+     *
+     * @return The bills in the vault.
+     */
+    public Bills getVault() {
+        return vault;
+    }
+
+    /**
+     * Retrieves the users in the snapshot.
+     *
+     * @return The users.
+     */
+    public List<User> getUsers() {
+        return users;
+    }
+
+    /**
+     * Retrieves the number of accounts in the snapshot.
+     *
+     * @return The number of accounts.
+     */
+    public int getAccountCount() {
+        return accountCount;
+    }
+
+    /**
+     * Reads the accounts in the snapshot, with their balances at the time of the
+     * snapshot. Like loadAccounts, this reads the file again, so it has to be called
+     * before a newer snapshot deletes it.
+     *
+     * @return The accounts.
+     * @throws IOException if the snapshot can no longer be read.
+     */
+    public List<Account> getAccounts() throws IOException {
+        List<Account> accounts = new ArrayList<Account>(accountCount);
+        loadAccounts((number, type, cents) -> accounts.add(new Account(type, number, Money.ofCents(cents))));
+        return accounts;
+    }
+
+    /**
+     * Puts every account in the snapshot, with its balance at the time of the snapshot,
+     * straight into a sink such as an AccountTable or OffHeapAccountLedger.
+     *
+     * @param sink The sink the accounts are put into.
+     * @throws IOException if the snapshot can no longer be read.
+     */
+    public void loadAccounts(AccountSink sink) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            in.position(accountsAt);
+            readAccounts(new Input(in), accountCount, sink);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the engine's state while transactions keep running, then
+     * deletes the older snapshots and the journal segments the new one covers.
+     *
+     * @param engine    The running engine.
+     * @param directory The directory to write to, normally the journal directory.
+     * @return The snapshot file.
+     * @throws IOException if the snapshot cannot be written.
+     * @throws IllegalStateException if the engine is partitioned or pipelined.
+     */
+    public static Path write(TransactionEngine engine, Path directory) throws IOException {
+        if (engine.getPartitions() != null) {
+            // partitions change accounts without the locks the cut goes through
+            throw new IllegalStateException("Snapshots cannot be written while the engine is partitioned");
+        }
+        if (engine.getPipeline() != null) {
+            // so does the pipeline's apply stage
+            throw new IllegalStateException("Snapshots cannot be written while the engine is pipelined");
+        }
+        TransferEngine transfers = engine.getTransferEngine();
+        TransactionJournal journal = engine.getJournal();
+        Vault v = engine.getVault();
+        long[] cut = new long[5]; // segment, then the vault's bill counts
+        long previous = latestNumber(directory);
+
+        Files.createDirectories(directory);
+        try {
+            transfers.cut(() -> {
+                try {
+                    cut[0] = journal != null ? journal.rotate() : previous + 1;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                cut[1] = v.getHundredDollarBills();
+                cut[2] = v.getFiftyDollarBills();
+                cut[3] = v.getTwentyDollarBills();
+                cut[4] = v.getFiveDollarBills();
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Path temp = directory.resolve(PREFIX + "writing" + SUFFIX + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output o = new Output(out);
+            o.putLong(MAGIC);
+            o.putInt(VERSION);
+            o.putLong(cut[0]);
+            for (int i = 1; i <= 4; i++) {
+                o.putInt((int) cut[i]);
+            }
+
+            UserDirectory users = engine.getUsers();
+            o.putInt(users.size());
+            users.forEach(u -> {
+                o.putString(u.getName());
+                o.putInt(u.getCheckingAccountNumber());
+                o.putInt(u.getSavingsAccountNumber());
+                o.putString(u.getPassword());
+                o.putString(u.getRole());
+            });
+
+            AccountStore accounts = engine.getAccounts();
+            o.putInt(accounts.size());
+            accounts.forEach(a -> {
+                o.putInt(a.getAccountNumber());
+                byte type = typeCode(a.getAccountType());
+                o.putByte(type);
+                if (type == TYPE_OTHER) {
+                    o.putString(a.getAccountType());
+                }
+                o.putLong(transfers.balanceAtCut(a));
+            });
+
+            o.finish();
+            out.force(true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            transfers.endCut();
+        }
+
+        Path file = directory.resolve(String.format("%s%06d%s", PREFIX, cut[0], SUFFIX));
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // compaction: everything older is covered by the new snapshot
+        for (Path p : snapshots(directory)) {
+            if (!p.equals(file)) {
+                Files.delete(p);
+            }
+        }
+        if (journal != null) {
+            journal.deleteSegmentsBefore(cut[0]);
+        }
+        return file;
+    }
+
+    /**
+     * Loads the latest snapshot in the directory.
+     *
+     * @param directory The directory holding the snapshots.
+     * @return The snapshot, or null if there is none.
+     * @throws IOException if the snapshot cannot be read or is damaged.
+     */
+    public static Snapshot loadLatest(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return null;
+        }
+        List<Path> found = snapshots(directory);
+        if (found.isEmpty()) {
+            return null;
+        }
+        Path file = found.get(found.size() - 1);
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            Input i = new Input(in);
+            if (i.getLong() != MAGIC || i.getInt() != VERSION) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            long segment = i.getLong();
+            Bills vault = new Bills(i.getInt(), i.getInt(), i.getInt(), i.getInt());
+
+            int userCount = i.getInt();
+            List<User> users = new ArrayList<User>(userCount);
+            for (int n = 0; n < userCount; n++) {
+                users.add(new User(i.getString(), i.getInt(), i.getInt(), i.getString(), i.getString()));
+            }
+
+            // the accounts are only read through here to check the CRC
+            int accountCount = i.getInt();
+            long accountsAt = i.position();
+            readAccounts(i, accountCount, null);
+
+            i.checkCrc(file);
+            return new Snapshot(segment, vault, users, file, accountsAt, accountCount);
+        }
+    }
+
+    /*
+     * Reads the given number of accounts, handing each to the sink (if there is one).
+     */
+    private static void readAccounts(Input i, int count, AccountSink sink) throws IOException {
+        for (int n = 0; n < count; n++) {
+            int number = i.getInt();
+            byte type = i.getByte();
+            String name = type == TYPE_CHECKING ? "Checking" : type == TYPE_SAVINGS ? "Savings" : i.getString();
+            long cents = i.getLong();
+            if (sink != null) {
+                sink.put(number, name, cents);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot at a fixed interval on a background thread.
+     *
+     * @param engine          The running engine.
+     * @param directory       The directory to write to, normally the journal directory.
+     * @param intervalSeconds The time between snapshots.
+     * @return The scheduler, which can be shut down to stop taking snapshots.
+     */
+    public static ScheduledExecutorService schedule(TransactionEngine engine, Path directory, long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                write(engine, directory);
+            } catch (IOException | RuntimeException e) {
+                // the journal still holds everything, so the next snapshot can try again
+                System.err.println("Snapshot failed: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /*
+     * Snapshot files in the directory, oldest first.
+     */
+    private static List<Path> snapshots(Path directory) throws IOException {
+        List<Path> found = new ArrayList<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "[0-9]*" + SUFFIX)) {
+            for (Path p : files) {
+                found.add(p);
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    private static long latestNumber(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        List<Path> found = snapshots(directory);
+        if (found.isEmpty()) {
+            return 0;
+        }
+        String name = found.get(found.size() - 1).getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static byte typeCode(String accountType) {
+        if ("Checking".equals(accountType)) {
+            return TYPE_CHECKING;
+        }
+        if ("Savings".equals(accountType)) {
+            return TYPE_SAVINGS;
+        }
+        return TYPE_OTHER;
+    }
+
+    /*
+     * Buffered writer over a channel that keeps a running CRC32 of everything written.
+     * Errors are thrown unchecked so it can be used from forEach actions.
+     */
+    private static final class Output {
+        private final FileChannel out;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+
+        Output(FileChannel out) {
+            this.out = out;
+        }
+
+        void putByte(byte b) {
+            room(1);
+            buffer.put(b);
+        }
+
+        void putInt(int i) {
+            room(4);
+            buffer.putInt(i);
+        }
+
+        void putLong(long l) {
+            room(8);
+            buffer.putLong(l);
+        }
+
+        void putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            for (int start = 0; start < bytes.length; start += BUFFER_SIZE) {
+                int length = Math.min(BUFFER_SIZE, bytes.length - start);
+                room(length);
+                buffer.put(bytes, start, length);
+            }
+        }
+
+        void finish() {
+            drain();
+            long value = crc.getValue();
+            buffer.putLong(value);
+            buffer.flip();
+            write();
+        }
+
+        private void room(int bytes) {
+            if (buffer.remaining() < bytes) {
+                drain();
+            }
+        }
+
+        private void drain() {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            write();
+            buffer.clear();
+        }
+
+        private void write() {
+            try {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+     * Buffered reader over a channel that keeps a running CRC32 of everything read.
+     */
+    private static final class Input {
+        private final FileChannel in;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private int counted; // bytes at the front of the buffer already in the CRC
+
+        Input(FileChannel in) {
+            this.in = in;
+            buffer.flip();
+        }
+
+        byte getByte() throws IOException {
+            need(1);
+            return buffer.get();
+        }
+
+        int getInt() throws IOException {
+            need(4);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            need(8);
+            return buffer.getLong();
+        }
+
+        /*
+         * Offset in the file of the next byte to be read.
+         */
+        long position() throws IOException {
+            return in.position() - buffer.remaining();
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            if (length < 0) {
+                throw new IOException("Damaged snapshot");
+            }
+            byte[] bytes = new byte[length];
+            for (int start = 0; start < length; start += BUFFER_SIZE) {
+                int part = Math.min(BUFFER_SIZE, length - start);
+                need(part);
+                buffer.get(bytes, start, part);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void checkCrc(Path file) throws IOException {
+            count();
+            long expected = crc.getValue();
+            need(8);
+            if (buffer.getLong() != expected) {
+                throw new IOException("Damaged snapshot: " + file);
+            }
+        }
+
+        /*
+         * Makes sure the buffer holds at least the given number of unread bytes. The
+         * bytes already read are added to the CRC before they are discarded.
+         */
+        private void need(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            count();
+            buffer.compact();
+            counted = 0;
+            while (buffer.position() < bytes) {
+                if (in.read(buffer) < 0) {
+                    throw new IOException("Snapshot ends early");
+                }
+            }
+            buffer.flip();
+        }
+
+        private void count() {
+            crc.update(buffer.duplicate().limit(buffer.position()).position(counted));
+            counted = buffer.position();
+        }
+    }
+
+} // end Snapshot
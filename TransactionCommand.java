@@ -0,0 +1,180 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: One transaction to run, described as data instead of a series of prompts.
+ * Commands can be built by a program, read from an end-of-day file, or sent over the
+ * network, and then handed to the TransactionEngine one at a time or to a BatchProcessor
+ * by the million.
+ *
+ * Assumption: A command is created once and never changed. Amounts are in cents;
+ * withdrawals must still be a whole multiple of $5, since that is all the vault can pay.
+ *
+ * Input: The kind of transaction, the account numbers, the amount, and the bills.
+ * Output: Getters for each part of the command.
+ *
+ * Algorithm: Immutable value holder built through one static factory per kind of
+ * transaction, so each kind only takes the fields it uses.
+ */
+public final class TransactionCommand {
+
+    /**
+     * Every kind of transaction the ATM can run.
+     */
+    public enum Type {
+        /** Cash out of an account (account, amount). */
+        WITHDRAW,
+        /** Bills into an account (account, bills). */
+        DEPOSIT,
+        /** Money from an account to the owner's other account (account, amount). */
+        INTERNAL_TRANSFER,
+        /** Money from an account to any other account (account, destination, amount). */
+        TRANSFER,
+        /** Operator adds bills to the vault (bills). */
+        VAULT_ADD,
+        /** Operator removes bills from the vault (bills). */
+        VAULT_REMOVE
+    }
+
+    // Field declarations
+    private final Type type;
+    private final int account;
+    private final int destination;
+    private final long amountCents;
+    private final Bills bills;
+
+    /*
+     * Constructs a command. Use the static factory methods instead.
+     */
+    private TransactionCommand(Type type, int account, int destination, long amountCents, Bills bills) {
+        this.type = type;
+        this.account = account;
+        this.destination = destination;
+        this.amountCents = amountCents;
+        this.bills = bills;
+    }
+
+    /**
+     * Creates a withdrawal.
+     *
+     * @param account The account to withdraw from.
+     * @param dollars The dollar amount, a positive multiple of $5.
+     * @return The command.
+     */
+    public static TransactionCommand withdraw(int account, int dollars) {
+        return new TransactionCommand(Type.WITHDRAW, account, 0, dollars * 100L, Bills.NONE);
+    }
+
+    /**
+     * Creates a deposit.
+     *
+     * @param account The account to deposit into.
+     * @param bills   The bills being deposited.
+     * @return The command.
+     */
+    public static TransactionCommand deposit(int account, Bills bills) {
+        return new TransactionCommand(Type.DEPOSIT, account, 0, 0, bills);
+    }
+
+    /**
+     * Creates a transfer to the other account (checking or savings) of the same user.
+     *
+     * @param account     The account the money is taken from.
+     * @param amountCents The amount to move, in cents.
+     * @return The command.
+     */
+    public static TransactionCommand internalTransfer(int account, long amountCents) {
+        return new TransactionCommand(Type.INTERNAL_TRANSFER, account, 0, amountCents, Bills.NONE);
+    }
+
+    /**
+     * Creates a transfer to any account.
+     *
+     * @param account     The account the money is taken from.
+     * @param destination The account the money is added to.
+     * @param amountCents The amount to move, in cents.
+     * @return The command.
+     */
+    public static TransactionCommand transfer(int account, int destination, long amountCents) {
+        return new TransactionCommand(Type.TRANSFER, account, destination, amountCents, Bills.NONE);
+    }
+
+    /**
+     * Creates an operator command adding bills to the vault.
+     *
+     * @param bills The bills to add.
+     * @return The command.
+     */
+    public static TransactionCommand addVaultBills(Bills bills) {
+        return new TransactionCommand(Type.VAULT_ADD, 0, 0, 0, bills);
+    }
+
+    /**
+     * Creates an operator command removing bills from the vault.
+     *
+     * @param bills The bills to remove.
+     * @return The command.
+     */
+    public static TransactionCommand removeVaultBills(Bills bills) {
+        return new TransactionCommand(Type.VAULT_REMOVE, 0, 0, 0, bills);
+    }
+
+    /**
+     * Retrieves the kind of transaction.
+     *
+     * @return The command type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Retrieves the account the command acts on (the source of a transfer).
+     *
+     * @return The account number, or 0 for vault commands.
+     */
+    public int getAccount() {
+        return account;
+    }
+
+    /**
+     * Retrieves the destination of a transfer to any account.
+     *
+     * @return The destination account number, or 0 for other commands.
+     */
+    public int getDestination() {
+        return destination;
+    }
+
+    /**
+     * Retrieves the amount of a withdrawal or transfer.
+     *
+     * @return The amount in cents, or 0 for commands that move bills.
+     */
+    public long getAmountCents() {
+        return amountCents;
+    }
+
+    /**
+     * Retrieves the bills of a deposit or vault command.
+     *
+     * @return The bills, or Bills.NONE for commands that move money.
+     */
+    public Bills getBills() {
+        return bills;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case DEPOSIT:
+            case VAULT_ADD:
+            case VAULT_REMOVE:
+                return type + " " + (account != 0 ? "#" + account + " " : "") + bills;
+            case TRANSFER:
+                return type + " #" + account + " -> #" + destination + " $" + Money.format(amountCents);
+            default:
+                return type + " #" + account + " $" + Money.format(amountCents);
+        }
+    }
+
+} // end TransactionCommand
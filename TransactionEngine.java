@@ -0,0 +1,736 @@
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The shared core of the ATM system. Holds the users, accounts, and vault, and
+ * carries out withdrawals, deposits, transfers, and vault changes for every ATM session
+ * in the program. The engine keeps no per-session state, so one engine can serve any
+ * number of Connection objects running on different threads at the same time.
+ *
+ * Assumption: Users and accounts are loaded before the engine is created and are not
+ * added afterwards. Amounts are validated here as well as by the screen, since the engine
+ * may be called directly by other programs.
+ *
+ * Input: TransactionCommand objects, or account numbers, dollar amounts, and bundles of
+ * bills for the convenience methods.
+ * Output: A TransactionResult telling the caller whether the transaction succeeded.
+ * Nothing is printed; showing the outcome is left to the caller, such as a Connection
+ * prompting a terminal, a BatchProcessor, or a load test.
+ *
+ * Algorithm: Each balance change happens under the account's stripe lock from the
+ * TransferEngine, and each vault change is a single atomic Vault call (locked for Vault,
+ * lock-free for AtomicVault), so concurrent sessions never lose an update. A withdrawal
+ * debits the account first and then dispenses bills; if the vault cannot make up the
+ * amount the debit is put back. Transfers are handed to the TransferEngine, which locks
+ * both accounts in a fixed order and moves the money in one step.
+ *
+ * With a TransactionJournal, every change is recorded before any other session can
+ * depend on it: money and bills that are added are journaled before they are added, and
+ * money and bills that are taken out are journaled before the lock is released (another
+ * session seeing them gone can only be refused, which is never journaled). The engine then
+ * waits, outside every lock, until the record is on disk before reporting success.
+ * Every change also holds the shared side of the TransferEngine's checkpoint gate, so a
+ * Snapshot can mark a consistent cut without stopping the system.
+ */
+public class TransactionEngine {
+
+    // Field declarations for the shared state
+    private final UserDirectory users;
+    private final AccountStore accounts;
+    private final Vault vault;
+    private final TransferEngine transfers;
+    private final TransactionJournal journal;
+    private volatile DispenseStrategy dispenseStrategy = Vault.DEFAULT_STRATEGY;
+    private volatile MetricsRegistry metrics;
+    private volatile VaultForecaster forecaster;
+    private final TransactionEngine root;
+    private volatile PartitionedEngine partitions;
+    private volatile TransactionPipeline pipeline;
+
+    /**
+     * Constructs an engine over the loaded users, accounts, and vault.
+     *
+     * @param users    Directory of users in the system.
+     * @param accounts Store of accounts associated with users.
+     * @param vault    Vault object representing the ATM's cash storage.
+     */
+    public TransactionEngine(UserDirectory users, AccountStore accounts, Vault vault) {
+        this(users, accounts, vault, null);
+    }
+
+    /**
+     * Constructs an engine that records every transaction in a journal. The accounts
+     * and vault should already have been brought up to date with TransactionJournal.replay.
+     *
+     * @param users    Directory of users in the system.
+     * @param accounts Store of accounts associated with users.
+     * @param vault    Vault object representing the ATM's cash storage.
+     * @param journal  The journal to record transactions in, or null for none.
+     */
+    public TransactionEngine(UserDirectory users, AccountStore accounts, Vault vault,
+            TransactionJournal journal) {
+        this.users = users;
+        this.accounts = accounts;
+        this.vault = vault;
+        this.journal = journal;
+        this.transfers = new TransferEngine(accounts, TransferEngine.DEFAULT_STRIPES, journal);
+        this.root = this;
+    }
+
+    /*
+     * Constructs a view of an engine that dispenses from and deposits into another vault.
+     */
+    private TransactionEngine(TransactionEngine shared, Vault vault) {
+        this.users = shared.users;
+        this.accounts = shared.accounts;
+        this.vault = vault;
+        this.journal = shared.journal;
+        this.transfers = shared.transfers;
+        this.dispenseStrategy = shared.dispenseStrategy;
+        this.metrics = shared.metrics;
+        this.root = shared.root;
+    }
+
+    /**
+     * Creates an engine for one machine of a fleet: it shares this engine's users,
+     * accounts, locks, and journal, so every machine moves the same money safely, but its
+     * cash goes in and out of the machine's own vault (for example a VaultFleet's
+     * ShardedVault). It starts with this engine's dispense strategy and metrics; a
+     * forecaster watches one vault, so the machine has none until one is set.
+     *
+     * The journal does not record which machine's vault changed, so replaying it restores
+     * the accounts but not the fleet's cash.
+     *
+     * @param machineVault The machine's vault.
+     * @return An engine for the machine.
+     */
+    public TransactionEngine atMachine(Vault machineVault) {
+        return new TransactionEngine(this, machineVault);
+    }
+
+    /**
+     * Checks a name and password against the users in the system.
+     *
+     * @param name     The name of the user logging in.
+     * @param password The password the user typed.
+     * @return The user if the credentials match, null otherwise.
+     */
+    public User authenticate(String name, String password) {
+        MetricsRegistry m = metrics;
+        if (m == null) {
+            return users.authenticate(name, password);
+        }
+        long start = System.nanoTime();
+        User user = users.authenticate(name, password);
+        m.recordLogin(user != null, System.nanoTime() - start);
+        return user;
+    }
+
+    /**
+     * Retrieves the user with the given name.
+     *
+     * @param name The user's name.
+     * @return The user, or null if there is none.
+     */
+    public User findUser(String name) {
+        return users.findByName(name);
+    }
+
+    /**
+     * Retrieves the user who owns the given account.
+     *
+     * @param accountNumber The checking or savings account number.
+     * @return The owner, or null if no user owns the account.
+     */
+    public User findOwner(int accountNumber) {
+        return users.findByAccountNumber(accountNumber);
+    }
+
+    /**
+     * Retrieves the account with the given number.
+     *
+     * @param accountNumber The account number.
+     * @return The account, or null if there is none.
+     */
+    public Account findAccount(int accountNumber) {
+        return accounts.get(accountNumber);
+    }
+
+    /**
+     * Retrieves the vault shared by every session.
+     *
+     * @return The vault.
+     */
+    public Vault getVault() {
+        return vault;
+    }
+
+    /**
+     * Retrieves the journal transactions are recorded in.
+     *
+     * @return The journal, or null if transactions are not recorded.
+     */
+    public TransactionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Retrieves the strategy used to choose the bills for a withdrawal.
+     *
+     * @return The current dispense strategy.
+     */
+    public DispenseStrategy getDispenseStrategy() {
+        return dispenseStrategy;
+    }
+
+    /**
+     * Changes the strategy used to choose the bills for a withdrawal. Takes effect
+     * for every session from the next withdrawal on.
+     *
+     * @param dispenseStrategy The new dispense strategy.
+     */
+    public void setDispenseStrategy(DispenseStrategy dispenseStrategy) {
+        this.dispenseStrategy = dispenseStrategy;
+    }
+
+    /**
+     * Retrieves the registry logins and transactions are recorded in.
+     *
+     * @return The metrics, or null if nothing is recorded.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts recording every login and transaction, with its outcome and latency, in a
+     * registry, and watches the vault's bills there. Takes effect for every session from
+     * the next transaction on.
+     *
+     * @param metrics The registry, or null to stop recording.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        if (metrics != null) {
+            metrics.watchVault(vault);
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Retrieves the forecaster the vault's bill movements are reported to.
+     *
+     * @return The forecaster, or null if there is none.
+     */
+    public VaultForecaster getForecaster() {
+        return forecaster;
+    }
+
+    /**
+     * Starts reporting every bill dispensed, deposited, added, or removed to a forecaster,
+     * which projects when the vault will run out of each denomination.
+     *
+     * @param forecaster The forecaster, or null to stop reporting.
+     */
+    public void setForecaster(VaultForecaster forecaster) {
+        this.forecaster = forecaster;
+    }
+
+    /**
+     * Switches to partitioned processing: from now on every account is changed only by
+     * the thread of the partition that owns it (see PartitionedEngine), for this engine
+     * and every machine's view of it. Close the returned partitions to switch back.
+     * Snapshots cannot be written while partitioned. Transactions already running with
+     * the locks are finished first, and any started meanwhile wait for the switch.
+     *
+     * @param partitionCount The number of partitions, normally one per processor.
+     * @param queueCapacity  Commands each partition's queues hold.
+     * @return The running partitions.
+     * @throws IllegalStateException if the engine is already partitioned or pipelined.
+     */
+    public PartitionedEngine partition(int partitionCount, int queueCapacity) {
+        synchronized (root) {
+            if (root.partitions != null || root.pipeline != null) {
+                throw new IllegalStateException("The engine is already partitioned or pipelined");
+            }
+            PartitionedEngine p = new PartitionedEngine(root, partitionCount, queueCapacity);
+            // a locked change still running would race the partitions on its account
+            transfers.exclusive(() -> root.partitions = p);
+            return p;
+        }
+    }
+
+    /**
+     * Retrieves the partitions transactions run on.
+     *
+     * @return The partitions, or null when the engine runs transactions with its locks.
+     */
+    public PartitionedEngine getPartitions() {
+        return root.partitions;
+    }
+
+    /*
+     * Switches back to the locking mode once the partitions have stopped, and wakes the
+     * callers they turned away while closing.
+     */
+    void unpartition(PartitionedEngine p) {
+        synchronized (root) {
+            transfers.exclusive(() -> {
+                if (root.partitions == p) {
+                    root.partitions = null;
+                }
+            });
+            root.notifyAll();
+        }
+    }
+
+    /**
+     * Switches to pipelined processing: from now on every transaction, for this engine
+     * and every machine's view of it, is published into a ring of command slots and
+     * carried out by the stages of a TransactionPipeline. Close the returned pipeline to
+     * switch back. Snapshots cannot be written while pipelined. Transactions already
+     * running with the locks are finished first, and any started meanwhile wait for the
+     * switch.
+     *
+     * @param ringSize The number of command slots, rounded up to a power of two.
+     * @return The running pipeline.
+     * @throws IllegalStateException if the engine is already partitioned or pipelined.
+     */
+    public TransactionPipeline pipeline(int ringSize) {
+        synchronized (root) {
+            if (root.partitions != null || root.pipeline != null) {
+                throw new IllegalStateException("The engine is already partitioned or pipelined");
+            }
+            TransactionPipeline p = new TransactionPipeline(root, ringSize);
+            // a locked change still running would race the apply stage on its account
+            transfers.exclusive(() -> root.pipeline = p);
+            return p;
+        }
+    }
+
+    /**
+     * Retrieves the pipeline transactions run through.
+     *
+     * @return The pipeline, or null when the engine does not run one.
+     */
+    public TransactionPipeline getPipeline() {
+        return root.pipeline;
+    }
+
+    /*
+     * Switches back to the locking mode once the pipeline has stopped, and wakes the
+     * callers it turned away while closing.
+     */
+    void unpipeline(TransactionPipeline p) {
+        synchronized (root) {
+            transfers.exclusive(() -> {
+                if (root.pipeline == p) {
+                    root.pipeline = null;
+                }
+            });
+            root.notifyAll();
+        }
+    }
+
+    /**
+     * Runs one transaction described as a TransactionCommand. This is the headless entry
+     * point for screens, services, and load tests alike: nothing is printed and nothing is
+     * read, the outcome is only returned.
+     *
+     * @param command The transaction to run.
+     * @return The outcome of the transaction, with the dispensed bills for a withdrawal.
+     */
+    public TransactionResult execute(TransactionCommand command) {
+        MetricsRegistry m = metrics;
+        long start = m == null ? 0 : System.nanoTime();
+        TransactionResult result = run(command);
+        if (m != null) {
+            m.recordTransaction(command.getType(), result.getStatus(), System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * Withdraws cash from an account and dispenses it from the vault.
+     *
+     * @param accountNumber The account to withdraw from.
+     * @param amount        The dollar amount, a positive multiple of $5.
+     * @return The dispensed bills on success, or the reason the withdrawal was refused.
+     */
+    public TransactionResult withdraw(int accountNumber, int amount) {
+        return execute(TransactionCommand.withdraw(accountNumber, amount));
+    }
+
+    /**
+     * Deposits bills into an account and places them in the vault.
+     *
+     * @param accountNumber The account to deposit into.
+     * @param bills         The bills being deposited.
+     * @return Whether the deposit succeeded.
+     */
+    public TransactionResult deposit(int accountNumber, Bills bills) {
+        return execute(TransactionCommand.deposit(accountNumber, bills));
+    }
+
+    /**
+     * Moves money from one account to another. Used both for transfers between a
+     * user's own checking and savings accounts and for transfers to other customers.
+     *
+     * @param sourceAccount      The account the money is taken from.
+     * @param destinationAccount The account the money is added to.
+     * @param amountCents        The amount to move, in cents.
+     * @return Whether the transfer succeeded.
+     */
+    public TransactionResult transfer(int sourceAccount, int destinationAccount, long amountCents) {
+        // the mode has to be read under the gate like any other transaction's
+        return execute(TransactionCommand.transfer(sourceAccount, destinationAccount, amountCents));
+    }
+
+    /**
+     * Adds bills to the vault (operator function).
+     *
+     * @param bills The bills to add.
+     * @return Whether the bills were added.
+     */
+    public TransactionResult addVaultBills(Bills bills) {
+        return execute(TransactionCommand.addVaultBills(bills));
+    }
+
+    /**
+     * Removes bills from the vault (operator function).
+     *
+     * @param bills The bills to remove.
+     * @return Whether the bills were removed.
+     */
+    public TransactionResult removeVaultBills(Bills bills) {
+        return execute(TransactionCommand.removeVaultBills(bills));
+    }
+
+    /*
+     * Runs one transaction in whichever mode the engine is in, without recording metrics.
+     * The locking mode is only chosen under the shared side of the checkpoint gate, which
+     * a switch to the partitions or pipeline waits for, so a locked change never overlaps
+     * them. A command they turned away while closing runs again once the engine has
+     * switched back.
+     */
+    TransactionResult run(TransactionCommand command) {
+        while (true) {
+            PartitionedEngine p = root.partitions;
+            TransactionPipeline pl = root.pipeline;
+            if (p != null) {
+                TransactionResult result = p.tryExecute(command, this);
+                if (result != null) {
+                    return result;
+                }
+                awaitSwitchFrom(p);
+            } else if (pl != null) {
+                TransactionResult result = pl.tryExecute(command, this);
+                if (result != null) {
+                    return result;
+                }
+                awaitSwitchFrom(pl);
+            } else {
+                long[] sequence = new long[1];
+                Account account = command.getAccount() == 0 ? null : accounts.get(command.getAccount());
+                TransactionResult result = null;
+                Lock shared = transfers.sharedGate();
+                shared.lock();
+                try {
+                    // the engine may have switched modes before the gate was taken
+                    if (root.partitions == null && root.pipeline == null) {
+                        result = applyCommand(command, account, sequence);
+                    }
+                } finally {
+                    shared.unlock();
+                }
+                if (result != null) {
+                    awaitDurable(sequence[0]);
+                    return result;
+                }
+            }
+        }
+    }
+
+    /*
+     * Waits until the partitions or pipeline that turned a command away have stopped and
+     * the engine has left that mode.
+     */
+    void awaitSwitchFrom(Object mode) {
+        boolean interrupted = false;
+        synchronized (root) {
+            while (root.partitions == mode || root.pipeline == mode) {
+                try {
+                    root.wait();
+                } catch (InterruptedException e) {
+                    // the command still has to run; keep waiting
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * The apply methods below do the work of one transaction. The caller must hold the
+     * shared side of the checkpoint gate and, once it has released it, wait for the
+     * journal sequence left in sequence[0] to be durable before reporting the result.
+     * This lets a BatchProcessor run many transactions under one gate acquisition and
+     * one durability wait.
+     */
+
+    TransactionResult applyWithdraw(Account account, int amount, long[] sequence) {
+        return applyWithdraw(account, amount, sequence, false);
+    }
+
+    /*
+     * owned means the calling thread is the only one that changes the account (it is a
+     * PartitionedEngine partition or the TransactionPipeline's apply stage), so the
+     * stripe lock is not needed.
+     */
+    TransactionResult applyWithdraw(Account account, int amount, long[] sequence, boolean owned) {
+        if (amount <= 0 || amount % 5 != 0) {
+            return TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT);
+        }
+        if (account == null) {
+            return TransactionResult.failed(TransactionResult.Status.UNKNOWN_ACCOUNT);
+        }
+        if (amount > vault.calculateBalance()) {
+            return TransactionResult.failed(TransactionResult.Status.VAULT_INSUFFICIENT_CASH);
+        }
+
+        // take the money out of the account first, so it can never be overdrawn
+        long cents = Money.dollarsToCents(amount);
+        ReentrantLock lock = owned ? null : transfers.lockFor(account.getAccountNumber());
+        Bills dispensed;
+        if (lock != null) {
+            lock.lock();
+        }
+        try {
+            transfers.beforeChange(account);
+            if (!account.debit(cents)) {
+                return TransactionResult.failed(TransactionResult.Status.INSUFFICIENT_FUNDS);
+            }
+
+            dispensed = vault.dispense(amount, dispenseStrategy);
+            if (dispensed == null) {
+                // the vault cannot make up the amount, so put the money back
+                account.credit(cents);
+                return TransactionResult.failed(TransactionResult.Status.CANNOT_DISPENSE);
+            }
+
+            if (journal != null) {
+                try {
+                    sequence[0] = journal.append(TransactionJournal.WITHDRAW, account.getAccountNumber(), 0,
+                            cents, dispensed);
+                } catch (RuntimeException e) {
+                    // nothing was recorded, so nothing may change
+                    vault.addBills(dispensed);
+                    account.credit(cents);
+                    throw e;
+                }
+            }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+        return TransactionResult.dispensed(dispensed);
+    }
+
+    TransactionResult applyDeposit(Account account, Bills bills, long[] sequence) {
+        return applyDeposit(account, bills, sequence, false);
+    }
+
+    TransactionResult applyDeposit(Account account, Bills bills, long[] sequence, boolean owned) {
+        if (!bills.isValid()) {
+            return TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT);
+        }
+        if (account == null) {
+            return TransactionResult.failed(TransactionResult.Status.UNKNOWN_ACCOUNT);
+        }
+
+        long cents = Money.dollarsToCents(bills.total());
+        ReentrantLock lock = owned ? null : transfers.lockFor(account.getAccountNumber());
+        if (lock != null) {
+            lock.lock();
+        }
+        try {
+            try {
+                Money.addCents(account.getBalanceCents(), cents);
+            } catch (ArithmeticException e) {
+                // the balance would overflow
+                return TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT);
+            }
+            if (journal != null) {
+                sequence[0] = journal.append(TransactionJournal.DEPOSIT, account.getAccountNumber(), 0, cents, bills);
+            }
+
+            // the bills go in the vault first, which fails if the vault is full
+            try {
+                vault.addBills(bills);
+            } catch (IllegalStateException e) {
+                if (journal != null) {
+                    // cancel the deposit record with a matching withdrawal
+                    sequence[0] = journal.append(TransactionJournal.WITHDRAW, account.getAccountNumber(), 0,
+                            cents, bills);
+                }
+                return TransactionResult.failed(TransactionResult.Status.VAULT_FULL);
+            }
+            transfers.beforeChange(account);
+            account.credit(cents);
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+        return TransactionResult.success();
+    }
+
+    TransactionResult applyAddVaultBills(Bills bills, long[] sequence) {
+        if (!bills.isValid()) {
+            return TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT);
+        }
+        if (journal != null) {
+            sequence[0] = journal.append(TransactionJournal.VAULT_ADD, 0, 0, 0, bills);
+        }
+        try {
+            vault.addBills(bills);
+        } catch (IllegalStateException e) {
+            if (journal != null) {
+                // cancel the record with a matching removal
+                sequence[0] = journal.append(TransactionJournal.VAULT_REMOVE, 0, 0, 0, bills);
+            }
+            return TransactionResult.failed(TransactionResult.Status.VAULT_FULL);
+        }
+        return TransactionResult.success();
+    }
+
+    TransactionResult applyRemoveVaultBills(Bills bills, long[] sequence) {
+        if (!bills.isValid()) {
+            return TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT);
+        }
+        if (!vault.removeBills(bills)) {
+            return TransactionResult.failed(TransactionResult.Status.INSUFFICIENT_BILLS);
+        }
+        if (journal != null) {
+            try {
+                sequence[0] = journal.append(TransactionJournal.VAULT_REMOVE, 0, 0, 0, bills);
+            } catch (RuntimeException e) {
+                vault.addBills(bills);
+                throw e;
+            }
+        }
+        return TransactionResult.success();
+    }
+
+    /*
+     * Runs one command whose source account has already been looked up. The same
+     * rules as the apply methods apply: the caller holds the shared gate and waits
+     * for sequence[0] afterwards.
+     */
+    TransactionResult applyCommand(TransactionCommand command, Account account, long[] sequence) {
+        return applyCommand(command, account, sequence, false);
+    }
+
+    /*
+     * As above; owned is passed on to applyWithdraw and applyDeposit.
+     */
+    TransactionResult applyCommand(TransactionCommand command, Account account, long[] sequence, boolean owned) {
+        TransactionResult result = dispatch(command, account, sequence, owned);
+        VaultForecaster f = forecaster;
+        if (f != null) {
+            observe(f, command, result);
+        }
+        return result;
+    }
+
+    /*
+     * Tells the forecaster which bills moved, or that the vault refused a withdrawal.
+     */
+    private static void observe(VaultForecaster f, TransactionCommand command, TransactionResult result) {
+        if (!result.isSuccess()) {
+            if (result.getStatus() == TransactionResult.Status.VAULT_INSUFFICIENT_CASH
+                    || result.getStatus() == TransactionResult.Status.CANNOT_DISPENSE) {
+                f.recordRefused();
+            }
+            return;
+        }
+        switch (command.getType()) {
+            case WITHDRAW:
+                f.recordDispensed(result.getBills());
+                break;
+            case DEPOSIT:
+                f.recordDeposited(command.getBills());
+                break;
+            case VAULT_ADD:
+                f.recordRestocked(command.getBills());
+                break;
+            case VAULT_REMOVE:
+                f.recordUnloaded(command.getBills());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private TransactionResult dispatch(TransactionCommand command, Account account, long[] sequence,
+            boolean owned) {
+        switch (command.getType()) {
+            case WITHDRAW: {
+                long cents = command.getAmountCents();
+                if (cents <= 0 || cents % 500 != 0 || cents / 100 > Integer.MAX_VALUE) {
+                    return TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT);
+                }
+                return applyWithdraw(account, (int) (cents / 100), sequence, owned);
+            }
+            case DEPOSIT:
+                return applyDeposit(account, command.getBills(), sequence, owned);
+            case INTERNAL_TRANSFER: {
+                User owner = users.findByAccountNumber(command.getAccount());
+                if (owner == null) {
+                    return TransactionResult.failed(TransactionResult.Status.UNKNOWN_ACCOUNT);
+                }
+                int other = owner.getCheckingAccountNumber() == command.getAccount()
+                        ? owner.getSavingsAccountNumber() : owner.getCheckingAccountNumber();
+                return transfers.applyTransfer(account, accounts.get(other), command.getAmountCents(), sequence);
+            }
+            case TRANSFER:
+                return transfers.applyTransfer(account, accounts.get(command.getDestination()),
+                        command.getAmountCents(), sequence);
+            case VAULT_ADD:
+                return applyAddVaultBills(command.getBills(), sequence);
+            case VAULT_REMOVE:
+                return applyRemoveVaultBills(command.getBills(), sequence);
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    /*
+     * The pieces a Snapshot needs to read the state at a cut.
+     */
+    UserDirectory getUsers() {
+        return users;
+    }
+
+    AccountStore getAccounts() {
+        return accounts;
+    }
+
+    TransferEngine getTransferEngine() {
+        return transfers;
+    }
+
+    /*
+     * Waits for a journal record to reach the disk. Sequence 0 means nothing was recorded.
+     */
+    void awaitDurable(long sequence) {
+        if (sequence != 0) {
+            journal.awaitDurable(sequence);
+        }
+    }
+
+} // end TransactionEngine
@@ -0,0 +1,628 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Durable, append-only record of every withdrawal, deposit, transfer, and vault
+ * change. Without it all account and vault state is lost when the program exits. On
+ * startup the journal is replayed on top of the loaded accounts and vault to bring them
+ * back to where they were.
+ *
+ * Assumption: Only one program writes to a journal directory at a time. A record is
+ * appended before its effect becomes visible to other sessions, and a transaction is only
+ * reported as done once its record is durable (see awaitDurable).
+ *
+ * Input: Transaction records (type, account numbers, amount in cents, and bills).
+ * Output: Journal segment files (journal-000001.log, ...) in the journal directory.
+ *
+ * Algorithm: Group commit. Each record is a fixed 40 byte binary entry with a CRC32
+ * checksum. Sessions copy their records into a shared in-memory buffer and get back a
+ * sequence number, which takes a few nanoseconds under a lock. A single writer thread
+ * swaps that buffer for an empty one, writes the whole batch with one write call, and
+ * forces it to disk with one fsync. It waits until either batchSize records are waiting or
+ * maxLatency has passed since the first record of the batch, so one fsync covers many
+ * sessions and the disk does not limit throughput. Sessions then wait until the durable
+ * sequence number reaches their own.
+ *
+ * Every record holds a change (a delta), not a resulting balance, and deltas can be added
+ * in any order. Replay therefore just adds up all the deltas and applies the totals, and
+ * a torn record at the end of the last segment (from a crash during a write) is ignored;
+ * a damaged record in any earlier segment stops the replay with an error.
+ * Starting a new segment (rotate) lets a Snapshot cover every older segment, which can
+ * then be deleted, so the journal does not grow forever.
+ */
+public class TransactionJournal implements Closeable {
+
+    /** Record type: cash withdrawn from an account (account, cents, bills dispensed). */
+    public static final byte WITHDRAW = 1;
+    /** Record type: bills deposited into an account (account, cents, bills). */
+    public static final byte DEPOSIT = 2;
+    /** Record type: money moved between accounts (account, counterparty, cents). */
+    public static final byte TRANSFER = 3;
+    /** Record type: operator added bills to the vault (bills). */
+    public static final byte VAULT_ADD = 4;
+    /** Record type: operator removed bills from the vault (bills). */
+    public static final byte VAULT_REMOVE = 5;
+
+    /** Size of one record in bytes. */
+    public static final int RECORD_SIZE = 40;
+
+    /** Default number of records that triggers a group commit. */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    /**
+     * Default time a record may wait for its batch to fill, in microseconds. Zero still
+     * groups commits: records that arrive while one batch is being forced to disk all go
+     * out together in the next one. A small wait only pays off on disks whose fsync is
+     * much faster than the gap between transactions.
+     */
+    public static final long DEFAULT_MAX_LATENCY_MICROS = 0;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Field declarations
+    private final Path directory;
+    private final int batchSize;
+    private final long maxLatencyNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchReady = lock.newCondition();  // signalled when records arrive
+    private final Condition committed = lock.newCondition();   // signalled after each fsync
+    private final CRC32 crc = new CRC32();
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long segment;           // number of the segment being appended to
+    private ByteBuffer active;      // records waiting for the next group commit
+    private ByteBuffer flushing;    // records being written by the writer thread
+    private long appended;          // sequence number of the last record appended
+    private volatile long durable;  // sequence number of the last record on disk
+    private IOException failure;    // set if a write fails; every later call fails too
+    private boolean closed;
+
+    /**
+     * Opens the journal in the given directory for appending, creating it if needed.
+     * Any torn record at the end of the latest segment is cut off.
+     *
+     * @param directory       The directory holding the journal segments.
+     * @param batchSize       The number of records that triggers a group commit.
+     * @param maxLatencyMicros How long a record may wait for its batch to fill.
+     * @throws IOException if the journal cannot be opened.
+     */
+    public TransactionJournal(Path directory, int batchSize, long maxLatencyMicros) throws IOException {
+        if (batchSize <= 0 || maxLatencyMicros < 0) {
+            throw new IllegalArgumentException("Invalid group commit settings: " + batchSize + ", " + maxLatencyMicros);
+        }
+        this.directory = directory;
+        this.batchSize = batchSize;
+        this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+        this.active = ByteBuffer.allocateDirect(batchSize * RECORD_SIZE * 2).order(ByteOrder.LITTLE_ENDIAN);
+        this.flushing = ByteBuffer.allocateDirect(batchSize * RECORD_SIZE * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+        Files.createDirectories(directory);
+        List<Path> segments = segments(directory);
+        Path latest = segments.isEmpty() ? segmentPath(directory, 1) : segments.get(segments.size() - 1);
+        this.segment = segmentNumber(latest);
+        this.channel = openSegment(latest);
+
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Appends a record to the journal. Returns as soon as the record is queued; call
+     * awaitDurable with the returned sequence number before reporting the transaction
+     * as done.
+     *
+     * @param type         The record type (WITHDRAW, DEPOSIT, ...).
+     * @param account      The account the record is about, or 0.
+     * @param counterparty The destination account of a transfer, or 0.
+     * @param cents        The amount in cents, or 0.
+     * @param hundreds     The number of $100 bills moved.
+     * @param fifties      The number of $50 bills moved.
+     * @param twenties     The number of $20 bills moved.
+     * @param fives        The number of $5 bills moved.
+     * @return The sequence number of the record.
+     * @throws UncheckedIOException if the journal can no longer be written.
+     */
+    public long append(byte type, int account, int counterparty, long cents,
+            int hundreds, int fifties, int twenties, int fives) {
+        lock.lock();
+        try {
+            // wait for the writer if a whole extra batch is already waiting
+            while (active.remaining() < RECORD_SIZE && failure == null && !closed) {
+                batchReady.signal();
+                committed.awaitUninterruptibly();
+            }
+            checkUsable();
+
+            int start = active.position();
+            active.put(type).put((byte) 0).put((byte) 0).put((byte) 0)
+                    .putInt(account).putInt(counterparty).putLong(cents)
+                    .putInt(hundreds).putInt(fifties).putInt(twenties).putInt(fives);
+            crc.reset();
+            crc.update(active.duplicate().position(start).limit(start + RECORD_SIZE - 4));
+            active.putInt((int) crc.getValue());
+
+            appended++;
+            if (active.position() == RECORD_SIZE || active.position() >= batchSize * RECORD_SIZE) {
+                batchReady.signal();
+            }
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record describing a bundle of bills.
+     *
+     * @param type         The record type.
+     * @param account      The account the record is about, or 0.
+     * @param counterparty The destination account of a transfer, or 0.
+     * @param cents        The amount in cents, or 0.
+     * @param bills        The bills moved.
+     * @return The sequence number of the record.
+     */
+    public long append(byte type, int account, int counterparty, long cents, Bills bills) {
+        return append(type, account, counterparty, cents,
+                bills.getHundreds(), bills.getFifties(), bills.getTwenties(), bills.getFives());
+    }
+
+    /**
+     * Waits until the record with the given sequence number, and every record
+     * before it, is safely on disk.
+     *
+     * @param sequence The sequence number returned by append.
+     * @throws UncheckedIOException if the journal could not be written.
+     */
+    public void awaitDurable(long sequence) {
+        if (durable >= sequence) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durable < sequence && failure == null) {
+                committed.awaitUninterruptibly();
+            }
+            if (durable < sequence) {
+                checkUsable();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the sequence number of the last record known to be on disk.
+     *
+     * @return The durable sequence number.
+     */
+    public long getDurableSequence() {
+        return durable;
+    }
+
+    /**
+     * Starts a new segment. Every record appended before the call ends up in an older
+     * segment, and every record appended after it in the new one. The caller must make
+     * sure no records are appended while this runs; TransactionEngine does so by holding
+     * its checkpoint gate.
+     *
+     * @return The number of the new segment.
+     * @throws IOException if the new segment cannot be created.
+     */
+    public long rotate() throws IOException {
+        lock.lock();
+        try {
+            checkUsable();
+            // let the writer finish with the current segment first
+            while (durable < appended && failure == null) {
+                committed.awaitUninterruptibly();
+            }
+            checkUsable();
+
+            FileChannel next = openSegment(segmentPath(directory, segment + 1));
+            channel.close();
+            channel = next;
+            segment++;
+            return segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of the segment records are currently appended to.
+     *
+     * @return The segment number.
+     */
+    public long getSegment() {
+        lock.lock();
+        try {
+            return segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the directory holding the journal segments.
+     *
+     * @return The journal directory.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Deletes the segments older than the given one, once a snapshot covers them.
+     *
+     * @param number The oldest segment to keep.
+     * @return The number of segments deleted.
+     * @throws IOException if a segment cannot be deleted.
+     */
+    public int deleteSegmentsBefore(long number) throws IOException {
+        int deleted = 0;
+        for (Path p : segments(directory)) {
+            if (segmentNumber(p) < number) {
+                Files.delete(p);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes any waiting records, stops the writer thread, and closes the file.
+     *
+     * @throws IOException if the last records could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            batchReady.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Replays every journal segment in the directory on top of the given accounts
+     * and vault, which must hold the same starting state the journal was written
+     * against.
+     *
+     * @param directory The directory holding the journal segments.
+     * @param accounts  The accounts to bring up to date.
+     * @param vault     The vault to bring up to date.
+     * @return The number of records replayed.
+     * @throws IOException if a segment cannot be read.
+     * @throws IllegalStateException if the journal does not match the accounts or vault,
+     *         or a segment before the last one holds a damaged record.
+     */
+    public static long replay(Path directory, AccountStore accounts, Vault vault) throws IOException {
+        return replay(directory, 0, accounts, vault);
+    }
+
+    /**
+     * Replays the journal segments from the given one on, on top of the accounts and
+     * vault loaded from the Snapshot that covers the older segments.
+     *
+     * @param directory   The directory holding the journal segments.
+     * @param fromSegment The first segment to replay.
+     * @param accounts    The accounts to bring up to date.
+     * @param vault       The vault to bring up to date.
+     * @return The number of records replayed.
+     * @throws IOException if a segment cannot be read.
+     * @throws IllegalStateException if the journal does not match the accounts or vault,
+     *         or a segment before the last one holds a damaged record.
+     */
+    public static long replay(Path directory, long fromSegment, AccountStore accounts, Vault vault)
+            throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        List<Path> wanted = new ArrayList<Path>();
+        for (Path p : segments(directory)) {
+            if (segmentNumber(p) >= fromSegment) {
+                wanted.add(p);
+            }
+        }
+        return replay(wanted, accounts, vault);
+    }
+
+    /*
+     * Adds up the deltas in the given segments and applies them. Segments only rotate
+     * after their records were written, so only the last one can end in a torn or
+     * corrupt tail from a crash, and that tail is ignored. A bad record anywhere else
+     * would silently drop the deltas after it, so it stops the replay instead.
+     */
+    static long replay(List<Path> segments, AccountStore accounts, Vault vault) throws IOException {
+        long[] bills = new long[4]; // net change of each denomination
+        long count = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 check = new CRC32();
+
+        for (int s = 0; s < segments.size(); s++) {
+            Path segment = segments.get(s);
+            long offset = 0;      // file offset of the next record
+            boolean damaged = false;
+            try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+                buffer.clear();
+                while (true) {
+                    int read = in.read(buffer);
+                    buffer.flip();
+                    while (buffer.remaining() >= RECORD_SIZE && validRecord(buffer, check)) {
+                        applyRecord(buffer, accounts, bills);
+                        offset += RECORD_SIZE;
+                        count++;
+                    }
+                    if (buffer.remaining() >= RECORD_SIZE || (read < 0 && buffer.hasRemaining())) {
+                        damaged = true; // a corrupt record, or a torn one at the end of the file
+                        break;
+                    }
+                    if (read < 0) {
+                        break;
+                    }
+                    buffer.compact();
+                }
+            }
+            if (damaged) {
+                if (s < segments.size() - 1) {
+                    throw new IllegalStateException("Journal segment " + segment
+                            + " has a damaged record at offset " + offset + " and later segments follow it");
+                }
+                break; // torn tail of the last segment, nothing after it can be trusted
+            }
+        }
+
+        applyBills(vault, bills);
+        return count;
+    }
+
+    /*
+     * Writer thread: waits for a batch, writes it, forces it to disk, and wakes
+     * the sessions waiting on it.
+     */
+    private void writeLoop() {
+        while (true) {
+            long batchEnd;
+            FileChannel out;
+            lock.lock();
+            try {
+                while (active.position() == 0 && !closed) {
+                    batchReady.awaitUninterruptibly();
+                }
+                if (active.position() == 0) {
+                    return; // closed and nothing left to write
+                }
+
+                // give other sessions up to maxLatency to join this batch
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (active.position() < batchSize * RECORD_SIZE && !closed) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    try {
+                        batchReady.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                ByteBuffer full = active;
+                active = flushing;
+                flushing = full;
+                batchEnd = appended;
+                out = channel;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                flushing.flip();
+                while (flushing.hasRemaining()) {
+                    out.write(flushing);
+                }
+                out.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            flushing.clear();
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durable = batchEnd;
+                }
+                committed.signalAll();
+                if (failure != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void checkUsable() {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+    }
+
+    /*
+     * Opens a segment for appending, cutting off a torn or corrupt tail.
+     */
+    private static FileChannel openSegment(Path segment) throws IOException {
+        FileChannel out = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long valid = validLength(out);
+        if (valid < out.size()) {
+            out.truncate(valid);
+        }
+        out.position(valid);
+        return out;
+    }
+
+    /*
+     * Length of the run of whole, correctly checksummed records at the start of the file.
+     */
+    private static long validLength(FileChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 check = new CRC32();
+        long valid = 0;
+        long position = 0;
+        while (true) {
+            buffer.clear();
+            int read = in.read(buffer, position);
+            if (read <= 0) {
+                return valid;
+            }
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                if (!validRecord(buffer, check)) {
+                    return valid;
+                }
+                buffer.position(buffer.position() + RECORD_SIZE);
+                valid += RECORD_SIZE;
+            }
+            if (read < buffer.capacity()) {
+                return valid;
+            }
+            position = valid;
+        }
+    }
+
+    /*
+     * Checks the checksum of the record at the buffer's position without moving it.
+     */
+    private static boolean validRecord(ByteBuffer buffer, CRC32 check) {
+        int start = buffer.position();
+        check.reset();
+        check.update(buffer.duplicate().limit(start + RECORD_SIZE - 4));
+        return buffer.getInt(start + RECORD_SIZE - 4) == (int) check.getValue() && buffer.get(start) != 0;
+    }
+
+    /*
+     * Applies the balance part of the record at the buffer's position and adds its
+     * bills to the running vault totals, moving past the record.
+     */
+    private static void applyRecord(ByteBuffer buffer, AccountStore accounts, long[] bills) {
+        byte type = buffer.get();
+        buffer.position(buffer.position() + 3);
+        int account = buffer.getInt();
+        int counterparty = buffer.getInt();
+        long cents = buffer.getLong();
+        int hundreds = buffer.getInt();
+        int fifties = buffer.getInt();
+        int twenties = buffer.getInt();
+        int fives = buffer.getInt();
+        buffer.getInt(); // checksum
+
+        // bills leave the vault for withdrawals and removals, and enter it otherwise
+        int sign = (type == WITHDRAW || type == VAULT_REMOVE) ? -1 : 1;
+        if (type != TRANSFER) {
+            bills[0] += sign * (long) hundreds;
+            bills[1] += sign * (long) fifties;
+            bills[2] += sign * (long) twenties;
+            bills[3] += sign * (long) fives;
+        }
+
+        if (type == WITHDRAW) {
+            replayAccount(accounts, account).credit(-cents);
+        } else if (type == DEPOSIT) {
+            replayAccount(accounts, account).credit(cents);
+        } else if (type == TRANSFER) {
+            replayAccount(accounts, account).credit(-cents);
+            replayAccount(accounts, counterparty).credit(cents);
+        }
+    }
+
+    private static Account replayAccount(AccountStore accounts, int accountNumber) {
+        Account a = accounts.get(accountNumber);
+        if (a == null) {
+            throw new IllegalStateException("Journal refers to unknown account #" + accountNumber);
+        }
+        return a;
+    }
+
+    /*
+     * Applies the net change of each denomination to the vault.
+     */
+    private static void applyBills(Vault vault, long[] bills) {
+        for (long b : bills) {
+            if (b > Integer.MAX_VALUE || b < Integer.MIN_VALUE) {
+                throw new IllegalStateException("Journal bill totals out of range");
+            }
+        }
+        Bills added = new Bills((int) Math.max(0, bills[0]), (int) Math.max(0, bills[1]),
+                (int) Math.max(0, bills[2]), (int) Math.max(0, bills[3]));
+        Bills removed = new Bills((int) Math.max(0, -bills[0]), (int) Math.max(0, -bills[1]),
+                (int) Math.max(0, -bills[2]), (int) Math.max(0, -bills[3]));
+        vault.addBills(added);
+        if (!vault.removeBills(removed)) {
+            throw new IllegalStateException("Journal removes more bills than the vault holds");
+        }
+    }
+
+    /*
+     * Journal segment files in the directory, oldest first.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : files) {
+                segments.add(p);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    static Path segmentPath(Path directory, long number) {
+        return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+} // end TransactionJournal
@@ -0,0 +1,477 @@
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: A way of running a TransactionEngine's transactions through a pre-allocated ring
+ * of command slots and a fixed pipeline of stages: validate, apply, journal, respond.
+ * Sessions (Connections, gateway loops, batch files) publish commands into the ring; each
+ * stage has one thread that works through the ring in order. Started with
+ * TransactionEngine.pipeline; from then on the engine's execute, withdraw, deposit, and
+ * transfer, and BatchProcessor chunks, are all carried out here.
+ *
+ * Assumption: Only the apply stage changes accounts, so it needs no stripe locks, and
+ * snapshots (which cut through those locks) are refused until the pipeline is closed. The
+ * ring size is a power of two (it is rounded up) and bounds the commands in flight; a
+ * caller finding the ring full waits for a slot.
+ *
+ * Input: TransactionCommands, from any number of threads.
+ * Output: The same TransactionResults the engine's locking mode gives, each reported only
+ * once it is durable.
+ *
+ * Algorithm: A ring buffer in the style of the LMAX Disruptor. Slots are created once and
+ * reused, and the stages hand slots on by publishing a cursor (the sequence of the last
+ * slot they finished) rather than through queues, so no queue nodes or wrappers are made
+ * per command. A caller claims the next sequence with one compare-and-set, fills in its
+ * slot, and publishes it; it then parks until the respond stage answers and frees the slot
+ * itself once it has read the result. A sequence is only claimed once its slot is free, so
+ * every claimed slot is published at once and the stages, which work in order, never wait
+ * on a caller that is itself waiting for a slot.
+ *
+ * Each stage takes every slot its upstream stage has finished, not just the next one, so
+ * under load the stages batch on their own: validate looks up the accounts (lookups change
+ * nothing), apply runs the engine's own rules on one thread, journal waits once for the
+ * last record of the whole batch to reach the disk (one group commit for the batch), and
+ * respond wakes the callers. The journal records are appended by apply, as each change is
+ * made, since a withdrawal's record names the bills the vault chose; the journal stage is
+ * where they are made durable, before any caller is answered.
+ */
+public class TransactionPipeline implements Closeable {
+
+    /** Slots in the ring by default. */
+    public static final int DEFAULT_RING_SIZE = 1024;
+
+    /* Returned by trySubmit when the next slot is not free yet. */
+    static final long RING_FULL = -2;
+
+    private static final int SPINS = 100;
+
+    // the top bit of the claim word means closed; the rest is the next sequence to claim
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    // Field declarations
+    private final TransactionEngine engine;
+    private final TransactionJournal journal;
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong claims = new AtomicLong();
+    private final Stage validate;
+    private final Stage apply;
+    private final Stage durable;
+    private final Stage respond;
+
+    /*
+     * Constructs and starts the stages. Use TransactionEngine.pipeline instead.
+     */
+    TransactionPipeline(TransactionEngine engine, int ringSize) {
+        if (ringSize < 1 || ringSize > 1 << 30) {
+            throw new IllegalArgumentException("Ring size out of range (1-" + (1 << 30) + "): " + ringSize);
+        }
+        int size = Integer.highestOneBit(ringSize);
+        if (size < ringSize) {
+            size <<= 1;
+        }
+        this.engine = engine;
+        this.journal = engine.getJournal();
+        this.ring = new Slot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            // slot i is free for sequence i: its previous occupant was i - size
+            ring[i] = new Slot(i - size);
+        }
+
+        this.validate = new Stage("validate", null);
+        this.apply = new Stage("apply", validate);
+        this.durable = new Stage("journal", apply);
+        this.respond = new Stage("respond", durable);
+        validate.next = apply;
+        apply.next = durable;
+        durable.next = respond;
+        for (Stage s : new Stage[] {validate, apply, durable, respond}) {
+            s.thread.start();
+        }
+    }
+
+    /**
+     * Runs one transaction through the pipeline and waits until its result is durable.
+     *
+     * @param command The transaction.
+     * @param origin  The engine the transaction was given to: this engine, or one
+     *                machine's view of it, whose vault the cash comes from and goes to.
+     * @return The outcome.
+     * @throws java.io.UncheckedIOException if the journal can no longer be written.
+     * @throws IllegalStateException if the pipeline is closed.
+     */
+    public TransactionResult execute(TransactionCommand command, TransactionEngine origin) {
+        TransactionResult result = tryExecute(command, origin);
+        if (result == null) {
+            throw new IllegalStateException("The pipeline is closed");
+        }
+        return result;
+    }
+
+    /*
+     * As execute, but returns null without running the command if the pipeline is
+     * closed, so the engine can run it in the locking mode once it has switched back.
+     */
+    TransactionResult tryExecute(TransactionCommand command, TransactionEngine origin) {
+        long sequence = submit(command, origin);
+        return sequence < 0 ? null : await(sequence);
+    }
+
+    /**
+     * Retrieves the number of slots in the ring.
+     *
+     * @return The ring size, a power of two.
+     */
+    public int getRingSize() {
+        return ring.length;
+    }
+
+    /**
+     * Retrieves the number of transactions the pipeline has answered.
+     *
+     * @return The transactions completed.
+     */
+    public long getCompleted() {
+        return respond.cursor + 1;
+    }
+
+    /**
+     * Retrieves the number of batches the journal stage has made durable. Completed
+     * transactions divided by this is the average batch, which grows with the load.
+     *
+     * @return The journal stage's batches.
+     */
+    public long getJournalBatches() {
+        return durable.batches;
+    }
+
+    /**
+     * Stops the pipeline once every command already published has been answered, and
+     * returns the engine to its locking mode. Commands given to the engine meanwhile wait
+     * for the switch and then run with its locks.
+     */
+    @Override
+    public void close() {
+        claims.getAndUpdate(c -> c | CLOSED);
+        boolean interrupted = false;
+        for (Stage s : new Stage[] {validate, apply, durable, respond}) {
+            LockSupport.unpark(s.thread);
+            while (s.thread.isAlive()) {
+                try {
+                    s.thread.join();
+                } catch (InterruptedException e) {
+                    // published commands have to be answered before the engine switches back
+                    interrupted = true;
+                }
+            }
+        }
+        engine.unpipeline(this);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Claims a slot, fills it in, and publishes it to the validate stage, without waiting
+     * for the answer. Returns the slot's sequence, which is passed to await, or -1 without
+     * publishing anything if the pipeline is closed. Used by execute, and by BatchProcessor
+     * to keep many commands in flight at once.
+     */
+    long submit(TransactionCommand command, TransactionEngine origin) {
+        long sequence;
+        for (int spins = 0; (sequence = trySubmit(command, origin)) == RING_FULL; spins++) {
+            idle(spins);
+        }
+        return sequence;
+    }
+
+    /*
+     * As submit, but returns RING_FULL without claiming anything if the next slot is still
+     * held by the caller of the command a lap ago. A caller holding slots of its own (a
+     * BatchProcessor) frees one before trying again, since waiting while it holds them
+     * could wait on itself, or on another caller waiting on it.
+     */
+    long trySubmit(TransactionCommand command, TransactionEngine origin) {
+        // claiming a sequence and checking for close is one step, so the validate stage
+        // cannot stop while a claimed slot is still being filled in; and a sequence is
+        // only claimed once its slot is free, so it is published without any waiting
+        long sequence;
+        Slot slot;
+        do {
+            sequence = claims.get();
+            if ((sequence & CLOSED) != 0) {
+                return -1;
+            }
+            slot = ring[(int) sequence & mask];
+            if (slot.released != sequence - ring.length) {
+                return RING_FULL;
+            }
+        } while (!claims.compareAndSet(sequence, sequence + 1));
+
+        slot.command = command;
+        slot.origin = origin;
+        slot.caller = Thread.currentThread();
+        slot.account = null;
+        slot.result = null;
+        slot.journalSequence = 0;
+        slot.failure = null;
+        slot.published = sequence;
+        LockSupport.unpark(validate.thread);
+        return sequence;
+    }
+
+    /*
+     * Waits until the command with the given sequence has been answered, which is after
+     * its journal record is durable, and frees its slot.
+     */
+    TransactionResult await(long sequence) {
+        Slot slot = ring[(int) sequence & mask];
+        boolean interrupted = false;
+        while (slot.answered != sequence) {
+            if (!respond.thread.isAlive() && slot.answered != sequence) {
+                throw new IllegalStateException("The pipeline is closed");
+            }
+            LockSupport.parkNanos(this, 1_000_000);
+            if (Thread.interrupted()) {
+                // the command is already published, so it has to be waited for
+                interrupted = true;
+            }
+        }
+        TransactionResult result = slot.result;
+        RuntimeException failure = slot.failure;
+        slot.command = null;
+        slot.origin = null;
+        slot.caller = null;
+        slot.account = null;
+        slot.released = sequence;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    /*
+     * Spins briefly, then yields, then sleeps, while waiting for something that is
+     * about to happen (a slot to be freed).
+     */
+    private static void idle(int spins) {
+        if (spins < SPINS) {
+            Thread.onSpinWait();
+        } else if (spins < 2 * SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    /*
+     * The validate stage: looks up the source account and turns away commands that can
+     * never succeed, so apply does nothing but change state.
+     */
+    private void validate(Slot slot) {
+        TransactionCommand c = slot.command;
+        TransactionResult.Status refused = null;
+        switch (c.getType()) {
+            case WITHDRAW: {
+                long cents = c.getAmountCents();
+                if (cents <= 0 || cents % 500 != 0 || cents / 100 > Integer.MAX_VALUE) {
+                    refused = TransactionResult.Status.INVALID_AMOUNT;
+                }
+                break;
+            }
+            case INTERNAL_TRANSFER:
+            case TRANSFER:
+                if (c.getAmountCents() < 0) {
+                    refused = TransactionResult.Status.INVALID_AMOUNT;
+                } else if (c.getType() == TransactionCommand.Type.TRANSFER
+                        && engine.findAccount(c.getDestination()) == null) {
+                    refused = TransactionResult.Status.UNKNOWN_ACCOUNT;
+                }
+                break;
+            default:
+                // deposits and vault changes: only the bills need checking
+                if (!c.getBills().isValid()) {
+                    refused = TransactionResult.Status.INVALID_AMOUNT;
+                }
+                break;
+        }
+        if (refused == null && c.getAccount() != 0) {
+            slot.account = engine.findAccount(c.getAccount());
+            if (slot.account == null) {
+                refused = TransactionResult.Status.UNKNOWN_ACCOUNT;
+            }
+        }
+        if (refused != null) {
+            slot.result = TransactionResult.failed(refused);
+        }
+    }
+
+    /*
+     * The apply stage: the engine's rules, run on the one thread that changes accounts
+     * while the pipeline runs, so the account stripe locks are skipped.
+     */
+    private void apply(Slot slot, long[] sequence) {
+        if (slot.result != null) {
+            return;
+        }
+        sequence[0] = 0;
+        try {
+            slot.result = slot.origin.applyCommand(slot.command, slot.account, sequence, true);
+        } catch (RuntimeException e) {
+            // the journal failed; nothing was changed, and the caller is told why
+            slot.failure = e;
+        }
+        slot.journalSequence = sequence[0];
+    }
+
+    /*
+     * One stage: its thread, the cursor it has finished up to, and the stage it feeds.
+     */
+    private final class Stage implements Runnable {
+
+        private final String name;
+        private final Stage upstream;
+        final Thread thread;
+        Stage next;
+        volatile long cursor = -1;
+        volatile long batches;
+
+        Stage(String name, Stage upstream) {
+            this.name = name;
+            this.upstream = upstream;
+            this.thread = new Thread(this, "atm-pipeline-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long[] sequence = new long[1];
+            int spins = 0;
+            while (true) {
+                long first = cursor + 1;
+                long last = available(first);
+                if (last < first) {
+                    if (finished()) {
+                        return;
+                    }
+                    if (spins < SPINS) {
+                        Thread.onSpinWait();
+                        spins++;
+                    } else {
+                        LockSupport.parkNanos(this, 1_000_000);
+                    }
+                    continue;
+                }
+                spins = 0;
+
+                // everything upstream has finished is one batch
+                long highest = 0;
+                for (long s = first; s <= last; s++) {
+                    Slot slot = ring[(int) s & mask];
+                    if (this == validate) {
+                        validate(slot);
+                    } else if (this == apply) {
+                        apply(slot, sequence);
+                    } else if (this == durable) {
+                        highest = Math.max(highest, slot.journalSequence);
+                    } else {
+                        // once answered the slot may be freed and reused at any moment
+                        Thread caller = slot.caller;
+                        slot.answered = s;
+                        LockSupport.unpark(caller);
+                    }
+                }
+                if (this == durable && highest != 0) {
+                    makeDurable(first, last, highest);
+                }
+                batches++;
+                cursor = last;
+                if (next != null) {
+                    LockSupport.unpark(next.thread);
+                }
+            }
+        }
+
+        /*
+         * The last sequence this stage may take: what its upstream stage has finished,
+         * or for validate, the end of the run of slots published in order.
+         */
+        private long available(long first) {
+            if (upstream != null) {
+                return upstream.cursor;
+            }
+            long s = first;
+            while (s - first < ring.length && ring[(int) s & mask].published == s) {
+                s++;
+            }
+            return s - 1;
+        }
+
+        /*
+         * A stage stops once the pipeline is closed and it has finished everything that
+         * will ever reach it.
+         */
+        private boolean finished() {
+            long c = claims.get();
+            if ((c & CLOSED) == 0) {
+                return false;
+            }
+            if (upstream != null) {
+                return !upstream.thread.isAlive() && cursor == upstream.cursor;
+            }
+            return cursor == (c & ~CLOSED) - 1;
+        }
+
+        private void makeDurable(long first, long last, long highest) {
+            try {
+                journal.awaitDurable(highest);
+            } catch (RuntimeException e) {
+                // no caller in the batch may be told its change happened
+                for (long s = first; s <= last; s++) {
+                    Slot slot = ring[(int) s & mask];
+                    if (slot.journalSequence != 0 && slot.failure == null) {
+                        slot.failure = e;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /*
+     * One reusable command slot. A slot belongs to one stage at a time, handed on by the
+     * stage cursors, so its plain fields need no locking: published, the cursors, and
+     * answered are the volatile writes that pass them along.
+     */
+    private static final class Slot {
+
+        TransactionCommand command;
+        TransactionEngine origin;
+        Thread caller;
+        Account account;
+        TransactionResult result;
+        long journalSequence;
+        RuntimeException failure;
+        volatile long published;
+        volatile long answered;
+        volatile long released;
+
+        Slot(long previous) {
+            this.published = previous;
+            this.answered = previous;
+            this.released = previous;
+        }
+    }
+
+} // end TransactionPipeline
@@ -0,0 +1,131 @@
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The outcome of a single transaction run by the TransactionEngine. Tells the
+ * caller whether the transaction went through and, if not, why, so the screen can show
+ * the right message without the engine printing anything itself.
+ *
+ * Assumption: A result is created once and never changed.
+ *
+ * Input: The status of the transaction and, for withdrawals, the bills dispensed.
+ * Output: The status, a message describing it, and the dispensed bills.
+ *
+ * Algorithm: Immutable value holder. Results that carry no bills are shared, one per status.
+ */
+public final class TransactionResult {
+
+    /**
+     * Every way a transaction can end, with the message shown to the user.
+     */
+    public enum Status {
+        SUCCESS("Transaction successful."),
+        INVALID_AMOUNT("Error: Invalid amount."),
+        UNKNOWN_ACCOUNT("Error: Please input a valid account #"),
+        INSUFFICIENT_FUNDS("Error: Insufficient funds in your account."),
+        VAULT_INSUFFICIENT_CASH("Error: ATM does not have enough cash."),
+        CANNOT_DISPENSE("Error: ATM cannot dispense the exact requested amount due to insufficient bill denominations."),
+        INSUFFICIENT_BILLS("Error. Cannot remove more bills than the vault holds."),
+        VAULT_FULL("Error: The vault cannot hold that many bills.");
+
+        private final String message;
+
+        Status(String message) {
+            this.message = message;
+        }
+
+        /**
+         * Retrieves the message describing this status.
+         *
+         * @return The message shown to the user.
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    // Results without bills never change, so one instance per status is shared
+    private static final TransactionResult[] WITHOUT_BILLS = new TransactionResult[Status.values().length];
+    static {
+        for (Status s : Status.values()) {
+            WITHOUT_BILLS[s.ordinal()] = new TransactionResult(s, Bills.NONE);
+        }
+    }
+
+    // Field declarations
+    private final Status status;
+    private final Bills bills;
+
+    /*
+     * Constructs a result. Use the static factory methods instead.
+     */
+    private TransactionResult(Status status, Bills bills) {
+        this.status = status;
+        this.bills = bills;
+    }
+
+    /**
+     * Result of a successful transaction that moved no bills out of the ATM.
+     *
+     * @return A successful result.
+     */
+    public static TransactionResult success() {
+        return WITHOUT_BILLS[Status.SUCCESS.ordinal()];
+    }
+
+    /**
+     * Result of a successful withdrawal.
+     *
+     * @param dispensed The bills handed to the customer.
+     * @return A successful result holding the dispensed bills.
+     */
+    public static TransactionResult dispensed(Bills dispensed) {
+        return new TransactionResult(Status.SUCCESS, dispensed);
+    }
+
+    /**
+     * Result of a transaction that was rejected.
+     *
+     * @param status Why the transaction was rejected.
+     * @return A failed result.
+     */
+    public static TransactionResult failed(Status status) {
+        return WITHOUT_BILLS[status.ordinal()];
+    }
+
+    /**
+     * Checks whether the transaction went through.
+     *
+     * @return true if the transaction succeeded.
+     */
+    public boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+
+    /**
+     * Retrieves the status of the transaction.
+     *
+     * @return The status.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Retrieves the message describing the status of the transaction.
+     *
+     * @return The message shown to the user.
+     */
+    public String getMessage() {
+        return status.getMessage();
+    }
+
+    /**
+     * Retrieves the bills dispensed by a withdrawal.
+     *
+     * @return The dispensed bills, or no bills for any other transaction.
+     */
+    public Bills getBills() {
+        return bills;
+    }
+
+} // end TransactionResult
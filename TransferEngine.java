@@ -0,0 +1,268 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Moves money between two accounts as one indivisible step, so that no other
+ * session can ever see the money missing from the source before it reaches the
+ * destination. Transfers between unrelated accounts run fully in parallel.
+ *
+ * Assumption: Every account taking part in a transfer is in the AccountStore.
+ *
+ * Input: Source and destination account numbers and the amount to move.
+ * Output: A TransactionResult telling the caller whether the transfer succeeded.
+ *
+ * Algorithm: Lock striping. A fixed array of locks is shared by all accounts, and the
+ * account number is hashed to pick its lock (its stripe). A transfer holds the stripes of
+ * both accounts while it debits and credits them. The two stripes are always locked in
+ * ascending stripe order, so a transfer from A to B and one from B to A running at the
+ * same time ask for the locks in the same order and can never deadlock. When both
+ * accounts hash to the same stripe only that one lock is taken.
+ *
+ * When a TransactionJournal is given, the transfer record is appended while the stripes
+ * are still held, before the money moves, so the journal lists every change to an account
+ * in the order it happened. The wait for the record to reach the disk happens after the
+ * locks are released, so other transfers on the same stripes can share its group commit.
+ *
+ * The engine also provides the checkpoint gate used for snapshots. Every balance or vault
+ * change holds the gate's shared side while it runs; a snapshot holds the exclusive side
+ * only long enough to mark the cut (no change is half done at that moment). From the cut
+ * until the snapshot is written, the first change to each account saves the balance it
+ * had at the cut (copy-on-write), so the snapshot can read the state at the cut while
+ * transactions keep running.
+ */
+public class TransferEngine {
+
+    /** Number of stripes used when none is given. */
+    public static final int DEFAULT_STRIPES = 1024;
+
+    // Field declarations
+    private final AccountStore accounts;
+    private final TransactionJournal journal;
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+    private volatile Map<Integer, Long> cutBalances; // balances at the cut, while a snapshot runs
+
+    /**
+     * Constructs a transfer engine over the given accounts.
+     *
+     * @param accounts    Store of accounts that can take part in transfers.
+     * @param stripeCount The number of locks to spread the accounts over. Rounded up to a
+     *                    power of two.
+     */
+    public TransferEngine(AccountStore accounts, int stripeCount) {
+        this(accounts, stripeCount, null);
+    }
+
+    /**
+     * Constructs a transfer engine that records every transfer in a journal.
+     *
+     * @param accounts    Store of accounts that can take part in transfers.
+     * @param stripeCount The number of locks to spread the accounts over. Rounded up to a
+     *                    power of two.
+     * @param journal     The journal to record transfers in, or null for none.
+     */
+    public TransferEngine(AccountStore accounts, int stripeCount, TransactionJournal journal) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+        int size = Integer.highestOneBit(Math.min(stripeCount, 1 << 20) * 2 - 1);
+
+        this.accounts = accounts;
+        this.journal = journal;
+        this.stripes = new ReentrantLock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Moves money from one account to another.
+     *
+     * @param sourceAccount      The account the money is taken from.
+     * @param destinationAccount The account the money is added to.
+     * @param amountCents        The amount to move, in cents.
+     * @return Whether the transfer succeeded.
+     */
+    public TransactionResult transfer(int sourceAccount, int destinationAccount, long amountCents) {
+        long[] sequence = new long[1];
+        Lock shared = gate.readLock();
+        shared.lock();
+        TransactionResult result;
+        try {
+            result = applyTransfer(accounts.get(sourceAccount), accounts.get(destinationAccount), amountCents, sequence);
+        } finally {
+            shared.unlock();
+        }
+        if (sequence[0] != 0) {
+            journal.awaitDurable(sequence[0]);
+        }
+        return result;
+    }
+
+    /*
+     * Does the work of one transfer. The caller holds the shared side of the checkpoint
+     * gate and waits for the journal sequence left in sequence[0] once it has let go.
+     */
+    TransactionResult applyTransfer(Account source, Account destination, long amountCents, long[] sequence) {
+        if (amountCents < 0) {
+            return TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT);
+        }
+        if (source == null || destination == null) {
+            return TransactionResult.failed(TransactionResult.Status.UNKNOWN_ACCOUNT);
+        }
+
+        // always lock the lower stripe first so opposite transfers cannot deadlock
+        int a = stripeFor(source.getAccountNumber());
+        int b = stripeFor(destination.getAccountNumber());
+        ReentrantLock first = stripes[Math.min(a, b)];
+        ReentrantLock second = stripes[Math.max(a, b)];
+
+        first.lock();
+        try {
+            if (second != first) {
+                second.lock();
+            }
+            try {
+                if (source.getBalanceCents() < amountCents) {
+                    return TransactionResult.failed(TransactionResult.Status.INSUFFICIENT_FUNDS);
+                }
+                if (source.getAccountNumber() != destination.getAccountNumber()) {
+                    try {
+                        Money.addCents(destination.getBalanceCents(), amountCents);
+                    } catch (ArithmeticException e) {
+                        // the destination balance would overflow
+                        return TransactionResult.failed(TransactionResult.Status.INVALID_AMOUNT);
+                    }
+                }
+
+                // both stripes are held, so neither balance can change before the move
+                beforeChange(source);
+                beforeChange(destination);
+                if (journal != null) {
+                    sequence[0] = journal.append(TransactionJournal.TRANSFER, source.getAccountNumber(),
+                            destination.getAccountNumber(), amountCents, Bills.NONE);
+                }
+                source.debit(amountCents);
+                destination.credit(amountCents);
+            } finally {
+                if (second != first) {
+                    second.unlock();
+                }
+            }
+        } finally {
+            first.unlock();
+        }
+        return TransactionResult.success();
+    }
+
+    /**
+     * Retrieves the journal transfers are recorded in.
+     *
+     * @return The journal, or null if transfers are not recorded.
+     */
+    public TransactionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Retrieves the number of stripes the accounts are spread over.
+     *
+     * @return The number of locks.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /*
+     * Picks the stripe guarding the given account number.
+     */
+    int stripeFor(int accountNumber) {
+        return AccountRegistry.hash(accountNumber) & mask;
+    }
+
+    /*
+     * The lock guarding the given account. Anything that changes a balance outside a
+     * transfer holds it too, so that journal records and balance changes stay in order.
+     */
+    ReentrantLock lockFor(int accountNumber) {
+        return stripes[stripeFor(accountNumber)];
+    }
+
+    /*
+     * The shared side of the checkpoint gate, held by every balance or vault change
+     * (outside any stripe lock).
+     */
+    Lock sharedGate() {
+        return gate.readLock();
+    }
+
+    /*
+     * Runs a step while no change is in progress: waits for every change holding the
+     * shared side of the gate to finish, and keeps new ones out until the step returns.
+     * The engine switches between its locking mode and its partitions or pipeline this
+     * way, so a change that read the old mode always finishes before the new one starts.
+     */
+    void exclusive(Runnable step) {
+        gate.writeLock().lock();
+        try {
+            step.run();
+        } finally {
+            gate.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Marks a snapshot cut: waits for every change in progress to finish, runs the
+     * given step (rotating the journal, reading the vault) while nothing can change,
+     * and starts saving the balances accounts had at the cut.
+     */
+    void cut(Runnable atCut) {
+        gate.writeLock().lock();
+        try {
+            atCut.run();
+            cutBalances = new ConcurrentHashMap<Integer, Long>();
+        } finally {
+            gate.writeLock().unlock();
+        }
+    }
+
+    /*
+     * The balance the account had at the last cut. Only valid between cut and endCut.
+     */
+    long balanceAtCut(Account account) {
+        ReentrantLock lock = lockFor(account.getAccountNumber());
+        lock.lock();
+        try {
+            Long saved = cutBalances.get(account.getAccountNumber());
+            return saved != null ? saved : account.getBalanceCents();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Stops saving balances once the snapshot has read every account.
+     */
+    void endCut() {
+        cutBalances = null;
+    }
+
+    /*
+     * Called under the account's stripe lock just before its balance changes. While a
+     * snapshot is running, saves the balance the account had at the cut.
+     */
+    void beforeChange(Account account) {
+        Map<Integer, Long> saved = cutBalances;
+        if (saved != null) {
+            saved.putIfAbsent(account.getAccountNumber(), account.getBalanceCents());
+        }
+    }
+
+} // end TransferEngine
@@ -0,0 +1,153 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Index of every user in the bank, keyed by name and by the numbers of the
+ * user's checking and savings accounts. Used by Connection to log users in, to list a
+ * user's accounts, and to find the other account of a user during a transfer without
+ * scanning the whole list of users.
+ *
+ * Assumption: Each user has a unique name (the same assumption the User class makes),
+ * and every account number belongs to exactly one user.
+ *
+ * Input: User objects to add, and names or account numbers to look up.
+ * Output: The matching User, or null if there is none.
+ *
+ * Algorithm: Two hash maps, one from name to user and one from account number to user.
+ * The plain directory uses HashMap and is meant to be filled before it is shared. The
+ * concurrent directory uses ConcurrentHashMap, whose lookups never lock, so many ATM
+ * sessions can authenticate at the same time while users are still being added.
+ */
+public class UserDirectory {
+
+    // Field declarations for the two indexes
+    private final Map<String, User> usersByName;
+    private final Map<Integer, User> usersByAccount;
+
+    /*
+     * Constructs a directory over the given (empty) maps.
+     */
+    private UserDirectory(Map<String, User> usersByName, Map<Integer, User> usersByAccount) {
+        this.usersByName = usersByName;
+        this.usersByAccount = usersByAccount;
+    }
+
+    /**
+     * Creates an empty directory for use by a single thread, or for sharing
+     * once all users have been added.
+     *
+     * @param expectedUsers The number of users that will be added.
+     * @return An empty directory.
+     */
+    public static UserDirectory create(int expectedUsers) {
+        return new UserDirectory(new HashMap<String, User>(capacityFor(expectedUsers)),
+                new HashMap<Integer, User>(capacityFor(expectedUsers * 2)));
+    }
+
+    /**
+     * Creates an empty directory that may be read and updated by many threads at once.
+     *
+     * @param expectedUsers The number of users that will be added.
+     * @return An empty thread-safe directory.
+     */
+    public static UserDirectory concurrent(int expectedUsers) {
+        return new UserDirectory(new ConcurrentHashMap<String, User>(capacityFor(expectedUsers)),
+                new ConcurrentHashMap<Integer, User>(capacityFor(expectedUsers * 2)));
+    }
+
+    /**
+     * Builds a thread-safe directory holding every user in the given list.
+     *
+     * @param users The list of users to index.
+     * @return A directory containing all of the users.
+     */
+    public static UserDirectory of(List<User> users) {
+        UserDirectory directory = concurrent(users.size());
+        for (User u : users) {
+            directory.add(u);
+        }
+        return directory;
+    }
+
+    /**
+     * Adds a user to the directory under their name and both of their account numbers.
+     *
+     * @param user The user to add.
+     */
+    public void add(User user) {
+        usersByName.put(user.getName(), user);
+        usersByAccount.put(user.getCheckingAccountNumber(), user);
+        usersByAccount.put(user.getSavingsAccountNumber(), user);
+    }
+
+    /**
+     * Checks a name and password against the directory.
+     *
+     * @param name     The name of the user logging in.
+     * @param password The password the user typed.
+     * @return The user if the credentials match, null otherwise.
+     */
+    public User authenticate(String name, String password) {
+        User user = findByName(name);
+        if (user != null && user.getPassword().equals(password)) {
+            return user;
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the user with the given name.
+     *
+     * @param name The user's name.
+     * @return The matching user, or null if there is none.
+     */
+    public User findByName(String name) {
+        if (name == null) {
+            return null;
+        }
+        return usersByName.get(name);
+    }
+
+    /**
+     * Retrieves the user who owns the given checking or savings account.
+     *
+     * @param accountNumber The account number.
+     * @return The owner of the account, or null if no user owns it.
+     */
+    public User findByAccountNumber(int accountNumber) {
+        return usersByAccount.get(accountNumber);
+    }
+
+    /**
+     * Retrieves the number of users in the directory.
+     *
+     * @return The count of users.
+     */
+    public int size() {
+        return usersByName.size();
+    }
+
+    /**
+     * Runs an action for every user in the directory, in no particular order.
+     *
+     * @param action The action to run for each user.
+     */
+    public void forEach(Consumer<User> action) {
+        for (User u : usersByName.values()) {
+            action.accept(u);
+        }
+    }
+
+    /*
+     * HashMap capacity that holds the expected entries without resizing.
+     */
+    private static int capacityFor(int expected) {
+        return (int) Math.min(1 << 30, (long) expected * 4 / 3 + 1);
+    }
+
+} // end UserDirectory
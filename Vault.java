@@ -16,11 +16,16 @@
  * Algorithm: The class initializes bill counts via a constructor 
  * and provides getter and setter methods for each denomination. 
  * The `calculateBalance` method computes the total cash available 
- * based on the stored denominations.
+ * based on the stored denominations. Every method holds the vault's lock,
+ * so several ATM sessions can share one vault, and whole bundles of bills
+ * are added or removed in a single step.
  */
 public class Vault{
 
 
+    // Plans which bills to hand out for a withdrawal when no strategy is given
+    static final DispenseStrategy DEFAULT_STRATEGY = new GreedyDispenser();
+
     // Field declarations representing different bill denominations in the vault
     private int hundredDollarBills;
     private int fiftyDollarBills;
@@ -47,7 +52,7 @@ public class Vault{
      * 
      * @return The total dollar amount available in the vault.
      */
-    public int calculateBalance() {
+    public synchronized int calculateBalance() {
         return (hundredDollarBills * 100) +
                (fiftyDollarBills * 50) +
                (twentyDollarBills * 20) +
@@ -59,7 +64,7 @@ public class Vault{
      * 
      * @return The count of $100 bills.
      */
-    public int getHundredDollarBills() {
+    public synchronized int getHundredDollarBills() {
         return hundredDollarBills;
     }
 
@@ -68,7 +73,7 @@ public class Vault{
      * 
      * @param hundredDollarBills The new count of $100 bills.
      */
-    public void setHundredDollarBills(int hundredDollarBills) {
+    public synchronized void setHundredDollarBills(int hundredDollarBills) {
         this.hundredDollarBills = hundredDollarBills;
     }
 
@@ -77,7 +82,7 @@ public class Vault{
      * 
      * @return The count of $50 bills.
      */
-    public int getFiftyDollarBills() {
+    public synchronized int getFiftyDollarBills() {
         return fiftyDollarBills;
     }
 
@@ -86,7 +91,7 @@ public class Vault{
      * 
      * @param fiftyDollarBills The new count of $50 bills.
      */
-    public void setFiftyDollarBills(int fiftyDollarBills) {
+    public synchronized void setFiftyDollarBills(int fiftyDollarBills) {
         this.fiftyDollarBills = fiftyDollarBills;
     }
 
@@ -95,7 +100,7 @@ public class Vault{
      * 
      * @return The count of $20 bills.
      */
-    public int getTwentyDollarBills() {
+    public synchronized int getTwentyDollarBills() {
         return twentyDollarBills;
     }
 
@@ -104,7 +109,7 @@ public class Vault{
      * 
      * @param twentyDollarBills The new count of $20 bills.
      */
-    public void setTwentyDollarBills(int twentyDollarBills) {
+    public synchronized void setTwentyDollarBills(int twentyDollarBills) {
         this.twentyDollarBills = twentyDollarBills;
     }
 
@@ -113,7 +118,7 @@ public class Vault{
      * 
      * @return The count of $5 bills.
      */
-    public int getFiveDollarBills() {
+    public synchronized int getFiveDollarBills() {
         return fiveDollarBills;
     }
 
@@ -122,17 +127,77 @@ public class Vault{
      * 
      * @param fiveDollarBills The new count of $5 bills.
      */
-    public void setFiveDollarBills(int fiveDollarBills) {
+    public synchronized void setFiveDollarBills(int fiveDollarBills) {
         this.fiveDollarBills = fiveDollarBills;
     }
 
+    /**
+     * Adds a bundle of bills to the vault.
+     * 
+     * @param bills The bills to add.
+     */
+    public synchronized void addBills(Bills bills) {
+        hundredDollarBills += bills.getHundreds();
+        fiftyDollarBills += bills.getFifties();
+        twentyDollarBills += bills.getTwenties();
+        fiveDollarBills += bills.getFives();
+    }
+
+    /**
+     * Removes a bundle of bills from the vault, but only if the vault holds
+     * enough of every denomination. Either all of the bills are removed or none are.
+     * 
+     * @param bills The bills to remove.
+     * @return true if the bills were removed, false if the vault is short.
+     */
+    public synchronized boolean removeBills(Bills bills) {
+        if (bills.getHundreds() > hundredDollarBills || bills.getFifties() > fiftyDollarBills
+                || bills.getTwenties() > twentyDollarBills || bills.getFives() > fiveDollarBills) {
+            return false;
+        }
+        hundredDollarBills -= bills.getHundreds();
+        fiftyDollarBills -= bills.getFifties();
+        twentyDollarBills -= bills.getTwenties();
+        fiveDollarBills -= bills.getFives();
+        return true;
+    }
+
+    /**
+     * Works out which bills to hand out for a withdrawal, largest bills first (see
+     * GreedyDispenser), and removes them from the vault in one update. Planning and
+     * removing happen under the vault's lock so another session cannot take the
+     * bills in between.
+     * 
+     * @param amount The dollar amount to dispense.
+     * @return The bills removed, or null if the vault does not hold the right bills.
+     */
+    public Bills dispense(int amount) {
+        return dispense(amount, DEFAULT_STRATEGY);
+    }
+
+    /**
+     * Asks the given strategy which bills to hand out for a withdrawal and removes
+     * them from the vault in one update, under the vault's lock.
+     * 
+     * @param amount The dollar amount to dispense.
+     * @param strategy Chooses the bills to hand out.
+     * @return The bills removed, or null if the vault does not hold the right bills.
+     */
+    public synchronized Bills dispense(int amount, DispenseStrategy strategy) {
+        Bills bills = strategy.plan(amount, hundredDollarBills, fiftyDollarBills, twentyDollarBills, fiveDollarBills);
+        if (bills != null) {
+            removeBills(bills);
+        }
+        return bills;
+    }
+
     /**
      * Returns a formatted string representation of the vault contents.
      * 
      * @return A string displaying the count of each bill denomination.
      */
     @Override
-    public String toString() {
+    public synchronized String toString() {
         return "Vault Bills:\n   Hundred Dollar Bills ($100) = " + getHundredDollarBills() + "\n   Fifty Dollar Bills ($50) = "
                 + getFiftyDollarBills() + "\n   Twenty Dollar Bills ($20) = " + getTwentyDollarBills()
                 + "\n   Five Dollar Bills ($5) = " + getFiveDollarBills() + "\n";
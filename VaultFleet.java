@@ -0,0 +1,496 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The vaults of a whole fleet of ATMs, each identified by its ATM id. Every
+ * machine gets a ShardedVault that a TransactionEngine (see TransactionEngine.atMachine)
+ * and Connection use like a single machine's vault, while the fleet can report the cash
+ * held across all machines at any moment.
+ *
+ * Assumption: Machines are added once and never removed. ATM ids are spread over the
+ * shards by a hash, so a shard holds many machines and the work evens out over a fleet of
+ * any size. The fleet-wide totals add up each shard's latest published totals: each shard's
+ * figure is exact as of its last change, but the shards are not stopped to line them up,
+ * so a withdrawal still in flight on one shard may be missing from the sum.
+ *
+ * Input: The number of shards (normally one per processor), then machines and their bills.
+ * Output: One ShardedVault per machine, and fleet and per-shard cash totals.
+ *
+ * Algorithm: Single writer per shard. Each shard has one thread, the only thread that
+ * ever changes the vaults of the machines hashed to it, and a bounded queue of requests.
+ * A caller puts its request on the owning shard's queue and parks until the shard has
+ * answered, so dispenses on machines in different shards never touch the same lock, queue,
+ * or cache line, and within a shard no vault needs a lock or compare-and-set at all. The
+ * shard thread takes whatever requests have queued up, applies them in order, publishes
+ * each changed vault's packed counts with a volatile write, then publishes an immutable
+ * Totals for the shard and wakes the callers. Reading a machine's counts or the fleet
+ * totals is a handful of volatile reads and never waits for a shard.
+ */
+public class VaultFleet implements Closeable {
+
+    /** Requests a shard's queue holds before callers wait for room. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // the kinds of request a shard carries out
+    static final int REGISTER = 0;
+    static final int DISPENSE = 1;
+    static final int ADD = 2;
+    static final int REMOVE = 3;
+    static final int SET = 4;
+
+    private static final int MAX_BATCH = 256;
+
+    // Field declarations
+    private final Shard[] shards;
+    private final ConcurrentHashMap<Integer, ShardedVault> machines = new ConcurrentHashMap<Integer, ShardedVault>();
+    private volatile boolean closed;
+
+    /**
+     * Constructs a fleet with no machines and starts its shard threads.
+     *
+     * @param shardCount    The number of shards, each with its own thread.
+     * @param queueCapacity Requests each shard's queue holds.
+     */
+    public VaultFleet(int shardCount, int queueCapacity) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Need at least one shard");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, queueCapacity);
+            shards[i].thread.start();
+        }
+    }
+
+    /**
+     * Constructs a fleet with one shard per processor.
+     */
+    public VaultFleet() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Adds a machine to the fleet.
+     *
+     * @param atmId The machine's id, unique in the fleet.
+     * @param bills The bills in its vault; at most 65,535 of each denomination.
+     * @return The machine's vault.
+     * @throws IllegalArgumentException if the fleet already has a machine with this id.
+     */
+    public ShardedVault addMachine(int atmId, Bills bills) {
+        Shard shard = shards[shardFor(atmId)];
+        ShardedVault vault = new ShardedVault(atmId, shard,
+                ShardedVault.pack(bills.getHundreds(), bills.getFifties(), bills.getTwenties(), bills.getFives()));
+        if (machines.putIfAbsent(atmId, vault) != null) {
+            throw new IllegalArgumentException("The fleet already has ATM " + atmId);
+        }
+        shard.call(REGISTER, vault, 0, 0, null, null);
+        return vault;
+    }
+
+    /**
+     * Retrieves a machine's vault.
+     *
+     * @param atmId The machine's id.
+     * @return The vault, or null if the fleet has no such machine.
+     */
+    public ShardedVault getMachine(int atmId) {
+        return machines.get(atmId);
+    }
+
+    /**
+     * Retrieves every machine's vault, in no particular order.
+     *
+     * @return The vaults.
+     */
+    public Collection<ShardedVault> getMachines() {
+        return machines.values();
+    }
+
+    /**
+     * Retrieves the number of machines in the fleet.
+     *
+     * @return The machine count.
+     */
+    public int getMachineCount() {
+        return machines.size();
+    }
+
+    /**
+     * Retrieves the number of shards.
+     *
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Tells which shard owns a machine.
+     *
+     * @param atmId The machine's id.
+     * @return The shard number, from 0 to getShardCount() - 1.
+     */
+    public int shardFor(int atmId) {
+        int h = atmId * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    /**
+     * Adds up the cash in every machine from each shard's latest published totals,
+     * without waiting for any shard.
+     *
+     * @return The fleet totals.
+     */
+    public Totals getTotals() {
+        long h = 0;
+        long f = 0;
+        long t = 0;
+        long fv = 0;
+        int count = 0;
+        long changes = 0;
+        for (Shard s : shards) {
+            Totals st = s.published;
+            h += st.hundreds;
+            f += st.fifties;
+            t += st.twenties;
+            fv += st.fives;
+            count += st.machines;
+            changes += st.changes;
+        }
+        return new Totals(h, f, t, fv, count, changes);
+    }
+
+    /**
+     * Retrieves one shard's latest published totals.
+     *
+     * @param shard The shard number.
+     * @return The cash in the shard's machines.
+     */
+    public Totals getShardTotals(int shard) {
+        return shards[shard].published;
+    }
+
+    /**
+     * Stops the shard threads once they have answered every queued request. Changes
+     * requested afterwards fail with IllegalStateException; reads still work.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Shard s : shards) {
+            s.thread.interrupt();
+        }
+        for (Shard s : shards) {
+            try {
+                s.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cash held by a set of machines: a shard's or the whole fleet's.
+     */
+    public static final class Totals {
+
+        private final long hundreds;
+        private final long fifties;
+        private final long twenties;
+        private final long fives;
+        private final int machines;
+        private final long changes;
+
+        Totals(long hundreds, long fifties, long twenties, long fives, int machines, long changes) {
+            this.hundreds = hundreds;
+            this.fifties = fifties;
+            this.twenties = twenties;
+            this.fives = fives;
+            this.machines = machines;
+            this.changes = changes;
+        }
+
+        /**
+         * Retrieves the number of $100 bills.
+         *
+         * @return The bill count.
+         */
+        public long getHundredDollarBills() {
+            return hundreds;
+        }
+
+        /**
+         * Retrieves the number of $50 bills.
+         *
+         * @return The bill count.
+         */
+        public long getFiftyDollarBills() {
+            return fifties;
+        }
+
+        /**
+         * Retrieves the number of $20 bills.
+         *
+         * @return The bill count.
+         */
+        public long getTwentyDollarBills() {
+            return twenties;
+        }
+
+        /**
+         * Retrieves the number of $5 bills.
+         *
+         * @return The bill count.
+         */
+        public long getFiveDollarBills() {
+            return fives;
+        }
+
+        /**
+         * Calculates the cash held.
+         *
+         * @return The total in dollars.
+         */
+        public long calculateBalance() {
+            return hundreds * 100 + fifties * 50 + twenties * 20 + fives * 5;
+        }
+
+        /**
+         * Retrieves the number of machines counted.
+         *
+         * @return The machine count.
+         */
+        public int getMachines() {
+            return machines;
+        }
+
+        /**
+         * Retrieves the number of changes made to these machines' vaults so far.
+         *
+         * @return The change count.
+         */
+        public long getChanges() {
+            return changes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d machines, $%,d: %d x $100, %d x $50, %d x $20, %d x $5", machines,
+                    calculateBalance(), hundreds, fifties, twenties, fives);
+        }
+    }
+
+    /*
+     * One change waiting for its shard. The caller parks until done is set.
+     */
+    private static final class Request {
+
+        final int op;
+        final ShardedVault vault;
+        final int amount;
+        final int shift;
+        final Bills bills;
+        final DispenseStrategy strategy;
+        final Thread caller = Thread.currentThread();
+        Bills result;
+        RuntimeException error;
+        volatile boolean done;
+
+        Request(int op, ShardedVault vault, int amount, int shift, Bills bills, DispenseStrategy strategy) {
+            this.op = op;
+            this.vault = vault;
+            this.amount = amount;
+            this.shift = shift;
+            this.bills = bills;
+            this.strategy = strategy;
+        }
+    }
+
+    /*
+     * A shard: its thread, its queue, and the running totals only its thread touches.
+     */
+    final class Shard implements Runnable {
+
+        private final int index;
+        private final BlockingQueue<Request> queue;
+        final Thread thread;
+        private final List<Request> batch = new ArrayList<Request>(MAX_BATCH);
+
+        // written only by the shard's thread
+        private final long[] counts = new long[4];
+        private int machineCount;
+        private long changes;
+        volatile Totals published = new Totals(0, 0, 0, 0, 0, 0);
+
+        Shard(int index, int queueCapacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<Request>(queueCapacity);
+            this.thread = new Thread(this, "atm-fleet-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        /*
+         * Has the shard carry out a change and waits for it. Returns the dispensed or
+         * removed bills, or null; rethrows what the change threw.
+         */
+        Bills call(int op, ShardedVault vault, int amount, int shift, Bills bills, DispenseStrategy strategy) {
+            Request r = new Request(op, vault, amount, shift, bills, strategy);
+            if (Thread.currentThread() == thread) {
+                // already on the shard's thread (a listener, say): nothing to wait for
+                apply(r);
+                publish();
+            } else {
+                if (closed) {
+                    throw new IllegalStateException("The fleet is closed");
+                }
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        queue.put(r);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                while (!r.done) {
+                    LockSupport.parkNanos(this, 100_000_000);
+                    if (Thread.interrupted()) {
+                        // the change is already queued, so it has to be waited for
+                        interrupted = true;
+                    }
+                    if (!r.done && !thread.isAlive() && queue.remove(r)) {
+                        // closed after the request was queued; it was never carried out
+                        throw new IllegalStateException("The fleet is closed");
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (r.error != null) {
+                throw r.error;
+            }
+            return r.result;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Request first;
+                try {
+                    first = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    first = queue.poll();
+                }
+                if (first == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (int i = 0; i < batch.size(); i++) {
+                    apply(batch.get(i));
+                }
+                // publish before waking anyone, so a caller that reads the totals sees its change
+                publish();
+                for (int i = 0; i < batch.size(); i++) {
+                    Request r = batch.get(i);
+                    r.done = true;
+                    LockSupport.unpark(r.caller);
+                }
+                batch.clear();
+            }
+        }
+
+        /*
+         * Carries out one request on the shard's thread.
+         */
+        private void apply(Request r) {
+            ShardedVault v = r.vault;
+            long s = v.state;
+            int[] now = { ShardedVault.hundreds(s), ShardedVault.fifties(s), ShardedVault.twenties(s),
+                ShardedVault.fives(s) };
+            try {
+                switch (r.op) {
+                    case REGISTER:
+                        machineCount++;
+                        move(now, 1);
+                        return;
+                    case DISPENSE: {
+                        Bills plan = r.strategy.plan(r.amount, now[0], now[1], now[2], now[3]);
+                        if (plan != null) {
+                            change(v, now, delta(plan, -1));
+                        }
+                        r.result = plan;
+                        return;
+                    }
+                    case ADD:
+                        change(v, now, delta(r.bills, 1));
+                        return;
+                    case REMOVE:
+                        if (r.bills.getHundreds() <= now[0] && r.bills.getFifties() <= now[1]
+                                && r.bills.getTwenties() <= now[2] && r.bills.getFives() <= now[3]) {
+                            change(v, now, delta(r.bills, -1));
+                            r.result = r.bills;
+                        }
+                        return;
+                    case SET: {
+                        ShardedVault.checkCount(r.amount);
+                        int d = 3 - r.shift / 16;
+                        int[] delta = new int[4];
+                        delta[d] = r.amount - now[d];
+                        change(v, now, delta);
+                        return;
+                    }
+                    default:
+                        throw new IllegalArgumentException("Unknown request: " + r.op);
+                }
+            } catch (RuntimeException e) {
+                r.error = e;
+            }
+        }
+
+        /*
+         * Changes a vault's counts and the shard's totals by delta. Throws
+         * IllegalStateException, changing nothing, if a count would leave 0-65,535.
+         */
+        private void change(ShardedVault v, int[] now, int[] delta) {
+            v.state = ShardedVault.pack(now[0] + delta[0], now[1] + delta[1], now[2] + delta[2], now[3] + delta[3]);
+            move(delta, 1);
+            changes++;
+        }
+
+        private int[] delta(Bills bills, int sign) {
+            return new int[] { sign * bills.getHundreds(), sign * bills.getFifties(), sign * bills.getTwenties(),
+                sign * bills.getFives() };
+        }
+
+        private void move(int[] bills, int sign) {
+            for (int i = 0; i < 4; i++) {
+                counts[i] += sign * (long) bills[i];
+            }
+        }
+
+        private void publish() {
+            published = new Totals(counts[0], counts[1], counts[2], counts[3], machineCount, changes);
+        }
+    }
+
+} // end VaultFleet
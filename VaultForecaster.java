@@ -0,0 +1,473 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Warns operators that the vault is running out of a kind of bill before
+ * withdrawals start being refused. Watches the bills of each denomination going out in
+ * withdrawals and coming in from deposits and operator restocks, keeps a moving average
+ * of each rate, projects how long each denomination will last, and raises an alert when
+ * that falls below the warning or critical time, so a replenishment run can be scheduled
+ * in time.
+ *
+ * Assumption: The TransactionEngine reports every change to the vault here (see
+ * TransactionEngine.setForecaster). The forecast assumes the recent rates continue. Only
+ * customer traffic is used to project: operator restocks arrive in lumps at times the
+ * operators choose, so their rate is tracked and reported but not counted on to refill the
+ * vault. A denomination with more coming in than going out never runs out.
+ *
+ * Input: Bills dispensed and taken in, as they happen, and a tick every few seconds.
+ * Output: A Forecast per denomination (bills left, rates, time to empty, alert level) and
+ * Alerts to every listener when a level changes.
+ *
+ * Algorithm: Recording only adds to LongAdders, so the transaction path pays a few
+ * nanoseconds. Each tick takes the bills moved since the last tick, divides by the time
+ * passed, and folds that rate into an exponentially weighted moving average with
+ * weight 1 - e^(-elapsed / window), so the average forgets at the same speed however
+ * irregular the ticks. Time to empty is the bills left over the net consumption rate.
+ * Levels change with hysteresis: an alert clears only once the time to empty is half as
+ * long again as the threshold that raised it, so a denomination hovering at the line does
+ * not flap between alerts.
+ */
+public class VaultForecaster {
+
+    /** Moving average window used by ATMDriver unless configured: 15 minutes. */
+    public static final long DEFAULT_WINDOW_SECONDS = 15 * 60;
+
+    private static final String[] DENOMINATION_NAMES = { "$100", "$50", "$20", "$5" };
+    private static final int DENOMINATIONS = DENOMINATION_NAMES.length;
+    private static final double CLEAR_FACTOR = 1.5;
+
+    /**
+     * How urgently a denomination needs replenishing.
+     */
+    public enum Level {
+        /** Lasts longer than the warning time. */
+        OK,
+        /** Runs out within the warning time. */
+        WARNING,
+        /** Runs out within the critical time, or is already empty. */
+        CRITICAL
+    }
+
+    /**
+     * Receives alerts when a denomination's level changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the ticking thread when a denomination's level changes, including
+         * when it goes back to OK.
+         *
+         * @param alert The new forecast and the level it replaces.
+         */
+        void onAlert(Alert alert);
+    }
+
+    // Field declarations
+    private final Vault vault;
+    private final double windowSeconds;
+    private final double warningSeconds;
+    private final double criticalSeconds;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    // bills moved since the forecaster started, by denomination, written by transactions
+    private final LongAdder[] dispensed = newAdders();
+    private final LongAdder[] deposited = newAdders();
+    private final LongAdder[] restocked = newAdders();
+    private final LongAdder[] unloaded = newAdders();
+    private final LongAdder refusals = new LongAdder();
+
+    // read and written only under the forecaster's lock, by tick
+    private final long[] lastOut = new long[DENOMINATIONS];
+    private final long[] lastIn = new long[DENOMINATIONS];
+    private final long[] lastOperator = new long[DENOMINATIONS];
+    private final double[] outRate = new double[DENOMINATIONS];
+    private final double[] inRate = new double[DENOMINATIONS];
+    private final double[] operatorRate = new double[DENOMINATIONS];
+    private final Level[] levels = { Level.OK, Level.OK, Level.OK, Level.OK };
+    private long lastTick;
+    private boolean started;
+    private volatile Forecast[] forecasts = new Forecast[0];
+
+    /**
+     * Constructs a forecaster for a vault.
+     *
+     * @param vault           The vault whose bills are counted.
+     * @param windowSeconds   How far back the moving averages look, roughly: a rate change
+     *                        is two-thirds reflected after this long.
+     * @param warningSeconds  Warn when a denomination will run out within this long.
+     * @param criticalSeconds Raise a critical alert when it will run out within this long.
+     */
+    public VaultForecaster(Vault vault, long windowSeconds, long warningSeconds, long criticalSeconds) {
+        if (windowSeconds <= 0 || criticalSeconds <= 0 || warningSeconds < criticalSeconds) {
+            throw new IllegalArgumentException("Need a positive window and 0 < critical <= warning");
+        }
+        this.vault = vault;
+        this.windowSeconds = windowSeconds;
+        this.warningSeconds = warningSeconds;
+        this.criticalSeconds = criticalSeconds;
+    }
+
+    /**
+     * Adds a listener for alerts.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Records bills dispensed for a withdrawal.
+     *
+     * @param bills The bills that left the vault.
+     */
+    public void recordDispensed(Bills bills) {
+        add(dispensed, bills);
+    }
+
+    /**
+     * Records bills a customer deposited.
+     *
+     * @param bills The bills that went into the vault.
+     */
+    public void recordDeposited(Bills bills) {
+        add(deposited, bills);
+    }
+
+    /**
+     * Records bills an operator added to the vault.
+     *
+     * @param bills The bills that went into the vault.
+     */
+    public void recordRestocked(Bills bills) {
+        add(restocked, bills);
+    }
+
+    /**
+     * Records bills an operator took out of the vault.
+     *
+     * @param bills The bills that left the vault.
+     */
+    public void recordUnloaded(Bills bills) {
+        add(unloaded, bills);
+    }
+
+    /**
+     * Records a withdrawal the vault could not pay out, which is revenue already lost.
+     */
+    public void recordRefused() {
+        refusals.increment();
+    }
+
+    /**
+     * Retrieves the number of withdrawals refused because the vault could not pay them.
+     *
+     * @return The refusals since the forecaster started.
+     */
+    public long getRefusals() {
+        return refusals.sum();
+    }
+
+    /**
+     * Updates the rates and forecasts and alerts listeners to any level change. Called by
+     * the scheduler from start, or directly with a clock of the caller's choosing.
+     *
+     * @param nowNanos The current time, from System.nanoTime or a clock like it.
+     */
+    public void tick(long nowNanos) {
+        List<Alert> alerts = new ArrayList<Alert>();
+        synchronized (this) {
+            int[] counts = { vault.getHundredDollarBills(), vault.getFiftyDollarBills(),
+                vault.getTwentyDollarBills(), vault.getFiveDollarBills() };
+            double elapsed = (nowNanos - lastTick) / 1e9;
+            Forecast[] next = new Forecast[DENOMINATIONS];
+            for (int d = 0; d < DENOMINATIONS; d++) {
+                long out = dispensed[d].sum();
+                long in = deposited[d].sum();
+                long operator = restocked[d].sum() - unloaded[d].sum();
+                if (started && elapsed > 0) {
+                    double weight = 1 - Math.exp(-elapsed / windowSeconds);
+                    outRate[d] += weight * ((out - lastOut[d]) / elapsed - outRate[d]);
+                    inRate[d] += weight * ((in - lastIn[d]) / elapsed - inRate[d]);
+                    operatorRate[d] += weight * ((operator - lastOperator[d]) / elapsed - operatorRate[d]);
+                }
+                lastOut[d] = out;
+                lastIn[d] = in;
+                lastOperator[d] = operator;
+
+                double net = outRate[d] - inRate[d];
+                double secondsLeft = counts[d] == 0 ? 0 : net > 0 ? counts[d] / net : Double.POSITIVE_INFINITY;
+                Level level = levelFor(levels[d], secondsLeft);
+                next[d] = new Forecast(DENOMINATION_NAMES[d], counts[d], outRate[d], inRate[d], operatorRate[d],
+                        secondsLeft, level);
+                if (level != levels[d]) {
+                    alerts.add(new Alert(next[d], levels[d]));
+                    levels[d] = level;
+                }
+            }
+            lastTick = nowNanos;
+            started = true;
+            forecasts = next;
+        }
+        for (Alert a : alerts) {
+            for (Listener l : listeners) {
+                l.onAlert(a);
+            }
+        }
+    }
+
+    /**
+     * Ticks every so often on a background thread.
+     *
+     * @param intervalSeconds Seconds between ticks; a fraction of the window.
+     * @return The scheduler, which can be shut down to stop forecasting.
+     */
+    public ScheduledExecutorService start(long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atm-vault-forecast");
+            t.setDaemon(true);
+            return t;
+        });
+        tick(System.nanoTime());
+        scheduler.scheduleAtFixedRate(() -> tick(System.nanoTime()), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /**
+     * Retrieves the forecasts from the latest tick, one per denomination from $100 to $5.
+     *
+     * @return The forecasts, or an empty array before the first tick.
+     */
+    public Forecast[] getForecasts() {
+        return forecasts.clone();
+    }
+
+    /**
+     * Registers the forecasts as gauges: hours until each denomination runs out (a large
+     * number when it never does), net bills used per hour, and refused withdrawals.
+     *
+     * @param metrics The registry to export through.
+     */
+    public void register(MetricsRegistry metrics) {
+        for (int d = 0; d < DENOMINATIONS; d++) {
+            int index = d;
+            String labels = "denomination=\"" + DENOMINATION_NAMES[d].substring(1) + "\"";
+            metrics.gauge("atm_vault_hours_to_empty", "Projected hours until the vault runs out of a denomination.",
+                    labels, () -> {
+                        Forecast[] f = forecasts;
+                        return f.length == 0 ? Double.MAX_VALUE : Math.min(f[index].getHoursToEmpty(), Double.MAX_VALUE);
+                    });
+            metrics.gauge("atm_vault_bills_used_per_hour", "Moving average of bills dispensed less bills deposited.",
+                    labels, () -> {
+                        Forecast[] f = forecasts;
+                        return f.length == 0 ? 0 : f[index].getNetPerHour();
+                    });
+        }
+        metrics.gauge("atm_vault_refusals", "Withdrawals refused because the vault could not pay them.", "",
+                () -> refusals.sum());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Forecast f : forecasts) {
+            sb.append(f).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /*
+     * The new level, with hysteresis: a level is left for a better one only once the time
+     * left is comfortably above the threshold that raised it.
+     */
+    private Level levelFor(Level current, double secondsLeft) {
+        if (secondsLeft <= criticalSeconds) {
+            return Level.CRITICAL;
+        }
+        if (current == Level.CRITICAL && secondsLeft <= criticalSeconds * CLEAR_FACTOR) {
+            return Level.CRITICAL;
+        }
+        if (secondsLeft <= warningSeconds) {
+            return Level.WARNING;
+        }
+        if (current != Level.OK && secondsLeft <= warningSeconds * CLEAR_FACTOR) {
+            return Level.WARNING;
+        }
+        return Level.OK;
+    }
+
+    private static void add(LongAdder[] adders, Bills bills) {
+        if (bills.getHundreds() != 0) {
+            adders[0].add(bills.getHundreds());
+        }
+        if (bills.getFifties() != 0) {
+            adders[1].add(bills.getFifties());
+        }
+        if (bills.getTwenties() != 0) {
+            adders[2].add(bills.getTwenties());
+        }
+        if (bills.getFives() != 0) {
+            adders[3].add(bills.getFives());
+        }
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[DENOMINATIONS];
+        for (int i = 0; i < DENOMINATIONS; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * The outlook for one denomination at one tick.
+     */
+    public static final class Forecast {
+
+        private final String denomination;
+        private final int bills;
+        private final double outPerSecond;
+        private final double inPerSecond;
+        private final double operatorPerSecond;
+        private final double secondsToEmpty;
+        private final Level level;
+
+        Forecast(String denomination, int bills, double outPerSecond, double inPerSecond, double operatorPerSecond,
+                double secondsToEmpty, Level level) {
+            this.denomination = denomination;
+            this.bills = bills;
+            this.outPerSecond = outPerSecond;
+            this.inPerSecond = inPerSecond;
+            this.operatorPerSecond = operatorPerSecond;
+            this.secondsToEmpty = secondsToEmpty;
+            this.level = level;
+        }
+
+        /**
+         * Retrieves the denomination, such as "$20".
+         *
+         * @return The denomination.
+         */
+        public String getDenomination() {
+            return denomination;
+        }
+
+        /**
+         * Retrieves the bills of this denomination in the vault.
+         *
+         * @return The bill count.
+         */
+        public int getBills() {
+            return bills;
+        }
+
+        /**
+         * Retrieves the moving average of bills dispensed.
+         *
+         * @return Bills per hour.
+         */
+        public double getOutPerHour() {
+            return outPerSecond * 3600;
+        }
+
+        /**
+         * Retrieves the moving average of bills deposited by customers.
+         *
+         * @return Bills per hour.
+         */
+        public double getInPerHour() {
+            return inPerSecond * 3600;
+        }
+
+        /**
+         * Retrieves the moving average of bills added (less removed) by operators.
+         *
+         * @return Bills per hour.
+         */
+        public double getOperatorPerHour() {
+            return operatorPerSecond * 3600;
+        }
+
+        /**
+         * Retrieves the bills used per hour: dispensed less deposited.
+         *
+         * @return Bills per hour, negative when more come in than go out.
+         */
+        public double getNetPerHour() {
+            return (outPerSecond - inPerSecond) * 3600;
+        }
+
+        /**
+         * Retrieves how long the denomination lasts at the current rates.
+         *
+         * @return Hours, or positive infinity if it never runs out.
+         */
+        public double getHoursToEmpty() {
+            return secondsToEmpty / 3600;
+        }
+
+        /**
+         * Retrieves how urgently the denomination needs replenishing.
+         *
+         * @return The level.
+         */
+        public Level getLevel() {
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-4s %6d bills, out %.1f/h, in %.1f/h, empty in %s [%s]", denomination, bills,
+                    getOutPerHour(), getInPerHour(), Double.isInfinite(secondsToEmpty) ? "never"
+                            : secondsToEmpty < 3600 ? String.format("%.0f min", secondsToEmpty / 60)
+                            : String.format("%.1f h", getHoursToEmpty()), level);
+        }
+    }
+
+    /**
+     * A change in a denomination's level.
+     */
+    public static final class Alert {
+
+        private final Forecast forecast;
+        private final Level previous;
+
+        Alert(Forecast forecast, Level previous) {
+            this.forecast = forecast;
+            this.previous = previous;
+        }
+
+        /**
+         * Retrieves the forecast that changed the level.
+         *
+         * @return The forecast, with the new level.
+         */
+        public Forecast getForecast() {
+            return forecast;
+        }
+
+        /**
+         * Retrieves the level before this alert.
+         *
+         * @return The previous level.
+         */
+        public Level getPrevious() {
+            return previous;
+        }
+
+        @Override
+        public String toString() {
+            return "Vault " + forecast.getLevel() + " (was " + previous + "): " + forecast;
+        }
+    }
+
+} // end VaultForecaster
@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import benchmarks.CoreOperations;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The users, accounts, and engine that benchmarks.CoreOperationsBenchmark runs
+ * against, and the operations it measures on them. It lives in the default package with
+ * the code it calls, which the benchmark cannot refer to directly.
+ *
+ * Assumption: Balances start high enough that no account runs dry during a run, and the
+ * vault is topped up or emptied by the operator whenever withdrawals or deposits run it
+ * to a limit, so the measured path is always the successful one. Every thread shares the
+ * engine but logs in through a session of its own.
+ *
+ * Input: The number of accounts, made by ATMBenchmark.createAccounts (user u owns
+ * accounts u1 and u2, each user named "user" + u with the password "password").
+ * Output: A value from each operation for the benchmark to consume.
+ */
+public class BenchmarkBank implements CoreOperations {
+
+    private static final int VAULT_BILLS = 30_000;
+
+    private final int accounts;
+    private final String[] names;
+    private final TransactionEngine engine;
+    // Connection.login only needs the engine
+    private final Connection session;
+
+    /**
+     * Creates the users, accounts, and engine for a population.
+     *
+     * @param n The number of accounts, rounded up to an even number of at least two.
+     */
+    public BenchmarkBank(int n) {
+        accounts = Math.max(2, n + n % 2);
+        ArrayList<Account> list = ATMBenchmark.createAccounts(accounts);
+        UserDirectory users = UserDirectory.create(accounts / 2);
+        names = new String[accounts / 2];
+        for (int u = 1; u <= names.length; u++) {
+            names[u - 1] = "user" + u;
+            users.add(new User(names[u - 1], u * 10 + 1, u * 10 + 2, "password", "regular user"));
+        }
+        AccountRegistry registry = AccountRegistry.of(list);
+        list = null;
+        registry.forEach(a -> a.setBalanceCents(1_000_000_000_000L));
+        engine = new TransactionEngine(users, registry,
+                new AtomicVault(VAULT_BILLS, VAULT_BILLS, VAULT_BILLS, VAULT_BILLS));
+        session = new Connection(null, null, null, engine);
+    }
+
+    /*
+     * Another thread's view of the same bank, with a session of its own.
+     */
+    private BenchmarkBank(BenchmarkBank bank) {
+        accounts = bank.accounts;
+        names = bank.names;
+        engine = bank.engine;
+        session = new Connection(null, null, null, engine);
+    }
+
+    /**
+     * A view of the same bank for another thread, with a session of its own.
+     *
+     * @return The new view.
+     */
+    @Override
+    public CoreOperations forThread() {
+        return new BenchmarkBank(this);
+    }
+
+    /**
+     * Logs a random user in.
+     *
+     * @return 1 if the login succeeded.
+     */
+    @Override
+    public long login() {
+        return session.login(names[ThreadLocalRandom.current().nextInt(names.length)], "password") ? 1 : 0;
+    }
+
+    /**
+     * Finds a random account.
+     *
+     * @return The account's number.
+     */
+    @Override
+    public long lookup() {
+        return engine.findAccount(account()).getAccountNumber();
+    }
+
+    /**
+     * Makes the checks Connection.withdraw makes before asking for $185.
+     *
+     * @return 1 if the account and the vault both hold enough.
+     */
+    @Override
+    public long checkWithdrawal() {
+        Account a = engine.findAccount(account());
+        return engine.getVault().calculateBalance() >= 185 && a.getBalanceCents() >= Money.dollarsToCents(185) ? 1 : 0;
+    }
+
+    /**
+     * Dispenses $185 out of the vault and puts the bills back.
+     *
+     * @return The number of $5 bills dispensed.
+     */
+    @Override
+    public long dispense() {
+        // the bills for $185 (100 + 50 + 20 + 3 x 5) out of the vault and back
+        Bills b = engine.getVault().dispense(185, engine.getDispenseStrategy());
+        if (b == null) {
+            return 0;
+        }
+        engine.getVault().addBills(b);
+        return b.getFives();
+    }
+
+    /**
+     * Withdraws $185 from a random account.
+     *
+     * @return The ordinal of the result's status.
+     */
+    @Override
+    public long withdraw() {
+        TransactionResult r = engine.withdraw(account(), 185);
+        if (!r.isSuccess()) {
+            refillVault();
+        }
+        return r.getStatus().ordinal();
+    }
+
+    /**
+     * Deposits $75 in bills into a random account.
+     *
+     * @return The ordinal of the result's status.
+     */
+    @Override
+    public long deposit() {
+        TransactionResult r = engine.deposit(account(), new Bills(0, 1, 1, 1));
+        if (!r.isSuccess()) {
+            refillVault();
+        }
+        return r.getStatus().ordinal();
+    }
+
+    /**
+     * Transfers one dollar between a random user's own accounts.
+     *
+     * @return The ordinal of the result's status.
+     */
+    @Override
+    public long internalTransfer() {
+        return engine.execute(TransactionCommand.internalTransfer(account(), 100)).getStatus().ordinal();
+    }
+
+    /**
+     * Transfers one dollar between two random accounts.
+     *
+     * @return The ordinal of the result's status.
+     */
+    @Override
+    public long transfer() {
+        return engine.transfer(account(), account(), 100).getStatus().ordinal();
+    }
+
+    /*
+     * A random account number, numbered as createAccounts numbers them.
+     */
+    private int account() {
+        int a = ThreadLocalRandom.current().nextInt(accounts);
+        return (a / 2 + 1) * 10 + 1 + a % 2;
+    }
+
+    /*
+     * Brings every denomination in the vault back to its starting count, through the
+     * operator functions, after withdrawals emptied it or deposits filled it.
+     */
+    private void refillVault() {
+        Vault v = engine.getVault();
+        int[] counts = { v.getHundredDollarBills(), v.getFiftyDollarBills(), v.getTwentyDollarBills(),
+            v.getFiveDollarBills() };
+        int[] over = new int[4];
+        int[] under = new int[4];
+        for (int i = 0; i < 4; i++) {
+            over[i] = Math.max(0, counts[i] - VAULT_BILLS);
+            under[i] = Math.max(0, VAULT_BILLS - counts[i]);
+        }
+        engine.removeVaultBills(new Bills(over[0], over[1], over[2], over[3]));
+        engine.addVaultBills(new Bills(under[0], under[1], under[2], under[3]));
+    }
+
+} // end BenchmarkBank
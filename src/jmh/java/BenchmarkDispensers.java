@@ -0,0 +1,101 @@
+import benchmarks.Dispensers;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The dispensing that benchmarks.DispenseBenchmark compares, on a vault of its
+ * own. It lives in the default package with the code it calls, which the benchmark
+ * cannot refer to directly.
+ *
+ * Assumption: Used by one thread. Every call puts the bills it dispensed back with one
+ * Vault.addBills, so the vault never runs dry however long the benchmark runs.
+ *
+ * Input: The amount to dispense, in whole dollars.
+ * Output: The number of $100 bills dispensed.
+ */
+public class BenchmarkDispensers implements Dispensers {
+
+    private static final int PLENTY = 1_000_000_000;
+
+    private static final OptimalDispenser OPTIMAL = new OptimalDispenser();
+
+    private final Vault vault = new Vault(PLENTY, PLENTY, PLENTY, PLENTY);
+
+    /**
+     * Creates a vault holding plenty of every bill.
+     */
+    public BenchmarkDispensers() {
+    }
+
+    /**
+     * Dispenses with Vault.dispense and the greedy plan, and puts the bills back.
+     *
+     * @param amount The amount to dispense.
+     * @return The number of $100 bills dispensed.
+     */
+    @Override
+    public long greedy(int amount) {
+        Bills bills = vault.dispense(amount);
+        vault.addBills(bills);
+        return bills.getHundreds();
+    }
+
+    /**
+     * Dispenses with Vault.dispense and the optimal plan, and puts the bills back.
+     *
+     * @param amount The amount to dispense.
+     * @return The number of $100 bills dispensed.
+     */
+    @Override
+    public long optimal(int amount) {
+        Bills bills = vault.dispense(amount, OPTIMAL);
+        vault.addBills(bills);
+        return bills.getHundreds();
+    }
+
+    /**
+     * Dispenses one bill at a time, and puts the bills back.
+     *
+     * @param amount The amount to dispense.
+     * @return The number of $100 bills dispensed.
+     */
+    @Override
+    public long billLoops(int amount) {
+        Bills bills = legacyDispense(amount);
+        vault.addBills(bills);
+        return bills.getHundreds();
+    }
+
+    /*
+     * The dispensing loops from the original Connection.withdraw, kept here only as the
+     * baseline for the planned dispensers, counting the bills they hand out.
+     */
+    private Bills legacyDispense(int amount) {
+        int hundreds = 0;
+        int fifties = 0;
+        int twenties = 0;
+        int fives = 0;
+        while (amount >= 100 && vault.getHundredDollarBills() > 0) {
+            amount -= 100;
+            vault.setHundredDollarBills(vault.getHundredDollarBills() - 1);
+            hundreds++;
+        }
+        while (amount >= 50 && vault.getFiftyDollarBills() > 0) {
+            amount -= 50;
+            vault.setFiftyDollarBills(vault.getFiftyDollarBills() - 1);
+            fifties++;
+        }
+        while (amount >= 20 && vault.getTwentyDollarBills() > 0) {
+            amount -= 20;
+            vault.setTwentyDollarBills(vault.getTwentyDollarBills() - 1);
+            twenties++;
+        }
+        while (amount >= 5 && vault.getFiveDollarBills() > 0) {
+            amount -= 5;
+            vault.setFiveDollarBills(vault.getFiveDollarBills() - 1);
+            fives++;
+        }
+        return new Bills(hundreds, fifties, twenties, fives);
+    }
+
+} // end BenchmarkDispensers
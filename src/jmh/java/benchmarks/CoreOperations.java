@@ -0,0 +1,92 @@
+package benchmarks;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The core ATM operations measured by CoreOperationsBenchmark: logging in,
+ * finding an account, the checks made before a withdrawal, dispensing, withdrawing,
+ * depositing, and both kinds of transfer. Each picks its own random account (or user)
+ * and returns a value from the call for the benchmark to consume.
+ *
+ * Assumption: One instance is made for each account population and shared by every
+ * thread; each thread then works through its own view of it from forThread.
+ *
+ * Input: The number of accounts to create.
+ * Output: The result of each operation.
+ */
+public interface CoreOperations {
+
+    /**
+     * Creates the users, accounts, and engine for a population.
+     *
+     * @param accounts The number of accounts, two for each user.
+     * @return The operations on that population.
+     */
+    static CoreOperations create(int accounts) {
+        return DefaultPackage.create(CoreOperations.class, "BenchmarkBank", accounts);
+    }
+
+    /**
+     * A view of the same accounts and engine for one thread, with a session of its own.
+     *
+     * @return The operations for the calling thread.
+     */
+    CoreOperations forThread();
+
+    /**
+     * Logs a random user in through Connection.login.
+     *
+     * @return 1 if the login succeeded.
+     */
+    long login();
+
+    /**
+     * Finds a random account through the engine.
+     *
+     * @return The account's number.
+     */
+    long lookup();
+
+    /**
+     * Makes the checks Connection.withdraw makes before it asks for the money.
+     *
+     * @return 1 if the account and the vault both hold enough.
+     */
+    long checkWithdrawal();
+
+    /**
+     * Dispenses the bills for a withdrawal out of the vault and puts them back.
+     *
+     * @return The number of $5 bills in the plan.
+     */
+    long dispense();
+
+    /**
+     * Withdraws from a random account.
+     *
+     * @return The ordinal of the result's status.
+     */
+    long withdraw();
+
+    /**
+     * Deposits bills into a random account.
+     *
+     * @return The ordinal of the result's status.
+     */
+    long deposit();
+
+    /**
+     * Transfers between a random user's own checking and savings accounts.
+     *
+     * @return The ordinal of the result's status.
+     */
+    long internalTransfer();
+
+    /**
+     * Transfers between two random accounts.
+     *
+     * @return The ordinal of the result's status.
+     */
+    long transfer();
+
+} // end CoreOperations
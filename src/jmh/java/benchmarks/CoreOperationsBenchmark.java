@@ -0,0 +1,158 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The regression baseline for the core ATM operations (see CoreOperations),
+ * measured by JMH at account populations from 10 to 10 million, on one thread here and on
+ * every processor at once in AllThreads. Run them, and save the results to compare later
+ * runs against, with:
+ *
+ *     gradle jmh -Pjmh="CoreOperationsBenchmark -rf csv -rff baseline.csv"
+ *
+ * Other thread counts are measured with -t (for example -t 4 with the AllThreads
+ * benchmarks), and a single population with -p accounts=1000.
+ *
+ * Assumption: Each fork is given a 4 GB heap, which 10 million accounts need. Balances
+ * and the vault are kept from running dry (see BenchmarkBank), so only the successful
+ * path of each operation is measured.
+ *
+ * Input: The account population, from @Param or -p accounts.
+ * Output: The throughput of each operation, in operations per second of all threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Threads(1)
+public class CoreOperationsBenchmark {
+
+    /**
+     * The users, accounts, and engine for one population, shared by every thread.
+     */
+    @State(Scope.Benchmark)
+    public static class Population {
+
+        @Param({ "10", "1000", "100000", "10000000" })
+        public int accounts;
+
+        CoreOperations bank;
+
+        /**
+         * Creates the population before the first warm-up iteration.
+         */
+        @Setup(Level.Trial)
+        public void create() {
+            bank = CoreOperations.create(accounts);
+        }
+    }
+
+    /**
+     * One thread's view of the population.
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+
+        CoreOperations operations;
+
+        /**
+         * Gives the thread its own session on the shared population.
+         *
+         * @param population The population the thread works on.
+         */
+        @Setup(Level.Trial)
+        public void join(Population population) {
+            operations = population.bank.forThread();
+        }
+    }
+
+    /**
+     * Connection.login with a random user.
+     */
+    @Benchmark
+    public void login(Caller caller, Blackhole blackhole) {
+        blackhole.consume(caller.operations.login());
+    }
+
+    /**
+     * Finding a random account.
+     */
+    @Benchmark
+    public void lookup(Caller caller, Blackhole blackhole) {
+        blackhole.consume(caller.operations.lookup());
+    }
+
+    /**
+     * The checks made before a withdrawal.
+     */
+    @Benchmark
+    public void checkWithdrawal(Caller caller, Blackhole blackhole) {
+        blackhole.consume(caller.operations.checkWithdrawal());
+    }
+
+    /**
+     * Dispensing the bills for a withdrawal.
+     */
+    @Benchmark
+    public void dispense(Caller caller, Blackhole blackhole) {
+        blackhole.consume(caller.operations.dispense());
+    }
+
+    /**
+     * A withdrawal from a random account.
+     */
+    @Benchmark
+    public void withdraw(Caller caller, Blackhole blackhole) {
+        blackhole.consume(caller.operations.withdraw());
+    }
+
+    /**
+     * A deposit into a random account.
+     */
+    @Benchmark
+    public void deposit(Caller caller, Blackhole blackhole) {
+        blackhole.consume(caller.operations.deposit());
+    }
+
+    /**
+     * A transfer between one user's own accounts.
+     */
+    @Benchmark
+    public void internalTransfer(Caller caller, Blackhole blackhole) {
+        blackhole.consume(caller.operations.internalTransfer());
+    }
+
+    /**
+     * A transfer between two random accounts.
+     */
+    @Benchmark
+    public void transfer(Caller caller, Blackhole blackhole) {
+        blackhole.consume(caller.operations.transfer());
+    }
+
+    /**
+     * The same benchmarks with one thread for every processor, all on the same population.
+     */
+    @Threads(Threads.MAX)
+    public static class AllThreads extends CoreOperationsBenchmark {
+    }
+
+} // end CoreOperationsBenchmark
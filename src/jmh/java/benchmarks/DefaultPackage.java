@@ -0,0 +1,35 @@
+package benchmarks;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Creates the classes in the default package that the benchmarks run against.
+ * JMH will not generate a benchmark for a class in the default package, and a class in a
+ * named package cannot refer to one there, so each benchmark is written against an
+ * interface in this package and gets its implementation, which lives in the default
+ * package with the rest of the ATM code, from here.
+ *
+ * Assumption: The class has exactly one public constructor. It is only looked up while a
+ * benchmark is being set up, never while it is measured.
+ *
+ * Input: The interface, the name of the class implementing it, and the constructor's
+ * arguments.
+ * Output: A new instance of the class.
+ */
+final class DefaultPackage {
+
+    private DefaultPackage() {
+    }
+
+    /*
+     * A new instance of the named class, made with its only public constructor.
+     */
+    static <T> T create(Class<T> type, String className, Object... args) {
+        try {
+            return type.cast(Class.forName(className).getConstructors()[0].newInstance(args));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+} // end DefaultPackage
@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: Compares dispensing a withdrawal through Vault.dispense, with the greedy and
+ * the optimal plan, against the per-bill while loops Connection.withdraw used to run
+ * (see Dispensers). The loops cost more the more bills an amount takes, while both plans
+ * should cost about the same for any amount. Run with:
+ *
+ *     gradle jmh -Pjmh="DispenseBenchmark"
+ *
+ * Assumption: Each thread dispenses from a vault of its own, so only the dispensing is
+ * measured and not contention on the vault.
+ *
+ * Input: The amount to dispense, from @Param or -p amount.
+ * Output: The average time of one withdrawal, in nanoseconds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispenseBenchmark {
+
+    @Param({ "65", "385", "1000", "10000" })
+    public int amount;
+
+    private Dispensers dispensers;
+
+    /**
+     * Creates the thread's vault before the first warm-up iteration.
+     */
+    @Setup(Level.Trial)
+    public void create() {
+        dispensers = Dispensers.create();
+    }
+
+    /**
+     * One GreedyDispenser plan and one vault update.
+     */
+    @Benchmark
+    public void greedy(Blackhole blackhole) {
+        blackhole.consume(dispensers.greedy(amount));
+    }
+
+    /**
+     * One OptimalDispenser plan and one vault update.
+     */
+    @Benchmark
+    public void optimal(Blackhole blackhole) {
+        blackhole.consume(dispensers.optimal(amount));
+    }
+
+    /**
+     * A read and a write of the vault for every bill.
+     */
+    @Benchmark
+    public void billLoops(Blackhole blackhole) {
+        blackhole.consume(dispensers.billLoops(amount));
+    }
+
+} // end DispenseBenchmark
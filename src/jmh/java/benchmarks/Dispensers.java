@@ -0,0 +1,53 @@
+package benchmarks;
+
+/**
+ * Programmer: Parker Schemm
+ *
+ * Purpose: The three ways of dispensing a withdrawal compared by DispenseBenchmark: a
+ * GreedyDispenser plan applied to the vault in one update, an OptimalDispenser plan
+ * applied the same way, and the per-bill loops Connection.withdraw used to run, which
+ * read and wrote the vault once for every bill.
+ *
+ * Assumption: Each thread has its own instance and vault. Every call puts the bills it
+ * dispensed back in one update, so the vault never runs dry, and that cost is the same
+ * for all three.
+ *
+ * Input: The amount to dispense, in whole dollars.
+ * Output: The number of $100 bills dispensed.
+ */
+public interface Dispensers {
+
+    /**
+     * Creates a vault holding plenty of every bill.
+     *
+     * @return The dispensers on that vault.
+     */
+    static Dispensers create() {
+        return DefaultPackage.create(Dispensers.class, "BenchmarkDispensers");
+    }
+
+    /**
+     * Dispenses with Vault.dispense and the greedy plan.
+     *
+     * @param amount The amount to dispense.
+     * @return The number of $100 bills dispensed.
+     */
+    long greedy(int amount);
+
+    /**
+     * Dispenses with Vault.dispense and the optimal plan.
+     *
+     * @param amount The amount to dispense.
+     * @return The number of $100 bills dispensed.
+     */
+    long optimal(int amount);
+
+    /**
+     * Dispenses one bill at a time, the way Connection.withdraw used to.
+     *
+     * @param amount The amount to dispense.
+     * @return The number of $100 bills dispensed.
+     */
+    long billLoops(int amount);
+
+} // end Dispensers